@@ -0,0 +1,130 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.audit
+
+import com.kunzisoft.keepass.database.audit.BreachCorpus
+import junit.framework.TestCase
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+
+class BreachCorpusTest : TestCase() {
+
+    private lateinit var directory: File
+
+    override fun setUp() {
+        super.setUp()
+        directory = File.createTempFile("breach", "corpus")
+        directory.delete()
+        directory.mkdirs()
+    }
+
+    override fun tearDown() {
+        directory.deleteRecursively()
+        super.tearDown()
+    }
+
+    private fun writeCorpus(prefixes: List<Long>): File {
+        val file = File(directory, BreachCorpus.FILE_NAME)
+        DataOutputStream(FileOutputStream(file)).use { outputStream ->
+            // Sorted as unsigned big-endian values
+            prefixes.sortedWith { a, b -> (a xor Long.MIN_VALUE).compareTo(b xor Long.MIN_VALUE) }
+                    .forEach { outputStream.writeLong(it) }
+        }
+        return file
+    }
+
+    /**
+     * SHA-1 hash beginning with [prefix]
+     */
+    private fun sha1(prefix: Long): ByteArray {
+        val sha1 = ByteArray(20) { 0x5A }
+        for (i in 0 until BreachCorpus.RECORD_SIZE) {
+            sha1[i] = (prefix ushr (56 - 8 * i)).toByte()
+        }
+        return sha1
+    }
+
+    fun testRecordsAtSegmentBoundaries() {
+        val prefixes = (1L..10L).map { it * 1000 }
+        val file = writeCorpus(prefixes)
+        // 4 segments, the last one is not complete
+        listOf(1L, 3L, 4L, 10L, 100L).forEach { recordsBySegment ->
+            val corpus = BreachCorpus(file, recordsBySegment)
+            assertEquals(10L, corpus.numberOfRecords)
+            prefixes.forEach { prefix ->
+                assertTrue("$prefix in segments of $recordsBySegment",
+                        corpus.contains(sha1(prefix)))
+                assertFalse(corpus.contains(sha1(prefix + 1)))
+                assertFalse(corpus.contains(sha1(prefix - 1)))
+            }
+            assertFalse(corpus.contains(sha1(0L)))
+            assertFalse(corpus.contains(sha1(Long.MAX_VALUE)))
+        }
+    }
+
+    fun testUnsignedPrefixes() {
+        // Prefixes with the high bit set are after the others
+        val prefixes = listOf(0L,
+                1L,
+                Long.MAX_VALUE,
+                Long.MIN_VALUE,
+                Long.MIN_VALUE + 1,
+                java.lang.Long.parseUnsignedLong("DEADBEEF00000000", 16),
+                -1L)
+        val corpus = BreachCorpus(writeCorpus(prefixes), 3)
+        prefixes.forEach { prefix ->
+            assertTrue("$prefix", corpus.contains(sha1(prefix)))
+        }
+        listOf(2L,
+                Long.MAX_VALUE - 1,
+                Long.MIN_VALUE + 2,
+                java.lang.Long.parseUnsignedLong("DEADBEEF00000001", 16),
+                -2L).forEach { prefix ->
+            assertFalse("$prefix", corpus.contains(sha1(prefix)))
+        }
+    }
+
+    fun testOnlyThePrefixIsCompared() {
+        val corpus = BreachCorpus(writeCorpus(listOf(0x0102030405060708L)), 2)
+        val sha1 = sha1(0x0102030405060708L)
+        sha1[BreachCorpus.RECORD_SIZE] = 0x00
+        sha1[19] = 0x7F
+        assertTrue(corpus.contains(sha1))
+    }
+
+    fun testEmptyCorpus() {
+        val corpus = BreachCorpus(writeCorpus(emptyList()))
+        assertEquals(0L, corpus.numberOfRecords)
+        assertFalse(corpus.contains(sha1(0L)))
+    }
+
+    fun testInvalidCorpus() {
+        assertNull(BreachCorpus.open(directory))
+        File(directory, BreachCorpus.FILE_NAME).writeBytes(ByteArray(BreachCorpus.RECORD_SIZE + 1))
+        try {
+            BreachCorpus(File(directory, BreachCorpus.FILE_NAME))
+            fail("Corpus size not checked")
+        } catch (e: IOException) {
+        }
+        assertNull(BreachCorpus.open(directory))
+    }
+}
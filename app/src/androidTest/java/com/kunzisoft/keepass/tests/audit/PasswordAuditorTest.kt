@@ -0,0 +1,138 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.audit
+
+import com.kunzisoft.keepass.database.audit.PasswordAuditReport
+import com.kunzisoft.keepass.database.audit.PasswordAuditor
+import com.kunzisoft.keepass.database.element.DateInstant
+import com.kunzisoft.keepass.database.element.Entry
+import com.kunzisoft.keepass.database.element.Group
+import com.kunzisoft.keepass.database.element.entry.EntryKDBX
+import com.kunzisoft.keepass.database.element.group.GroupKDBX
+import junit.framework.TestCase
+
+class PasswordAuditorTest : TestCase() {
+
+    private lateinit var rootGroup: Group
+    private lateinit var recycleBin: Group
+
+    override fun setUp() {
+        super.setUp()
+        rootGroup = Group(GroupKDBX())
+        recycleBin = Group(GroupKDBX())
+        rootGroup.addChildGroup(recycleBin)
+    }
+
+    /**
+     * Entry with [password] and a version of its history for each of [historyPasswords]
+     */
+    private fun addEntry(group: Group,
+                         title: String,
+                         password: String,
+                         vararg historyPasswords: String): EntryKDBX {
+        val entry = EntryKDBX()
+        entry.title = title
+        entry.password = password
+        entry.lastModificationTime = DateInstant(MODIFICATION_TIME + historyPasswords.size)
+        historyPasswords.forEachIndexed { position, historyPassword ->
+            entry.addEntryToHistory(EntryKDBX().apply {
+                nodeId = entry.nodeId
+                this.title = title
+                this.password = historyPassword
+                lastModificationTime = DateInstant(MODIFICATION_TIME + position)
+            })
+        }
+        group.addChildEntry(Entry(entry))
+        return entry
+    }
+
+    private fun PasswordAuditReport.getItem(entry: EntryKDBX, historyPosition: Int): PasswordAuditReport.Item {
+        return items.first {
+            it.entry.nodeId == entry.nodeId && it.historyPosition == historyPosition
+        }
+    }
+
+    fun testReuseAcrossHistory() {
+        val entryA = addEntry(rootGroup, "A", SHARED_PASSWORD, "A old password #1")
+        // Previous password of B is the current password of A
+        val entryB = addEntry(rootGroup, "B", "B current password #2", SHARED_PASSWORD)
+        // Same password kept in its own history isn't a reuse
+        val entryC = addEntry(rootGroup, "C", "C own password #3", "C own password #3")
+
+        val report = PasswordAuditor().audit(rootGroup, recycleBin, null)
+
+        assertEquals(6, report.items.size)
+        assertEquals(6, report.numberOfAnalysedPasswords)
+        assertEquals(1, report.getItem(entryA, -1).numberOfReuses)
+        assertEquals(0, report.getItem(entryA, 0).numberOfReuses)
+        assertEquals(0, report.getItem(entryB, -1).numberOfReuses)
+        assertEquals(1, report.getItem(entryB, 0).numberOfReuses)
+        assertTrue(report.getItem(entryB, 0).isHistory)
+        assertEquals(0, report.getItem(entryC, -1).numberOfReuses)
+        assertEquals(0, report.getItem(entryC, 0).numberOfReuses)
+    }
+
+    fun testReuseWithoutHistory() {
+        val entryA = addEntry(rootGroup, "A", SHARED_PASSWORD)
+        addEntry(rootGroup, "B", "B current password #2", SHARED_PASSWORD)
+
+        val report = PasswordAuditor().audit(rootGroup, recycleBin, null, false)
+
+        assertEquals(2, report.items.size)
+        assertTrue(report.items.none { it.isHistory })
+        assertEquals(0, report.getItem(entryA, -1).numberOfReuses)
+    }
+
+    fun testSkippedEntries() {
+        val entryA = addEntry(rootGroup, "A", SHARED_PASSWORD)
+        addEntry(recycleBin, "Deleted", SHARED_PASSWORD, SHARED_PASSWORD)
+        addEntry(rootGroup, "Not checked", SHARED_PASSWORD, SHARED_PASSWORD).apply {
+            qualityCheck = false
+        }
+        addEntry(rootGroup, "Empty", "")
+
+        val report = PasswordAuditor().audit(rootGroup, recycleBin, null)
+
+        assertEquals(1, report.items.size)
+        assertEquals(0, report.getItem(entryA, -1).numberOfReuses)
+    }
+
+    fun testOnlyChangedPasswordsAnalysed() {
+        val entryA = addEntry(rootGroup, "A", SHARED_PASSWORD, "A old password #1")
+        addEntry(rootGroup, "B", "B current password #2", SHARED_PASSWORD)
+        val auditor = PasswordAuditor()
+        assertEquals(4, auditor.audit(rootGroup, recycleBin, null).numberOfAnalysedPasswords)
+
+        val report = auditor.audit(rootGroup, recycleBin, null)
+        assertEquals(0, report.numberOfAnalysedPasswords)
+        assertEquals(1, report.getItem(entryA, -1).numberOfReuses)
+
+        entryA.password = "A new password #4"
+        entryA.lastModificationTime = DateInstant(MODIFICATION_TIME + 10)
+        val changedReport = auditor.audit(rootGroup, recycleBin, null)
+        assertEquals(1, changedReport.numberOfAnalysedPasswords)
+        assertEquals(0, changedReport.getItem(entryA, -1).numberOfReuses)
+    }
+
+    companion object {
+        private const val SHARED_PASSWORD = "Shared password #0"
+        private const val MODIFICATION_TIME = 1600000000000L
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.group
+
+import com.kunzisoft.keepass.database.action.node.NodeHandler
+import com.kunzisoft.keepass.database.action.node.ParallelNodeHandler
+import com.kunzisoft.keepass.database.element.Entry
+import com.kunzisoft.keepass.database.element.Group
+import com.kunzisoft.keepass.database.element.entry.EntryKDBX
+import com.kunzisoft.keepass.database.element.group.GroupKDBX
+import junit.framework.TestCase
+import java.util.*
+
+class ParallelTreeTraversalTest : TestCase() {
+
+    private lateinit var rootGroup: Group
+    private var numberOfEntries = 0
+
+    override fun setUp() {
+        super.setUp()
+        numberOfEntries = 0
+        rootGroup = buildGroup("Root", 0, Random(42))
+    }
+
+    /**
+     * Groups of random width with more entries than a parallel task visits
+     */
+    private fun buildGroup(title: String, depth: Int, random: Random): Group {
+        val group = Group(GroupKDBX())
+        group.title = title
+        repeat(1 + random.nextInt(ENTRIES_BY_GROUP)) { index ->
+            val entry = EntryKDBX()
+            entry.title = "$title/entry$index"
+            group.addChildEntry(Entry(entry))
+            numberOfEntries++
+        }
+        if (depth < MAX_DEPTH) {
+            repeat(2 + random.nextInt(GROUPS_BY_GROUP - 1)) { index ->
+                group.addChildGroup(buildGroup("$title/group$index", depth + 1, random))
+            }
+        }
+        return group
+    }
+
+    private class Visit {
+        val entries = ArrayList<String>()
+        val groups = ArrayList<String>()
+
+        fun merge(other: Visit): Visit {
+            entries.addAll(other.entries)
+            groups.addAll(other.groups)
+            return this
+        }
+    }
+
+    private fun visitInSequence(entryFilter: (Entry) -> Boolean,
+                                groupFilter: (Group) -> Boolean,
+                                stopIterationWhenGroupHandlerOperateFalse: Boolean): Visit {
+        val visit = Visit()
+        rootGroup.doForEachChild(
+                object : NodeHandler<Entry>() {
+                    override fun operate(node: Entry): Boolean {
+                        visit.entries.add(node.title)
+                        return entryFilter(node)
+                    }
+                },
+                object : NodeHandler<Group>() {
+                    override fun operate(node: Group): Boolean {
+                        visit.groups.add(node.title)
+                        return groupFilter(node)
+                    }
+                },
+                stopIterationWhenGroupHandlerOperateFalse)
+        return visit
+    }
+
+    private fun visitInParallel(entryFilter: (Entry) -> Boolean,
+                                groupFilter: (Group) -> Boolean,
+                                stopIterationWhenGroupHandlerOperateFalse: Boolean): Visit {
+        return rootGroup.doForEachChildInParallel({ Visit() },
+                object : ParallelNodeHandler<Entry, Visit>() {
+                    override fun operate(node: Entry, accumulator: Visit): Boolean {
+                        accumulator.entries.add(node.title)
+                        return entryFilter(node)
+                    }
+                },
+                object : ParallelNodeHandler<Group, Visit>() {
+                    override fun operate(node: Group, accumulator: Visit): Boolean {
+                        accumulator.groups.add(node.title)
+                        return groupFilter(node)
+                    }
+                },
+                { visit, other -> visit.merge(other) },
+                stopIterationWhenGroupHandlerOperateFalse)
+    }
+
+    private fun assertSameNodes(expected: Visit, actual: Visit) {
+        // Each node once, the order depends on the tasks
+        assertEquals(expected.entries.size, actual.entries.toSet().size)
+        assertEquals(expected.entries.sorted(), actual.entries.sorted())
+        assertEquals(expected.groups.sorted(), actual.groups.sorted())
+    }
+
+    fun testSameNodesAsSequential() {
+        val sequentialVisit = visitInSequence({ true }, { true }, true)
+        assertEquals(numberOfEntries, sequentialVisit.entries.size)
+        repeat(ITERATIONS) {
+            assertSameNodes(sequentialVisit, visitInParallel({ true }, { true }, true))
+        }
+    }
+
+    fun testSkippedSubtreesAsSequential() {
+        // Subtrees of the second groups are not visited
+        val groupFilter = { group: Group -> !group.title.endsWith("1") }
+        val sequentialVisit = visitInSequence({ true }, groupFilter, false)
+        assertTrue(sequentialVisit.entries.size < numberOfEntries)
+        repeat(ITERATIONS) {
+            assertSameNodes(sequentialVisit, visitInParallel({ true }, groupFilter, false))
+        }
+    }
+
+    fun testStopOnGroupHandler() {
+        val stopTitle = "Root/group0/group1"
+        val groupFilter = { group: Group -> group.title != stopTitle }
+        val allEntries = visitInSequence({ true }, { true }, true).entries
+        val sequentialVisit = visitInSequence({ true }, groupFilter, true)
+        assertTrue(sequentialVisit.entries.size < numberOfEntries)
+        repeat(ITERATIONS) {
+            val parallelVisit = visitInParallel({ true }, groupFilter, true)
+            // The other tasks can visit some nodes before the stop, but never the stopped subtree
+            assertTrue(allEntries.containsAll(parallelVisit.entries))
+            assertTrue(parallelVisit.entries.none { it.startsWith("$stopTitle/") })
+            assertTrue(parallelVisit.entries.size < numberOfEntries)
+        }
+    }
+
+    fun testStopOnEntryHandler() {
+        // First entry of the root, the stop is seen before the other tasks are finished
+        val searchedTitle = "Root/entry0"
+        val entryFilter = { entry: Entry -> entry.title != searchedTitle }
+        val sequentialVisit = visitInSequence(entryFilter, { true }, true)
+        assertEquals(listOf(searchedTitle), sequentialVisit.entries)
+        repeat(ITERATIONS) {
+            val parallelVisit = visitInParallel(entryFilter, { true }, true)
+            assertTrue(parallelVisit.entries.contains(searchedTitle))
+            assertEquals(parallelVisit.entries.size, parallelVisit.entries.toSet().size)
+            assertTrue(parallelVisit.entries.size < numberOfEntries)
+        }
+    }
+
+    fun testNestedTraversal() {
+        // A traversal from a task of the pool is done in its thread, without waiting for the pool
+        val nestedGroup = rootGroup.getChildGroups()[0]
+        val nestedVisit = rootGroup.doForEachChildInParallel({ Visit() },
+                object : ParallelNodeHandler<Entry, Visit>() {
+                    override fun operate(node: Entry, accumulator: Visit): Boolean {
+                        if (node.title == "Root/entry0") {
+                            accumulator.merge(visitGroupInParallel(nestedGroup))
+                        }
+                        return true
+                    }
+                },
+                null,
+                { visit, other -> visit.merge(other) })
+        val sequentialVisit = visitInSequence({ true }, { true }, true)
+        assertEquals(sequentialVisit.entries.filter { it.startsWith("${nestedGroup.title}/") }.sorted(),
+                nestedVisit.entries.sorted())
+    }
+
+    private fun visitGroupInParallel(group: Group): Visit {
+        return group.doForEachChildInParallel({ Visit() },
+                object : ParallelNodeHandler<Entry, Visit>() {
+                    override fun operate(node: Entry, accumulator: Visit): Boolean {
+                        accumulator.entries.add(node.title)
+                        return true
+                    }
+                },
+                null,
+                { visit, other -> visit.merge(other) })
+    }
+
+    companion object {
+        private const val ITERATIONS = 10
+        private const val MAX_DEPTH = 3
+        private const val GROUPS_BY_GROUP = 4
+        private const val ENTRIES_BY_GROUP = 600
+    }
+}
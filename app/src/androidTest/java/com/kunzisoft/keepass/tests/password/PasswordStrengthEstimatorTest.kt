@@ -0,0 +1,100 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.password
+
+import com.kunzisoft.keepass.password.PasswordStrength
+import com.kunzisoft.keepass.password.PasswordStrengthEstimator
+import junit.framework.TestCase
+import kotlin.math.ln
+
+class PasswordStrengthEstimatorTest : TestCase() {
+
+    private fun bruteForceEntropy(password: String): Double {
+        val characterSetSize = PasswordStrengthEstimator.getCharacterSetSize(password)
+        return password.length * ln(characterSetSize.toDouble()) / ln(2.0)
+    }
+
+    fun testEmptyPassword() {
+        assertEquals(0.0, PasswordStrengthEstimator.estimateEntropy(""), 0.0)
+        assertEquals(PasswordStrength.POOR, PasswordStrengthEstimator.estimateStrength(""))
+    }
+
+    fun testCharacterSetSize() {
+        assertEquals(26, PasswordStrengthEstimator.getCharacterSetSize("abc"))
+        assertEquals(62, PasswordStrengthEstimator.getCharacterSetSize("aB3"))
+        assertEquals(95, PasswordStrengthEstimator.getCharacterSetSize("aB3#"))
+        assertEquals(126, PasswordStrengthEstimator.getCharacterSetSize("aé"))
+    }
+
+    fun testCommonPasswords() {
+        // Most common password, first rank of the list
+        assertEquals(0.0, PasswordStrengthEstimator.estimateEntropy("password"), 0.0)
+        listOf("password",
+                "P@ssw0rd",
+                "Password1",
+                "qwerty123",
+                "iloveyou2020",
+                "19871987").forEach { password ->
+            assertEquals(password, PasswordStrength.POOR,
+                    PasswordStrengthEstimator.estimateStrength(password))
+        }
+    }
+
+    fun testPatternsCheaperThanCharacters() {
+        listOf("aaaaaaaa",
+                "abcdefgh",
+                "98765432",
+                "qwertyuiop",
+                "MonkeyMonkey",
+                "dr4g0n1987").forEach { password ->
+            val entropy = PasswordStrengthEstimator.estimateEntropy(password)
+            assertTrue(password, entropy < bruteForceEntropy(password) / 2)
+            assertEquals(password, PasswordStrength.POOR,
+                    PasswordStrengthEstimator.estimateStrength(password))
+        }
+    }
+
+    fun testRandomPasswords() {
+        assertEquals(PasswordStrength.GOOD,
+                PasswordStrengthEstimator.estimateStrength("kX9#mQ2\$vL"))
+        assertEquals(PasswordStrength.EXCELLENT,
+                PasswordStrengthEstimator.estimateStrength("x7#Kp9\$mQ2!vLz4&Rt8^"))
+        // Without pattern, the entropy is the one of the character set
+        val password = "x7#Kp9\$mQ2!vLz4&Rt8^"
+        assertEquals(bruteForceEntropy(password),
+                PasswordStrengthEstimator.estimateEntropy(password), 0.000001)
+    }
+
+    fun testLongPasswordEstimatedOnItsCharacterSet() {
+        val beginning = "x7#Kp9\$mQ2!vLz4&Rt8^".repeat(7)
+        val password = beginning + "password"
+        val entropy = PasswordStrengthEstimator.estimateEntropy(password)
+        // The common word after the analysed length isn't detected
+        assertTrue(entropy > PasswordStrengthEstimator.estimateEntropy(beginning))
+        assertEquals(PasswordStrength.EXCELLENT, PasswordStrength.fromEntropy(entropy))
+    }
+
+    fun testStrengthFromEntropy() {
+        assertEquals(PasswordStrength.POOR, PasswordStrength.fromEntropy(39.9))
+        assertEquals(PasswordStrength.WEAK, PasswordStrength.fromEntropy(40.0))
+        assertEquals(PasswordStrength.GOOD, PasswordStrength.fromEntropy(65.0))
+        assertEquals(PasswordStrength.EXCELLENT, PasswordStrength.fromEntropy(100.0))
+    }
+}
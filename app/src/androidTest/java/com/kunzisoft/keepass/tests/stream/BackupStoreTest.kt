@@ -0,0 +1,292 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.stream
+
+import com.kunzisoft.keepass.database.backup.BackupStore
+import com.kunzisoft.keepass.database.crypto.kdf.KdfParameters
+import junit.framework.TestCase
+import org.junit.Assert.assertArrayEquals
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.security.MessageDigest
+import java.util.Random
+import java.util.UUID
+
+class BackupStoreTest : TestCase() {
+
+    private lateinit var directory: File
+
+    override fun setUp() {
+        super.setUp()
+        directory = File.createTempFile("backup", "store")
+        directory.delete()
+        directory.mkdirs()
+    }
+
+    override fun tearDown() {
+        directory.deleteRecursively()
+        super.tearDown()
+    }
+
+    /**
+     * Derivation without cost, the key only depends on the credentials and the seed
+     */
+    private class TestKeyDerivation(password: String) : BackupStore.KeyDerivation {
+
+        var numberOfDerivations = 0
+
+        override val credentials: ByteArray = MessageDigest.getInstance("SHA-256")
+                .digest(password.toByteArray())
+
+        override fun newParameters(): KdfParameters {
+            return KdfParameters(KDF_UUID).apply {
+                setParamUUID()
+                setByteArray(PARAM_SEED, ByteArray(32).also { Random().nextBytes(it) })
+            }
+        }
+
+        override fun deriveKey(kdfParameters: KdfParameters): ByteArray {
+            numberOfDerivations++
+            val seed = kdfParameters.getByteArray(PARAM_SEED)
+                    ?: throw IOException("No seed")
+            return MessageDigest.getInstance("SHA-256").apply {
+                update(credentials)
+                update(seed)
+            }.digest()
+        }
+    }
+
+    @Throws(IOException::class)
+    fun testNoSnapshotBeforeKeyDerivation() {
+        val store = BackupStore(directory)
+        val keyDerivation = TestKeyDerivation(PASSWORD)
+        assertNull("Snapshot created without derived key", store.createSnapshot(keyDerivation))
+        assertEquals("Key derived during the snapshot", 0, keyDerivation.numberOfDerivations)
+        store.deriveCurrentKey(keyDerivation)
+        assertNotNull("No snapshot with derived key", store.createSnapshot(keyDerivation))
+        store.deriveCurrentKey(keyDerivation)
+        assertEquals("Key derived again", 1, keyDerivation.numberOfDerivations)
+    }
+
+    @Throws(IOException::class)
+    fun testRoundTrip() {
+        val store = BackupStore(directory)
+        val keyDerivation = TestKeyDerivation(PASSWORD)
+        store.deriveCurrentKey(keyDerivation)
+
+        val data = randomBytes(1024 * 1024 + 17, 1)
+        addSnapshot(store, keyDerivation, data, 1000L)
+
+        val snapshots = store.getSnapshots()
+        assertEquals("Unexpected number of snapshots", 1, snapshots.size)
+        assertEquals("Unexpected time", 1000L, snapshots[0].time)
+        assertEquals("Unexpected length", data.size.toLong(), snapshots[0].length)
+        assertArrayEquals("Snapshot not restored",
+                data, readSnapshot(store, snapshots[0], keyDerivation))
+
+        // Read again with a new session
+        val newStore = BackupStore(directory)
+        assertArrayEquals("Snapshot not restored in a new session",
+                data, readSnapshot(newStore, newStore.getSnapshots()[0], TestKeyDerivation(PASSWORD)))
+    }
+
+    @Throws(IOException::class)
+    fun testUnchangedDataShared() {
+        val store = BackupStore(directory)
+        val keyDerivation = TestKeyDerivation(PASSWORD)
+        store.deriveCurrentKey(keyDerivation)
+
+        val data = randomBytes(4 * 1024 * 1024, 2)
+        addSnapshot(store, keyDerivation, data, 1000L)
+        val numberOfChunks = countChunks()
+
+        // Same data at the start, as the attachments of the inner header, different end
+        val modifiedData = data.copyOf()
+        System.arraycopy(randomBytes(1000, 3), 0, modifiedData, data.size - 1000, 1000)
+        addSnapshot(store, keyDerivation, modifiedData, 2000L)
+
+        assertTrue("Unchanged data not shared", countChunks() <= numberOfChunks + 2)
+        val snapshots = store.getSnapshots()
+        assertEquals("Most recent snapshot not first", 2000L, snapshots[0].time)
+        assertArrayEquals(modifiedData, readSnapshot(store, snapshots[0], keyDerivation))
+        assertArrayEquals(data, readSnapshot(store, snapshots[1], keyDerivation))
+    }
+
+    @Throws(IOException::class)
+    fun testOtherCredentials() {
+        val store = BackupStore(directory)
+        val keyDerivation = TestKeyDerivation(PASSWORD)
+        store.deriveCurrentKey(keyDerivation)
+        val data = randomBytes(100000, 4)
+        addSnapshot(store, keyDerivation, data, 1000L)
+
+        // Keys of the previous credentials forgotten
+        val otherKeyDerivation = TestKeyDerivation("other")
+        assertFalse("Key kept after a change of credentials",
+                store.isCurrentKeyDerived(otherKeyDerivation))
+        assertNull("Snapshot created with the previous key",
+                store.createSnapshot(otherKeyDerivation))
+        try {
+            store.openSnapshot(store.getSnapshots()[0], otherKeyDerivation)
+            fail("Snapshot opened with other credentials")
+        } catch (e: IOException) {
+            // Expected
+        }
+
+        // New key, the previous snapshot stays readable with its credentials
+        store.deriveCurrentKey(otherKeyDerivation)
+        val otherData = randomBytes(100000, 5)
+        addSnapshot(store, otherKeyDerivation, otherData, 2000L)
+        val snapshots = store.getSnapshots()
+        assertArrayEquals(otherData, readSnapshot(store, snapshots[0], otherKeyDerivation))
+        assertArrayEquals(data, readSnapshot(store, snapshots[1], TestKeyDerivation(PASSWORD)))
+    }
+
+    @Throws(IOException::class)
+    fun testCorruptedChunk() {
+        val store = BackupStore(directory)
+        val keyDerivation = TestKeyDerivation(PASSWORD)
+        store.deriveCurrentKey(keyDerivation)
+        addSnapshot(store, keyDerivation, randomBytes(100000, 6), 1000L)
+
+        chunkFiles().first().let { chunkFile ->
+            RandomAccessFile(chunkFile, "rw").use { file ->
+                file.seek(10)
+                val byte = file.read()
+                file.seek(10)
+                file.write(byte xor 0x01)
+            }
+        }
+        try {
+            readSnapshot(store, store.getSnapshots()[0], keyDerivation)
+            fail("Corrupted chunk not detected")
+        } catch (e: IOException) {
+            // Expected
+        }
+    }
+
+    @Throws(IOException::class)
+    fun testIncompleteChunkRewritten() {
+        val store = BackupStore(directory)
+        val keyDerivation = TestKeyDerivation(PASSWORD)
+        store.deriveCurrentKey(keyDerivation)
+        val data = randomBytes(100000, 8)
+        addSnapshot(store, keyDerivation, data, 1000L)
+
+        // As left by a crash before the data reached the storage
+        chunkFiles().forEach { chunkFile ->
+            RandomAccessFile(chunkFile, "rw").use { it.setLength(0) }
+        }
+        addSnapshot(store, keyDerivation, data, 2000L)
+
+        store.getSnapshots().forEach { snapshot ->
+            assertArrayEquals("Incomplete chunk not rewritten",
+                    data, readSnapshot(store, snapshot, keyDerivation))
+        }
+        assertTrue("Temp file left", File(directory, "chunks").walkTopDown()
+                .none { it.isFile && it.name.endsWith(".tmp") })
+    }
+
+    @Throws(IOException::class)
+    fun testAbortedSnapshot() {
+        val store = BackupStore(directory)
+        val keyDerivation = TestKeyDerivation(PASSWORD)
+        store.deriveCurrentKey(keyDerivation)
+        store.createSnapshot(keyDerivation)!!.apply {
+            write(randomBytes(100000, 7))
+            abort()
+            try {
+                commit(1000L)
+                fail("Aborted snapshot committed")
+            } catch (e: IOException) {
+                // Expected
+            }
+        }
+        assertTrue("Aborted snapshot recorded", store.getSnapshots().isEmpty())
+        store.applyRetention(BackupStore.Retention(10, 0))
+        assertEquals("Chunks of the aborted snapshot kept", 0, countChunks())
+    }
+
+    @Throws(IOException::class)
+    fun testRetention() {
+        val store = BackupStore(directory)
+        val keyDerivation = TestKeyDerivation(PASSWORD)
+        store.deriveCurrentKey(keyDerivation)
+        for (i in 1..5) {
+            addSnapshot(store, keyDerivation, randomBytes(50000, i.toLong()), i * 1000L)
+        }
+        store.applyRetention(BackupStore.Retention(3, 0))
+        val snapshots = store.getSnapshots()
+        assertEquals("Unexpected number of snapshots", 3, snapshots.size)
+        assertEquals("Most recent snapshot not kept", 5000L, snapshots[0].time)
+        snapshots.forEach { snapshot ->
+            assertArrayEquals(randomBytes(50000, snapshot.time / 1000L),
+                    readSnapshot(store, snapshot, keyDerivation))
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun addSnapshot(store: BackupStore,
+                            keyDerivation: BackupStore.KeyDerivation,
+                            data: ByteArray,
+                            time: Long) {
+        store.createSnapshot(keyDerivation)!!.apply {
+            // Unaligned writes
+            var position = 0
+            while (position < data.size) {
+                val length = minOf(4099, data.size - position)
+                write(data, position, length)
+                position += length
+            }
+            commit(time)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun readSnapshot(store: BackupStore,
+                             snapshot: BackupStore.Snapshot,
+                             keyDerivation: BackupStore.KeyDerivation): ByteArray {
+        val output = ByteArrayOutputStream()
+        store.openSnapshot(snapshot, keyDerivation).use { inputStream ->
+            inputStream.copyTo(output)
+        }
+        return output.toByteArray()
+    }
+
+    private fun chunkFiles(): List<File> {
+        return File(directory, "chunks").walkTopDown().filter { it.isFile }.toList()
+    }
+
+    private fun countChunks(): Int {
+        return chunkFiles().size
+    }
+
+    private fun randomBytes(length: Int, seed: Long): ByteArray {
+        return ByteArray(length).also { Random(seed).nextBytes(it) }
+    }
+
+    companion object {
+        private const val PASSWORD = "password"
+        private const val PARAM_SEED = "S"
+        private val KDF_UUID = UUID.fromString("6d3ff1a4-84ad-4b45-8d5e-2a9b7c0c5a11")
+    }
+}
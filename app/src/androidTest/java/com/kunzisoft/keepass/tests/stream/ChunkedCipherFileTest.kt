@@ -0,0 +1,178 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.stream
+
+import com.kunzisoft.keepass.database.element.binary.ChunkedCipherFile
+import com.kunzisoft.keepass.database.element.binary.LoadedKey
+import junit.framework.TestCase
+import org.junit.Assert.assertArrayEquals
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.IOException
+import java.util.Random
+import javax.crypto.Cipher
+import javax.crypto.spec.IvParameterSpec
+
+class ChunkedCipherFileTest : TestCase() {
+
+    private lateinit var file: File
+    private val loadedKey = LoadedKey.generateNewCipherKey()
+
+    override fun setUp() {
+        super.setUp()
+        file = File.createTempFile("chunked", ".cache")
+    }
+
+    override fun tearDown() {
+        file.delete()
+        super.tearDown()
+    }
+
+    @Throws(IOException::class)
+    fun testEmpty() {
+        testRoundTrip(0)
+    }
+
+    @Throws(IOException::class)
+    fun testSmall() {
+        testRoundTrip(1)
+        testRoundTrip(100)
+    }
+
+    @Throws(IOException::class)
+    fun testChunkBoundaries() {
+        testRoundTrip(CHUNK_SIZE - 1)
+        testRoundTrip(CHUNK_SIZE)
+        testRoundTrip(CHUNK_SIZE + 1)
+        testRoundTrip(3 * CHUNK_SIZE + 17)
+    }
+
+    @Throws(IOException::class)
+    private fun testRoundTrip(length: Int) {
+        val orig = randomBytes(length)
+        val chunkedCipherFile = writeInPieces(orig)
+
+        assertEquals("Plain length not equal", length.toLong(), chunkedCipherFile.length())
+
+        val decoded = ByteArrayOutputStream()
+        chunkedCipherFile.getInputStream().use { inputStream ->
+            val buffer = ByteArray(1000)
+            var read = inputStream.read(buffer)
+            while (read != -1) {
+                decoded.write(buffer, 0, read)
+                read = inputStream.read(buffer)
+            }
+        }
+        assertArrayEquals("Output not equal to input", orig, decoded.toByteArray())
+    }
+
+    @Throws(IOException::class)
+    fun testRandomAccess() {
+        val length = 4 * CHUNK_SIZE + 123
+        val orig = randomBytes(length)
+        val chunkedCipherFile = writeInPieces(orig)
+
+        val positions = intArrayOf(0, 1, CHUNK_SIZE - 5, CHUNK_SIZE, 2 * CHUNK_SIZE + 7, length - 10)
+        for (position in positions) {
+            // Read across the next chunk boundary
+            val buffer = ByteArray(minOf(CHUNK_SIZE + 10, length - position))
+            val read = chunkedCipherFile.read(position.toLong(), buffer, 0, buffer.size)
+            assertEquals("Read length not equal at $position", buffer.size, read)
+            assertArrayEquals("Read not equal at $position",
+                    orig.copyOfRange(position, position + buffer.size), buffer)
+
+            chunkedCipherFile.getInputStream(position.toLong()).use { inputStream ->
+                assertEquals("Byte not equal at $position",
+                        orig[position].toInt() and 0xFF, inputStream.read())
+            }
+        }
+
+        val buffer = ByteArray(10)
+        assertEquals("Read after the end", -1, chunkedCipherFile.read(length.toLong(), buffer, 0, buffer.size))
+        chunkedCipherFile.getInputStream().use { inputStream ->
+            assertEquals("Skip not bounded", length.toLong(), inputStream.skip(length + 100L))
+            assertEquals("Read after skip to the end", -1, inputStream.read())
+        }
+    }
+
+    /**
+     * The counters of consecutive chunks follow each other,
+     * so the whole file must be a single counter mode stream from the nonce
+     */
+    @Throws(IOException::class)
+    fun testSingleCounterStream() {
+        val orig = randomBytes(2 * CHUNK_SIZE + 1000)
+        writeInPieces(orig)
+
+        val content = file.readBytes()
+        assertEquals("File length not equal", (NONCE_SIZE + orig.size).toLong(), file.length())
+
+        val counterBlock = ByteArray(16)
+        System.arraycopy(content, 0, counterBlock, 0, NONCE_SIZE)
+        val cipher = Cipher.getInstance(LoadedKey.BINARY_CIPHER)
+        cipher.init(Cipher.DECRYPT_MODE, loadedKey.key, IvParameterSpec(counterBlock))
+        val decrypted = cipher.doFinal(content, NONCE_SIZE, content.size - NONCE_SIZE)
+        assertArrayEquals("Counter stream not equal to input", orig, decrypted)
+    }
+
+    @Throws(IOException::class)
+    fun testNonceUnique() {
+        val orig = randomBytes(1000)
+        writeInPieces(orig)
+        val contentA = file.readBytes()
+        writeInPieces(orig)
+        val contentB = file.readBytes()
+        assertFalse("Same nonce for two writes",
+                contentA.copyOfRange(0, NONCE_SIZE).contentEquals(contentB.copyOfRange(0, NONCE_SIZE)))
+        assertFalse("Same encrypted data for two writes", contentA.contentEquals(contentB))
+    }
+
+    private fun writeInPieces(orig: ByteArray): ChunkedCipherFile {
+        val chunkedCipherFile = ChunkedCipherFile(file, loadedKey)
+        chunkedCipherFile.getOutputStream().use { outputStream ->
+            // Uneven writes, to cross the chunk boundaries in the middle of a write
+            var offset = 0
+            var pieceSize = 1
+            while (offset < orig.size) {
+                val count = minOf(pieceSize, orig.size - offset)
+                if (count == 1)
+                    outputStream.write(orig[offset].toInt())
+                else
+                    outputStream.write(orig, offset, count)
+                offset += count
+                pieceSize = pieceSize * 7 + 3
+            }
+        }
+        return chunkedCipherFile
+    }
+
+    private fun randomBytes(length: Int): ByteArray {
+        val bytes = ByteArray(length)
+        rand.nextBytes(bytes)
+        return bytes
+    }
+
+    companion object {
+        private const val CHUNK_SIZE = ChunkedCipherFile.CHUNK_SIZE
+        private const val NONCE_SIZE = 8
+
+        private val rand = Random()
+    }
+}
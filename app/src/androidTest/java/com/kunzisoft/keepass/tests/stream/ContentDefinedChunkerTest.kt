@@ -0,0 +1,116 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.stream
+
+import com.kunzisoft.keepass.database.backup.ContentDefinedChunker
+import junit.framework.TestCase
+import org.junit.Assert.assertArrayEquals
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+import java.util.Random
+
+class ContentDefinedChunkerTest : TestCase() {
+
+    fun testEmpty() {
+        assertTrue("No chunk expected", chunk(ByteArray(0)).isEmpty())
+    }
+
+    fun testChunkSizes() {
+        val data = randomBytes(4 * 1024 * 1024, 1)
+        val chunks = chunk(data)
+        assertTrue("Data not split", chunks.size > 1)
+        chunks.forEachIndexed { index, chunk ->
+            assertTrue("Chunk too large", chunk.size <= ContentDefinedChunker.MAX_SIZE)
+            if (index < chunks.size - 1)
+                assertTrue("Chunk too small", chunk.size >= ContentDefinedChunker.MIN_SIZE)
+        }
+        val concatenation = ByteArrayOutputStream()
+        chunks.forEach { concatenation.write(it) }
+        assertArrayEquals("Chunks not equal to the data", data, concatenation.toByteArray())
+    }
+
+    fun testMaxSizeOnConstantData() {
+        val chunks = chunk(ByteArray(3 * ContentDefinedChunker.MAX_SIZE + 10))
+        assertEquals("Unexpected number of chunks", 4, chunks.size)
+        assertEquals("Chunk not cut at the maximum size",
+                ContentDefinedChunker.MAX_SIZE, chunks[0].size)
+        assertEquals("Unexpected last chunk", 10, chunks[3].size)
+    }
+
+    fun testIndependentOfWrites() {
+        val data = randomBytes(1024 * 1024, 2)
+        val chunksByByte = ArrayList<ByteArray>()
+        ContentDefinedChunker { chunk, length ->
+            chunksByByte.add(chunk.copyOf(length))
+        }.use { chunker ->
+            data.forEach { chunker.write(it.toInt()) }
+        }
+        val chunks = chunk(data)
+        assertEquals("Number of chunks depends on the writes", chunks.size, chunksByByte.size)
+        chunks.forEachIndexed { index, chunk ->
+            assertArrayEquals("Chunk depends on the writes", chunk, chunksByByte[index])
+        }
+    }
+
+    fun testBoundariesStableAfterInsertion() {
+        val data = randomBytes(4 * 1024 * 1024, 3)
+        val insertionPosition = data.size / 2
+        val modifiedData = ByteArrayOutputStream().apply {
+            write(data, 0, insertionPosition)
+            write(randomBytes(100, 4))
+            write(data, insertionPosition, data.size - insertionPosition)
+        }.toByteArray()
+
+        val chunkIds = chunk(data).map { chunkId(it) }
+        val modifiedChunkIds = chunk(modifiedData).map { chunkId(it) }
+
+        // Only the chunks around the insertion are different
+        val newChunks = modifiedChunkIds.filter { !chunkIds.contains(it) }
+        assertTrue("Too many chunks changed: ${newChunks.size}", newChunks.size <= 2)
+        assertTrue("Too many chunks lost",
+                chunkIds.count { !modifiedChunkIds.contains(it) } <= 2)
+    }
+
+    private fun chunk(data: ByteArray): List<ByteArray> {
+        val chunks = ArrayList<ByteArray>()
+        ContentDefinedChunker { chunk, length ->
+            chunks.add(chunk.copyOf(length))
+        }.use { chunker ->
+            // Unaligned writes
+            var position = 0
+            val random = Random(0)
+            while (position < data.size) {
+                val length = minOf(random.nextInt(10000), data.size - position)
+                chunker.write(data, position, length)
+                position += length
+            }
+        }
+        return chunks
+    }
+
+    private fun chunkId(chunk: ByteArray): ByteBuffer {
+        return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(chunk))
+    }
+
+    private fun randomBytes(length: Int, seed: Long): ByteArray {
+        return ByteArray(length).also { Random(seed).nextBytes(it) }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.stream
+
+import com.kunzisoft.keepass.database.crypto.kdf.KdfFactory
+import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
+import com.kunzisoft.keepass.database.file.output.DatabaseOutputKDBX
+import com.kunzisoft.keepass.database.file.output.DatabaseOutputVerifierKDBX
+import com.kunzisoft.keepass.stream.SyncFileOutputStream
+import junit.framework.TestCase
+import org.junit.Assert.assertArrayEquals
+import java.io.ByteArrayInputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.util.Random
+
+class DatabaseOutputVerifierTest : TestCase() {
+
+    private lateinit var file: File
+
+    override fun setUp() {
+        super.setUp()
+        file = File.createTempFile("database", ".tmp")
+    }
+
+    override fun tearDown() {
+        file.delete()
+        super.tearDown()
+    }
+
+    @Throws(IOException::class)
+    fun testSyncFileOutputStream() {
+        val orig = ByteArray(3 * 1000 + 17)
+        rand.nextBytes(orig)
+        // Buffer smaller than the data, to write it in several times
+        val outputStream = SyncFileOutputStream(file, 1000)
+        outputStream.write(orig[0].toInt())
+        outputStream.write(orig, 1, orig.size - 1)
+        outputStream.close()
+        // No effect once closed
+        outputStream.close()
+
+        assertArrayEquals("File not equal to the data written", orig, file.readBytes())
+    }
+
+    @Throws(Exception::class)
+    fun testVerifyKDBX31() {
+        testVerify(newDatabase(false))
+    }
+
+    @Throws(Exception::class)
+    fun testVerifyKDBX4() {
+        testVerify(newDatabase(true))
+    }
+
+    @Throws(Exception::class)
+    private fun testVerify(database: DatabaseKDBX) {
+        SyncFileOutputStream(file).use { outputStream ->
+            DatabaseOutputKDBX(database, outputStream).output()
+        }
+        val content = file.readBytes()
+
+        // In one and several threads
+        FileInputStream(file).use {
+            DatabaseOutputVerifierKDBX(database, 1).verify(it)
+        }
+        FileInputStream(file).use {
+            DatabaseOutputVerifierKDBX(database, 4).verify(it)
+        }
+
+        // Header, middle and end of the file
+        for (position in intArrayOf(20, content.size / 2, content.size - 40)) {
+            val corrupted = content.copyOf()
+            corrupted[position] = (corrupted[position].toInt() xor 0x10).toByte()
+            assertVerifyFails("Corrupted byte at $position not detected", database, corrupted)
+        }
+        assertVerifyFails("Truncated file not detected", database, content.copyOf(content.size - 100))
+    }
+
+    private fun assertVerifyFails(message: String, database: DatabaseKDBX, content: ByteArray) {
+        try {
+            DatabaseOutputVerifierKDBX(database).verify(ByteArrayInputStream(content))
+            fail(message)
+        } catch (e: IOException) {
+            // Expected
+        }
+    }
+
+    /**
+     * Database with enough entries to write several blocks, [kdbx4] with an Argon2 key derivation
+     */
+    private fun newDatabase(kdbx4: Boolean): DatabaseKDBX {
+        val database = DatabaseKDBX("Test", "Root")
+        if (kdbx4) {
+            database.kdfParameters = KdfFactory.argon2dKdf.defaultParameters
+            database.numberKeyEncryptionRounds = 2
+            database.memoryUsage = 1024 * 1024
+            database.parallelism = 1
+        } else {
+            database.kdfParameters = KdfFactory.aesKdf.defaultParameters
+            database.numberKeyEncryptionRounds = 1000
+        }
+        database.retrieveMasterKey("password", null)
+        val rootGroup = database.rootGroup
+        for (i in 0 until 500) {
+            val entry = database.createEntry()
+            entry.title = "Entry $i"
+            entry.password = "Password ${rand.nextLong()}"
+            entry.notes = ByteArray(100).also { rand.nextBytes(it) }.joinToString("") { "%02x".format(it) }
+            database.addEntryTo(entry, rootGroup)
+        }
+        return database
+    }
+
+    companion object {
+        private val rand = Random()
+    }
+}
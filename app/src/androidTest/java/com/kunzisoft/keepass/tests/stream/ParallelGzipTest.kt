@@ -0,0 +1,179 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.stream
+
+import com.kunzisoft.keepass.stream.ParallelGzipOutputStream
+import com.kunzisoft.keepass.stream.PooledGzipInputStream
+import junit.framework.TestCase
+import org.junit.Assert.assertArrayEquals
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.Random
+import java.util.zip.Deflater
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+class ParallelGzipTest : TestCase() {
+
+    @Throws(IOException::class)
+    fun testSingleBlock() {
+        testRoundTrip(compressibleBytes(1000), BLOCK_SIZE, 4)
+        testRoundTrip(ByteArray(0), BLOCK_SIZE, 4)
+    }
+
+    @Throws(IOException::class)
+    fun testSingleThread() {
+        testRoundTrip(compressibleBytes(10 * BLOCK_SIZE + 7), BLOCK_SIZE, 1)
+    }
+
+    @Throws(IOException::class)
+    fun testParallelBlocks() {
+        testRoundTrip(compressibleBytes(BLOCK_SIZE), BLOCK_SIZE, 4)
+        testRoundTrip(compressibleBytes(50 * BLOCK_SIZE + 13), BLOCK_SIZE, 4)
+        testRoundTrip(randomBytes(20 * BLOCK_SIZE + 1), BLOCK_SIZE, 3)
+    }
+
+    @Throws(IOException::class)
+    fun testDefaultBlockSize() {
+        testRoundTrip(compressibleBytes(3 * ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE + 100),
+                ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE, 2)
+    }
+
+    @Throws(IOException::class)
+    private fun testRoundTrip(orig: ByteArray, blockSize: Int, threads: Int) {
+        val bos = ByteArrayOutputStream()
+        val output = ParallelGzipOutputStream(bos, Deflater.DEFAULT_COMPRESSION, blockSize, threads)
+        writeInPieces(output, orig)
+        output.close()
+        val compressed = bos.toByteArray()
+
+        // Same magic, method and flags as the standard stream, the operating system byte may differ
+        val reference = ByteArrayOutputStream()
+        GZIPOutputStream(reference).use { it.write(orig) }
+        assertArrayEquals("Header not equal to the standard header",
+                reference.toByteArray().copyOfRange(0, 4), compressed.copyOfRange(0, 4))
+
+        assertArrayEquals("Standard inflate not equal to input",
+                orig, readAll(GZIPInputStream(ByteArrayInputStream(compressed))))
+        assertArrayEquals("Pooled inflate not equal to input",
+                orig, readAll(PooledGzipInputStream(ByteArrayInputStream(compressed))))
+    }
+
+    @Throws(IOException::class)
+    fun testPooledInflateStandardStream() {
+        for (length in intArrayOf(0, 1, PooledGzipInputStream.BUFFER_SIZE + 1, 5 * PooledGzipInputStream.BUFFER_SIZE)) {
+            val orig = randomBytes(length)
+            val bos = ByteArrayOutputStream()
+            GZIPOutputStream(bos).use { it.write(orig) }
+            // Several times, to read with the buffers released in the pool
+            for (i in 0 until 3) {
+                assertArrayEquals("Pooled inflate not equal to input",
+                        orig, readAll(PooledGzipInputStream(ByteArrayInputStream(bos.toByteArray()))))
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    fun testAbort() {
+        var closed = false
+        val bos = object : ByteArrayOutputStream() {
+            override fun close() {
+                closed = true
+            }
+        }
+        val output = ParallelGzipOutputStream(bos, Deflater.DEFAULT_COMPRESSION, BLOCK_SIZE, 4)
+        output.write(compressibleBytes(20 * BLOCK_SIZE))
+        output.abort()
+        assertFalse("Base stream closed after abort", closed)
+        try {
+            output.write(1)
+            fail("Write accepted after abort")
+        } catch (e: IOException) {
+            // Expected
+        }
+
+        // The compression threads are stopped
+        val end = System.currentTimeMillis() + 5000
+        while (compressionThreadAlive() && System.currentTimeMillis() < end) {
+            Thread.sleep(10)
+        }
+        assertFalse("Compression threads still alive after abort", compressionThreadAlive())
+    }
+
+    private fun compressionThreadAlive(): Boolean {
+        return Thread.getAllStackTraces().keys.any {
+            it.isAlive && it.name == "ParallelGzipOutputStream"
+        }
+    }
+
+    private fun writeInPieces(outputStream: OutputStream, data: ByteArray) {
+        var offset = 0
+        var pieceSize = 1
+        while (offset < data.size) {
+            val count = minOf(pieceSize, data.size - offset)
+            if (count == 1)
+                outputStream.write(data[offset].toInt())
+            else
+                outputStream.write(data, offset, count)
+            offset += count
+            pieceSize = pieceSize * 3 + 1
+        }
+    }
+
+    private fun readAll(inputStream: InputStream): ByteArray {
+        inputStream.use {
+            val decoded = ByteArrayOutputStream()
+            val buffer = ByteArray(1000)
+            var read = it.read(buffer)
+            while (read != -1) {
+                decoded.write(buffer, 0, read)
+                read = it.read(buffer)
+            }
+            return decoded.toByteArray()
+        }
+    }
+
+    /**
+     * Text like data, with repetitions across the blocks to use the dictionaries
+     */
+    private fun compressibleBytes(length: Int): ByteArray {
+        val words = Array(64) { "word$it-${rand.nextInt(1000)} " }
+        val builder = StringBuilder()
+        while (builder.length < length) {
+            builder.append(words[rand.nextInt(words.size)])
+        }
+        return builder.substring(0, length).toByteArray()
+    }
+
+    private fun randomBytes(length: Int): ByteArray {
+        val bytes = ByteArray(length)
+        rand.nextBytes(bytes)
+        return bytes
+    }
+
+    companion object {
+        private const val BLOCK_SIZE = 4096
+
+        private val rand = Random()
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.stream
+
+import com.kunzisoft.keepass.database.crypto.HmacBlock
+import com.kunzisoft.keepass.stream.HmacBlockInputStream
+import com.kunzisoft.keepass.stream.HmacBlockOutputStream
+import com.kunzisoft.keepass.stream.PipelineOutputStream
+import com.kunzisoft.keepass.utils.UnsignedInt
+import com.kunzisoft.keepass.utils.UnsignedLong
+import com.kunzisoft.keepass.utils.uIntTo4Bytes
+import com.kunzisoft.keepass.utils.uLongTo8Bytes
+import junit.framework.TestCase
+import org.junit.Assert.assertArrayEquals
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.Random
+
+class PipelineHmacBlockTest : TestCase() {
+
+    private val key = ByteArray(64).apply { rand.nextBytes(this) }
+
+    @Throws(IOException::class)
+    fun testHmacBlockSizes() {
+        testHmacBlock(0)
+        testHmacBlock(1)
+        testHmacBlock(BLOCK_SIZE - 1)
+        testHmacBlock(BLOCK_SIZE)
+        testHmacBlock(BLOCK_SIZE + 1)
+        testHmacBlock(5 * BLOCK_SIZE + 321)
+    }
+
+    @Throws(IOException::class)
+    private fun testHmacBlock(length: Int) {
+        val orig = randomBytes(length)
+
+        val bos = ByteArrayOutputStream()
+        val output = HmacBlockOutputStream(bos, key)
+        writeInPieces(output, orig)
+        output.close()
+        val encoded = bos.toByteArray()
+
+        assertArrayEquals("Output not compatible with the reference blocks",
+                referenceHmacBlocks(orig), encoded)
+
+        val input = HmacBlockInputStream(ByteArrayInputStream(encoded), true, key)
+        assertArrayEquals("Output not equal to input", orig, readAll(input))
+    }
+
+    @Throws(IOException::class)
+    fun testHmacBlockCorrupted() {
+        val bos = ByteArrayOutputStream()
+        HmacBlockOutputStream(bos, key).use { it.write(randomBytes(1000)) }
+        val encoded = bos.toByteArray()
+        // Change a byte of the block data
+        encoded[encoded.size - 100] = (encoded[encoded.size - 100].toInt() xor 1).toByte()
+        try {
+            readAll(HmacBlockInputStream(ByteArrayInputStream(encoded), true, key))
+            fail("Corrupted block not detected")
+        } catch (e: IOException) {
+            // Expected
+        }
+    }
+
+    @Throws(IOException::class)
+    fun testPipelinePassThrough() {
+        val orig = randomBytes(7 * PipelineOutputStream.DEFAULT_BLOCK_SIZE + 99)
+
+        val bos = ByteArrayOutputStream()
+        val pipeline = PipelineOutputStream(bos, "PipelineHmacBlockTest", 1000, 2)
+        writeInPieces(pipeline, orig)
+        pipeline.close()
+
+        assertArrayEquals("Output not equal to input", orig, bos.toByteArray())
+    }
+
+    /**
+     * HMAC blocks written through a pipeline stage must be the same as blocks written directly
+     */
+    @Throws(IOException::class)
+    fun testPipelineHmacBlock() {
+        val orig = randomBytes(3 * BLOCK_SIZE + 5)
+
+        val bos = ByteArrayOutputStream()
+        val output = PipelineOutputStream(HmacBlockOutputStream(bos, key), "PipelineHmacBlockTest")
+        writeInPieces(output, orig)
+        output.close()
+
+        assertArrayEquals("Pipeline output not equal to the direct output",
+                referenceHmacBlocks(orig), bos.toByteArray())
+    }
+
+    @Throws(IOException::class)
+    fun testPipelineError() {
+        val failingStream = object : OutputStream() {
+            override fun write(b: Int) {
+                throw IOException("Write failed")
+            }
+            override fun write(b: ByteArray, off: Int, len: Int) {
+                throw IOException("Write failed")
+            }
+        }
+        val pipeline = PipelineOutputStream(failingStream, "PipelineHmacBlockTest", 10, 2)
+        try {
+            // Enough blocks to get the error back in the writer or at close
+            for (i in 0 until 100) {
+                pipeline.write(ByteArray(10))
+            }
+            pipeline.close()
+            fail("Error of the base stream not reported")
+        } catch (e: IOException) {
+            assertEquals("Wrong error reported", "Write failed", e.message)
+        }
+    }
+
+    @Throws(IOException::class)
+    fun testPipelineAbort() {
+        var closed = false
+        val bos = object : ByteArrayOutputStream() {
+            override fun close() {
+                closed = true
+            }
+        }
+        val pipeline = PipelineOutputStream(bos, "PipelineHmacBlockTest", 10, 2)
+        pipeline.write(ByteArray(25))
+        pipeline.abort()
+        assertFalse("Base stream closed after abort", closed)
+        try {
+            pipeline.write(1)
+            fail("Write accepted after abort")
+        } catch (e: IOException) {
+            // Expected
+        }
+        // No effect once aborted
+        pipeline.close()
+        assertFalse("Base stream closed after abort", closed)
+    }
+
+    /**
+     * Blocks built as the original stream did, with new buffers and a new Mac for each block
+     */
+    private fun referenceHmacBlocks(data: ByteArray): ByteArray {
+        val bos = ByteArrayOutputStream()
+        val blockIndex = UnsignedLong(0L)
+        var offset = 0
+        while (true) {
+            val length = minOf(BLOCK_SIZE, data.size - offset)
+            val blockIndexBytes = uLongTo8Bytes(blockIndex)
+            val blockSizeBytes = uIntTo4Bytes(UnsignedInt(length))
+            val hmac = HmacBlock.getHmacSha256(HmacBlock.getHmacKey64(key, blockIndexBytes))
+            hmac.update(blockIndexBytes)
+            hmac.update(blockSizeBytes)
+            hmac.update(data, offset, length)
+            bos.write(hmac.doFinal())
+            bos.write(blockSizeBytes)
+            bos.write(data, offset, length)
+            blockIndex.plusOne()
+            offset += length
+            if (length == 0)
+                break
+        }
+        return bos.toByteArray()
+    }
+
+    private fun writeInPieces(outputStream: OutputStream, data: ByteArray) {
+        var offset = 0
+        var pieceSize = 1
+        while (offset < data.size) {
+            val count = minOf(pieceSize, data.size - offset)
+            if (count == 1)
+                outputStream.write(data[offset].toInt())
+            else
+                outputStream.write(data, offset, count)
+            offset += count
+            pieceSize = pieceSize * 5 + 1
+        }
+    }
+
+    private fun readAll(inputStream: InputStream): ByteArray {
+        val decoded = ByteArrayOutputStream()
+        val buffer = ByteArray(1000)
+        var read = inputStream.read(buffer)
+        while (read != -1) {
+            decoded.write(buffer, 0, read)
+            read = inputStream.read(buffer)
+        }
+        return decoded.toByteArray()
+    }
+
+    private fun randomBytes(length: Int): ByteArray {
+        val bytes = ByteArray(length)
+        rand.nextBytes(bytes)
+        return bytes
+    }
+
+    companion object {
+        // Size of the blocks written by HmacBlockOutputStream
+        private const val BLOCK_SIZE = DEFAULT_BUFFER_SIZE
+
+        private val rand = Random()
+    }
+}
@@ -26,6 +26,7 @@ import android.content.ComponentName
 import android.content.Context
 import android.content.Intent
 import android.graphics.Color
+import android.net.Uri
 import android.os.*
 import android.util.Log
 import android.view.Menu
@@ -43,15 +44,19 @@ import com.kunzisoft.keepass.R
 import com.kunzisoft.keepass.activities.dialogs.*
 import com.kunzisoft.keepass.activities.fragments.GroupFragment
 import com.kunzisoft.keepass.activities.helpers.EntrySelectionHelper
+import com.kunzisoft.keepass.activities.helpers.ExternalFileHelper
 import com.kunzisoft.keepass.activities.helpers.SpecialMode
 import com.kunzisoft.keepass.activities.legacy.DatabaseLockActivity
 import com.kunzisoft.keepass.adapters.SearchEntryCursorAdapter
+import com.kunzisoft.keepass.app.database.IOActionTask
 import com.kunzisoft.keepass.autofill.AutofillComponent
 import com.kunzisoft.keepass.autofill.AutofillHelper
+import com.kunzisoft.keepass.database.backup.BackupStore
 import com.kunzisoft.keepass.database.element.*
 import com.kunzisoft.keepass.database.element.node.Node
 import com.kunzisoft.keepass.database.element.node.NodeId
 import com.kunzisoft.keepass.database.element.node.Type
+import com.kunzisoft.keepass.database.exception.DatabaseOutputException
 import com.kunzisoft.keepass.database.search.SearchHelper
 import com.kunzisoft.keepass.education.GroupActivityEducation
 import com.kunzisoft.keepass.model.GroupInfo
@@ -64,6 +69,7 @@ import com.kunzisoft.keepass.settings.PreferencesUtil
 import com.kunzisoft.keepass.tasks.ActionRunnable
 import com.kunzisoft.keepass.timeout.TimeoutHelper
 import com.kunzisoft.keepass.utils.MenuUtil
+import com.kunzisoft.keepass.utils.UriUtil
 import com.kunzisoft.keepass.view.*
 import com.kunzisoft.keepass.viewmodels.GroupEditViewModel
 import com.kunzisoft.keepass.viewmodels.GroupViewModel
@@ -75,7 +81,9 @@ class GroupActivity : DatabaseLockActivity(),
         GroupFragment.NodeClickListener,
         GroupFragment.NodesActionMenuListener,
         GroupFragment.OnScrollListener,
-        SortDialogFragment.SortSelectionListener {
+        SortDialogFragment.SortSelectionListener,
+        PasswordAuditDialogFragment.PasswordAuditListener,
+        BackupSnapshotsDialogFragment.BackupSnapshotsListener {
 
     // Views
     private var rootContainerView: ViewGroup? = null
@@ -108,6 +116,10 @@ class GroupActivity : DatabaseLockActivity(),
     private var mPreviousGroupsIds = mutableListOf<GroupState>()
     private var mOldGroupToUpdate: Group? = null
 
+    private var mExternalFileHelper: ExternalFileHelper? = null
+    // Snapshots to restore by request code of the file creation
+    private val mSnapshotsToRestore = HashMap<Int, BackupStore.Snapshot>()
+
     private var mSearchSuggestionAdapter: SearchEntryCursorAdapter? = null
     private var mOnSuggestionListener: SearchView.OnSuggestionListener? = null
 
@@ -133,6 +145,8 @@ class GroupActivity : DatabaseLockActivity(),
         lockView = findViewById(R.id.lock_button)
         loadingView = findViewById(R.id.loading)
 
+        mExternalFileHelper = ExternalFileHelper(this)
+
         lockView?.setOnClickListener {
             lockAndExit()
         }
@@ -556,7 +570,7 @@ class GroupActivity : DatabaseLockActivity(),
     private fun refreshNumberOfChildren(group: Group?) {
         numberChildrenView?.apply {
             if (PreferencesUtil.showNumberEntries(context)) {
-                group?.refreshNumberOfChildEntries(Group.ChildFilter.getDefaults(context))
+                group?.refreshNumberOfChildEntries(Group.ChildFilter.getDefaults(context), mDatabase)
                 text = group?.numberOfChildEntries?.toString() ?: ""
                 visibility = View.VISIBLE
             } else {
@@ -883,6 +897,8 @@ class GroupActivity : DatabaseLockActivity(),
             MenuUtil.defaultMenuInflater(inflater, menu)
         } else {
             menu.findItem(R.id.menu_reload_database)?.isVisible = false
+            menu.findItem(R.id.menu_audit_passwords)?.isVisible = false
+            menu.findItem(R.id.menu_backup_snapshots)?.isVisible = false
         }
 
         // Menu for recycle bin
@@ -1006,6 +1022,14 @@ class GroupActivity : DatabaseLockActivity(),
                 reloadDatabase()
                 return true
             }
+            R.id.menu_audit_passwords -> {
+                PasswordAuditDialogFragment().show(supportFragmentManager, "passwordAuditDialog")
+                return true
+            }
+            R.id.menu_backup_snapshots -> {
+                BackupSnapshotsDialogFragment().show(supportFragmentManager, "backupSnapshotsDialog")
+                return true
+            }
             R.id.menu_empty_recycle_bin -> {
                 if (mRecyclingBinEnabled && mRecyclingBinIsCurrentGroup) {
                     mCurrentGroup?.getChildren()?.let { listChildren ->
@@ -1031,6 +1055,43 @@ class GroupActivity : DatabaseLockActivity(),
         mGroupFragment?.onSortSelected(sortNodeEnum, sortNodeParameters)
     }
 
+    override fun onPasswordAuditEntrySelected(entry: Entry) {
+        mDatabase?.let { database ->
+            EntryActivity.launch(this, database, entry.nodeId)
+        }
+    }
+
+    override fun onBackupSnapshotSelected(snapshot: BackupStore.Snapshot) {
+        val databaseName = mDatabase?.name?.takeIf { it.isNotEmpty() } ?: "Database"
+        mExternalFileHelper?.createDocument("${databaseName}_${snapshot.time}.kdbx")?.let { requestCode ->
+            mSnapshotsToRestore[requestCode] = snapshot
+        }
+    }
+
+    private fun restoreBackupSnapshot(snapshot: BackupStore.Snapshot, uri: Uri) {
+        mDatabase?.let { database ->
+            val backupDirectory = UriUtil.getBackupDir(this)
+            IOActionTask(
+                    {
+                        try {
+                            database.restoreBackupSnapshot(contentResolver, backupDirectory, snapshot, uri)
+                            true
+                        } catch (e: DatabaseOutputException) {
+                            false
+                        }
+                    },
+                    { restored ->
+                        Toast.makeText(this,
+                                if (restored == true)
+                                    R.string.backup_snapshot_restored
+                                else
+                                    R.string.error_backup_snapshot_restore,
+                                Toast.LENGTH_LONG).show()
+                    }
+            ).execute()
+        }
+    }
+
     override fun startActivity(intent: Intent) {
         // Get the intent, verify the action and get the query
         if (Intent.ACTION_SEARCH == intent.action) {
@@ -1074,6 +1135,13 @@ class GroupActivity : DatabaseLockActivity(),
             AutofillHelper.onActivityResultSetResultAndFinish(this, requestCode, resultCode, data)
         }
 
+        mExternalFileHelper?.onCreateDocumentResult(requestCode, resultCode, data) { createdFileUri ->
+            val snapshot = mSnapshotsToRestore.remove(requestCode)
+            if (createdFileUri != null && snapshot != null) {
+                restoreBackupSnapshot(snapshot, createdFileUri)
+            }
+        }
+
         // Directly used the onActivityResult in fragment
         mGroupFragment?.onActivityResult(requestCode, resultCode, data)
     }
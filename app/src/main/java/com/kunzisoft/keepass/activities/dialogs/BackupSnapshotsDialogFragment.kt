@@ -0,0 +1,123 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.activities.dialogs
+
+import android.app.Dialog
+import android.content.Context
+import android.os.Bundle
+import android.text.format.Formatter
+import android.widget.ArrayAdapter
+import android.widget.Toast
+import androidx.appcompat.app.AlertDialog
+import com.kunzisoft.keepass.R
+import com.kunzisoft.keepass.app.database.IOActionTask
+import com.kunzisoft.keepass.database.backup.BackupStore
+import com.kunzisoft.keepass.database.element.Database
+import com.kunzisoft.keepass.utils.UriUtil
+import java.text.DateFormat
+import java.util.*
+
+/**
+ * List of the backup snapshots of the current database, the most recent first
+ */
+class BackupSnapshotsDialogFragment : DatabaseDialogFragment() {
+
+    private var mListener: BackupSnapshotsListener? = null
+
+    private var mAdapter: ArrayAdapter<String>? = null
+    private var mSnapshots: List<BackupStore.Snapshot> = emptyList()
+    private var mSnapshotsRetrieved = false
+
+    override fun onAttach(context: Context) {
+        super.onAttach(context)
+        try {
+            mListener = context as BackupSnapshotsListener
+        } catch (e: ClassCastException) {
+            throw ClassCastException(context.toString()
+                    + " must implement " + BackupSnapshotsListener::class.java.name)
+        }
+    }
+
+    override fun onDetach() {
+        mListener = null
+        super.onDetach()
+    }
+
+    override fun onCreateDialog(savedInstanceState: Bundle?): Dialog {
+        activity?.let { activity ->
+            val adapter = ArrayAdapter<String>(activity, android.R.layout.simple_list_item_1)
+            mAdapter = adapter
+            refreshItems()
+
+            val builder = AlertDialog.Builder(activity)
+            builder.setTitle(R.string.menu_backup_snapshots)
+                    .setAdapter(adapter) { _, position ->
+                        mSnapshots.getOrNull(position)?.let { snapshot ->
+                            mListener?.onBackupSnapshotSelected(snapshot)
+                        }
+                    }
+                    .setNegativeButton(android.R.string.cancel) { _, _ -> }
+            return builder.create()
+        }
+        return super.onCreateDialog(savedInstanceState)
+    }
+
+    override fun onDatabaseRetrieved(database: Database?) {
+        super.onDatabaseRetrieved(database)
+        val context = context ?: return
+        if (database == null || mSnapshotsRetrieved)
+            return
+        mSnapshotsRetrieved = true
+        val backupDirectory = UriUtil.getBackupDir(context)
+        IOActionTask(
+                {
+                    database.getBackupSnapshots(backupDirectory)
+                },
+                { snapshots ->
+                    mSnapshots = snapshots ?: emptyList()
+                    if (mSnapshots.isEmpty()) {
+                        activity?.let {
+                            Toast.makeText(it, R.string.backup_snapshots_empty, Toast.LENGTH_SHORT).show()
+                        }
+                        dismissAllowingStateLoss()
+                    } else {
+                        refreshItems()
+                    }
+                }
+        ).execute()
+    }
+
+    private fun refreshItems() {
+        val context = context ?: return
+        val dateFormat = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT)
+        mAdapter?.apply {
+            clear()
+            addAll(mSnapshots.map { snapshot ->
+                dateFormat.format(Date(snapshot.time)) +
+                        " (" + Formatter.formatFileSize(context, snapshot.length) + ")"
+            })
+            notifyDataSetChanged()
+        }
+    }
+
+    interface BackupSnapshotsListener {
+        fun onBackupSnapshotSelected(snapshot: BackupStore.Snapshot)
+    }
+}
@@ -24,6 +24,7 @@ import android.os.Bundle
 import android.text.SpannableStringBuilder
 import androidx.appcompat.app.AlertDialog
 import com.kunzisoft.keepass.R
+import com.kunzisoft.keepass.database.element.Database
 import com.kunzisoft.keepass.model.SnapFileDatabaseInfo
 
 
@@ -31,6 +32,14 @@ class DatabaseChangedDialogFragment : DatabaseDialogFragment() {
 
     var actionDatabaseListener: ActionDatabaseChangedListener? = null
 
+    private var mAllowMerge = false
+
+    override fun onDatabaseRetrieved(database: Database?) {
+        super.onDatabaseRetrieved(database)
+        mAllowMerge = database != null && database.allowMerge && !database.isReadOnly
+        (dialog as? AlertDialog?)?.getButton(AlertDialog.BUTTON_NEUTRAL)?.isEnabled = mAllowMerge
+    }
+
     override fun onPause() {
         super.onPause()
         actionDatabaseListener = null
@@ -54,6 +63,10 @@ class DatabaseChangedDialogFragment : DatabaseDialogFragment() {
                             + "\n→\n" +
                             newSnapFileDatabaseInfo.toString(activity) + "\n\n")
                     stringBuilder.append(getString(R.string.warning_database_info_changed_options))
+                    stringBuilder.append(" " + getString(R.string.warning_database_info_changed_merge))
+                    builder.setNeutralButton(R.string.menu_merge_database) { _, _ ->
+                        actionDatabaseListener?.mergeDatabaseChanged()
+                    }
                 } else {
                     stringBuilder.append(getString(R.string.warning_database_revoked))
                 }
@@ -61,7 +74,11 @@ class DatabaseChangedDialogFragment : DatabaseDialogFragment() {
                 builder.setPositiveButton(android.R.string.ok) { _, _ ->
                     actionDatabaseListener?.validateDatabaseChanged()
                 }
-                return builder.create()
+                return builder.create().apply {
+                    setOnShowListener {
+                        getButton(AlertDialog.BUTTON_NEUTRAL)?.isEnabled = mAllowMerge
+                    }
+                }
             }
         }
         return super.onCreateDialog(savedInstanceState)
@@ -69,6 +86,7 @@ class DatabaseChangedDialogFragment : DatabaseDialogFragment() {
 
     interface ActionDatabaseChangedListener {
         fun validateDatabaseChanged()
+        fun mergeDatabaseChanged()
     }
 
     companion object {
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.activities.dialogs
+
+import android.app.Dialog
+import android.content.Context
+import android.os.Bundle
+import android.view.View
+import android.widget.CompoundButton
+import android.widget.ProgressBar
+import android.widget.RadioGroup
+import android.widget.TextView
+import androidx.appcompat.app.AlertDialog
+import androidx.recyclerview.widget.LinearLayoutManager
+import androidx.recyclerview.widget.RecyclerView
+import com.kunzisoft.keepass.R
+import com.kunzisoft.keepass.adapters.PasswordAuditAdapter
+import com.kunzisoft.keepass.app.database.IOActionTask
+import com.kunzisoft.keepass.database.audit.BreachCorpus
+import com.kunzisoft.keepass.database.audit.PasswordAuditReport
+import com.kunzisoft.keepass.database.element.Database
+import com.kunzisoft.keepass.database.element.Entry
+
+/**
+ * Report of the password audit, the breach corpus is read from the files directory of the app if present
+ */
+class PasswordAuditDialogFragment : DatabaseDialogFragment() {
+
+    private var mListener: PasswordAuditListener? = null
+
+    private var mAdapter: PasswordAuditAdapter? = null
+    private var mReport: PasswordAuditReport? = null
+    private var mAuditStarted = false
+    private var mSort = PasswordAuditReport.Sort.RISK
+    private var mOnlyIssues = true
+
+    private var summaryView: TextView? = null
+    private var breachUncheckedView: View? = null
+    private var progressView: ProgressBar? = null
+
+    override fun onAttach(context: Context) {
+        super.onAttach(context)
+        try {
+            mListener = context as PasswordAuditListener
+        } catch (e: ClassCastException) {
+            throw ClassCastException(context.toString()
+                    + " must implement " + PasswordAuditListener::class.java.name)
+        }
+    }
+
+    override fun onDetach() {
+        mListener = null
+        super.onDetach()
+    }
+
+    override fun onCreateDialog(savedInstanceState: Bundle?): Dialog {
+        activity?.let { activity ->
+            val builder = AlertDialog.Builder(activity)
+
+            val rootView = activity.layoutInflater.inflate(R.layout.fragment_password_audit, null)
+            builder.setTitle(R.string.password_audit_title)
+            builder.setView(rootView)
+                    .setPositiveButton(android.R.string.ok) { _, _ -> }
+
+            summaryView = rootView.findViewById(R.id.password_audit_summary)
+            breachUncheckedView = rootView.findViewById(R.id.password_audit_breach_unchecked)
+            progressView = rootView.findViewById(R.id.password_audit_progress)
+
+            mAdapter = PasswordAuditAdapter(activity).apply {
+                onItemClickListener = { item ->
+                    mListener?.onPasswordAuditEntrySelected(item.entry)
+                    dismiss()
+                }
+            }
+            rootView.findViewById<RecyclerView>(R.id.password_audit_list).apply {
+                layoutManager = LinearLayoutManager(activity, LinearLayoutManager.VERTICAL, false)
+                adapter = mAdapter
+            }
+
+            val sortRadioGroup = rootView.findViewById<RadioGroup>(R.id.password_audit_sort_radio_group)
+            sortRadioGroup.check(R.id.password_audit_sort_risk)
+            sortRadioGroup.setOnCheckedChangeListener { _, checkedId ->
+                mSort = when (checkedId) {
+                    R.id.password_audit_sort_strength -> PasswordAuditReport.Sort.STRENGTH
+                    R.id.password_audit_sort_reuse -> PasswordAuditReport.Sort.REUSE
+                    R.id.password_audit_sort_title -> PasswordAuditReport.Sort.TITLE
+                    else -> PasswordAuditReport.Sort.RISK
+                }
+                refreshItems()
+            }
+
+            val onlyIssuesView = rootView.findViewById<CompoundButton>(R.id.password_audit_only_issues)
+            onlyIssuesView.isChecked = mOnlyIssues
+            onlyIssuesView.setOnCheckedChangeListener { _, isChecked ->
+                mOnlyIssues = isChecked
+                refreshItems()
+            }
+
+            // The audit may be finished before the view is built
+            if (mReport != null)
+                showReport()
+
+            return builder.create()
+        }
+        return super.onCreateDialog(savedInstanceState)
+    }
+
+    override fun onDatabaseRetrieved(database: Database?) {
+        super.onDatabaseRetrieved(database)
+        if (database == null || mAuditStarted)
+            return
+        mAuditStarted = true
+        val filesDirectory = context?.filesDir
+        IOActionTask(
+                {
+                    database.auditPasswords(filesDirectory?.let { BreachCorpus.open(it) })
+                },
+                { report ->
+                    mReport = report
+                    showReport()
+                }
+        ).execute()
+    }
+
+    private fun showReport() {
+        progressView?.visibility = View.GONE
+        mReport?.let { report ->
+            summaryView?.text = getString(R.string.password_audit_summary,
+                    report.items.size, report.numberOfIssues)
+            breachUncheckedView?.visibility =
+                    if (report.breachCorpusChecked) View.GONE else View.VISIBLE
+        }
+        refreshItems()
+    }
+
+    private fun refreshItems() {
+        mAdapter?.items = mReport?.getItems(mSort, true, mOnlyIssues) ?: emptyList()
+    }
+
+    interface PasswordAuditListener {
+        fun onPasswordAuditEntrySelected(entry: Entry)
+    }
+}
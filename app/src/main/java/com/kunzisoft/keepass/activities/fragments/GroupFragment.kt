@@ -22,6 +22,8 @@ package com.kunzisoft.keepass.activities.fragments
 import android.content.Context
 import android.content.Intent
 import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
 import android.util.Log
 import android.view.*
 import androidx.appcompat.view.ActionMode
@@ -71,6 +73,10 @@ class GroupFragment : DatabaseFragment(), SortDialogFragment.SortSelectionListen
 
     private var specialMode: SpecialMode = SpecialMode.DEFAULT
 
+    // To rebuild the list when the next entry expires
+    private val mExpiryHandler = Handler(Looper.getMainLooper())
+    private val mExpiryRunnable = Runnable { rebuildList() }
+
     private var mRecycleBinEnable: Boolean = false
     private var mRecycleBin: Group? = null
 
@@ -222,6 +228,7 @@ class GroupFragment : DatabaseFragment(), SortDialogFragment.SortSelectionListen
 
     override fun onPause() {
 
+        mExpiryHandler.removeCallbacks(mExpiryRunnable)
         mNodesRecyclerView?.removeOnScrollListener(mRecycleViewScrollListener)
         super.onPause()
     }
@@ -232,6 +239,8 @@ class GroupFragment : DatabaseFragment(), SortDialogFragment.SortSelectionListen
 
     private fun rebuildList() {
         try {
+            // Flip the entries expired since the last build, also when the expiry alarm is triggered
+            mDatabase?.updateExpiredEntries()
             // Add elements to the list
             mCurrentGroup?.let { mainGroup ->
                 // Thrown an exception when sort cannot be performed
@@ -247,6 +256,23 @@ class GroupFragment : DatabaseFragment(), SortDialogFragment.SortSelectionListen
         } else {
             notFoundView?.visibility = View.GONE
         }
+
+        scheduleNextExpiry()
+    }
+
+    /**
+     * Only one alarm for the next expiry, instead of checking the expiry of each entry periodically
+     */
+    private fun scheduleNextExpiry() {
+        mExpiryHandler.removeCallbacks(mExpiryRunnable)
+        if (!isResumed)
+            return
+        mDatabase?.getNextExpiryTime()?.let { nextExpiryTime ->
+            // An entry is expired after its expiry time
+            val delay = nextExpiryTime - System.currentTimeMillis() + 1
+            if (delay < MAX_EXPIRY_DELAY)
+                mExpiryHandler.postDelayed(mExpiryRunnable, maxOf(delay, 0L))
+        }
     }
 
     override fun onSortSelected(sortNodeEnum: SortNodeEnum,
@@ -457,5 +483,8 @@ class GroupFragment : DatabaseFragment(), SortDialogFragment.SortSelectionListen
 
     companion object {
         private val TAG = GroupFragment::class.java.name
+
+        // The list is rebuilt at each resume, no need to wait longer
+        private const val MAX_EXPIRY_DELAY = 24 * 60 * 60 * 1000L
     }
 }
@@ -213,7 +213,8 @@ abstract class DatabaseLockActivity : DatabaseModeActivity(),
     ) {
         super.onDatabaseActionFinished(database, actionTask, result)
         when (actionTask) {
-            DatabaseTaskNotificationService.ACTION_DATABASE_RELOAD_TASK -> {
+            DatabaseTaskNotificationService.ACTION_DATABASE_RELOAD_TASK,
+            DatabaseTaskNotificationService.ACTION_DATABASE_MERGE_TASK -> {
                 // Reload the current activity
                 if (result.isSuccess) {
                     reloadActivity()
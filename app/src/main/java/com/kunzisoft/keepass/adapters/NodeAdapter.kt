@@ -144,7 +144,7 @@ class NodeAdapter (private val context: Context,
      */
     fun rebuildList(group: Group) {
         assignPreferences()
-        mNodeSortedList.replaceAll(group.getFilteredChildren(mEntryFilters))
+        mNodeSortedList.replaceAll(group.getFilteredChildren(mEntryFilters, database))
     }
 
     private inner class NodeSortedListCallback: SortedListAdapterCallback<Node>(this) {
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.adapters
+
+import android.content.Context
+import android.view.LayoutInflater
+import android.view.View
+import android.view.ViewGroup
+import android.widget.TextView
+import androidx.recyclerview.widget.RecyclerView
+import com.kunzisoft.keepass.R
+import com.kunzisoft.keepass.database.audit.PasswordAuditReport
+import com.kunzisoft.keepass.password.PasswordStrength
+
+class PasswordAuditAdapter(val context: Context) : RecyclerView.Adapter<PasswordAuditAdapter.PasswordAuditViewHolder>() {
+
+    private val inflater: LayoutInflater = LayoutInflater.from(context)
+    var items: List<PasswordAuditReport.Item> = ArrayList()
+        set(value) {
+            field = value
+            notifyDataSetChanged()
+        }
+    var onItemClickListener: ((item: PasswordAuditReport.Item) -> Unit)? = null
+
+    override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): PasswordAuditViewHolder {
+        return PasswordAuditViewHolder(inflater.inflate(R.layout.item_list_password_audit, parent, false))
+    }
+
+    override fun onBindViewHolder(holder: PasswordAuditViewHolder, position: Int) {
+        val item = items[position]
+
+        holder.titleView.text = if (item.isHistory)
+            "${item.entry.getVisualTitle()} (${context.getString(R.string.entry_history)})"
+        else
+            item.entry.getVisualTitle()
+
+        val details = ArrayList<String>()
+        details.add(context.getString(R.string.password_audit_entropy,
+                context.getString(getStrengthStringId(item.strength)),
+                item.entropy.toInt()))
+        if (item.breached)
+            details.add(context.getString(R.string.password_audit_breached))
+        if (item.numberOfReuses > 0)
+            details.add(context.getString(R.string.password_audit_reused, item.numberOfReuses))
+        holder.detailsView.text = details.joinToString("\n")
+
+        holder.itemView.setOnClickListener {
+            onItemClickListener?.invoke(item)
+        }
+    }
+
+    override fun getItemCount(): Int {
+        return items.size
+    }
+
+    private fun getStrengthStringId(strength: PasswordStrength): Int {
+        return when (strength) {
+            PasswordStrength.POOR -> R.string.password_strength_poor
+            PasswordStrength.WEAK -> R.string.password_strength_weak
+            PasswordStrength.GOOD -> R.string.password_strength_good
+            PasswordStrength.EXCELLENT -> R.string.password_strength_excellent
+        }
+    }
+
+    inner class PasswordAuditViewHolder(itemView: View) : RecyclerView.ViewHolder(itemView) {
+
+        var titleView: TextView = itemView.findViewById(R.id.password_audit_item_title)
+        var detailsView: TextView = itemView.findViewById(R.id.password_audit_item_details)
+    }
+}
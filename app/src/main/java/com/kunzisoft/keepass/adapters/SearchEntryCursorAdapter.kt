@@ -147,7 +147,7 @@ class SearchEntryCursorAdapter(private val context: Context,
                 SearchHelper.MAX_SEARCH_ENTRY)
         if (searchGroup != null) {
             // Search in hide entries but not meta-stream
-            for (entry in searchGroup.getFilteredChildEntries(Group.ChildFilter.getDefaults(context))) {
+            for (entry in searchGroup.getFilteredChildEntries(Group.ChildFilter.getDefaults(context), database)) {
                 database.startManageEntry(entry)
                 entry.entryKDB?.let {
                     cursorKDB?.addEntry(it)
@@ -28,6 +28,7 @@ import android.view.autofill.AutofillValue
 import androidx.annotation.RequiresApi
 import org.joda.time.DateTime
 import java.util.*
+import java.util.ArrayDeque
 import kotlin.collections.ArrayList
 
 
@@ -40,6 +41,10 @@ class StructureParser(private val structure: AssistStructure) {
     private var usernameNeeded = true
     private var usernameIdCandidate: AutofillId? = null
     private var usernameValueCandidate: AutofillValue? = null
+    // Reused between windows to traverse the view nodes without recursion
+    private val nodeStack = ArrayDeque<AssistStructure.ViewNode>()
+    // Type of each autofill hint already encountered in the structure
+    private val hintTypes = HashMap<String, HintType>()
 
     fun parse(saveValue: Boolean = false): Result? {
         try {
@@ -76,88 +81,115 @@ class StructureParser(private val structure: AssistStructure) {
         }
     }
 
-    private fun parseViewNode(node: AssistStructure.ViewNode): Boolean {
-        // remember this
-        if (node.className == "android.webkit.WebView") {
-            result?.isWebView = true
-        }
+    /**
+     * Traverse the view nodes of a window with an explicit stack (depth-first, in child order)
+     * @return true if a password field is found or if the slots of the form are filled
+     */
+    private fun parseViewNode(rootNode: AssistStructure.ViewNode): Boolean {
+        var returnValue = false
+        nodeStack.clear()
+        nodeStack.push(rootNode)
+        while (nodeStack.isNotEmpty()) {
+            val node = nodeStack.pop()
 
-        // Get the domain of a web app
-        node.webDomain?.let { webDomain ->
-            if (webDomain.isNotEmpty()) {
-                result?.webDomain = webDomain
-                Log.d(TAG, "Autofill domain: $webDomain")
+            // remember this
+            if (node.className == WEB_VIEW_CLASS_NAME) {
+                result?.isWebView = true
             }
-        }
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
-            node.webScheme?.let { webScheme ->
-                if (webScheme.isNotEmpty()) {
-                    result?.webScheme = webScheme
-                    Log.d(TAG, "Autofill scheme: $webScheme")
+
+            // Get the domain of a web app
+            node.webDomain?.let { webDomain ->
+                if (webDomain.isNotEmpty()) {
+                    result?.webDomain = webDomain
+                    Log.d(TAG, "Autofill domain: $webDomain")
+                }
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                node.webScheme?.let { webScheme ->
+                    if (webScheme.isNotEmpty()) {
+                        result?.webScheme = webScheme
+                        Log.d(TAG, "Autofill scheme: $webScheme")
+                    }
                 }
             }
-        }
-        val domainNotEmpty = result?.webDomain?.isNotEmpty() == true
 
-        var returnValue = false
-        // Only parse visible nodes
-        if (node.visibility == View.VISIBLE) {
-            if (node.autofillId != null) {
-                // Parse methods
-                val hints = node.autofillHints
-                if (hints != null && hints.isNotEmpty()) {
-                    if (parseNodeByAutofillHint(node))
+            // Only parse visible nodes
+            if (node.visibility == View.VISIBLE) {
+                if (node.autofillId != null) {
+                    // Parse methods
+                    val hints = node.autofillHints
+                    if (hints != null && hints.isNotEmpty()) {
+                        if (parseNodeByAutofillHint(node))
+                            returnValue = true
+                    } else if (parseNodeByHtmlAttributes(node))
                         returnValue = true
-                } else if (parseNodeByHtmlAttributes(node))
-                    returnValue = true
-                else if (parseNodeByAndroidInput(node))
-                    returnValue = true
-            }
-            // Optimized return but only if domain not empty
-            if (domainNotEmpty && returnValue)
-                return true
-            // Recursive method to process each node
-            for (i in 0 until node.childCount) {
-                if (parseViewNode(node.getChildAt(i)))
+                    else if (parseNodeByAndroidInput(node))
+                        returnValue = true
+                }
+                // Optimized return but only if domain not empty
+                if (returnValue && result?.webDomain?.isNotEmpty() == true)
+                    break
+                // Or as soon as the slots of the form are filled, even without domain
+                if (slotsFilled()) {
                     returnValue = true
-                if (domainNotEmpty && returnValue)
-                    return true
+                    break
+                }
+                // Children are pushed in reverse order to be processed in the view order
+                for (i in node.childCount - 1 downTo 0) {
+                    nodeStack.push(node.getChildAt(i))
+                }
             }
         }
+        nodeStack.clear()
         return returnValue
     }
 
+    /**
+     * Check if the result already has the login or the credit card slots needed to fill the form
+     */
+    private fun slotsFilled(): Boolean {
+        val result = result ?: return false
+        // A web form still needs its domain to retrieve the entries
+        if (result.isWebView && result.webDomain.isNullOrEmpty())
+            return false
+        val loginFilled = result.passwordId != null
+                && (result.usernameId != null || !usernameNeeded)
+        val creditCardFilled = result.creditCardNumberId != null
+                && result.creditCardHolderId != null
+                && result.cardVerificationValueId != null
+                && (result.creditCardExpirationDateId != null
+                    || (result.creditCardExpirationMonthId != null
+                        && result.creditCardExpirationYearId != null))
+        return loginFilled || creditCardFilled
+    }
+
     private fun parseNodeByAutofillHint(node: AssistStructure.ViewNode): Boolean {
         val autofillId = node.autofillId
         node.autofillHints?.forEach {
-            when {
-                it.contains(View.AUTOFILL_HINT_USERNAME, true)
-                        || it.contains(View.AUTOFILL_HINT_EMAIL_ADDRESS, true)
-                        || it.contains("email", true)
-                        || it.contains(View.AUTOFILL_HINT_PHONE, true) -> {
+            when (getHintType(it)) {
+                HintType.USERNAME -> {
                     result?.usernameId = autofillId
                     result?.usernameValue = node.autofillValue
                     Log.d(TAG, "Autofill username hint")
                 }
-                it.contains(View.AUTOFILL_HINT_PASSWORD, true) -> {
+                HintType.PASSWORD -> {
                     result?.passwordId = autofillId
                     result?.passwordValue = node.autofillValue
                     Log.d(TAG, "Autofill password hint")
                     return true
                 }
-                it.equals("cc-name", true) -> {
+                HintType.CREDIT_CARD_HOLDER -> {
                     Log.d(TAG, "Autofill credit card name hint")
                     result?.creditCardHolderId = autofillId
                     result?.creditCardHolder = node.autofillValue?.textValue?.toString()
                 }
-                it.contains(View.AUTOFILL_HINT_CREDIT_CARD_NUMBER, true)
-                        || it.equals("cc-number", true) -> {
+                HintType.CREDIT_CARD_NUMBER -> {
                     Log.d(TAG, "Autofill credit card number hint")
                     result?.creditCardNumberId = autofillId
                     result?.creditCardNumber = node.autofillValue?.textValue?.toString()
                 }
                 // expect date string as defined in https://html.spec.whatwg.org, e.g. 2014-12
-                it.equals("cc-exp", true) -> {
+                HintType.CREDIT_CARD_EXPIRATION_DATE_TEXT -> {
                     Log.d(TAG, "Autofill credit card expiration date hint")
                     result?.creditCardExpirationDateId = autofillId
                     node.autofillValue?.let { value ->
@@ -174,7 +206,7 @@ class StructureParser(private val structure: AssistStructure) {
                         }
                     }
                 }
-                it.contains(View.AUTOFILL_HINT_CREDIT_CARD_EXPIRATION_DATE, true) -> {
+                HintType.CREDIT_CARD_EXPIRATION_DATE -> {
                     Log.d(TAG, "Autofill credit card expiration date hint")
                     result?.creditCardExpirationDateId = autofillId
                     node.autofillValue?.let { value ->
@@ -183,8 +215,7 @@ class StructureParser(private val structure: AssistStructure) {
                         }
                     }
                 }
-                it.contains(View.AUTOFILL_HINT_CREDIT_CARD_EXPIRATION_YEAR, true)
-                        || it.equals("cc-exp-year", true) -> {
+                HintType.CREDIT_CARD_EXPIRATION_YEAR -> {
                     Log.d(TAG, "Autofill credit card expiration year hint")
                     result?.creditCardExpirationYearId = autofillId
                     if (node.autofillOptions != null) {
@@ -205,8 +236,7 @@ class StructureParser(private val structure: AssistStructure) {
                         result?.creditCardExpirationYearValue = year % 100
                     }
                 }
-                it.contains(View.AUTOFILL_HINT_CREDIT_CARD_EXPIRATION_MONTH, true)
-                        || it.equals("cc-exp-month", true) -> {
+                HintType.CREDIT_CARD_EXPIRATION_MONTH -> {
                     Log.d(TAG, "Autofill credit card expiration month hint")
                     result?.creditCardExpirationMonthId = autofillId
                     if (node.autofillOptions != null) {
@@ -228,8 +258,7 @@ class StructureParser(private val structure: AssistStructure) {
                         result?.creditCardExpirationMonthValue = month
                     }
                 }
-                it.contains(View.AUTOFILL_HINT_CREDIT_CARD_EXPIRATION_DAY, true)
-                        || it.equals("cc-exp-day", true) -> {
+                HintType.CREDIT_CARD_EXPIRATION_DAY -> {
                     Log.d(TAG, "Autofill credit card expiration day hint")
                     result?.creditCardExpirationDayId = autofillId
                     if (node.autofillOptions != null) {
@@ -250,20 +279,18 @@ class StructureParser(private val structure: AssistStructure) {
                         result?.creditCardExpirationDayValue = day
                     }
                 }
-                it.contains(View.AUTOFILL_HINT_CREDIT_CARD_SECURITY_CODE, true)
-                        || it.contains("cc-csc", true) -> {
+                HintType.CREDIT_CARD_SECURITY_CODE -> {
                     Log.d(TAG, "Autofill card security code hint")
                     result?.cardVerificationValueId = autofillId
                     result?.cardVerificationValue = node.autofillValue?.textValue?.toString()
                 }
                 // Ignore autocomplete="off"
                 // https://developer.mozilla.org/en-US/docs/Web/Security/Securing_your_site/Turning_off_form_autocompletion
-                it.equals("off", true) ||
-                        it.equals("on", true) -> {
+                HintType.WEB -> {
                     Log.d(TAG, "Autofill web hint")
                     return parseNodeByHtmlAttributes(node)
                 }
-                else -> Log.d(TAG, "Autofill unsupported hint $it")
+                HintType.UNSUPPORTED -> Log.d(TAG, "Autofill unsupported hint $it")
             }
         }
         return false
@@ -272,30 +299,28 @@ class StructureParser(private val structure: AssistStructure) {
     private fun parseNodeByHtmlAttributes(node: AssistStructure.ViewNode): Boolean {
         val autofillId = node.autofillId
         val nodHtml = node.htmlInfo
-        when (nodHtml?.tag?.toLowerCase(Locale.ENGLISH)) {
-            "input" -> {
-                nodHtml.attributes?.forEach { pairAttribute ->
-                    when (pairAttribute.first.toLowerCase(Locale.ENGLISH)) {
-                        "type" -> {
-                            when (pairAttribute.second.toLowerCase(Locale.ENGLISH)) {
-                                "tel", "email" -> {
-                                    result?.usernameId = autofillId
-                                    result?.usernameValue = node.autofillValue
-                                    Log.d(TAG, "Autofill username web type: ${node.htmlInfo?.tag} ${node.htmlInfo?.attributes}")
-                                }
-                                "text" -> {
-                                    usernameIdCandidate = autofillId
-                                    usernameValueCandidate = node.autofillValue
-                                    Log.d(TAG, "Autofill username candidate web type: ${node.htmlInfo?.tag} ${node.htmlInfo?.attributes}")
-                                }
-                                "password" -> {
-                                    result?.passwordId = autofillId
-                                    result?.passwordValue = node.autofillValue
-                                    Log.d(TAG, "Autofill password web type: ${node.htmlInfo?.tag} ${node.htmlInfo?.attributes}")
-                                    return true
-                                }
-                            }
+        if (nodHtml?.tag.equals(HTML_TAG_INPUT, true)) {
+            nodHtml?.attributes?.forEach { pairAttribute ->
+                if (pairAttribute.first.equals(HTML_ATTRIBUTE_TYPE, true)) {
+                    when (HTML_INPUT_TYPES[pairAttribute.second]
+                            ?: HTML_INPUT_TYPES[pairAttribute.second.toLowerCase(Locale.ENGLISH)]) {
+                        HintType.USERNAME -> {
+                            result?.usernameId = autofillId
+                            result?.usernameValue = node.autofillValue
+                            Log.d(TAG, "Autofill username web type: ${node.htmlInfo?.tag} ${node.htmlInfo?.attributes}")
+                        }
+                        HintType.USERNAME_CANDIDATE -> {
+                            usernameIdCandidate = autofillId
+                            usernameValueCandidate = node.autofillValue
+                            Log.d(TAG, "Autofill username candidate web type: ${node.htmlInfo?.tag} ${node.htmlInfo?.attributes}")
+                        }
+                        HintType.PASSWORD -> {
+                            result?.passwordId = autofillId
+                            result?.passwordValue = node.autofillValue
+                            Log.d(TAG, "Autofill password web type: ${node.htmlInfo?.tag} ${node.htmlInfo?.attributes}")
+                            return true
                         }
+                        else -> {}
                     }
                 }
             }
@@ -303,6 +328,26 @@ class StructureParser(private val structure: AssistStructure) {
         return false
     }
 
+    private fun getHintType(hint: String): HintType {
+        return hintTypes.getOrPut(hint) {
+            HINT_TYPES[hint] ?: HINT_TYPES[hint.toLowerCase(Locale.ENGLISH)] ?: when {
+                hint.contains(View.AUTOFILL_HINT_USERNAME, true)
+                        || hint.contains(View.AUTOFILL_HINT_EMAIL_ADDRESS, true)
+                        || hint.contains("email", true)
+                        || hint.contains(View.AUTOFILL_HINT_PHONE, true) -> HintType.USERNAME
+                hint.contains(View.AUTOFILL_HINT_PASSWORD, true) -> HintType.PASSWORD
+                hint.contains(View.AUTOFILL_HINT_CREDIT_CARD_NUMBER, true) -> HintType.CREDIT_CARD_NUMBER
+                hint.contains(View.AUTOFILL_HINT_CREDIT_CARD_EXPIRATION_DATE, true) -> HintType.CREDIT_CARD_EXPIRATION_DATE
+                hint.contains(View.AUTOFILL_HINT_CREDIT_CARD_EXPIRATION_YEAR, true) -> HintType.CREDIT_CARD_EXPIRATION_YEAR
+                hint.contains(View.AUTOFILL_HINT_CREDIT_CARD_EXPIRATION_MONTH, true) -> HintType.CREDIT_CARD_EXPIRATION_MONTH
+                hint.contains(View.AUTOFILL_HINT_CREDIT_CARD_EXPIRATION_DAY, true) -> HintType.CREDIT_CARD_EXPIRATION_DAY
+                hint.contains(View.AUTOFILL_HINT_CREDIT_CARD_SECURITY_CODE, true)
+                        || hint.contains("cc-csc", true) -> HintType.CREDIT_CARD_SECURITY_CODE
+                else -> HintType.UNSUPPORTED
+            }
+        }
+    }
+
     private fun inputIsVariationType(inputType: Int, vararg type: Int): Boolean {
         type.forEach {
             if (inputType and InputType.TYPE_MASK_VARIATION == it)
@@ -555,7 +600,47 @@ class StructureParser(private val structure: AssistStructure) {
             }
     }
 
+    private enum class HintType {
+        USERNAME,
+        USERNAME_CANDIDATE,
+        PASSWORD,
+        CREDIT_CARD_HOLDER,
+        CREDIT_CARD_NUMBER,
+        CREDIT_CARD_EXPIRATION_DATE_TEXT,
+        CREDIT_CARD_EXPIRATION_DATE,
+        CREDIT_CARD_EXPIRATION_YEAR,
+        CREDIT_CARD_EXPIRATION_MONTH,
+        CREDIT_CARD_EXPIRATION_DAY,
+        CREDIT_CARD_SECURITY_CODE,
+        WEB,
+        UNSUPPORTED
+    }
+
     companion object {
         private val TAG = StructureParser::class.java.name
+
+        private const val WEB_VIEW_CLASS_NAME = "android.webkit.WebView"
+        private const val HTML_TAG_INPUT = "input"
+        private const val HTML_ATTRIBUTE_TYPE = "type"
+
+        // Hints compared by equality, checked before the hints compared by inclusion
+        private val HINT_TYPES = mapOf(
+                "cc-name" to HintType.CREDIT_CARD_HOLDER,
+                "cc-number" to HintType.CREDIT_CARD_NUMBER,
+                "cc-exp" to HintType.CREDIT_CARD_EXPIRATION_DATE_TEXT,
+                "cc-exp-year" to HintType.CREDIT_CARD_EXPIRATION_YEAR,
+                "cc-exp-month" to HintType.CREDIT_CARD_EXPIRATION_MONTH,
+                "cc-exp-day" to HintType.CREDIT_CARD_EXPIRATION_DAY,
+                "off" to HintType.WEB,
+                "on" to HintType.WEB
+        )
+
+        // HTML input types
+        private val HTML_INPUT_TYPES = mapOf(
+                "tel" to HintType.USERNAME,
+                "email" to HintType.USERNAME,
+                "text" to HintType.USERNAME_CANDIDATE,
+                "password" to HintType.PASSWORD
+        )
     }
 }
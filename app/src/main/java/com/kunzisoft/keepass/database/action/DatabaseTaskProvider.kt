@@ -53,6 +53,7 @@ import com.kunzisoft.keepass.services.DatabaseTaskNotificationService.Companion.
 import com.kunzisoft.keepass.services.DatabaseTaskNotificationService.Companion.ACTION_DATABASE_DELETE_ENTRY_HISTORY
 import com.kunzisoft.keepass.services.DatabaseTaskNotificationService.Companion.ACTION_DATABASE_DELETE_NODES_TASK
 import com.kunzisoft.keepass.services.DatabaseTaskNotificationService.Companion.ACTION_DATABASE_LOAD_TASK
+import com.kunzisoft.keepass.services.DatabaseTaskNotificationService.Companion.ACTION_DATABASE_MERGE_TASK
 import com.kunzisoft.keepass.services.DatabaseTaskNotificationService.Companion.ACTION_DATABASE_MOVE_NODES_TASK
 import com.kunzisoft.keepass.services.DatabaseTaskNotificationService.Companion.ACTION_DATABASE_RELOAD_TASK
 import com.kunzisoft.keepass.services.DatabaseTaskNotificationService.Companion.ACTION_DATABASE_REMOVE_UNLINKED_DATA_TASK
@@ -133,6 +134,10 @@ class DatabaseTaskProvider {
             updateDialog(titleId, messageId, warningId)
         }
 
+        override fun onUpdateProgress(database: Database, progress: Int?) {
+            progressTaskDialogFragment?.updateProgress(progress)
+        }
+
         override fun onStopAction(database: Database, actionTask: String, result: ActionRunnable.Result) {
             onActionFinish?.invoke(database, actionTask, result)
             // Remove the progress task
@@ -144,6 +149,11 @@ class DatabaseTaskProvider {
         override fun validateDatabaseChanged() {
             mBinder?.getService()?.saveDatabaseInfo()
         }
+
+        override fun mergeDatabaseChanged() {
+            mBinder?.getService()?.saveDatabaseInfo()
+            startDatabaseMerge(true)
+        }
     }
 
     private var databaseInfoListener = object: DatabaseTaskNotificationService.DatabaseInfoListener {
@@ -197,6 +207,11 @@ class DatabaseTaskProvider {
                     )
                 }
                 updateDialog(titleId, messageId, warningId)
+                progressTaskDialogFragment?.updateCancelAction(
+                    if (mBinder?.getService()?.isActionCancellable() == true) {
+                        { mBinder?.getService()?.cancelAction() }
+                    } else null
+                )
             }
         }
     }
@@ -361,6 +376,13 @@ class DatabaseTaskProvider {
                 , ACTION_DATABASE_RELOAD_TASK)
     }
 
+    fun startDatabaseMerge(save: Boolean) {
+        start(Bundle().apply {
+            putBoolean(DatabaseTaskNotificationService.SAVE_DATABASE_KEY, save)
+        }
+                , ACTION_DATABASE_MERGE_TASK)
+    }
+
     fun startDatabaseAssignPassword(databaseUri: Uri,
                                     mainCredential: MainCredential) {
 
@@ -21,6 +21,7 @@ package com.kunzisoft.keepass.database.action
 
 import android.content.Context
 import android.net.Uri
+import com.kunzisoft.encrypt.TransformationToken
 import com.kunzisoft.keepass.app.database.CipherDatabaseAction
 import com.kunzisoft.keepass.app.database.CipherDatabaseEntity
 import com.kunzisoft.keepass.app.database.FileDatabaseHistoryAction
@@ -45,6 +46,23 @@ class LoadDatabaseRunnable(private val context: Context,
                            private val mLoadDatabaseResult: ((Result) -> Unit)?)
     : ActionRunnable() {
 
+    // Stops the key derivation if the unlock is abandoned
+    private val mTransformationToken = TransformationToken()
+
+    override val progress: Int?
+        get() {
+            // Only the key derivation is measured, the content is decrypted in a stream
+            val keyProgress = mTransformationToken.progress
+            return if (keyProgress > 0f && keyProgress < 1f) (keyProgress * 100).toInt() else null
+        }
+
+    override fun cancel() {
+        mTransformationToken.cancel()
+    }
+
+    override val isCancellable: Boolean
+        get() = true
+
     override fun onStartRun() {
         // Clear before we load
         mDatabase.clearAndClose(context)
@@ -62,7 +80,8 @@ class LoadDatabaseRunnable(private val context: Context,
                     },
                     LoadedKey.generateNewCipherKey(),
                     mFixDuplicateUUID,
-                    progressTaskUpdater)
+                    progressTaskUpdater,
+                    mTransformationToken)
         }
         catch (e: LoadDatabaseException) {
             setError(e)
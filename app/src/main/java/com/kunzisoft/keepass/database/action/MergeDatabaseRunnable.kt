@@ -0,0 +1,52 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.action
+
+import android.content.Context
+import com.kunzisoft.keepass.database.element.Database
+import com.kunzisoft.keepass.database.element.binary.BinaryData
+import com.kunzisoft.keepass.database.exception.LoadDatabaseException
+import com.kunzisoft.keepass.tasks.ProgressTaskUpdater
+import com.kunzisoft.keepass.utils.UriUtil
+
+/**
+ * Merge the modifications of the database file in the loaded database, then save the result if [saveDatabase]
+ */
+class MergeDatabaseRunnable(context: Context,
+                            database: Database,
+                            private val progressTaskUpdater: ProgressTaskUpdater?,
+                            saveDatabase: Boolean)
+    : SaveDatabaseRunnable(context, database, saveDatabase) {
+
+    override fun onStartRun() {
+        try {
+            database.mergeData(context.contentResolver,
+                    UriUtil.getBinaryDir(context),
+                    { memoryWanted ->
+                        BinaryData.canMemoryBeAllocatedInRAM(context, memoryWanted)
+                    },
+                    progressTaskUpdater)
+        } catch (e: LoadDatabaseException) {
+            setError(e)
+        }
+
+        super.onStartRun()
+    }
+}
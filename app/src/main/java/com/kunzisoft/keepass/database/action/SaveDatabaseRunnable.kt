@@ -22,7 +22,9 @@ package com.kunzisoft.keepass.database.action
 import android.content.Context
 import com.kunzisoft.keepass.database.element.Database
 import com.kunzisoft.keepass.database.exception.DatabaseException
+import com.kunzisoft.keepass.settings.PreferencesUtil
 import com.kunzisoft.keepass.tasks.ActionRunnable
+import com.kunzisoft.keepass.utils.UriUtil
 
 open class SaveDatabaseRunnable(protected var context: Context,
                                 protected var database: Database,
@@ -36,7 +38,17 @@ open class SaveDatabaseRunnable(protected var context: Context,
     override fun onActionRun() {
         if (saveDatabase && result.isSuccess) {
             try {
-                database.saveData(context.contentResolver)
+                val cacheDirectory = UriUtil.getBinaryDir(context)
+                val savedCopyDirectory = UriUtil.getSavedCopyDir(context)
+                if (PreferencesUtil.isBackupSnapshotsEnabled(context)) {
+                    database.saveData(context.contentResolver,
+                            cacheDirectory,
+                            savedCopyDirectory,
+                            UriUtil.getBackupDir(context),
+                            PreferencesUtil.getBackupSnapshotsRetention(context))
+                } else {
+                    database.saveData(context.contentResolver, cacheDirectory, savedCopyDirectory)
+                }
             } catch (e: DatabaseException) {
                 setError(e)
             }
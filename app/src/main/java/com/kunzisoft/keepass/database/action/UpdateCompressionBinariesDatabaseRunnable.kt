@@ -21,6 +21,7 @@ package com.kunzisoft.keepass.database.action
 
 import android.content.Context
 import com.kunzisoft.keepass.database.element.Database
+import com.kunzisoft.keepass.database.element.binary.BinaryCompressor
 import com.kunzisoft.keepass.database.element.database.CompressionAlgorithm
 
 class UpdateCompressionBinariesDatabaseRunnable (
@@ -31,16 +32,46 @@ class UpdateCompressionBinariesDatabaseRunnable (
         saveDatabase: Boolean)
     : SaveDatabaseRunnable(context, database, saveDatabase) {
 
+    // Only the compression change is measured, null during the save
+    @Volatile
+    private var mCompressionProgress: Int? = null
+
+    private val mBinaryCompressor = BinaryCompressor(database.binaryCache).apply {
+        progressListener = object : BinaryCompressor.ProgressListener {
+            override fun onProgress(processed: Int, total: Int) {
+                mCompressionProgress = processed * 100 / total
+            }
+        }
+    }
+
+    override val progress: Int?
+        get() = mCompressionProgress
+
+    /**
+     * Stop the compression of the remaining binaries, the processed ones are restored
+     */
+    override fun cancel() {
+        mBinaryCompressor.cancel()
+    }
+
+    override val isCancellable: Boolean
+        get() = true
+
     override fun onStartRun() {
         // Set new compression
         if (database.allowDataCompression) {
             try {
+                mCompressionProgress = 0
                 database.apply {
-                    updateDataBinaryCompression(oldCompressionAlgorithm, newCompressionAlgorithm)
+                    updateDataBinaryCompression(oldCompressionAlgorithm,
+                            newCompressionAlgorithm,
+                            mBinaryCompressor)
                     compressionAlgorithm = newCompressionAlgorithm
                 }
             } catch (e: Exception) {
                 setError(e)
+            } finally {
+                mCompressionProgress = null
             }
         }
 
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.audit
+
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Local corpus of breached passwords, checked without network.
+ *
+ * The file is a sorted list of records of [RECORD_SIZE] bytes, the first bytes of the SHA-1
+ * of each breached password in big-endian order (e.g. converted from the Pwned Passwords list).
+ * It is memory-mapped in segments and binary-searched, so it is never loaded in the heap
+ * and can be read by many threads.
+ * [recordsBySegment] is only smaller than the maximum size of a mapping to check the segment boundaries.
+ */
+class BreachCorpus(file: File,
+                   private val recordsBySegment: Long = RECORDS_BY_SEGMENT) {
+
+    private val segments: Array<MappedByteBuffer>
+
+    val numberOfRecords: Long
+
+    // To know if the results of a previous check are still valid
+    val id: String = "${file.absolutePath}:${file.length()}:${file.lastModified()}"
+
+    init {
+        RandomAccessFile(file, "r").use { randomAccessFile ->
+            val channel = randomAccessFile.channel
+            val length = channel.size()
+            if (length % RECORD_SIZE != 0L)
+                throw IOException("Breach corpus size is not a multiple of $RECORD_SIZE")
+            numberOfRecords = length / RECORD_SIZE
+            val numberOfSegments = (numberOfRecords + recordsBySegment - 1) / recordsBySegment
+            // The mapping stays valid after the channel is closed
+            segments = Array(numberOfSegments.toInt()) { segment ->
+                val position = segment * recordsBySegment * RECORD_SIZE
+                channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        minOf(recordsBySegment * RECORD_SIZE, length - position))
+            }
+        }
+    }
+
+    private fun getRecord(index: Long): Long {
+        val segment = segments[(index / recordsBySegment).toInt()]
+        // Absolute get, without effect on the position shared by the threads
+        return segment.getLong(((index % recordsBySegment) * RECORD_SIZE).toInt())
+    }
+
+    /**
+     * True if [sha1], SHA-1 hash of a password, is in the corpus
+     */
+    fun contains(sha1: ByteArray): Boolean {
+        var prefix = 0L
+        for (i in 0 until RECORD_SIZE) {
+            prefix = (prefix shl 8) or (sha1[i].toLong() and 0xFF)
+        }
+        // Unsigned order of the records
+        val key = prefix xor Long.MIN_VALUE
+        var low = 0L
+        var high = numberOfRecords - 1
+        while (low <= high) {
+            val middle = (low + high) ushr 1
+            val record = getRecord(middle) xor Long.MIN_VALUE
+            when {
+                record < key -> low = middle + 1
+                record > key -> high = middle - 1
+                else -> return true
+            }
+        }
+        return false
+    }
+
+    companion object {
+        const val RECORD_SIZE = 8
+        private const val RECORDS_BY_SEGMENT = (Int.MAX_VALUE / RECORD_SIZE).toLong()
+
+        const val FILE_NAME = "breach_corpus.bin"
+
+        /**
+         * Corpus of the file [FILE_NAME] in [directory], or null if there is none or it is invalid
+         */
+        fun open(directory: File): BreachCorpus? {
+            val file = File(directory, FILE_NAME)
+            if (!file.exists())
+                return null
+            return try {
+                BreachCorpus(file)
+            } catch (e: IOException) {
+                null
+            }
+        }
+    }
+}
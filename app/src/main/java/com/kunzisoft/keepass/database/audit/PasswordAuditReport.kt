@@ -0,0 +1,69 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.audit
+
+import com.kunzisoft.keepass.database.element.Entry
+import com.kunzisoft.keepass.password.PasswordStrength
+
+/**
+ * Result of [PasswordAuditor.audit], one item by password of an entry or of its history
+ */
+class PasswordAuditReport(val items: List<Item>,
+                          val numberOfAnalysedPasswords: Int,
+                          val breachCorpusChecked: Boolean,
+                          val duration: Long) {
+
+    /**
+     * [entry] is the entry itself if [historyPosition] is -1, else the version of its history
+     */
+    class Item(val entry: Entry,
+               val historyPosition: Int,
+               val entropy: Double,
+               val strength: PasswordStrength,
+               val breached: Boolean,
+               val numberOfReuses: Int) {
+
+        val isHistory: Boolean
+            get() = historyPosition >= 0
+
+        val hasIssue: Boolean
+            get() = breached || numberOfReuses > 0 || strength < PasswordStrength.GOOD
+    }
+
+    enum class Sort(val comparator: Comparator<Item>) {
+        // Breached, then reused, then the weakest
+        RISK(compareByDescending<Item> { it.breached }
+                .thenByDescending { it.numberOfReuses }
+                .thenBy { it.entropy }),
+        STRENGTH(compareBy { it.entropy }),
+        REUSE(compareByDescending<Item> { it.numberOfReuses }
+                .thenBy { it.entropy }),
+        TITLE(compareBy<Item, String>(String.CASE_INSENSITIVE_ORDER) { it.entry.title }
+                .thenBy { it.historyPosition })
+    }
+
+    val numberOfIssues: Int
+        get() = items.count { it.hasIssue }
+
+    fun getItems(sort: Sort, ascending: Boolean = true, onlyIssues: Boolean = false): List<Item> {
+        val filteredItems = if (onlyIssues) items.filter { it.hasIssue } else items
+        return filteredItems.sortedWith(if (ascending) sort.comparator else sort.comparator.reversed())
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.audit
+
+import com.kunzisoft.keepass.database.action.node.NodeHandler
+import com.kunzisoft.keepass.database.action.node.ParallelNodeHandler
+import com.kunzisoft.keepass.database.element.Entry
+import com.kunzisoft.keepass.database.element.Group
+import com.kunzisoft.keepass.database.element.entry.EntryKDBX
+import com.kunzisoft.keepass.password.PasswordStrength
+import com.kunzisoft.keepass.password.PasswordStrengthEstimator
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+import java.security.SecureRandom
+import java.util.*
+import javax.crypto.Mac
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Offline audit of the passwords of the entries and their history: strength, reuse and breach.
+ *
+ * The entries are traversed in parallel, each password is analysed once and its analysis is cached
+ * with the UUID and the modification time of its entry, so a new audit only analyses the entries changed.
+ * Reused passwords are found with an index of keyed hashes, the key is only known by this instance
+ * and the passwords themselves are never kept.
+ * Entries in the recycle bin or with the quality check disabled are not audited.
+ */
+class PasswordAuditor {
+
+    private class AnalysisKey(val uuid: UUID, val modificationTime: Long) {
+        override fun equals(other: Any?): Boolean {
+            return other is AnalysisKey
+                    && uuid == other.uuid
+                    && modificationTime == other.modificationTime
+        }
+
+        override fun hashCode(): Int {
+            return 31 * uuid.hashCode() + modificationTime.hashCode()
+        }
+    }
+
+    private class Analysis(val reuseHash: ByteBuffer,
+                           val entropy: Double,
+                           val strength: PasswordStrength,
+                           // Null if not checked with a breach corpus
+                           val breached: Boolean?)
+
+    private class AuditedPassword(val entry: Entry,
+                                  val historyPosition: Int,
+                                  val key: AnalysisKey,
+                                  val analysis: Analysis)
+
+    /**
+     * Passwords audited by a task, with its own hash functions
+     */
+    private inner class Accumulator(private val breachCorpus: BreachCorpus?) {
+        val auditedPasswords = ArrayList<AuditedPassword>()
+        var numberOfAnalysedPasswords = 0
+
+        private var reuseMac: Mac? = null
+        private var sha1: MessageDigest? = null
+
+        fun audit(entry: Entry, historyPosition: Int) {
+            val password = entry.password
+            if (password.isEmpty())
+                return
+            val key = AnalysisKey(entry.nodeId.id, entry.lastModificationTime.time)
+            // Read only, the cache is updated after the traversal
+            var analysis = analyses[key]
+            if (analysis == null || (breachCorpus != null && analysis.breached == null)) {
+                analysis = analyse(password)
+                numberOfAnalysedPasswords++
+            }
+            auditedPasswords.add(AuditedPassword(entry, historyPosition, key, analysis))
+        }
+
+        private fun analyse(password: String): Analysis {
+            val passwordBytes = password.toByteArray(Charsets.UTF_8)
+            val mac = reuseMac ?: Mac.getInstance(REUSE_HASH_ALGORITHM).apply {
+                init(SecretKeySpec(reuseKey, REUSE_HASH_ALGORITHM))
+            }.also { reuseMac = it }
+            val reuseHash = ByteBuffer.wrap(mac.doFinal(passwordBytes))
+            val breached = breachCorpus?.let { corpus ->
+                val digest = sha1 ?: MessageDigest.getInstance("SHA-1").also { sha1 = it }
+                corpus.contains(digest.digest(passwordBytes))
+            }
+            Arrays.fill(passwordBytes, 0)
+            val entropy = PasswordStrengthEstimator.estimateEntropy(password)
+            return Analysis(reuseHash, entropy, PasswordStrength.fromEntropy(entropy), breached)
+        }
+
+        fun merge(other: Accumulator): Accumulator {
+            auditedPasswords.addAll(other.auditedPasswords)
+            numberOfAnalysedPasswords += other.numberOfAnalysedPasswords
+            return this
+        }
+    }
+
+    private val reuseKey = ByteArray(32).also { SecureRandom().nextBytes(it) }
+    private val analyses = HashMap<AnalysisKey, Analysis>()
+    private var breachCorpusId: String? = null
+
+    /**
+     * Audit the entries of [rootGroup], except the ones of [recycleBin],
+     * and check the passwords in [breachCorpus] if defined
+     */
+    @Synchronized
+    fun audit(rootGroup: Group,
+              recycleBin: Group?,
+              breachCorpus: BreachCorpus?,
+              includeHistory: Boolean = true): PasswordAuditReport {
+        val startTime = System.currentTimeMillis()
+
+        // Breach results of another corpus are no longer valid
+        if (breachCorpus != null && breachCorpus.id != breachCorpusId) {
+            analyses.entries.removeAll { it.value.breached != null }
+            breachCorpusId = breachCorpus.id
+        }
+
+        // Decoded for the audit only, the encoded history stays compact.
+        // Before the parallel traversal, as the history cache decodes under a lock
+        val histories = if (includeHistory) decodeHistories(rootGroup, recycleBin) else null
+
+        val result = rootGroup.doForEachChildInParallel({ Accumulator(breachCorpus) },
+                object : ParallelNodeHandler<Entry, Accumulator>() {
+                    override fun operate(node: Entry, accumulator: Accumulator): Boolean {
+                        if (node.entryKDBX?.qualityCheck != false) {
+                            accumulator.audit(node, -1)
+                            histories?.get(node.nodeId.id)?.forEachIndexed { position, history ->
+                                accumulator.audit(Entry(history), position)
+                            }
+                        }
+                        return true
+                    }
+                },
+                object : ParallelNodeHandler<Group, Accumulator>() {
+                    override fun operate(node: Group, accumulator: Accumulator): Boolean {
+                        return node != recycleBin
+                    }
+                },
+                { accumulator, other -> accumulator.merge(other) },
+                false)
+
+        // Keep only the analyses of the current passwords
+        analyses.clear()
+        val entriesByReuseHash = HashMap<ByteBuffer, MutableSet<UUID>>()
+        result.auditedPasswords.forEach { auditedPassword ->
+            analyses[auditedPassword.key] = auditedPassword.analysis
+            entriesByReuseHash.getOrPut(auditedPassword.analysis.reuseHash) { HashSet() }
+                    .add(auditedPassword.key.uuid)
+        }
+
+        val items = result.auditedPasswords.map { auditedPassword ->
+            val analysis = auditedPassword.analysis
+            // Only the other entries count, not the history of the same entry
+            val numberOfReuses = (entriesByReuseHash[analysis.reuseHash]?.size ?: 1) - 1
+            PasswordAuditReport.Item(auditedPassword.entry,
+                    auditedPassword.historyPosition,
+                    analysis.entropy,
+                    analysis.strength,
+                    analysis.breached == true,
+                    numberOfReuses)
+        }
+        return PasswordAuditReport(items,
+                result.numberOfAnalysedPasswords,
+                breachCorpus != null,
+                System.currentTimeMillis() - startTime)
+    }
+
+    /**
+     * Histories of the audited entries of [rootGroup], decoded sequentially
+     */
+    private fun decodeHistories(rootGroup: Group, recycleBin: Group?): Map<UUID, List<EntryKDBX>> {
+        val histories = HashMap<UUID, List<EntryKDBX>>()
+        rootGroup.doForEachChild(
+                object : NodeHandler<Entry>() {
+                    override fun operate(node: Entry): Boolean {
+                        node.entryKDBX?.let { entry ->
+                            if (entry.qualityCheck) {
+                                val history = entry.getHistoryEntries()
+                                if (history.isNotEmpty())
+                                    histories[node.nodeId.id] = history
+                            }
+                        }
+                        return true
+                    }
+                },
+                object : NodeHandler<Group>() {
+                    override fun operate(node: Group): Boolean {
+                        return node != recycleBin
+                    }
+                },
+                false)
+        return histories
+    }
+
+    @Synchronized
+    fun clear() {
+        analyses.clear()
+        breachCorpusId = null
+        // The hashes of the previous audits can no longer be compared
+        SecureRandom().nextBytes(reuseKey)
+    }
+
+    companion object {
+        private const val REUSE_HASH_ALGORITHM = "HmacSHA256"
+    }
+}
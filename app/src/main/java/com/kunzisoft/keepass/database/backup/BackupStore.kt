@@ -0,0 +1,553 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.backup
+
+import com.kunzisoft.keepass.database.crypto.kdf.KdfParameters
+import com.kunzisoft.keepass.stream.SyncFileOutputStream
+import java.io.*
+import java.security.MessageDigest
+import java.util.concurrent.TimeUnit
+import javax.crypto.Cipher
+import javax.crypto.Mac
+import javax.crypto.spec.IvParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Snapshots of a database kept in app-private [directory], each snapshot is split by [ContentDefinedChunker]
+ * and only the chunks not already in the store are written, so the versions share their unchanged data.
+ * For a KDBX 4 payload, it's mainly the attachments of the inner header: the inner stream key is renewed
+ * at each save, so the XML with the protected values is different and stored again by each snapshot.
+ *
+ * The chunks are encrypted with a key derived from the credentials of the database by its own KDF,
+ * a chunk is named by the HMAC of its content and encrypted in counter mode from this name,
+ * so the same content always gives the same chunk and is verified when it is read.
+ * A snapshot is a manifest with the list of its chunks, authenticated by the same key.
+ */
+class BackupStore(val directory: File) {
+
+    private val chunksDirectory = File(directory, CHUNKS_DIRECTORY)
+    private val snapshotsDirectory = File(directory, SNAPSHOTS_DIRECTORY)
+    private val keysDirectory = File(directory, KEYS_DIRECTORY)
+
+    // Keys already derived in this session, by name of key file, for [keysCredentials]
+    private val storeKeys = HashMap<String, StoreKey>()
+    private var currentKey: StoreKey? = null
+    private var keysCredentials: ByteArray? = null
+    // Only one long derivation of the current key at a time, without locking the store
+    private val derivationLock = Any()
+
+    /**
+     * Derivation of the key of the store from the credentials of the database
+     */
+    interface KeyDerivation {
+        // Fingerprint of the credentials, the derived keys are forgotten when it changes
+        val credentials: ByteArray
+        fun newParameters(): KdfParameters
+        @Throws(IOException::class)
+        fun deriveKey(kdfParameters: KdfParameters): ByteArray
+    }
+
+    /**
+     * Snapshots to keep, the most recent ones up to [numberOfSnapshots] and no older than [numberOfDays],
+     * the last snapshot is always kept
+     */
+    class Retention(val numberOfSnapshots: Int,
+                    val numberOfDays: Int)
+
+    class Snapshot(val time: Long,
+                   val length: Long,
+                   internal val file: File)
+
+    internal class StoreKey(val name: String,
+                           val macKey: SecretKeySpec,
+                           val cipherKey: SecretKeySpec) {
+
+        fun mac(): Mac {
+            return Mac.getInstance(MAC_ALGORITHM).apply { init(macKey) }
+        }
+
+        fun cipher(mode: Int, chunkId: ByteArray): Cipher {
+            return Cipher.getInstance(CIPHER_ALGORITHM).apply {
+                init(mode, cipherKey, IvParameterSpec(chunkId, 0, IV_SIZE))
+            }
+        }
+
+        companion object {
+            fun fromDerivedKey(name: String, derivedKey: ByteArray): StoreKey {
+                val mac = Mac.getInstance(MAC_ALGORITHM)
+                mac.init(SecretKeySpec(derivedKey, MAC_ALGORITHM))
+                val macKey = mac.doFinal(LABEL_MAC.toByteArray())
+                val cipherKey = mac.doFinal(LABEL_CIPHER.toByteArray())
+                return StoreKey(name,
+                        SecretKeySpec(macKey, MAC_ALGORITHM),
+                        SecretKeySpec(cipherKey, "AES"))
+            }
+        }
+    }
+
+    /**
+     * Snapshots of the store, the most recent first
+     */
+    @Synchronized
+    fun getSnapshots(): List<Snapshot> {
+        val snapshots = ArrayList<Snapshot>()
+        snapshotsDirectory.listFiles()?.forEach { file ->
+            if (file.name.endsWith(SNAPSHOT_EXTENSION)) {
+                try {
+                    DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                        val manifest = readManifestHeader(input)
+                        snapshots.add(Snapshot(manifest.time, manifest.length, file))
+                    }
+                } catch (e: IOException) {
+                    // Unreadable manifest, removed by the next retention
+                }
+            }
+        }
+        snapshots.sortByDescending { it.time }
+        return snapshots
+    }
+
+    /**
+     * Stream of a new snapshot, recorded only by [SnapshotOutputStream.commit],
+     * null if the key of the current credentials is not yet derived by [deriveCurrentKey]
+     */
+    @Synchronized
+    fun createSnapshot(keyDerivation: KeyDerivation): SnapshotOutputStream? {
+        checkCredentials(keyDerivation)
+        return currentKey?.let { SnapshotOutputStream(it) }
+    }
+
+    /**
+     * Check if the key of the current credentials is derived, no snapshot can be created without it
+     */
+    @Synchronized
+    fun isCurrentKeyDerived(keyDerivation: KeyDerivation): Boolean {
+        checkCredentials(keyDerivation)
+        return currentKey != null
+    }
+
+    /**
+     * Derive the key of the next snapshots with the KDF of the database, as long as an unlock,
+     * so it must be called in the background and not during a save.
+     * Key of the most recent key file if it matches the credentials, else a new key file is created,
+     * the previous snapshots stay readable with their own credentials
+     */
+    @Throws(IOException::class)
+    fun deriveCurrentKey(keyDerivation: KeyDerivation) {
+        synchronized(derivationLock) {
+            val credentials = keyDerivation.credentials
+            if (isCurrentKeyDerived(keyDerivation))
+                return
+            val lastKeyName = keysDirectory.list()?.filter { it.endsWith(KEY_EXTENSION) }?.maxOrNull()
+            val storeKey = lastKeyName?.let { readKey(it, keyDerivation) }
+                    ?: createKey(keyDerivation)
+            synchronized(this) {
+                // Not kept if the credentials changed during the derivation
+                if (keysCredentials?.let { MessageDigest.isEqual(it, credentials) } == true) {
+                    storeKeys[storeKey.name] = storeKey
+                    currentKey = storeKey
+                }
+            }
+        }
+    }
+
+    /**
+     * Stream of the content of [snapshot], each chunk is verified before being returned
+     */
+    @Synchronized
+    @Throws(IOException::class)
+    fun openSnapshot(snapshot: Snapshot, keyDerivation: KeyDerivation): InputStream {
+        val bytes = snapshot.file.readBytes()
+        val input = DataInputStream(ByteArrayInputStream(bytes))
+        val manifest = readManifestHeader(input)
+        checkCredentials(keyDerivation)
+        val storeKey = getKey(manifest.keyName, keyDerivation)
+                ?: throw IOException("Snapshot created with other credentials")
+        val chunkIds = ArrayList<ByteArray>(manifest.numberOfChunks)
+        val chunkSizes = IntArray(manifest.numberOfChunks)
+        for (i in 0 until manifest.numberOfChunks) {
+            chunkIds.add(ByteArray(ID_SIZE).also { input.readFully(it) })
+            chunkSizes[i] = input.readInt()
+        }
+        val contentLength = bytes.size - input.available()
+        val manifestMac = ByteArray(ID_SIZE).also { input.readFully(it) }
+        val mac = storeKey.mac()
+        mac.update(bytes, 0, contentLength)
+        if (!MessageDigest.isEqual(mac.doFinal(), manifestMac))
+            throw IOException("Corrupted snapshot manifest")
+        return SnapshotInputStream(storeKey, chunkIds, chunkSizes)
+    }
+
+    /**
+     * Delete the snapshots out of [retention], then the chunks and keys no longer used
+     */
+    @Synchronized
+    fun applyRetention(retention: Retention, time: Long = System.currentTimeMillis()) {
+        val minTime = if (retention.numberOfDays > 0)
+            time - TimeUnit.DAYS.toMillis(retention.numberOfDays.toLong())
+        else
+            Long.MIN_VALUE
+        getSnapshots().forEachIndexed { index, snapshot ->
+            if (index > 0
+                    && (index >= retention.numberOfSnapshots || snapshot.time < minTime)) {
+                snapshot.file.delete()
+            }
+        }
+        // Manifests not committed
+        snapshotsDirectory.listFiles()?.forEach { file ->
+            if (!file.name.endsWith(SNAPSHOT_EXTENSION))
+                file.delete()
+        }
+        collectUnusedFiles()
+    }
+
+    private fun collectUnusedFiles() {
+        val usedChunks = HashSet<String>()
+        val usedKeys = HashSet<String>()
+        currentKey?.let { usedKeys.add(it.name) }
+        snapshotsDirectory.listFiles()?.forEach { file ->
+            try {
+                DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                    val manifest = readManifestHeader(input)
+                    usedKeys.add(manifest.keyName)
+                    val chunkId = ByteArray(ID_SIZE)
+                    for (i in 0 until manifest.numberOfChunks) {
+                        input.readFully(chunkId)
+                        input.readInt()
+                        usedChunks.add(chunkName(chunkId))
+                    }
+                }
+            } catch (e: IOException) {
+                // Chunks of an unreadable manifest can't be restored anyway
+            }
+        }
+        chunksDirectory.listFiles()?.forEach { prefixDirectory ->
+            prefixDirectory.listFiles()?.forEach { file ->
+                if (!usedChunks.contains(file.name))
+                    file.delete()
+            }
+            prefixDirectory.delete() // Only if empty
+        }
+        // The most recent key is kept for the next snapshots
+        keysDirectory.listFiles()?.sortedByDescending { it.name }?.drop(1)?.forEach { file ->
+            if (!usedKeys.contains(file.name)) {
+                storeKeys.remove(file.name)
+                file.delete()
+            }
+        }
+    }
+
+    /**
+     * Forget the keys derived in this session
+     */
+    @Synchronized
+    fun clearKeys() {
+        storeKeys.clear()
+        currentKey = null
+        keysCredentials = null
+    }
+
+    /**
+     * Forget the keys derived with other credentials
+     */
+    private fun checkCredentials(keyDerivation: KeyDerivation) {
+        val credentials = keyDerivation.credentials
+        if (keysCredentials?.let { MessageDigest.isEqual(it, credentials) } != true) {
+            clearKeys()
+            keysCredentials = credentials
+        }
+    }
+
+    /**
+     * Key of the file [name], or null if it was not created with the current credentials
+     */
+    @Throws(IOException::class)
+    private fun getKey(name: String, keyDerivation: KeyDerivation): StoreKey? {
+        storeKeys[name]?.let { return it }
+        return readKey(name, keyDerivation)?.also { storeKeys[name] = it }
+    }
+
+    @Throws(IOException::class)
+    private fun readKey(name: String, keyDerivation: KeyDerivation): StoreKey? {
+        val input = DataInputStream(ByteArrayInputStream(File(keysDirectory, name).readBytes()))
+        if (input.readInt() != KEY_MAGIC || input.readInt() != VERSION)
+            throw IOException("Unknown backup key format")
+        val parameters = ByteArray(input.readInt()).also { input.readFully(it) }
+        val check = ByteArray(ID_SIZE).also { input.readFully(it) }
+        val kdfParameters = KdfParameters.deserialize(parameters)
+                ?: throw IOException("Unknown backup key derivation")
+        val storeKey = StoreKey.fromDerivedKey(name, keyDerivation.deriveKey(kdfParameters))
+        if (!MessageDigest.isEqual(storeKey.mac().doFinal(LABEL_CHECK.toByteArray()), check))
+            return null
+        return storeKey
+    }
+
+    @Throws(IOException::class)
+    private fun createKey(keyDerivation: KeyDerivation): StoreKey {
+        keysDirectory.mkdirs()
+        var time = System.currentTimeMillis()
+        while (File(keysDirectory, "$time$KEY_EXTENSION").exists())
+            time++
+        val name = "$time$KEY_EXTENSION"
+        val kdfParameters = keyDerivation.newParameters()
+        val storeKey = StoreKey.fromDerivedKey(name, keyDerivation.deriveKey(kdfParameters))
+        val parameters = KdfParameters.serialize(kdfParameters)
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).apply {
+            writeInt(KEY_MAGIC)
+            writeInt(VERSION)
+            writeInt(parameters.size)
+            write(parameters)
+            write(storeKey.mac().doFinal(LABEL_CHECK.toByteArray()))
+        }
+        writeAtomically(File(keysDirectory, name), bytes.toByteArray())
+        return storeKey
+    }
+
+    private class ManifestHeader(val time: Long,
+                                 val keyName: String,
+                                 val length: Long,
+                                 val numberOfChunks: Int)
+
+    @Throws(IOException::class)
+    private fun readManifestHeader(input: DataInputStream): ManifestHeader {
+        if (input.readInt() != SNAPSHOT_MAGIC || input.readInt() != VERSION)
+            throw IOException("Unknown snapshot format")
+        return ManifestHeader(input.readLong(), input.readUTF(), input.readLong(), input.readInt())
+    }
+
+    private fun chunkName(chunkId: ByteArray): String {
+        val chars = CharArray(chunkId.size * 2)
+        chunkId.forEachIndexed { index, byte ->
+            chars[index * 2] = HEX_DIGITS[(byte.toInt() shr 4) and 0x0F]
+            chars[index * 2 + 1] = HEX_DIGITS[byte.toInt() and 0x0F]
+        }
+        return String(chars)
+    }
+
+    private fun chunkFile(chunkName: String): File {
+        return File(File(chunksDirectory, chunkName.substring(0, 2)), chunkName)
+    }
+
+    /**
+     * Write [file] through a temp file forced to the storage before the rename,
+     * so after a crash the file is either absent or complete
+     */
+    @Throws(IOException::class)
+    private fun writeAtomically(file: File, bytes: ByteArray, offset: Int = 0, length: Int = bytes.size) {
+        val tempFile = File(file.parentFile, file.name + TEMP_EXTENSION)
+        SyncFileOutputStream(tempFile, WRITE_BUFFER_SIZE).use { outputStream ->
+            outputStream.write(bytes, offset, length)
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete()
+            throw IOException("Unable to write ${file.name}")
+        }
+    }
+
+    /**
+     * Chunk the data written and store the new chunks, the snapshot is added only by [commit]
+     */
+    inner class SnapshotOutputStream internal constructor(private val storeKey: StoreKey) : OutputStream() {
+
+        private val mac = storeKey.mac()
+        private val encryptedChunk = ByteArray(ContentDefinedChunker.MAX_SIZE)
+        private val chunkIds = ArrayList<ByteArray>()
+        private val chunkSizes = ArrayList<Int>()
+        private var length = 0L
+        private val chunker = ContentDefinedChunker { chunk, chunkLength ->
+            storeChunk(chunk, chunkLength)
+        }
+
+        private fun storeChunk(chunk: ByteArray, chunkLength: Int) {
+            mac.update(chunk, 0, chunkLength)
+            val chunkId = mac.doFinal()
+            val file = chunkFile(chunkName(chunkId))
+            // Chunk already stored by a previous snapshot, rewritten if a crash left it incomplete
+            if (!file.exists() || file.length() != chunkLength.toLong()) {
+                file.parentFile?.mkdirs()
+                storeKey.cipher(Cipher.ENCRYPT_MODE, chunkId)
+                        .doFinal(chunk, 0, chunkLength, encryptedChunk, 0)
+                writeAtomically(file, encryptedChunk, 0, chunkLength)
+            }
+            chunkIds.add(chunkId)
+            chunkSizes.add(chunkLength)
+            length += chunkLength
+        }
+
+        // An error of the backup must not stop the save, it is only thrown by commit
+        @Volatile
+        private var error: Exception? = null
+
+        override fun write(b: Int) {
+            if (error == null) {
+                try {
+                    chunker.write(b)
+                } catch (e: Exception) {
+                    error = e
+                }
+            }
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            if (error == null) {
+                try {
+                    chunker.write(b, off, len)
+                } catch (e: Exception) {
+                    error = e
+                }
+            }
+        }
+
+        override fun close() {
+            if (error == null) {
+                try {
+                    chunker.close()
+                } catch (e: Exception) {
+                    error = e
+                }
+            }
+        }
+
+        /**
+         * Record the snapshot with the chunks written, after the end of the stream
+         */
+        @Throws(IOException::class)
+        fun commit(time: Long = System.currentTimeMillis()) {
+            close()
+            error?.let { throw IOException("Unable to write the snapshot", it) }
+            val bytes = ByteArrayOutputStream()
+            DataOutputStream(bytes).apply {
+                writeInt(SNAPSHOT_MAGIC)
+                writeInt(VERSION)
+                writeLong(time)
+                writeUTF(storeKey.name)
+                writeLong(length)
+                writeInt(chunkIds.size)
+                chunkIds.forEachIndexed { index, chunkId ->
+                    write(chunkId)
+                    writeInt(chunkSizes[index])
+                }
+                flush()
+            }
+            val manifest = bytes.toByteArray()
+            synchronized(this@BackupStore) {
+                snapshotsDirectory.mkdirs()
+                var snapshotTime = time
+                while (File(snapshotsDirectory, "$snapshotTime$SNAPSHOT_EXTENSION").exists())
+                    snapshotTime++
+                writeAtomically(File(snapshotsDirectory, "$snapshotTime$SNAPSHOT_EXTENSION"),
+                        manifest + storeKey.mac().doFinal(manifest))
+            }
+        }
+
+        /**
+         * Stop the snapshot, its new chunks are deleted by the next retention
+         */
+        fun abort() {
+            if (error == null)
+                error = IOException("Snapshot aborted")
+        }
+    }
+
+    private inner class SnapshotInputStream(private val storeKey: StoreKey,
+                                            private val chunkIds: List<ByteArray>,
+                                            private val chunkSizes: IntArray) : InputStream() {
+
+        private val mac = storeKey.mac()
+        private val encryptedChunk = ByteArray(ContentDefinedChunker.MAX_SIZE)
+        private val chunk = ByteArray(ContentDefinedChunker.MAX_SIZE)
+        private var chunkIndex = -1
+        private var chunkLength = 0
+        private var position = 0
+
+        /**
+         * Read and verify the next chunk if the current one is consumed, return false at the end
+         */
+        @Throws(IOException::class)
+        private fun loadChunk(): Boolean {
+            while (position >= chunkLength) {
+                if (chunkIndex + 1 >= chunkIds.size)
+                    return false
+                chunkIndex++
+                val chunkId = chunkIds[chunkIndex]
+                val size = chunkSizes[chunkIndex]
+                if (size > ContentDefinedChunker.MAX_SIZE)
+                    throw IOException("Corrupted snapshot manifest")
+                DataInputStream(FileInputStream(chunkFile(chunkName(chunkId)))).use { input ->
+                    input.readFully(encryptedChunk, 0, size)
+                }
+                storeKey.cipher(Cipher.DECRYPT_MODE, chunkId)
+                        .doFinal(encryptedChunk, 0, size, chunk, 0)
+                mac.update(chunk, 0, size)
+                if (!MessageDigest.isEqual(mac.doFinal(), chunkId))
+                    throw IOException("Corrupted backup chunk")
+                chunkLength = size
+                position = 0
+            }
+            return true
+        }
+
+        @Throws(IOException::class)
+        override fun read(): Int {
+            if (!loadChunk())
+                return -1
+            return chunk[position++].toInt() and 0xFF
+        }
+
+        @Throws(IOException::class)
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (len == 0)
+                return 0
+            if (!loadChunk())
+                return -1
+            val count = minOf(len, chunkLength - position)
+            System.arraycopy(chunk, position, b, off, count)
+            position += count
+            return count
+        }
+    }
+
+    companion object {
+        private const val CHUNKS_DIRECTORY = "chunks"
+        private const val SNAPSHOTS_DIRECTORY = "snapshots"
+        private const val KEYS_DIRECTORY = "keys"
+        private const val SNAPSHOT_EXTENSION = ".snapshot"
+        private const val KEY_EXTENSION = ".key"
+        private const val TEMP_EXTENSION = ".tmp"
+        // Larger writes, as the chunks, go directly to the file
+        private const val WRITE_BUFFER_SIZE = 8192
+
+        private const val SNAPSHOT_MAGIC = 0x4B445853 // KDXS
+        private const val KEY_MAGIC = 0x4B44584B // KDXK
+        private const val VERSION = 1
+
+        private const val MAC_ALGORITHM = "HmacSHA256"
+        private const val CIPHER_ALGORITHM = "AES/CTR/NoPadding"
+        private const val ID_SIZE = 32
+        private const val IV_SIZE = 16
+
+        private const val LABEL_MAC = "KeePassDX backup chunk name"
+        private const val LABEL_CIPHER = "KeePassDX backup chunk cipher"
+        private const val LABEL_CHECK = "KeePassDX backup key check"
+
+        private val HEX_DIGITS = "0123456789abcdef".toCharArray()
+    }
+}
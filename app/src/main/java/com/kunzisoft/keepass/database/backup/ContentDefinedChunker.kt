@@ -0,0 +1,108 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.backup
+
+import java.io.IOException
+import java.io.OutputStream
+
+/**
+ * Split the bytes written in chunks whose boundaries depend only on the content (FastCDC gear hash),
+ * so an insertion or a deletion in the stream only changes the chunks around it.
+ * Each chunk of [MIN_SIZE] to [MAX_SIZE] bytes is given to [onChunk] when its end is found,
+ * the buffer is reused for the next chunk.
+ */
+class ContentDefinedChunker(private val onChunk: (chunk: ByteArray, length: Int) -> Unit)
+    : OutputStream() {
+
+    private val buffer = ByteArray(MAX_SIZE)
+    private var length = 0
+    private var hash = 0L
+    private var closed = false
+
+    @Throws(IOException::class)
+    override fun write(b: Int) {
+        if (closed)
+            throw IOException("Chunker closed")
+        append(b.toByte())
+    }
+
+    @Throws(IOException::class)
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        if (closed)
+            throw IOException("Chunker closed")
+        for (i in off until off + len) {
+            append(b[i])
+        }
+    }
+
+    private fun append(byte: Byte) {
+        buffer[length++] = byte
+        // No boundary before the minimum size, the hash starts at the last bytes of the minimum
+        if (length > MIN_SIZE - WINDOW_SIZE) {
+            hash = (hash shl 1) + GEAR[byte.toInt() and 0xFF]
+            if (length >= MIN_SIZE) {
+                // Normalized chunking, harder to cut before the average size and easier after
+                val mask = if (length < AVERAGE_SIZE) MASK_SMALL else MASK_LARGE
+                if ((hash and mask) == 0L || length == MAX_SIZE)
+                    emitChunk()
+            }
+        }
+    }
+
+    private fun emitChunk() {
+        if (length > 0)
+            onChunk.invoke(buffer, length)
+        length = 0
+        hash = 0L
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        if (!closed) {
+            closed = true
+            emitChunk()
+        }
+    }
+
+    companion object {
+        const val MIN_SIZE = 16 * 1024
+        const val AVERAGE_SIZE = 64 * 1024
+        const val MAX_SIZE = 256 * 1024
+        // Bits of the hash depend on the last 64 bytes
+        private const val WINDOW_SIZE = 64
+
+        // Most significant bits, the ones influenced by the whole window
+        private const val MASK_SMALL = -1L shl (64 - 18)
+        private const val MASK_LARGE = -1L shl (64 - 14)
+
+        // Fixed table, the boundaries must stay the same between the versions of the app
+        private val GEAR = LongArray(256).apply {
+            var state = 0x4B65655061737344L
+            for (i in indices) {
+                // SplitMix64
+                state += -0x61c8864680b583ebL
+                var z = state
+                z = (z xor (z ushr 30)) * -0x40a7b892e31b1a47L
+                z = (z xor (z ushr 27)) * -0x6b2fb644ecceee15L
+                this[i] = z xor (z ushr 31)
+            }
+        }
+    }
+}
@@ -32,23 +32,41 @@ object HmacBlock {
         val hmac: Mac
         try {
             hmac = Mac.getInstance("HmacSHA256")
-            val signingKey = SecretKeySpec(blockKey, "HmacSHA256")
-            hmac.init(signingKey)
         } catch (e: NoSuchAlgorithmException) {
             throw IOException("No HmacAlogirthm")
+        }
+        initHmacSha256(hmac, blockKey)
+        return hmac
+    }
+
+    /**
+     * Init [hmac] with the key of a block, to use the same instance for all the blocks
+     */
+    fun initHmacSha256(hmac: Mac, blockKey: ByteArray) {
+        try {
+            hmac.init(SecretKeySpec(blockKey, "HmacSHA256"))
         } catch (e: InvalidKeyException) {
             throw IOException("Invalid Hmac Key")
         }
-        return hmac
     }
 
-    fun getHmacKey64(key: ByteArray, blockIndex: ByteArray): ByteArray {
-        val hash: MessageDigest
+    fun getHash512(): MessageDigest {
         try {
-            hash = MessageDigest.getInstance("SHA-512")
+            return MessageDigest.getInstance("SHA-512")
         } catch (e: NoSuchAlgorithmException) {
             throw RuntimeException(e)
         }
+    }
+
+    fun getHmacKey64(key: ByteArray, blockIndex: ByteArray): ByteArray {
+        return getHmacKey64(getHash512(), key, blockIndex)
+    }
+
+    /**
+     * Same as [getHmacKey64] with a reusable [hash]
+     */
+    fun getHmacKey64(hash: MessageDigest, key: ByteArray, blockIndex: ByteArray): ByteArray {
+        hash.reset()
         hash.update(blockIndex)
         hash.update(key)
         return hash.digest()
@@ -20,6 +20,7 @@
 package com.kunzisoft.keepass.database.crypto.kdf
 
 import com.kunzisoft.encrypt.HashManager
+import com.kunzisoft.encrypt.TransformationToken
 import com.kunzisoft.keepass.utils.UnsignedLong
 import com.kunzisoft.encrypt.aes.AESTransformer
 import com.kunzisoft.keepass.utils.bytes16ToUuid
@@ -44,7 +45,9 @@ class AesKdf : KdfEngine() {
     override val defaultKeyRounds = 500000L
 
     @Throws(IOException::class)
-    override fun transform(masterKey: ByteArray, kdfParameters: KdfParameters): ByteArray {
+    override fun transform(masterKey: ByteArray,
+                           kdfParameters: KdfParameters,
+                           token: TransformationToken?): ByteArray {
 
         var seed = kdfParameters.getByteArray(PARAM_SEED)
         if (seed != null && seed.size != 32) {
@@ -58,7 +61,7 @@ class AesKdf : KdfEngine() {
 
         val rounds = kdfParameters.getUInt64(PARAM_ROUNDS)?.toKotlinLong()
 
-        return AESTransformer.transformKey(seed, currentMasterKey, rounds) ?: ByteArray(0)
+        return AESTransformer.transformKey(seed, currentMasterKey, rounds, token) ?: ByteArray(0)
     }
 
     override fun randomize(kdfParameters: KdfParameters) {
@@ -23,6 +23,7 @@ import com.kunzisoft.keepass.utils.UnsignedInt
 import com.kunzisoft.keepass.utils.UnsignedLong
 import com.kunzisoft.encrypt.argon2.Argon2Transformer
 import com.kunzisoft.encrypt.argon2.Argon2Type
+import com.kunzisoft.encrypt.TransformationToken
 import com.kunzisoft.keepass.utils.bytes16ToUuid
 import java.io.IOException
 import java.security.SecureRandom
@@ -51,7 +52,9 @@ class Argon2Kdf(private val type: Type) : KdfEngine() {
         get() = DEFAULT_ITERATIONS.toKotlinLong()
 
     @Throws(IOException::class)
-    override fun transform(masterKey: ByteArray, kdfParameters: KdfParameters): ByteArray {
+    override fun transform(masterKey: ByteArray,
+                           kdfParameters: KdfParameters,
+                           token: TransformationToken?): ByteArray {
 
         val salt = kdfParameters.getByteArray(PARAM_SALT) ?: ByteArray(0)
         val parallelism = kdfParameters.getUInt32(PARAM_PARALLELISM)?.toKotlinLong() ?: DEFAULT_PARALLELISM.toKotlinLong()
@@ -72,7 +75,8 @@ class Argon2Kdf(private val type: Type) : KdfEngine() {
                 parallelism,
                 memory,
                 iterations,
-                version)
+                version,
+                token)
     }
 
     override fun randomize(kdfParameters: KdfParameters) {
@@ -19,6 +19,7 @@
  */
 package com.kunzisoft.keepass.database.crypto.kdf
 
+import com.kunzisoft.encrypt.TransformationToken
 import com.kunzisoft.keepass.utils.UnsignedInt
 import java.io.IOException
 import java.io.Serializable
@@ -31,8 +32,13 @@ abstract class KdfEngine : Serializable {
 
     abstract val defaultParameters: KdfParameters
 
+    /**
+     * Derive the key, stopped as soon as [token] is cancelled
+     */
     @Throws(IOException::class)
-    abstract fun transform(masterKey: ByteArray, kdfParameters: KdfParameters): ByteArray
+    abstract fun transform(masterKey: ByteArray,
+                           kdfParameters: KdfParameters,
+                           token: TransformationToken? = null): ByteArray
 
     abstract fun randomize(kdfParameters: KdfParameters)
 
@@ -24,13 +24,25 @@ import android.content.Context
 import android.content.res.Resources
 import android.net.Uri
 import android.os.Build
+import android.os.ParcelFileDescriptor
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
 import android.util.Log
+import com.kunzisoft.encrypt.HashManager
+import com.kunzisoft.encrypt.TransformationToken
 import com.kunzisoft.keepass.app.database.FileDatabaseHistoryAction
 import com.kunzisoft.keepass.database.action.node.NodeHandler
+import com.kunzisoft.keepass.database.audit.BreachCorpus
+import com.kunzisoft.keepass.database.audit.PasswordAuditReport
+import com.kunzisoft.keepass.database.audit.PasswordAuditor
+import com.kunzisoft.keepass.database.backup.BackupStore
 import com.kunzisoft.keepass.database.crypto.EncryptionAlgorithm
 import com.kunzisoft.keepass.database.crypto.kdf.KdfEngine
+import com.kunzisoft.keepass.database.crypto.kdf.KdfParameters
 import com.kunzisoft.keepass.database.element.binary.AttachmentPool
 import com.kunzisoft.keepass.database.element.binary.BinaryCache
+import com.kunzisoft.keepass.database.element.binary.BinaryCompressor
 import com.kunzisoft.keepass.database.element.binary.BinaryData
 import com.kunzisoft.keepass.database.element.binary.LoadedKey
 import com.kunzisoft.keepass.database.element.database.CompressionAlgorithm
@@ -52,12 +64,17 @@ import com.kunzisoft.keepass.database.file.input.DatabaseInputKDB
 import com.kunzisoft.keepass.database.file.input.DatabaseInputKDBX
 import com.kunzisoft.keepass.database.file.output.DatabaseOutputKDB
 import com.kunzisoft.keepass.database.file.output.DatabaseOutputKDBX
+import com.kunzisoft.keepass.database.file.output.DatabaseOutputVerifierKDBX
+import com.kunzisoft.keepass.database.merge.DatabaseKDBXMerger
 import com.kunzisoft.keepass.database.search.SearchHelper
 import com.kunzisoft.keepass.database.search.SearchParameters
 import com.kunzisoft.keepass.icons.IconDrawableFactory
 import com.kunzisoft.keepass.model.MainCredential
+import com.kunzisoft.keepass.model.SearchInfo
+import com.kunzisoft.keepass.stream.SyncFileOutputStream
 import com.kunzisoft.keepass.tasks.ProgressTaskUpdater
 import com.kunzisoft.keepass.utils.SingletonHolder
+import com.kunzisoft.keepass.utils.StringUtil.toHexString
 import com.kunzisoft.keepass.utils.UriUtil
 import com.kunzisoft.keepass.utils.readBytes4ToUInt
 import java.io.*
@@ -71,6 +88,12 @@ class Database {
     private var mDatabaseKDB: DatabaseKDB? = null
     private var mDatabaseKDBX: DatabaseKDBX? = null
 
+    // Analyses of the previous audit, kept until the database is closed
+    private var passwordAuditor: PasswordAuditor? = null
+
+    // Snapshots of the current database, keep the keys derived in the session
+    private var backupStore: BackupStore? = null
+
     var fileUri: Uri? = null
         private set
 
@@ -261,6 +284,9 @@ class Database {
     val allowDataCompression: Boolean
         get() = mDatabaseKDBX != null
 
+    val allowMerge: Boolean
+        get() = mDatabaseKDBX != null
+
     val availableCompressionAlgorithms: List<CompressionAlgorithm>
         get() = mDatabaseKDBX?.availableCompressionAlgorithms ?: ArrayList()
 
@@ -284,8 +310,9 @@ class Database {
     }
 
     fun updateDataBinaryCompression(oldCompression: CompressionAlgorithm,
-                                    newCompression: CompressionAlgorithm) {
-        mDatabaseKDBX?.changeBinaryCompression(oldCompression, newCompression)
+                                    newCompression: CompressionAlgorithm,
+                                    binaryCompressor: BinaryCompressor = BinaryCompressor(binaryCache)) {
+        mDatabaseKDBX?.changeBinaryCompression(oldCompression, newCompression, binaryCompressor)
     }
 
     val allowNoMasterKey: Boolean
@@ -553,7 +580,8 @@ class Database {
                  isRAMSufficient: (memoryWanted: Long) -> Boolean,
                  tempCipherKey: LoadedKey,
                  fixDuplicateUUID: Boolean,
-                 progressTaskUpdater: ProgressTaskUpdater?) {
+                 progressTaskUpdater: ProgressTaskUpdater?,
+                 transformationToken: TransformationToken? = null) {
 
         // Save database URI
         this.fileUri = uri
@@ -572,7 +600,7 @@ class Database {
             // Read database stream for the first time
             readDatabaseStream(contentResolver, uri,
                     { databaseInputStream ->
-                        DatabaseInputKDB(cacheDirectory, isRAMSufficient)
+                        DatabaseInputKDB(cacheDirectory, isRAMSufficient, transformationToken)
                                 .openDatabase(databaseInputStream,
                                         mainCredential.masterPassword,
                                         keyFileInputStream,
@@ -581,7 +609,7 @@ class Database {
                                         fixDuplicateUUID)
                     },
                     { databaseInputStream ->
-                        DatabaseInputKDBX(cacheDirectory, isRAMSufficient)
+                        DatabaseInputKDBX(cacheDirectory, isRAMSufficient, transformationToken)
                                 .openDatabase(databaseInputStream,
                                         mainCredential.masterPassword,
                                         keyFileInputStream,
@@ -642,6 +670,65 @@ class Database {
         }
     }
 
+    /**
+     * Merge the database file modified outside the app in the loaded database instead of reloading it,
+     * the file is read in a sub directory of [cacheDirectory] to keep the cache of the loaded database
+     */
+    @Throws(LoadDatabaseException::class)
+    fun mergeData(contentResolver: ContentResolver,
+                  cacheDirectory: File,
+                  isRAMSufficient: (memoryWanted: Long) -> Boolean,
+                  progressTaskUpdater: ProgressTaskUpdater?) {
+
+        val databaseKDBX = mDatabaseKDBX ?: run {
+            Log.e(TAG, "Only a KDBX database can be merged")
+            throw IODatabaseException()
+        }
+        val databaseUri = fileUri ?: run {
+            Log.e(TAG, "Database URI is null, database cannot be merged")
+            throw IODatabaseException()
+        }
+        val mergeDirectory = File(cacheDirectory, MERGE_DIRECTORY)
+        var databaseToMerge: DatabaseKDBX? = null
+        try {
+            mergeDirectory.mkdirs()
+            val databaseStream = UriUtil.getUriInputStream(contentResolver, databaseUri)
+                    ?: throw IOException("Database input stream cannot be retrieve")
+            BufferedInputStream(databaseStream).use { databaseInputStream ->
+                // Same credentials, the other database is only kept during the merge
+                databaseToMerge = DatabaseInputKDBX(mergeDirectory, isRAMSufficient)
+                        .openDatabase(databaseInputStream,
+                                masterKey,
+                                LoadedKey.generateNewCipherKey(),
+                                progressTaskUpdater)
+            }
+            databaseToMerge?.let {
+                DatabaseKDBXMerger(databaseKDBX).merge(it).forEach { mergedEntry ->
+                    removeOldestEntryHistory(Entry(mergedEntry), attachmentPool)
+                }
+            }
+        } catch (e: FileNotFoundException) {
+            Log.e(TAG, "Unable to retrieve the database to merge", e)
+            throw FileNotFoundDatabaseException()
+        } catch (e: LoadDatabaseException) {
+            throw e
+        } catch (e: Exception) {
+            throw LoadDatabaseException(e)
+        } finally {
+            databaseToMerge?.let {
+                it.binaryCache.clear()
+                it.iconsManager.clearCache()
+                it.clearCache()
+            }
+            try {
+                cleanDirectory(mergeDirectory)
+                mergeDirectory.delete()
+            } catch (e: Exception) {
+                Log.e(TAG, "Unable to clear the merge directory.", e)
+            }
+        }
+    }
+
     fun isGroupSearchable(group: Group, omitBackup: Boolean): Boolean {
         return mDatabaseKDB?.isGroupSearchable(group.groupKDB, omitBackup) ?:
         mDatabaseKDBX?.isGroupSearchable(group.groupKDBX, omitBackup) ?:
@@ -657,6 +744,25 @@ class Database {
                 }, omitBackup, max)
     }
 
+    /**
+     * Retrieve the entries of [searchInfo] with the autofill index,
+     * OTP search info are still searched in all the entry fields
+     */
+    fun createVirtualGroupFromSearchInfo(searchInfo: SearchInfo,
+                                         omitBackup: Boolean,
+                                         max: Int = Integer.MAX_VALUE): Group? {
+        if (searchInfo.otpString != null) {
+            return createVirtualGroupFromSearchInfo(searchInfo.toString(), omitBackup, max)
+        }
+        val entryIds = mDatabaseKDB?.autofillIndex?.getIds(searchInfo)
+                ?: mDatabaseKDBX?.autofillIndex?.getIds(searchInfo)
+                ?: emptyList()
+        return mSearchHelper?.createVirtualGroupWithIndexedEntries(this,
+                searchInfo.toString(),
+                entryIds.mapNotNull { getEntryById(it) },
+                omitBackup, max)
+    }
+
     fun createVirtualGroupFromSearchInfo(searchInfoString: String,
                                          omitBackup: Boolean,
                                          max: Int = Integer.MAX_VALUE): Group? {
@@ -697,6 +803,12 @@ class Database {
                         false)
     }
 
+    private fun refreshEntryIndex(entry: Entry) {
+        entry.entryKDBX?.let { entryKDBX ->
+            mDatabaseKDBX?.refreshEntryIndex(entryKDBX)
+        }
+    }
+
     fun removeAttachmentIfNotUsed(attachment: Attachment) {
         // No need in KDB database because unique attachment by entry
         // Don't clear to fix upload multiple times
@@ -708,68 +820,320 @@ class Database {
         mDatabaseKDBX?.removeUnlinkedAttachments(true)
     }
 
+    /**
+     * Save the database through a temp file in [cacheDirectory] (or in the cache of the database),
+     * moved in [savedCopyDirectory] if it can't replace the database,
+     * and if [backupDirectory] is defined and its key derived by [prepareBackupSnapshots], add a snapshot
+     * of a KDBX 4 database in its backup store then apply [backupRetention].
+     * An error of the snapshot doesn't stop the save.
+     */
     @Throws(DatabaseOutputException::class)
-    fun saveData(contentResolver: ContentResolver) {
+    fun saveData(contentResolver: ContentResolver,
+                 cacheDirectory: File? = null,
+                 savedCopyDirectory: File? = null,
+                 backupDirectory: File? = null,
+                 backupRetention: BackupStore.Retention? = null) {
         try {
-            this.fileUri?.let {
-                saveData(contentResolver, it)
+            this.fileUri?.let { uri ->
+                val store = backupDirectory?.let { getBackupStore(it, uri) }
+                val snapshot = store?.let { createBackupSnapshot(it) }
+                val payloadCopied = try {
+                    saveData(contentResolver, uri, cacheDirectory, savedCopyDirectory, snapshot)
+                } catch (e: Exception) {
+                    snapshot?.abort()
+                    throw e
+                }
+                if (store != null && snapshot != null) {
+                    try {
+                        if (payloadCopied) {
+                            snapshot.commit()
+                        } else {
+                            snapshot.abort()
+                        }
+                        backupRetention?.let { store.applyRetention(it) }
+                    } catch (e: Exception) {
+                        Log.e(TAG, "Unable to add the backup snapshot", e)
+                    }
+                }
             }
+        } catch (e: DatabaseOutputException) {
+            Log.e(TAG, "Unable to save database", e)
+            throw e
         } catch (e: Exception) {
             Log.e(TAG, "Unable to save database", e)
             throw DatabaseOutputException(e)
         }
     }
 
+    /**
+     * Write the database in a local temp file forced to the storage and verified,
+     * then move it to [uri] (rename for a file, copy for a content provider),
+     * so the previous database is kept if the save fails before the move.
+     * For a content provider, the verified file is a saved copy in [savedCopyDirectory] during the copy,
+     * so it survives if the process dies while the database is truncated, it is deleted once copied.
+     * If the move fails, the verified file is kept and its path reported by a [SaveCopyDatabaseException].
+     * The payload of a KDBX 4 database is copied in [payloadOutputStream], return true if the copy was made
+     */
     @Throws(IOException::class, DatabaseOutputException::class)
-    private fun saveData(contentResolver: ContentResolver, uri: Uri) {
-
-        if (uri.scheme == "file") {
-            uri.path?.let { filename ->
-                val tempFile = File("$filename.tmp")
+    private fun saveData(contentResolver: ContentResolver,
+                         uri: Uri,
+                         cacheDirectory: File?,
+                         savedCopyDirectory: File?,
+                         payloadOutputStream: OutputStream?): Boolean {
+        var payloadCopied = false
+        val databaseFile = if (uri.scheme == "file") uri.path?.let { File(it) } else null
+        // Beside the database for an atomic rename, else in the directory of the saved copies
+        // not cleaned with the database, or in the private directory of the app
+        var tempFile = databaseFile?.let { File(it.path + SAVE_TEMP_EXTENSION) }
+                ?: savedCopyDirectory?.takeIf { it.isDirectory || it.mkdirs() }?.let { File(it, SAVE_TEMP_FILE) }
+                ?: (cacheDirectory ?: binaryCache.cacheDirectory)?.let { File(it, SAVE_TEMP_FILE) }
+                ?: throw IOException("No directory for the temp file")
+        var tempFileVerified = false
+        var databaseReplaced = false
+        try {
+            SyncFileOutputStream(tempFile).use { outputStream ->
+                payloadCopied = outputData(outputStream, payloadOutputStream)
+            }
 
-                var fileOutputStream: FileOutputStream? = null
-                try {
-                    fileOutputStream = FileOutputStream(tempFile)
-                    val pmo = mDatabaseKDB?.let { DatabaseOutputKDB(it, fileOutputStream) }
-                            ?: mDatabaseKDBX?.let { DatabaseOutputKDBX(it, fileOutputStream) }
-                    pmo?.output()
-                } catch (e: Exception) {
-                    throw IOException(e)
-                } finally {
-                    fileOutputStream?.close()
+            // Read again with the keys of the save, before replacing the database
+            mDatabaseKDBX?.let { databaseKDBX ->
+                BufferedInputStream(FileInputStream(tempFile), SyncFileOutputStream.DEFAULT_BUFFER_SIZE).use {
+                    DatabaseOutputVerifierKDBX(databaseKDBX).verify(it)
                 }
+            }
+            tempFileVerified = true
 
-                // Force data to disk before continuing
-                try {
-                    fileOutputStream?.fd?.sync()
-                } catch (e: SyncFailedException) {
-                    // Ignore if fsync fails. We tried.
+            if (databaseFile != null) {
+                if (!tempFile.renameTo(databaseFile)) {
+                    throw IOException("Unable to replace the database file")
                 }
-    
-                if (!tempFile.renameTo(File(filename))) {
-                    throw IOException()
+                // Force the new directory entry to the storage
+                databaseFile.parentFile?.let { syncDirectory(it) }
+            } else {
+                // Named as a saved copy before the database is truncated
+                if (savedCopyDirectory != null) {
+                    tempFile = moveSavedCopy(tempFile, savedCopyDirectory)
+                    tempFile.parentFile?.let { syncDirectory(it) }
                 }
+                copyToUri(contentResolver, tempFile, uri)
             }
-        } else {
-            var outputStream: OutputStream? = null
+            databaseReplaced = true
+        } catch (e: Exception) {
+            if (tempFileVerified) {
+                // The database may be truncated, the only complete copy is the verified file
+                Log.e(TAG, "Unable to replace the database, saved copy kept in ${tempFile.path}", e)
+                throw SaveCopyDatabaseException(tempFile.path, e)
+            }
+            throw IOException(e)
+        } finally {
+            if (databaseReplaced || !tempFileVerified)
+                tempFile.delete()
+        }
+        this.fileUri = uri
+        return payloadCopied
+    }
+
+    /**
+     * Rename the verified temp file as a saved copy of [savedCopyDirectory], return the file kept
+     */
+    private fun moveSavedCopy(tempFile: File, savedCopyDirectory: File): File {
+        val extension = if (mDatabaseKDB != null) SAVE_COPY_EXTENSION_KDB else SAVE_COPY_EXTENSION_KDBX
+        val savedCopy = File(savedCopyDirectory, SAVE_COPY_PREFIX + System.currentTimeMillis() + extension)
+        return try {
+            // Copy if the directory is on another storage
+            if (!tempFile.renameTo(savedCopy)) {
+                tempFile.copyTo(savedCopy)
+                tempFile.delete()
+            }
+            savedCopy
+        } catch (e: Exception) {
+            Log.e(TAG, "Unable to move the saved copy", e)
+            savedCopy.delete()
+            tempFile
+        }
+    }
+
+    /**
+     * Flush the entries of [directory] to the storage, not possible before Lollipop
+     */
+    private fun syncDirectory(directory: File) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             try {
-                outputStream = contentResolver.openOutputStream(uri, "rwt")
-                outputStream?.let { definedOutputStream ->
-                    val databaseOutput = mDatabaseKDB?.let { DatabaseOutputKDB(it, definedOutputStream) }
-                                    ?: mDatabaseKDBX?.let { DatabaseOutputKDBX(it, definedOutputStream) }
-                    databaseOutput?.output()
+                val fileDescriptor = Os.open(directory.path, OsConstants.O_RDONLY, 0)
+                try {
+                    Os.fsync(fileDescriptor)
+                } finally {
+                    Os.close(fileDescriptor)
                 }
+            } catch (e: ErrnoException) {
+                // Not supported by the file system, the rename is only done
+                Log.w(TAG, "Unable to sync the database directory", e)
+            }
+        }
+    }
+
+    /**
+     * Copy [file] in [uri] with large buffers, forced to the storage if the provider gives a file descriptor
+     */
+    @Throws(IOException::class)
+    private fun copyToUri(contentResolver: ContentResolver, file: File, uri: Uri) {
+        FileInputStream(file).use { inputStream ->
+            val parcelFileDescriptor = try {
+                contentResolver.openFileDescriptor(uri, "rwt")
             } catch (e: Exception) {
-                throw IOException(e)
-            } finally {
-                outputStream?.close()
+                null
+            }
+            if (parcelFileDescriptor != null) {
+                ParcelFileDescriptor.AutoCloseOutputStream(parcelFileDescriptor).use { outputStream ->
+                    inputStream.copyTo(outputStream, SyncFileOutputStream.DEFAULT_BUFFER_SIZE)
+                    try {
+                        outputStream.fd.sync()
+                    } catch (e: SyncFailedException) {
+                        // Not supported by the provider (e.g. pipe), the data is already written
+                    }
+                }
+            } else {
+                val outputStream = contentResolver.openOutputStream(uri, "rwt")
+                        ?: throw IOException("Unable to open the database output stream")
+                outputStream.use {
+                    inputStream.copyTo(it, SyncFileOutputStream.DEFAULT_BUFFER_SIZE)
+                }
             }
         }
-        this.fileUri = uri
+    }
+
+    @Throws(DatabaseOutputException::class)
+    private fun outputData(outputStream: OutputStream,
+                           payloadOutputStream: OutputStream?): Boolean {
+        mDatabaseKDB?.let {
+            DatabaseOutputKDB(it, outputStream).output()
+        }
+        mDatabaseKDBX?.let {
+            val databaseOutput = DatabaseOutputKDBX(it, outputStream)
+            databaseOutput.payloadOutputStream = payloadOutputStream
+            databaseOutput.output()
+            return databaseOutput.isPayloadCopied
+        }
+        return false
+    }
+
+    /**
+     * Store of the snapshots of the database [uri], in a sub directory of [backupDirectory]
+     */
+    @Synchronized
+    private fun getBackupStore(backupDirectory: File, uri: Uri): BackupStore {
+        val directory = File(backupDirectory,
+                HashManager.hashSha256(uri.toString().toByteArray()).toHexString())
+        backupStore?.let { store ->
+            if (store.directory == directory)
+                return store
+            store.clearKeys()
+        }
+        return BackupStore(directory).also { backupStore = it }
+    }
+
+    /**
+     * KDBX 4 database which can have snapshots, before KDBX 4 the payload depends on the outer header
+     * and can't be restored alone
+     */
+    private fun getDatabaseWithSnapshots(): DatabaseKDBX? {
+        val databaseKDBX = mDatabaseKDBX ?: return null
+        if (DatabaseHeaderKDBX(databaseKDBX).version.isBefore(FILE_VERSION_40))
+            return null
+        return databaseKDBX
+    }
+
+    /**
+     * Snapshot of the save, only if the key of the store is already derived to not run the KDF during the save
+     */
+    private fun createBackupSnapshot(store: BackupStore): BackupStore.SnapshotOutputStream? {
+        val databaseKDBX = getDatabaseWithSnapshots() ?: return null
+        return try {
+            store.createSnapshot(BackupKeyDerivation(databaseKDBX))
+        } catch (e: Exception) {
+            Log.e(TAG, "Unable to create the backup snapshot", e)
+            null
+        }
+    }
+
+    /**
+     * Derive the key of the backup store in [backupDirectory] for the current credentials if needed,
+     * long as it runs the KDF so to call in the background, after the unlock or after a save without snapshot
+     */
+    @Throws(IOException::class)
+    fun prepareBackupSnapshots(backupDirectory: File) {
+        val uri = fileUri ?: return
+        val databaseKDBX = getDatabaseWithSnapshots() ?: return
+        getBackupStore(backupDirectory, uri).deriveCurrentKey(BackupKeyDerivation(databaseKDBX))
+    }
+
+    /**
+     * Key of the backup store derived from the credentials by the KDF of the database, with its own seed
+     */
+    private class BackupKeyDerivation(private val databaseKDBX: DatabaseKDBX)
+        : BackupStore.KeyDerivation {
+
+        // Changed by a new password or key file
+        override val credentials: ByteArray
+            get() = HashManager.hashSha256(databaseKDBX.masterKey)
+
+        override fun newParameters(): KdfParameters {
+            val kdfParameters = databaseKDBX.kdfParameters
+                    ?: throw IOException("No key derivation parameters")
+            val parameters = KdfParameters.deserialize(KdfParameters.serialize(kdfParameters))
+                    ?: throw IOException("Unable to copy the key derivation parameters")
+            databaseKDBX.getEngineKDBX4(parameters).randomize(parameters)
+            return parameters
+        }
+
+        override fun deriveKey(kdfParameters: KdfParameters): ByteArray {
+            return HashManager.hashSha256(databaseKDBX.getEngineKDBX4(kdfParameters)
+                    .transform(databaseKDBX.masterKey, kdfParameters))
+        }
+    }
+
+    /**
+     * Snapshots of the database in [backupDirectory], the most recent first
+     */
+    fun getBackupSnapshots(backupDirectory: File): List<BackupStore.Snapshot> {
+        val uri = fileUri ?: return emptyList()
+        return getBackupStore(backupDirectory, uri).getSnapshots()
+    }
+
+    /**
+     * Write in [uri] a KDBX 4 file with the content of [snapshot], encrypted with the current credentials
+     */
+    @Throws(DatabaseOutputException::class)
+    fun restoreBackupSnapshot(contentResolver: ContentResolver,
+                              backupDirectory: File,
+                              snapshot: BackupStore.Snapshot,
+                              uri: Uri) {
+        try {
+            val databaseKDBX = mDatabaseKDBX
+                    ?: throw IOException("Only a KDBX database has snapshots")
+            val databaseUri = fileUri
+                    ?: throw IOException("Database URI is null")
+            val payloadInputStream = getBackupStore(backupDirectory, databaseUri)
+                    .openSnapshot(snapshot, BackupKeyDerivation(databaseKDBX))
+            contentResolver.openOutputStream(uri, "rwt")?.use { outputStream ->
+                val databaseOutput = DatabaseOutputKDBX(databaseKDBX, outputStream)
+                databaseOutput.payloadInputStream = payloadInputStream
+                databaseOutput.output()
+            } ?: throw IOException("Unable to open the output stream")
+        } catch (e: DatabaseOutputException) {
+            throw e
+        } catch (e: Exception) {
+            Log.e(TAG, "Unable to restore the backup snapshot", e)
+            throw DatabaseOutputException(e)
+        }
     }
 
     fun clear(filesDirectory: File? = null) {
         binaryCache.clear()
+        passwordAuditor?.clear()
+        passwordAuditor = null
+        backupStore?.clearKeys()
+        backupStore = null
         iconsManager.clearCache()
         iconDrawableFactory.clearCache()
         // Delete the cache of the database if present
@@ -862,6 +1226,78 @@ class Database {
         return null
     }
 
+    /**
+     * Entries expired now, retrieved from the expiry index
+     */
+    fun getExpiredEntries(): List<Entry> {
+        val entries = ArrayList<Entry>()
+        mDatabaseKDB?.let { database ->
+            database.expiryIndex.getExpired().forEach { id ->
+                database.getEntryById(id)?.let { entries.add(Entry(it)) }
+            }
+        }
+        mDatabaseKDBX?.let { database ->
+            database.expiryIndex.getExpired().forEach { id ->
+                database.getEntryById(id)?.let { entries.add(Entry(it)) }
+            }
+        }
+        return entries
+    }
+
+    /**
+     * Entries not expired now but expired in [days]
+     */
+    fun getEntriesExpiringWithin(days: Int): List<Entry> {
+        val entries = ArrayList<Entry>()
+        mDatabaseKDB?.let { database ->
+            database.expiryIndex.getExpiringWithin(days).forEach { id ->
+                database.getEntryById(id)?.let { entries.add(Entry(it)) }
+            }
+        }
+        mDatabaseKDBX?.let { database ->
+            database.expiryIndex.getExpiringWithin(days).forEach { id ->
+                database.getEntryById(id)?.let { entries.add(Entry(it)) }
+            }
+        }
+        return entries
+    }
+
+    /**
+     * Flip the entries expired since the last update in the expiry index,
+     * to be called before the children of a group are filtered
+     */
+    fun updateExpiredEntries() {
+        mDatabaseKDB?.expiryIndex?.updateExpired()
+        mDatabaseKDBX?.expiryIndex?.updateExpired()
+    }
+
+    /**
+     * Expired state of the entry [id] at the last [updateExpiredEntries],
+     * or null if its expiry isn't indexed (no expiry or a time of day)
+     */
+    fun isEntryExpired(id: NodeId<UUID>): Boolean? {
+        return mDatabaseKDB?.expiryIndex?.isMarkedExpired(id)
+                ?: mDatabaseKDBX?.expiryIndex?.isMarkedExpired(id)
+    }
+
+    /**
+     * Audit of the passwords of the entries and their history, only the entries changed
+     * since the previous audit are analysed, the passwords are checked in [breachCorpus] if defined
+     */
+    fun auditPasswords(breachCorpus: BreachCorpus?): PasswordAuditReport? {
+        val root = rootGroup ?: return null
+        val auditor = passwordAuditor ?: PasswordAuditor().also { passwordAuditor = it }
+        return auditor.audit(root, recycleBin, breachCorpus)
+    }
+
+    /**
+     * Next time in milliseconds an entry expires, or null if no entry will expire
+     */
+    fun getNextExpiryTime(): Long? {
+        return mDatabaseKDB?.expiryIndex?.getNextExpiryTime()
+                ?: mDatabaseKDBX?.expiryIndex?.getNextExpiryTime()
+    }
+
     fun getGroupById(id: NodeId<*>): Group? {
         if (id is NodeIdInt)
             mDatabaseKDB?.getGroupById(id)?.let {
@@ -1125,31 +1561,33 @@ class Database {
 
             val maxSize = historyMaxSize
             if (maxSize >= 0) {
-                while (true) {
-                    var historySize: Long = 0
-                    for (entryHistory in entry.getHistory()) {
-                        historySize += entryHistory.getSize(attachmentPool)
-                    }
-                    if (historySize > maxSize) {
-                        removeOldestEntryHistory(entry)
-                    } else {
-                        break
-                    }
+                // Size computed once, then decreased by the size of each removed history entry
+                var historySize = entry.getHistorySize(attachmentPool)
+                while (historySize > maxSize) {
+                    historySize -= removeOldestEntryHistory(entry) ?: break
                 }
             }
         }
     }
 
-    private fun removeOldestEntryHistory(entry: Entry) {
-        entry.removeOldestEntryFromHistory()?.let {
+    /**
+     * Remove the oldest history entry and its unused attachments, return the size of the removed entry
+     */
+    private fun removeOldestEntryHistory(entry: Entry): Long? {
+        return entry.removeOldestEntryFromHistory()?.let {
+            refreshEntryIndex(entry)
+            // Size retrieved before the attachments are removed from the pool
+            val removedSize = it.getSize(attachmentPool)
             it.getAttachments(attachmentPool, false).forEach { attachmentToRemove ->
                 removeAttachmentIfNotUsed(attachmentToRemove)
             }
+            removedSize
         }
     }
 
     fun removeEntryHistory(entry: Entry, entryHistoryPosition: Int) {
         entry.removeEntryFromHistory(entryHistoryPosition)?.let {
+            refreshEntryIndex(entry)
             it.getAttachments(attachmentPool, false).forEach { attachmentToRemove ->
                 removeAttachmentIfNotUsed(attachmentToRemove)
             }
@@ -1159,5 +1597,12 @@ class Database {
     companion object : SingletonHolder<Database>(::Database) {
 
         private val TAG = Database::class.java.name
+
+        private const val MERGE_DIRECTORY = "merge"
+        private const val SAVE_TEMP_FILE = "database_save.tmp"
+        private const val SAVE_TEMP_EXTENSION = ".tmp"
+        private const val SAVE_COPY_PREFIX = "database_"
+        private const val SAVE_COPY_EXTENSION_KDB = ".kdb"
+        private const val SAVE_COPY_EXTENSION_KDBX = ".kdbx"
     }
 }
@@ -32,11 +32,19 @@ import java.util.*
 
 class DateInstant : Parcelable {
 
-    private var jDate: Date = Date()
+    private var mTime: Long = System.currentTimeMillis()
+    // Built only when retrieved, most of the dates are only compared or written
+    private var mDate: Date? = null
     private var mType: Type = Type.DATE_TIME
 
     val date: Date
-        get() = jDate
+        get() = mDate ?: Date(mTime).also { mDate = it }
+
+    /**
+     * Milliseconds since the epoch, without building the date
+     */
+    val time: Long
+        get() = mTime
 
     var type: Type
         get() = mType
@@ -45,42 +53,42 @@ class DateInstant : Parcelable {
         }
 
     constructor(source: DateInstant) {
-        this.jDate = Date(source.jDate.time)
+        this.mTime = source.mTime
         this.mType = source.mType
     }
 
     constructor(date: Date, type: Type = Type.DATE_TIME) {
-        jDate = Date(date.time)
+        mTime = date.time
         mType = type
     }
 
     constructor(millis: Long, type: Type = Type.DATE_TIME) {
-        jDate = Date(millis)
+        mTime = millis
         mType = type
     }
 
     private fun parse(value: String, type: Type): Date {
         return when (type) {
-            Type.DATE -> dateFormat.parse(value) ?: jDate
-            Type.TIME -> timeFormat.parse(value) ?: jDate
-            else -> dateTimeFormat.parse(value) ?: jDate
+            Type.DATE -> dateFormat.parse(value) ?: Date(mTime)
+            Type.TIME -> timeFormat.parse(value) ?: Date(mTime)
+            else -> dateTimeFormat.parse(value) ?: Date(mTime)
         }
     }
 
     constructor(string: String, type: Type = Type.DATE_TIME) {
         try {
-            jDate = parse(string, type)
+            mTime = parse(string, type).time
             mType = type
         } catch (e: Exception) {
             // Retry with second format
             try {
                 when (type) {
                     Type.TIME -> {
-                        jDate = parse(string, Type.DATE)
+                        mTime = parse(string, Type.DATE).time
                         mType = Type.DATE
                     }
                     else -> {
-                        jDate = parse(string, Type.TIME)
+                        mTime = parse(string, Type.TIME).time
                         mType = Type.TIME
                     }
                 }
@@ -88,11 +96,11 @@ class DateInstant : Parcelable {
                 // Retry with third format
                 when (type) {
                     Type.DATE, Type.TIME -> {
-                        jDate = parse(string, Type.DATE_TIME)
+                        mTime = parse(string, Type.DATE_TIME).time
                         mType = Type.DATE_TIME
                     }
                     else -> {
-                        jDate = parse(string, Type.DATE)
+                        mTime = parse(string, Type.DATE).time
                         mType = Type.DATE
                     }
                 }
@@ -105,11 +113,11 @@ class DateInstant : Parcelable {
     }
 
     constructor() {
-        jDate = Date()
+        mTime = System.currentTimeMillis()
     }
 
     constructor(parcel: Parcel) {
-        jDate = parcel.readSerializable() as? Date? ?: jDate
+        mTime = parcel.readLong()
         mType = parcel.readEnum<Type>() ?: mType
     }
 
@@ -118,7 +126,7 @@ class DateInstant : Parcelable {
     }
 
     override fun writeToParcel(dest: Parcel, flags: Int) {
-        dest.writeSerializable(jDate)
+        dest.writeLong(mTime)
         dest.writeEnum(mType)
     }
 
@@ -127,16 +135,16 @@ class DateInstant : Parcelable {
             Type.DATE -> DateFormat.getDateInstance(
                 DateFormat.MEDIUM,
                 ConfigurationCompat.getLocales(resources.configuration)[0])
-                .format(jDate)
+                .format(date)
             Type.TIME -> DateFormat.getTimeInstance(
                 DateFormat.SHORT,
                 ConfigurationCompat.getLocales(resources.configuration)[0])
-                .format(jDate)
+                .format(date)
             else -> DateFormat.getDateTimeInstance(
                 DateFormat.MEDIUM,
                 DateFormat.SHORT,
                 ConfigurationCompat.getLocales(resources.configuration)[0])
-                .format(jDate)
+                .format(date)
         }
     }
 
@@ -158,25 +166,53 @@ class DateInstant : Parcelable {
     // If expireDate is before NEVER_EXPIRE date less 1 month (to be sure)
     // it is not expires
     fun isNeverExpires(): Boolean {
-        return LocalDateTime(jDate)
+        return LocalDateTime(mTime)
             .isBefore(
                 LocalDateTime.fromDateFields(NEVER_EXPIRES.date)
                 .minusMonths(1))
     }
 
+    /**
+     * Compared on the local day or time of day for the types with only a date or a time,
+     * computed on the milliseconds to not allocate objects in lists of nodes
+     */
     fun isCurrentlyExpire(): Boolean {
+        val now = System.currentTimeMillis()
+        return when (type) {
+            Type.DATE -> {
+                val timeZone = TimeZone.getDefault()
+                localDay(mTime, timeZone) < localDay(now, timeZone)
+            }
+            Type.TIME -> {
+                val timeZone = TimeZone.getDefault()
+                localTimeOfDay(mTime, timeZone) < localTimeOfDay(now, timeZone)
+            }
+            else -> mTime < now
+        }
+    }
+
+    /**
+     * Last time in milliseconds at which [isCurrentlyExpire] is false, with the current time zone,
+     * or null for a time of day, which expires again each day
+     */
+    fun getLastTimeNotExpired(): Long? {
         return when (type) {
-            Type.DATE -> LocalDate.fromDateFields(jDate).isBefore(LocalDate.now())
-            Type.TIME -> LocalTime.fromDateFields(jDate).isBefore(LocalTime.now())
-            else -> LocalDateTime.fromDateFields(jDate).isBefore(LocalDateTime.now())
+            Type.DATE -> {
+                // Just before the start of the next local day
+                val timeZone = TimeZone.getDefault()
+                val nextLocalDay = (localDay(mTime, timeZone) + 1) * MILLIS_PER_DAY
+                nextLocalDay - timeZone.getOffset(nextLocalDay - timeZone.getOffset(nextLocalDay)) - 1
+            }
+            Type.TIME -> null
+            else -> mTime
         }
     }
 
     override fun toString(): String {
         return when (type) {
-            Type.DATE -> dateFormat.format(jDate)
-            Type.TIME -> timeFormat.format(jDate)
-            else -> dateTimeFormat.format(jDate)
+            Type.DATE -> dateFormat.format(date)
+            Type.TIME -> timeFormat.format(date)
+            else -> dateTimeFormat.format(date)
         }
     }
 
@@ -184,14 +220,14 @@ class DateInstant : Parcelable {
         if (this === other) return true
         if (other !is DateInstant) return false
 
-        if (jDate != other.jDate) return false
+        if (mTime != other.mTime) return false
         if (mType != other.mType) return false
 
         return true
     }
 
     override fun hashCode(): Int {
-        var result = jDate.hashCode()
+        var result = mTime.hashCode()
         result = 31 * result + mType.hashCode()
         return result
     }
@@ -201,7 +237,6 @@ class DateInstant : Parcelable {
     }
 
     companion object {
-
         val NEVER_EXPIRES = DateInstant(Calendar.getInstance().apply {
                 set(Calendar.YEAR, 2999)
                 set(Calendar.MONTH, 11)
@@ -227,6 +262,18 @@ class DateInstant : Parcelable {
             timeZone = TimeZone.getTimeZone("UTC")
         }
 
+        private const val MILLIS_PER_DAY = 24 * 60 * 60 * 1000L
+
+        private fun localDay(time: Long, timeZone: TimeZone): Long {
+            val localTime = time + timeZone.getOffset(time)
+            // Rounded down for the dates before 1970
+            return if (localTime >= 0) localTime / MILLIS_PER_DAY else (localTime + 1) / MILLIS_PER_DAY - 1
+        }
+
+        private fun localTimeOfDay(time: Long, timeZone: TimeZone): Long {
+            return (time + timeZone.getOffset(time)) - localDay(time, timeZone) * MILLIS_PER_DAY
+        }
+
         @JvmField
         val CREATOR: Parcelable.Creator<DateInstant> = object : Parcelable.Creator<DateInstant> {
             override fun createFromParcel(parcel: Parcel): DateInstant {
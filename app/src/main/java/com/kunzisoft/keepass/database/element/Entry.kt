@@ -271,6 +271,32 @@ class Entry : Node, EntryVersionedInterface<Group> {
       ------------
      */
 
+    /**
+     * Return true if the field [key] contains [query] ignoring the case,
+     * in KDBX the value is searched without building its string when possible
+     */
+    fun fieldContains(key: String, query: String): Boolean {
+        entryKDBX?.let {
+            return it.fieldContains(key, query)
+        }
+        val value = when (key) {
+            EntryKDBX.STR_TITLE -> title
+            EntryKDBX.STR_USERNAME -> username
+            EntryKDBX.STR_PASSWORD -> password
+            EntryKDBX.STR_URL -> url
+            EntryKDBX.STR_NOTES -> notes
+            else -> ""
+        }
+        return value.contains(query, true)
+    }
+
+    /**
+     * Return true if one of the extra fields accepted by [filter] contains [query] ignoring the case
+     */
+    fun extraFieldsContain(query: String, filter: (name: String) -> Boolean): Boolean {
+        return entryKDBX?.customFieldsContain(query, filter) ?: false
+    }
+
     /**
      * Retrieve extra fields to show, key is the label, value is the value of field (protected or not)
      * @return Map of label/value
@@ -383,6 +409,10 @@ class Entry : Node, EntryVersionedInterface<Group> {
         return entryKDBX?.getSize(attachmentPool) ?: 0L
     }
 
+    fun getHistorySize(attachmentPool: AttachmentPool): Long {
+        return entryKDBX?.getHistorySize(attachmentPool) ?: 0L
+    }
+
     /*
       ------------
       Converter
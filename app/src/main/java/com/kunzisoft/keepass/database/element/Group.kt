@@ -268,15 +268,16 @@ class Group : Node, GroupVersionedInterface<Group, Entry> {
         ArrayList()
     }
 
-    fun getFilteredChildGroups(filters: Array<ChildFilter>): List<Group> {
+    fun getFilteredChildGroups(filters: Array<ChildFilter>,
+                               database: Database? = null): List<Group> {
         return groupKDB?.getChildGroups()?.map {
             Group(it).apply {
-                this.refreshNumberOfChildEntries(filters)
+                this.refreshNumberOfChildEntries(filters, database)
             }
         } ?:
         groupKDBX?.getChildGroups()?.map {
             Group(it).apply {
-                this.refreshNumberOfChildEntries(filters)
+                this.refreshNumberOfChildEntries(filters, database)
             }
         } ?:
         ArrayList()
@@ -300,26 +301,34 @@ class Group : Node, GroupVersionedInterface<Group, Entry> {
         return entriesInfo
     }
 
-    fun getFilteredChildEntries(filters: Array<ChildFilter>): List<Entry> {
+    /**
+     * Child entries without the ones excluded by [filters], the expired state is retrieved
+     * from the expiry index of [database], updated by Database.updateExpiredEntries
+     */
+    fun getFilteredChildEntries(filters: Array<ChildFilter>,
+                                database: Database? = null): List<Entry> {
         val withoutMetaStream = filters.contains(ChildFilter.META_STREAM)
         val showExpiredEntries = !filters.contains(ChildFilter.EXPIRED)
 
         return groupKDB?.getChildEntries()?.filter {
             (!withoutMetaStream || (withoutMetaStream && !it.isMetaStream))
-                    && (!it.isCurrentlyExpires or showExpiredEntries)
+                    && (showExpiredEntries
+                        || !(database?.isEntryExpired(it.nodeId) ?: it.isCurrentlyExpires))
         }?.map {
             Entry(it)
         } ?:
         groupKDBX?.getChildEntries()?.filter {
-            !it.isCurrentlyExpires or showExpiredEntries
+            showExpiredEntries
+                    || !(database?.isEntryExpired(it.nodeId) ?: it.isCurrentlyExpires)
         }?.map {
             Entry(it)
         } ?:
         ArrayList()
     }
 
-    fun refreshNumberOfChildEntries(filters: Array<ChildFilter> = emptyArray()) {
-        this.numberOfChildEntries = getFilteredChildEntries(filters).size
+    fun refreshNumberOfChildEntries(filters: Array<ChildFilter> = emptyArray(),
+                                    database: Database? = null) {
+        this.numberOfChildEntries = getFilteredChildEntries(filters, database).size
     }
 
     /**
@@ -330,9 +339,10 @@ class Group : Node, GroupVersionedInterface<Group, Entry> {
         return getChildGroups() + getChildEntries()
     }
 
-    fun getFilteredChildren(filters: Array<ChildFilter>): List<Node> {
-        val nodes = getFilteredChildGroups(filters) + getFilteredChildEntries(filters)
-        refreshNumberOfChildEntries(filters)
+    fun getFilteredChildren(filters: Array<ChildFilter>,
+                            database: Database? = null): List<Node> {
+        val nodes = getFilteredChildGroups(filters, database) + getFilteredChildEntries(filters, database)
+        refreshNumberOfChildEntries(filters, database)
         return nodes
     }
 
@@ -13,6 +13,10 @@ class Tags: Parcelable {
         mTags.addAll(values.split(';'))
     }
 
+    constructor(values: Collection<String>): this() {
+        mTags.addAll(values)
+    }
+
     constructor(parcel: Parcel) : this() {
         parcel.readStringList(mTags)
     }
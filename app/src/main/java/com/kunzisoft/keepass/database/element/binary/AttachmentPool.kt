@@ -21,6 +21,46 @@ package com.kunzisoft.keepass.database.element.binary
 
 class AttachmentPool(binaryCache: BinaryCache) : BinaryPool<Int>(binaryCache) {
 
+    // Number of references to each pool key, and keys referenced by each owner (an entry with its history)
+    private val referenceCounts = HashMap<Int, Int>()
+    private val referencesByOwner = HashMap<Any, List<Int>>()
+
+    /**
+     * Replace the pool keys referenced by [owner] by [keys], a key can be referenced many times
+     */
+    fun setReferences(owner: Any, keys: List<Int>) {
+        removeReferences(owner)
+        if (keys.isNotEmpty()) {
+            referencesByOwner[owner] = keys
+            keys.forEach { key ->
+                referenceCounts[key] = (referenceCounts[key] ?: 0) + 1
+            }
+        }
+    }
+
+    fun removeReferences(owner: Any) {
+        referencesByOwner.remove(owner)?.forEach { key ->
+            val count = (referenceCounts[key] ?: 0) - 1
+            if (count > 0)
+                referenceCounts[key] = count
+            else
+                referenceCounts.remove(key)
+        }
+    }
+
+    /**
+     * Check if a pool key linked to [binaryData] is still referenced by an owner,
+     * without walking the pool for a binary of the pool
+     */
+    fun isReferenced(binaryData: BinaryData): Boolean {
+        return findKeys(binaryData).any { key -> referenceCounts.containsKey(key) }
+    }
+
+    fun clearReferences() {
+        referenceCounts.clear()
+        referencesByOwner.clear()
+    }
+
     /**
      * Utility method to find an unused key in the pool
      */
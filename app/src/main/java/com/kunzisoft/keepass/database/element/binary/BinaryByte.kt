@@ -24,10 +24,10 @@ import android.os.Parcelable
 import android.util.Base64
 import android.util.Base64InputStream
 import android.util.Base64OutputStream
+import com.kunzisoft.keepass.stream.ParallelGzipOutputStream
 import com.kunzisoft.keepass.utils.readAllBytes
 import com.kunzisoft.keepass.database.element.binary.BinaryCache.Companion.UNKNOWN
 import java.io.*
-import java.util.zip.GZIPOutputStream
 
 class BinaryByte : BinaryData {
 
@@ -71,7 +71,7 @@ class BinaryByte : BinaryData {
     @Throws(IOException::class)
     override fun compress(binaryCache: BinaryCache) {
         if (!isCompressed) {
-            GZIPOutputStream(getOutputDataStream(binaryCache)).use { outputStream ->
+            ParallelGzipOutputStream(getOutputDataStream(binaryCache)).use { outputStream ->
                 getInputDataStream(binaryCache).use { inputStream ->
                     inputStream.readAllBytes { buffer ->
                         outputStream.write(buffer)
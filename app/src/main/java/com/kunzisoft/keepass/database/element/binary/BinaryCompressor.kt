@@ -0,0 +1,121 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.element.binary
+
+import android.util.Log
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Compress or decompress a list of binaries, files in parallel on a bounded pool of threads.
+ * An error on a binary is logged and does not stop the others, [cancel] stops the binaries not yet started.
+ */
+class BinaryCompressor(private val binaryCache: BinaryCache) {
+
+    @Volatile
+    var isCancelled = false
+        private set
+
+    var progressListener: ProgressListener? = null
+
+    fun cancel() {
+        isCancelled = true
+    }
+
+    @Throws(CancellationException::class)
+    fun compress(binaries: List<BinaryData>) {
+        // Already compressed formats (images, videos, archives) would only waste CPU
+        process(binaries.filter { !it.isCompressed }) { binary ->
+            if (binary.isCompressedFormat(binaryCache)) {
+                Log.d(TAG, "Compression not necessary for $binary")
+            } else {
+                binary.compress(binaryCache)
+            }
+        }
+    }
+
+    @Throws(CancellationException::class)
+    fun decompress(binaries: List<BinaryData>) {
+        process(binaries.filter { it.isCompressed }) { binary ->
+            binary.decompress(binaryCache)
+        }
+    }
+
+    private fun process(binaries: List<BinaryData>, action: (BinaryData) -> Unit) {
+        val total = binaries.size
+        val processed = AtomicInteger(0)
+        val processBinary = { binary: BinaryData ->
+            if (!isCancelled) {
+                try {
+                    action.invoke(binary)
+                } catch (e: Exception) {
+                    Log.e(TAG, "Unable to change the compression of $binary", e)
+                }
+                progressListener?.onProgress(processed.incrementAndGet(), total)
+            }
+        }
+
+        // Binaries in memory share the byte arrays map of the cache, so they stay on the current thread
+        val (binaryFiles, binaryBytes) = binaries.partition { it is BinaryFile }
+        binaryBytes.forEach(processBinary)
+
+        val threads = minOf(Runtime.getRuntime().availableProcessors(), MAX_THREADS, binaryFiles.size)
+        if (threads <= 1) {
+            binaryFiles.forEach(processBinary)
+        } else {
+            val executor = Executors.newFixedThreadPool(threads)
+            try {
+                val futures = ArrayList<Future<*>>()
+                binaryFiles.forEach { binary ->
+                    futures.add(executor.submit { processBinary(binary) })
+                }
+                futures.forEach { future ->
+                    try {
+                        future.get()
+                    } catch (e: ExecutionException) {
+                        Log.e(TAG, "Unable to change the compression of a binary", e)
+                    }
+                }
+            } finally {
+                executor.shutdown()
+            }
+        }
+
+        if (isCancelled)
+            throw CancellationException("Compression change cancelled")
+    }
+
+    interface ProgressListener {
+        /**
+         * Called from the processing threads each time a binary is processed
+         */
+        fun onProgress(processed: Int, total: Int)
+    }
+
+    companion object {
+        private val TAG = BinaryCompressor::class.java.name
+
+        // Each thread holds its own chunk and compression buffers
+        private const val MAX_THREADS = 4
+    }
+}
@@ -23,14 +23,14 @@ import android.app.ActivityManager
 import android.content.Context
 import android.os.Parcel
 import android.os.Parcelable
+import com.kunzisoft.keepass.stream.ParallelGzipOutputStream
+import com.kunzisoft.keepass.stream.PooledGzipInputStream
 import org.apache.commons.io.output.CountingOutputStream
 import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
 import java.nio.ByteBuffer
 import java.security.MessageDigest
-import java.util.zip.GZIPInputStream
-import java.util.zip.GZIPOutputStream
 
 abstract class BinaryData : Parcelable {
 
@@ -71,10 +71,53 @@ abstract class BinaryData : Parcelable {
     @Throws(IOException::class)
     abstract fun getOutputDataStream(binaryCache: BinaryCache): OutputStream
 
+    /**
+     * Retrieve the stored data (gzipped if [isCompressed]) from [position],
+     * by default the data before [position] is read and skipped
+     */
+    @Throws(IOException::class)
+    open fun getInputDataStream(binaryCache: BinaryCache, position: Long): InputStream {
+        val inputStream = getInputDataStream(binaryCache)
+        var remaining = position
+        while (remaining > 0) {
+            val skipped = inputStream.skip(remaining)
+            if (skipped > 0) {
+                remaining -= skipped
+            } else if (inputStream.read() >= 0) {
+                remaining--
+            } else {
+                break
+            }
+        }
+        return inputStream
+    }
+
+    /**
+     * Read up to [length] bytes of the stored data (gzipped if [isCompressed]) from [position] in [buffer],
+     * return the number of bytes read, or -1 if [position] is at the end of the data
+     */
+    @Throws(IOException::class)
+    open fun readData(binaryCache: BinaryCache,
+                      position: Long,
+                      buffer: ByteArray,
+                      offset: Int = 0,
+                      length: Int = buffer.size - offset): Int {
+        getInputDataStream(binaryCache, position).use { inputStream ->
+            var read = 0
+            while (read < length) {
+                val count = inputStream.read(buffer, offset + read, length - read)
+                if (count < 0)
+                    break
+                read += count
+            }
+            return if (read == 0 && length > 0) -1 else read
+        }
+    }
+
     @Throws(IOException::class)
     fun getUnGzipInputDataStream(binaryCache: BinaryCache): InputStream {
         return if (isCompressed) {
-            GZIPInputStream(getInputDataStream(binaryCache))
+            PooledGzipInputStream(getInputDataStream(binaryCache))
         } else {
             getInputDataStream(binaryCache)
         }
@@ -83,12 +126,30 @@ abstract class BinaryData : Parcelable {
     @Throws(IOException::class)
     fun getGzipOutputDataStream(binaryCache: BinaryCache): OutputStream {
         return if (isCompressed) {
-            GZIPOutputStream(getOutputDataStream(binaryCache))
+            ParallelGzipOutputStream(getOutputDataStream(binaryCache))
         } else {
             getOutputDataStream(binaryCache)
         }
     }
 
+    /**
+     * Check the signature of the data to detect a format already compressed (image, audio, video, archive),
+     * the gzip compression would not reduce its size
+     */
+    @Throws(IOException::class)
+    fun isCompressedFormat(binaryCache: BinaryCache): Boolean {
+        if (isCompressed)
+            return true
+        val header = ByteArray(SIGNATURE_LENGTH)
+        val length = readData(binaryCache, 0, header)
+        if (length <= 0)
+            return false
+        return COMPRESSED_FORMAT_SIGNATURES.any { (offset, signature) ->
+            offset + signature.size <= length
+                    && signature.indices.all { header[offset + it] == signature[it] }
+        }
+    }
+
     @Throws(IOException::class)
     abstract fun compress(binaryCache: BinaryCache)
 
@@ -181,6 +242,32 @@ abstract class BinaryData : Parcelable {
     companion object {
         private val TAG = BinaryData::class.java.name
 
+        private const val SIGNATURE_LENGTH = 12
+
+        private fun signature(vararg bytes: Int): ByteArray {
+            return ByteArray(bytes.size) { bytes[it].toByte() }
+        }
+
+        // Offset and first bytes of compressed formats
+        private val COMPRESSED_FORMAT_SIGNATURES = listOf(
+                0 to signature(0xFF, 0xD8, 0xFF), // JPEG
+                0 to signature(0x89, 0x50, 0x4E, 0x47), // PNG
+                0 to signature(0x47, 0x49, 0x46, 0x38), // GIF
+                8 to signature(0x57, 0x45, 0x42, 0x50), // WEBP (RIFF container)
+                4 to signature(0x66, 0x74, 0x79, 0x70), // MP4, MOV, HEIC (ftyp box)
+                0 to signature(0x1A, 0x45, 0xDF, 0xA3), // MKV, WEBM
+                0 to signature(0x4F, 0x67, 0x67, 0x53), // OGG
+                0 to signature(0x49, 0x44, 0x33), // MP3 with ID3 tag
+                0 to signature(0x66, 0x4C, 0x61, 0x43), // FLAC
+                0 to signature(0x1F, 0x8B), // GZIP
+                0 to signature(0x50, 0x4B, 0x03, 0x04), // ZIP, JAR, APK, DOCX, ODT
+                0 to signature(0x37, 0x7A, 0xBC, 0xAF, 0x27, 0x1C), // 7Z
+                0 to signature(0x52, 0x61, 0x72, 0x21, 0x1A, 0x07), // RAR
+                0 to signature(0x42, 0x5A, 0x68), // BZIP2
+                0 to signature(0xFD, 0x37, 0x7A, 0x58, 0x5A, 0x00), // XZ
+                0 to signature(0x28, 0xB5, 0x2F, 0xFD) // ZSTD
+        )
+
         fun canMemoryBeAllocatedInRAM(context: Context, memoryWanted: Long): Boolean {
             val memoryInfo = ActivityManager.MemoryInfo()
             (context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager).getMemoryInfo(memoryInfo)
@@ -21,27 +21,17 @@ package com.kunzisoft.keepass.database.element.binary
 
 import android.os.Parcel
 import android.os.Parcelable
-import android.util.Base64
-import android.util.Base64InputStream
-import android.util.Base64OutputStream
+import com.kunzisoft.keepass.stream.ParallelGzipOutputStream
 import com.kunzisoft.keepass.utils.readAllBytes
 import java.io.*
-import java.util.zip.GZIPOutputStream
-import javax.crypto.Cipher
-import javax.crypto.CipherInputStream
-import javax.crypto.CipherOutputStream
-import javax.crypto.spec.IvParameterSpec
 
+/**
+ * Binary stored in an encrypted cache file, divided in chunks to allow random access, see [ChunkedCipherFile]
+ */
 class BinaryFile : BinaryData {
 
     private var mDataFile: File? = null
 
-    // Cipher to encrypt temp file
-    @Transient
-    private var cipherEncryption: Cipher = Cipher.getInstance(LoadedKey.BINARY_CIPHER)
-    @Transient
-    private var cipherDecryption: Cipher = Cipher.getInstance(LoadedKey.BINARY_CIPHER)
-
     constructor(dataFile: File,
                 compressed: Boolean = false,
                 protected: Boolean = false) : super(compressed, protected) {
@@ -70,12 +60,27 @@ class BinaryFile : BinaryData {
     }
 
     @Throws(IOException::class)
-    private fun buildInputStream(file: File?, binaryCache: BinaryCache): InputStream {
-        val cipherKey = binaryCache.loadedCipherKey
+    override fun getInputDataStream(binaryCache: BinaryCache, position: Long): InputStream {
+        return buildInputStream(mDataFile, binaryCache, position)
+    }
+
+    @Throws(IOException::class)
+    override fun readData(binaryCache: BinaryCache,
+                          position: Long,
+                          buffer: ByteArray,
+                          offset: Int,
+                          length: Int): Int {
+        val file = mDataFile
+        return if (file != null && file.length() > 0) {
+            ChunkedCipherFile(file, binaryCache.loadedCipherKey).read(position, buffer, offset, length)
+        } else -1
+    }
+
+    @Throws(IOException::class)
+    private fun buildInputStream(file: File?, binaryCache: BinaryCache, position: Long = 0): InputStream {
         return when {
             file != null && file.length() > 0 -> {
-                cipherDecryption.init(Cipher.DECRYPT_MODE, cipherKey.key, IvParameterSpec(cipherKey.iv))
-                Base64InputStream(CipherInputStream(FileInputStream(file), cipherDecryption), Base64.NO_WRAP)
+                ChunkedCipherFile(file, binaryCache.loadedCipherKey).getInputStream(position)
             }
             else -> ByteArrayInputStream(ByteArray(0))
         }
@@ -83,11 +88,9 @@ class BinaryFile : BinaryData {
 
     @Throws(IOException::class)
     private fun buildOutputStream(file: File?, binaryCache: BinaryCache): OutputStream {
-        val cipherKey = binaryCache.loadedCipherKey
         return when {
             file != null -> {
-                cipherEncryption.init(Cipher.ENCRYPT_MODE, cipherKey.key, IvParameterSpec(cipherKey.iv))
-                BinaryCountingOutputStream(Base64OutputStream(CipherOutputStream(FileOutputStream(file), cipherEncryption), Base64.NO_WRAP))
+                BinaryCountingOutputStream(ChunkedCipherFile(file, binaryCache.loadedCipherKey).getOutputStream())
             }
             else -> throw IOException("Unable to write in an unknown file")
         }
@@ -99,20 +102,17 @@ class BinaryFile : BinaryData {
             // To compress, create a new binary with file
             if (!isCompressed) {
                 // Encrypt the new gzipped temp file
-                val fileBinaryCompress = File(concreteDataFile.parent, concreteDataFile.name + "_temp")
-                getInputDataStream(binaryCache).use { inputStream ->
-                    GZIPOutputStream(buildOutputStream(fileBinaryCompress, binaryCache)).use { outputStream ->
-                        inputStream.readAllBytes { buffer ->
-                            outputStream.write(buffer)
+                if (replaceDataFile(concreteDataFile) { fileBinaryCompress ->
+                    getInputDataStream(binaryCache).use { inputStream ->
+                        ParallelGzipOutputStream(buildOutputStream(fileBinaryCompress, binaryCache)).use { outputStream ->
+                            inputStream.readAllBytes { buffer ->
+                                outputStream.write(buffer)
+                            }
                         }
                     }
-                }
-                // Remove ungzip file
-                if (concreteDataFile.delete()) {
-                    if (fileBinaryCompress.renameTo(concreteDataFile)) {
-                        // Harmonize with database compression
-                        isCompressed = true
-                    }
+                }) {
+                    // Harmonize with database compression
+                    isCompressed = true
                 }
             }
         }
@@ -123,25 +123,42 @@ class BinaryFile : BinaryData {
         mDataFile?.let { concreteDataFile ->
             if (isCompressed) {
                 // Encrypt the new ungzipped temp file
-                val fileBinaryDecompress = File(concreteDataFile.parent, concreteDataFile.name + "_temp")
-                getUnGzipInputDataStream(binaryCache).use { inputStream ->
-                    buildOutputStream(fileBinaryDecompress, binaryCache).use { outputStream ->
-                        inputStream.readAllBytes { buffer ->
-                            outputStream.write(buffer)
+                if (replaceDataFile(concreteDataFile) { fileBinaryDecompress ->
+                    getUnGzipInputDataStream(binaryCache).use { inputStream ->
+                        buildOutputStream(fileBinaryDecompress, binaryCache).use { outputStream ->
+                            inputStream.readAllBytes { buffer ->
+                                outputStream.write(buffer)
+                            }
                         }
                     }
-                }
-                // Remove gzip file
-                if (concreteDataFile.delete()) {
-                    if (fileBinaryDecompress.renameTo(concreteDataFile)) {
-                        // Harmonize with database compression
-                        isCompressed = false
-                    }
+                }) {
+                    // Harmonize with database compression
+                    isCompressed = false
                 }
             }
         }
     }
 
+    /**
+     * Write the new data in a temp file which replaces [dataFile] only once completely written,
+     * so the original data is kept if an error occurs
+     */
+    @Throws(IOException::class)
+    private fun replaceDataFile(dataFile: File, writeTempFile: (tempFile: File) -> Unit): Boolean {
+        val tempFile = File(dataFile.parent, dataFile.name + TEMP_FILE_SUFFIX)
+        try {
+            writeTempFile.invoke(tempFile)
+        } catch (e: Exception) {
+            tempFile.delete()
+            throw e
+        }
+        // The rename replaces the original file in a single operation
+        if (tempFile.renameTo(dataFile))
+            return true
+        tempFile.delete()
+        return false
+    }
+
     override fun clear(binaryCache: BinaryCache) {
         if (mDataFile != null && !mDataFile!!.delete())
             throw IOException("Unable to delete temp file " + mDataFile!!.absolutePath)
@@ -168,6 +185,8 @@ class BinaryFile : BinaryData {
     companion object {
         private val TAG = BinaryFile::class.java.name
 
+        private const val TEMP_FILE_SUFFIX = "_temp"
+
         @JvmField
         val CREATOR: Parcelable.Creator<BinaryFile> = object : Parcelable.Creator<BinaryFile> {
             override fun createFromParcel(parcel: Parcel): BinaryFile {
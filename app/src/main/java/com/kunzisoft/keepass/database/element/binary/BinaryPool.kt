@@ -21,11 +21,14 @@ package com.kunzisoft.keepass.database.element.binary
 
 import android.util.Log
 import java.io.IOException
+import java.util.*
 import kotlin.math.abs
 
 abstract class BinaryPool<T>(private val mBinaryCache: BinaryCache) {
 
     protected val pool = LinkedHashMap<T, BinaryData>()
+    // Keys of each binary of the pool, by identity as the hash of a binary changes when its data is written
+    private val keysByBinary = IdentityHashMap<BinaryData, MutableList<T>>()
 
     // To build unique file id
     private var creationId: Long = System.currentTimeMillis()
@@ -57,7 +60,7 @@ abstract class BinaryPool<T>(private val mBinaryCache: BinaryCache) {
         if (key == null)
             return put(value)
         else
-            pool[key] = value
+            link(key, value)
         return key
     }
 
@@ -71,16 +74,33 @@ abstract class BinaryPool<T>(private val mBinaryCache: BinaryCache) {
         if (key == null) {
             key = findUnusedKey()
         }
-        pool[key!!] = binaryData
+        link(key!!, binaryData)
         return key
     }
 
+    private fun link(key: T, binaryData: BinaryData) {
+        pool.put(key, binaryData)?.let { previousBinary ->
+            unlink(key, previousBinary)
+        }
+        keysByBinary.getOrPut(binaryData) { ArrayList(1) }.add(key)
+    }
+
+    private fun unlink(key: T, binaryData: BinaryData) {
+        keysByBinary[binaryData]?.let { keys ->
+            keys.remove(key)
+            if (keys.isEmpty())
+                keysByBinary.remove(binaryData)
+        }
+    }
+
     /**
      * Remove a binary from the pool with its [key], the file is not deleted
      */
     @Throws(IOException::class)
     fun remove(key: T) {
-        pool.remove(key)
+        pool.remove(key)?.let { binary ->
+            unlink(key, binary)
+        }
         // Don't clear attachment here because a file can be used in many BinaryAttachment
     }
 
@@ -90,7 +110,7 @@ abstract class BinaryPool<T>(private val mBinaryCache: BinaryCache) {
     @Throws(IOException::class)
     fun remove(binaryData: BinaryData) {
         findKey(binaryData)?.let {
-            pool.remove(it)
+            remove(it)
         }
         // Don't clear attachment here because a file can be used in many BinaryAttachment
     }
@@ -104,17 +124,24 @@ abstract class BinaryPool<T>(private val mBinaryCache: BinaryCache) {
      * Return key of [binaryDataToRetrieve] or null if not found
      */
     private fun findKey(binaryDataToRetrieve: BinaryData): T? {
-        val contains = pool.containsValue(binaryDataToRetrieve)
-        return if (!contains)
-            null
-        else {
-            for ((key, binary) in pool) {
-                if (binary == binaryDataToRetrieve) {
-                    return key
-                }
+        return findKeys(binaryDataToRetrieve).firstOrNull()
+    }
+
+    /**
+     * Keys of [binaryDataToRetrieve], direct for a binary of the pool,
+     * else the keys of the equal binaries (as a binary copied in a parcel) are searched
+     */
+    protected fun findKeys(binaryDataToRetrieve: BinaryData): List<T> {
+        keysByBinary[binaryDataToRetrieve]?.let { keys ->
+            return keys
+        }
+        val keys = ArrayList<T>()
+        for ((key, binary) in pool) {
+            if (binary == binaryDataToRetrieve) {
+                keys.add(key)
             }
-            return null
         }
+        return keys
     }
 
     fun isBinaryDuplicate(binaryData: BinaryData?): Boolean {
@@ -229,6 +256,7 @@ abstract class BinaryPool<T>(private val mBinaryCache: BinaryCache) {
             binary.clear(mBinaryCache)
         }
         pool.clear()
+        keysByBinary.clear()
     }
 
     override fun toString(): String {
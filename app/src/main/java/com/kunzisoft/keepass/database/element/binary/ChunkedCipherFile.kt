@@ -0,0 +1,226 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.element.binary
+
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.security.SecureRandom
+import javax.crypto.Cipher
+import javax.crypto.spec.IvParameterSpec
+
+/**
+ * Encrypted cache file divided in chunks of [CHUNK_SIZE] bytes, each chunk is encrypted independently
+ * in counter mode with its own counter block, so any position can be read by decrypting only the chunks touched.
+ *
+ * Format: random nonce of [NONCE_SIZE] bytes, then the encrypted data (same length as the plain data).
+ * The counter block of a chunk is the nonce followed by the index of its first cipher block.
+ */
+class ChunkedCipherFile(private val file: File,
+                        private val loadedKey: LoadedKey) {
+
+    /**
+     * Length of the plain data
+     */
+    fun length(): Long {
+        return if (file.length() > NONCE_SIZE) file.length() - NONCE_SIZE else 0
+    }
+
+    @Throws(IOException::class)
+    fun getInputStream(position: Long = 0): InputStream {
+        return ChunkedCipherInputStream(position)
+    }
+
+    @Throws(IOException::class)
+    fun getOutputStream(): OutputStream {
+        return ChunkedCipherOutputStream()
+    }
+
+    /**
+     * Read up to [length] bytes of plain data from [position], return the number of bytes read or -1 at the end
+     */
+    @Throws(IOException::class)
+    fun read(position: Long, buffer: ByteArray, offset: Int, length: Int): Int {
+        return ChunkedCipherInputStream(position).use { inputStream ->
+            var read = 0
+            while (read < length) {
+                val count = inputStream.read(buffer, offset + read, length - read)
+                if (count < 0)
+                    break
+                read += count
+            }
+            if (read == 0 && length > 0) -1 else read
+        }
+    }
+
+    private fun counterBlock(nonce: ByteArray, chunkIndex: Long): IvParameterSpec {
+        val counterBlock = ByteBuffer.allocate(BLOCK_SIZE)
+        counterBlock.put(nonce)
+        counterBlock.putLong(chunkIndex * (CHUNK_SIZE / BLOCK_SIZE))
+        return IvParameterSpec(counterBlock.array())
+    }
+
+    private inner class ChunkedCipherInputStream(private var position: Long) : InputStream() {
+
+        private val channel: FileChannel = RandomAccessFile(file, "r").channel
+        private val cipher: Cipher = Cipher.getInstance(LoadedKey.BINARY_CIPHER)
+        private val dataLength = length()
+        private val nonce = ByteArray(NONCE_SIZE)
+        private val encryptedChunk = ByteArray(CHUNK_SIZE)
+        private val chunk = ByteArray(CHUNK_SIZE)
+        private var chunkIndex = -1L
+        private var chunkLength = 0
+
+        init {
+            if (dataLength > 0)
+                readFully(ByteBuffer.wrap(nonce), 0)
+        }
+
+        private fun readFully(byteBuffer: ByteBuffer, filePosition: Long) {
+            var currentPosition = filePosition
+            while (byteBuffer.hasRemaining()) {
+                val count = channel.read(byteBuffer, currentPosition)
+                if (count < 0)
+                    throw EOFException("Unexpected end of the encrypted file")
+                currentPosition += count
+            }
+        }
+
+        /**
+         * Decrypt the chunk containing [position] if not already loaded, return false at the end of data
+         */
+        private fun loadChunk(): Boolean {
+            if (position >= dataLength)
+                return false
+            val index = position / CHUNK_SIZE
+            if (index != chunkIndex) {
+                val chunkStart = index * CHUNK_SIZE
+                val length = minOf(CHUNK_SIZE.toLong(), dataLength - chunkStart).toInt()
+                readFully(ByteBuffer.wrap(encryptedChunk, 0, length), NONCE_SIZE + chunkStart)
+                cipher.init(Cipher.DECRYPT_MODE, loadedKey.key, counterBlock(nonce, index))
+                cipher.doFinal(encryptedChunk, 0, length, chunk, 0)
+                chunkIndex = index
+                chunkLength = length
+            }
+            return true
+        }
+
+        override fun read(): Int {
+            if (!loadChunk())
+                return -1
+            val value = chunk[(position - chunkIndex * CHUNK_SIZE).toInt()].toInt() and 0xFF
+            position++
+            return value
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (len == 0)
+                return 0
+            if (!loadChunk())
+                return -1
+            val chunkOffset = (position - chunkIndex * CHUNK_SIZE).toInt()
+            val count = minOf(len, chunkLength - chunkOffset)
+            System.arraycopy(chunk, chunkOffset, b, off, count)
+            position += count
+            return count
+        }
+
+        override fun skip(n: Long): Long {
+            if (n <= 0)
+                return 0
+            val skipped = minOf(n, maxOf(0, dataLength - position))
+            position += skipped
+            return skipped
+        }
+
+        override fun available(): Int {
+            return minOf(Int.MAX_VALUE.toLong(), maxOf(0, dataLength - position)).toInt()
+        }
+
+        override fun close() {
+            channel.close()
+        }
+    }
+
+    private inner class ChunkedCipherOutputStream : OutputStream() {
+
+        private val outputStream = FileOutputStream(file)
+        private val cipher: Cipher = Cipher.getInstance(LoadedKey.BINARY_CIPHER)
+        private val nonce = ByteArray(NONCE_SIZE)
+        private val chunk = ByteArray(CHUNK_SIZE)
+        private val encryptedChunk = ByteArray(CHUNK_SIZE)
+        private var chunkIndex = 0L
+        private var chunkLength = 0
+        private var closed = false
+
+        init {
+            SecureRandom().nextBytes(nonce)
+            outputStream.write(nonce)
+        }
+
+        private fun writeChunk() {
+            if (chunkLength > 0) {
+                cipher.init(Cipher.ENCRYPT_MODE, loadedKey.key, counterBlock(nonce, chunkIndex))
+                cipher.doFinal(chunk, 0, chunkLength, encryptedChunk, 0)
+                outputStream.write(encryptedChunk, 0, chunkLength)
+                chunkIndex++
+                chunkLength = 0
+            }
+        }
+
+        override fun write(b: Int) {
+            chunk[chunkLength++] = b.toByte()
+            if (chunkLength == CHUNK_SIZE)
+                writeChunk()
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            var offset = off
+            var remaining = len
+            while (remaining > 0) {
+                val count = minOf(remaining, CHUNK_SIZE - chunkLength)
+                System.arraycopy(b, offset, chunk, chunkLength, count)
+                chunkLength += count
+                offset += count
+                remaining -= count
+                if (chunkLength == CHUNK_SIZE)
+                    writeChunk()
+            }
+        }
+
+        override fun close() {
+            if (!closed) {
+                closed = true
+                try {
+                    writeChunk()
+                } finally {
+                    outputStream.close()
+                }
+            }
+        }
+    }
+
+    companion object {
+        private const val BLOCK_SIZE = 16
+        private const val NONCE_SIZE = 8
+        // Multiple of the cipher block size
+        const val CHUNK_SIZE = 64 * 1024
+    }
+}
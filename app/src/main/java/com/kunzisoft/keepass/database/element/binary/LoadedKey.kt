@@ -2,17 +2,16 @@ package com.kunzisoft.keepass.database.element.binary
 
 import java.io.Serializable
 import java.security.Key
-import java.security.SecureRandom
 import javax.crypto.KeyGenerator
 
-class LoadedKey(val key: Key, val iv: ByteArray): Serializable {
+class LoadedKey(val key: Key): Serializable {
     companion object {
-        const val BINARY_CIPHER = "Blowfish/CBC/PKCS5Padding"
+        const val BINARY_CIPHER = "AES/CTR/NoPadding"
 
         fun generateNewCipherKey(): LoadedKey {
-            val iv = ByteArray(8)
-            SecureRandom().nextBytes(iv)
-            return LoadedKey(KeyGenerator.getInstance("Blowfish").generateKey(), iv)
+            val keyGenerator = KeyGenerator.getInstance("AES")
+            keyGenerator.init(256)
+            return LoadedKey(keyGenerator.generateKey())
         }
     }
 }
\ No newline at end of file
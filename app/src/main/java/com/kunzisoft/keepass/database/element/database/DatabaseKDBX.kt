@@ -23,8 +23,9 @@ import android.content.res.Resources
 import android.util.Base64
 import android.util.Log
 import com.kunzisoft.encrypt.HashManager
+import com.kunzisoft.encrypt.TransformationToken
 import com.kunzisoft.keepass.R
-import com.kunzisoft.keepass.database.action.node.NodeHandler
+import com.kunzisoft.keepass.database.action.node.ParallelNodeHandler
 import com.kunzisoft.keepass.database.crypto.AesEngine
 import com.kunzisoft.keepass.database.crypto.CipherEngine
 import com.kunzisoft.keepass.database.crypto.EncryptionAlgorithm
@@ -35,10 +36,12 @@ import com.kunzisoft.keepass.database.crypto.kdf.KdfParameters
 import com.kunzisoft.keepass.database.element.CustomData
 import com.kunzisoft.keepass.database.element.DateInstant
 import com.kunzisoft.keepass.database.element.DeletedObject
+import com.kunzisoft.keepass.database.element.binary.BinaryCompressor
 import com.kunzisoft.keepass.database.element.binary.BinaryData
 import com.kunzisoft.keepass.database.element.database.DatabaseKDB.Companion.BACKUP_FOLDER_TITLE
 import com.kunzisoft.keepass.database.element.entry.EntryKDBX
 import com.kunzisoft.keepass.database.element.entry.FieldReferencesEngine
+import com.kunzisoft.keepass.database.element.entry.HistoryCache
 import com.kunzisoft.keepass.database.element.group.GroupKDBX
 import com.kunzisoft.keepass.database.element.icon.IconImageCustom
 import com.kunzisoft.keepass.database.element.icon.IconImageStandard
@@ -51,6 +54,8 @@ import com.kunzisoft.keepass.database.exception.UnknownKDF
 import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX.Companion.FILE_VERSION_31
 import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX.Companion.FILE_VERSION_40
 import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX.Companion.FILE_VERSION_41
+import com.kunzisoft.keepass.database.search.AutofillIndex
+import com.kunzisoft.keepass.model.EntryInfo
 import com.kunzisoft.keepass.utils.StringUtil.removeSpaceChars
 import com.kunzisoft.keepass.utils.StringUtil.toHexString
 import com.kunzisoft.keepass.utils.UnsignedInt
@@ -117,6 +122,10 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
     var memoryProtection = MemoryProtectionConfig()
     val deletedObjects = ArrayList<DeletedObject>()
     val customData = CustomData()
+    // Counters updated with the indexes of nodes
+    val statistics = DatabaseStatistics()
+    // Histories of the loaded entries, decoded on demand
+    var historyCache: HistoryCache? = null
 
     var localizedAppName = "KeePassDX"
 
@@ -192,8 +201,12 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
             return list
         }
 
+    /**
+     * Change the compression of the binaries, [binaryCompressor] can be used to follow the progress or cancel
+     */
     fun changeBinaryCompression(oldCompression: CompressionAlgorithm,
-                                newCompression: CompressionAlgorithm) {
+                                newCompression: CompressionAlgorithm,
+                                binaryCompressor: BinaryCompressor = BinaryCompressor(binaryCache)) {
         when (oldCompression) {
             CompressionAlgorithm.None -> {
                 when (newCompression) {
@@ -202,7 +215,7 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
                     CompressionAlgorithm.GZip -> {
                         // Only in databaseV3.1, in databaseV4 the header is zipped during the save
                         if (kdbxVersion.isBefore(FILE_VERSION_40)) {
-                            compressAllBinaries()
+                            compressAllBinaries(binaryCompressor)
                         }
                     }
                 }
@@ -212,37 +225,32 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
                 if (kdbxVersion.isBefore(FILE_VERSION_40)) {
                     when (newCompression) {
                         CompressionAlgorithm.None -> {
-                            decompressAllBinaries()
+                            decompressAllBinaries(binaryCompressor)
                         }
                         CompressionAlgorithm.GZip -> {
                         }
                     }
                 } else {
-                    decompressAllBinaries()
+                    decompressAllBinaries(binaryCompressor)
                 }
             }
         }
     }
 
-    private fun compressAllBinaries() {
-        attachmentPool.doForEachBinary { _, binary ->
-            try {
-                // To compress, create a new binary with file
-                binary.compress(binaryCache)
-            } catch (e: Exception) {
-                Log.e(TAG, "Unable to compress $binary", e)
-            }
-        }
+    private fun compressAllBinaries(binaryCompressor: BinaryCompressor) {
+        binaryCompressor.compress(getAllBinaries())
+    }
+
+    private fun decompressAllBinaries(binaryCompressor: BinaryCompressor) {
+        binaryCompressor.decompress(getAllBinaries())
     }
 
-    private fun decompressAllBinaries() {
+    private fun getAllBinaries(): List<BinaryData> {
+        val binaries = ArrayList<BinaryData>()
         attachmentPool.doForEachBinary { _, binary ->
-            try {
-                binary.decompress(binaryCache)
-            } catch (e: Exception) {
-                Log.e(TAG, "Unable to decompress $binary", e)
-            }
+            binaries.add(binary)
         }
+        return binaries.distinct()
     }
 
     override val availableEncryptionAlgorithms: List<EncryptionAlgorithm>
@@ -473,12 +481,12 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
     }
 
     @Throws(IOException::class)
-    fun makeFinalKey(masterSeed: ByteArray) {
+    fun makeFinalKey(masterSeed: ByteArray, transformationToken: TransformationToken? = null) {
 
         kdfParameters?.let { keyDerivationFunctionParameters ->
             val kdfEngine = getEngineKDBX4(keyDerivationFunctionParameters)
 
-            var transformedMasterKey = kdfEngine.transform(masterKey, keyDerivationFunctionParameters)
+            var transformedMasterKey = kdfEngine.transform(masterKey, keyDerivationFunctionParameters, transformationToken)
             if (transformedMasterKey.size != 32) {
                 transformedMasterKey = HashManager.hashSha256(transformedMasterKey)
             }
@@ -801,6 +809,51 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
         mFieldReferenceEngine.clear()
     }
 
+    override fun onEntryIndexed(entry: EntryKDBX) {
+        super.onEntryIndexed(entry)
+        statistics.putEntry(entry.nodeId, entry)
+    }
+
+    override fun onEntryRemovedFromIndex(entry: EntryKDBX) {
+        super.onEntryRemovedFromIndex(entry)
+        statistics.removeEntry(entry.nodeId)
+    }
+
+    override fun onGroupIndexed(group: GroupKDBX) {
+        super.onGroupIndexed(group)
+        statistics.putGroup(group.nodeId, group)
+    }
+
+    override fun onGroupRemovedFromIndex(group: GroupKDBX) {
+        super.onGroupRemovedFromIndex(group)
+        statistics.removeGroup(group.nodeId)
+    }
+
+    override fun getAttachmentKeys(entry: EntryKDBX): List<Int> {
+        val keys = ArrayList<Int>(entry.binaries.values)
+        keys.addAll(entry.getHistoryAttachmentKeys())
+        return keys
+    }
+
+    override fun buildAutofillKeys(entry: EntryKDBX, keysBuilder: AutofillIndex.KeysBuilder) {
+        entry.getFields().forEach { field ->
+            when {
+                field.name == EntryKDBX.STR_URL
+                        || field.name.contains(EntryInfo.WEB_DOMAIN_FIELD_NAME, true) -> {
+                    keysBuilder.addUrl(field.protectedValue.toString())
+                }
+                field.name.startsWith(EntryInfo.APPLICATION_ID_FIELD_NAME, true) -> {
+                    keysBuilder.addApplicationId(field.protectedValue.toString())
+                }
+                else -> {
+                    val value = field.protectedValue.toString()
+                    if (value.startsWith(AutofillIndex.ANDROID_APP_SCHEME, true))
+                        keysBuilder.addUrl(value)
+                }
+            }
+        }
+    }
+
     override fun undoDeleteEntryFrom(entry: EntryKDBX, origParent: GroupKDBX?) {
         super.undoDeleteEntryFrom(entry, origParent)
         deletedObjects.remove(DeletedObject(entry.id))
@@ -819,35 +872,45 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
         }.binary
     }
 
+    /**
+     * Remove [binary] from the pool if no entry references it anymore, retrieved with the references count
+     */
     fun removeUnlinkedAttachment(binary: BinaryData, clear: Boolean) {
-        val listBinaries = ArrayList<BinaryData>()
-        listBinaries.add(binary)
-        removeUnlinkedAttachments(listBinaries, clear)
+        if (!attachmentPool.isReferenced(binary)) {
+            try {
+                attachmentPool.remove(binary)
+                if (clear)
+                    binary.clear(binaryCache)
+            } catch (e: Exception) {
+                Log.w(TAG, "Unable to clean binaries", e)
+            }
+        }
     }
 
+    /**
+     * Remove all the binaries not linked to an entry, checked with a complete walk of the tree
+     */
     fun removeUnlinkedAttachments(clear: Boolean) {
-        removeUnlinkedAttachments(emptyList(), clear)
-    }
-
-    private fun removeUnlinkedAttachments(binaries: List<BinaryData>, clear: Boolean) {
         // Build binaries to remove with all binaries known
         val binariesToRemove = ArrayList<BinaryData>()
-        if (binaries.isEmpty()) {
-            attachmentPool.doForEachBinary { _, binary ->
-                binariesToRemove.add(binary)
-            }
-        } else {
-            binariesToRemove.addAll(binaries)
+        attachmentPool.doForEachBinary { _, binary ->
+            binariesToRemove.add(binary)
+        }
+        // Remove binaries used by entries from the list
+        rootGroup?.doForEachChildInParallel({ HashSet<BinaryData>() },
+                object : ParallelNodeHandler<EntryKDBX, HashSet<BinaryData>>() {
+                    override fun operate(node: EntryKDBX, accumulator: HashSet<BinaryData>): Boolean {
+                        // Keys of the history known without decoding it
+                        getAttachmentKeys(node).forEach { key ->
+                            attachmentPool[key]?.let { accumulator.add(it) }
+                        }
+                        return true
+                    }
+                }, null,
+                { first, second -> first.apply { addAll(second) } }
+        )?.let { usedBinaries ->
+            binariesToRemove.removeAll(usedBinaries)
         }
-        // Remove binaries from the list
-        rootGroup?.doForEachChild(object : NodeHandler<EntryKDBX>() {
-            override fun operate(node: EntryKDBX): Boolean {
-                node.getAttachments(attachmentPool, true).forEach {
-                    binariesToRemove.remove(it.binaryData)
-                }
-                return binariesToRemove.isNotEmpty()
-            }
-        }, null)
         // Effective removing
         binariesToRemove.forEach {
             try {
@@ -869,6 +932,9 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
     override fun clearCache() {
         try {
             super.clearCache()
+            statistics.clear()
+            historyCache?.clear()
+            historyCache = null
             mFieldReferenceEngine.clear()
             attachmentPool.clear()
         } catch (e: Exception) {
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.element.database
+
+import com.kunzisoft.keepass.database.element.entry.EntryKDBX
+import com.kunzisoft.keepass.database.element.group.GroupKDBX
+
+/**
+ * Counters of the indexed nodes, updated each time a node is indexed, updated or removed,
+ * to know the features used by the database (and its minimal version) without a traversal of the tree
+ */
+class DatabaseStatistics {
+
+    // Contribution of each node, to remove it when the node changes
+    private val entriesStatistics = HashMap<Any, EntryStatistics>()
+    private val groupsStatistics = HashMap<Any, GroupStatistics>()
+
+    var numberOfTaggedGroups = 0
+        private set
+    var numberOfEntriesWithCustomData = 0
+        private set
+    var numberOfGroupsWithCustomData = 0
+        private set
+    var numberOfEntriesWithQualityCheckDisabled = 0
+        private set
+
+    val containsNodeCustomData: Boolean
+        get() = numberOfEntriesWithCustomData > 0 || numberOfGroupsWithCustomData > 0
+
+    fun putEntry(id: Any, entry: EntryKDBX) {
+        removeEntry(id)
+        val statistics = EntryStatistics(entry.customData.isNotEmpty(),
+                !entry.qualityCheck)
+        entriesStatistics[id] = statistics
+        updateEntry(statistics, 1)
+    }
+
+    fun removeEntry(id: Any) {
+        entriesStatistics.remove(id)?.let { statistics ->
+            updateEntry(statistics, -1)
+        }
+    }
+
+    private fun updateEntry(statistics: EntryStatistics, increment: Int) {
+        if (statistics.customData)
+            numberOfEntriesWithCustomData += increment
+        if (statistics.qualityCheckDisabled)
+            numberOfEntriesWithQualityCheckDisabled += increment
+    }
+
+    fun putGroup(id: Any, group: GroupKDBX) {
+        removeGroup(id)
+        val statistics = GroupStatistics(!group.tags.isEmpty(),
+                group.customData.isNotEmpty())
+        groupsStatistics[id] = statistics
+        updateGroup(statistics, 1)
+    }
+
+    fun removeGroup(id: Any) {
+        groupsStatistics.remove(id)?.let { statistics ->
+            updateGroup(statistics, -1)
+        }
+    }
+
+    private fun updateGroup(statistics: GroupStatistics, increment: Int) {
+        if (statistics.tagged)
+            numberOfTaggedGroups += increment
+        if (statistics.customData)
+            numberOfGroupsWithCustomData += increment
+    }
+
+    fun clear() {
+        entriesStatistics.clear()
+        groupsStatistics.clear()
+        numberOfTaggedGroups = 0
+        numberOfEntriesWithCustomData = 0
+        numberOfGroupsWithCustomData = 0
+        numberOfEntriesWithQualityCheckDisabled = 0
+    }
+
+    private class EntryStatistics(val customData: Boolean,
+                                  val qualityCheckDisabled: Boolean)
+
+    private class GroupStatistics(val tagged: Boolean,
+                                  val customData: Boolean)
+}
@@ -30,6 +30,7 @@ import com.kunzisoft.keepass.database.element.icon.IconsManager
 import com.kunzisoft.keepass.database.element.node.NodeId
 import com.kunzisoft.keepass.database.element.node.Type
 import com.kunzisoft.keepass.database.exception.DuplicateUuidDatabaseException
+import com.kunzisoft.keepass.database.search.AutofillIndex
 import org.apache.commons.codec.binary.Hex
 import java.io.ByteArrayInputStream
 import java.io.IOException
@@ -68,6 +69,8 @@ abstract class DatabaseVersioned<
 
     private var groupIndexes = LinkedHashMap<NodeId<GroupId>, Group>()
     protected var entryIndexes = LinkedHashMap<NodeId<EntryId>, Entry>()
+    val autofillIndex = AutofillIndex<NodeId<EntryId>>()
+    val expiryIndex = ExpiryIndex<NodeId<EntryId>>()
 
     abstract val version: String
 
@@ -240,12 +243,31 @@ abstract class DatabaseVersioned<
         } else {
             this.groupIndexes[groupId] = group
         }
+        onGroupIndexed(group)
     }
 
     fun removeGroupIndex(group: Group) {
         this.groupIndexes.remove(group.nodeId)
+        onGroupRemovedFromIndex(group)
     }
 
+    /**
+     * Refresh the indexed data of [group] if it's the indexed group,
+     * to call after a change of its values outside [updateGroup]
+     */
+    fun refreshGroupIndex(group: Group) {
+        if (groupIndexes[group.nodeId] === group) {
+            onGroupIndexed(group)
+        }
+    }
+
+    /**
+     * Called each time [group] is added in the index or updated
+     */
+    protected open fun onGroupIndexed(group: Group) {}
+
+    protected open fun onGroupRemovedFromIndex(group: Group) {}
+
     fun numberOfGroups(): Int {
         return groupIndexes.size
     }
@@ -282,10 +304,57 @@ abstract class DatabaseVersioned<
         } else {
             this.entryIndexes[entryId] = entry
         }
+        onEntryIndexed(entry)
     }
 
     fun removeEntryIndex(entry: Entry) {
         this.entryIndexes.remove(entry.nodeId)
+        onEntryRemovedFromIndex(entry)
+    }
+
+    /**
+     * Refresh the indexed data of [entry] if it's the indexed entry,
+     * to call after a change of its attachments or its history outside [updateEntry]
+     */
+    fun refreshEntryIndex(entry: Entry) {
+        if (entryIndexes[entry.nodeId] === entry) {
+            onEntryIndexed(entry)
+        }
+    }
+
+    /**
+     * Called each time [entry] is added in the index or updated
+     */
+    protected open fun onEntryIndexed(entry: Entry) {
+        addAutofillIndex(entry)
+        expiryIndex.put(entry.nodeId, if (entry.expires) entry.expiryTime.getLastTimeNotExpired() else null)
+        attachmentPool.setReferences(entry.nodeId, getAttachmentKeys(entry))
+    }
+
+    protected open fun onEntryRemovedFromIndex(entry: Entry) {
+        autofillIndex.remove(entry.nodeId)
+        expiryIndex.remove(entry.nodeId)
+        attachmentPool.removeReferences(entry.nodeId)
+    }
+
+    /**
+     * Pool keys of the attachments of [entry] and of its history
+     */
+    protected open fun getAttachmentKeys(entry: Entry): List<Int> {
+        return emptyList()
+    }
+
+    private fun addAutofillIndex(entry: Entry) {
+        autofillIndex.put(entry.nodeId, AutofillIndex.KeysBuilder().apply {
+            buildAutofillKeys(entry, this)
+        })
+    }
+
+    /**
+     * Add the web domains and application ids of [entry] used to retrieve it in an autofill request
+     */
+    protected open fun buildAutofillKeys(entry: Entry, keysBuilder: AutofillIndex.KeysBuilder) {
+        keysBuilder.addUrl(entry.url)
     }
 
     fun numberOfEntries(): Int {
@@ -295,6 +364,9 @@ abstract class DatabaseVersioned<
     open fun clearCache() {
         this.groupIndexes.clear()
         this.entryIndexes.clear()
+        this.autofillIndex.clear()
+        this.expiryIndex.clear()
+        this.attachmentPool.clearReferences()
     }
 
     /*
@@ -319,6 +391,7 @@ abstract class DatabaseVersioned<
         val groupId = group.nodeId
         if (groupIndexes.containsKey(groupId)) {
             groupIndexes[groupId] = group
+            onGroupIndexed(group)
         }
     }
 
@@ -340,6 +413,7 @@ abstract class DatabaseVersioned<
         val entryId = entry.nodeId
         if (entryIndexes.containsKey(entryId)) {
             entryIndexes[entryId] = entry
+            onEntryIndexed(entry)
         }
     }
 
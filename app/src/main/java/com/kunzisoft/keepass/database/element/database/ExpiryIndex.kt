@@ -0,0 +1,140 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.element.database
+
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Ids of the expiring entries ordered by expiry time, updated with the index of entries,
+ * to retrieve the expired entries and the next expiry without a traversal of the tree.
+ * The expiry time of an entry is the last time it is not expired, given by DateInstant.getLastTimeNotExpired.
+ */
+class ExpiryIndex<Id> {
+
+    private val expiryTimes = HashMap<Id, Long>()
+    private val idsByExpiryTime = TreeMap<Long, MutableSet<Id>>()
+    // Ids expired at the time of the last update, flipped by updateExpired
+    private val expiredIds = HashSet<Id>()
+    private var expiredUpdateTime = System.currentTimeMillis()
+
+    val size: Int
+        get() = expiryTimes.size
+
+    /**
+     * Add or update [id] with its [expiryTime] in milliseconds, null if it doesn't expire
+     */
+    @Synchronized
+    fun put(id: Id, expiryTime: Long?) {
+        if (expiryTimes[id] == expiryTime)
+            return
+        remove(id)
+        if (expiryTime != null) {
+            expiryTimes[id] = expiryTime
+            idsByExpiryTime.getOrPut(expiryTime) { HashSet() }.add(id)
+            if (expiryTime < expiredUpdateTime)
+                expiredIds.add(id)
+        }
+    }
+
+    @Synchronized
+    fun remove(id: Id) {
+        expiredIds.remove(id)
+        expiryTimes.remove(id)?.let { expiryTime ->
+            idsByExpiryTime[expiryTime]?.let { ids ->
+                ids.remove(id)
+                if (ids.isEmpty())
+                    idsByExpiryTime.remove(expiryTime)
+            }
+        }
+    }
+
+    /**
+     * Flip the entries expired between the last update and [time], to not compare each expiry time
+     * when the expired state is retrieved with [isMarkedExpired]
+     */
+    @Synchronized
+    fun updateExpired(time: Long = System.currentTimeMillis()) {
+        if (time >= expiredUpdateTime) {
+            idsByExpiryTime.subMap(expiredUpdateTime, true, time, false).values.forEach {
+                expiredIds.addAll(it)
+            }
+        } else {
+            // Clock set back
+            expiredIds.clear()
+            idsByExpiryTime.headMap(time).values.forEach {
+                expiredIds.addAll(it)
+            }
+        }
+        expiredUpdateTime = time
+    }
+
+    /**
+     * Expired state of [id] at the last [updateExpired], or null if [id] isn't in the index
+     */
+    @Synchronized
+    fun isMarkedExpired(id: Id): Boolean? {
+        return if (expiryTimes.containsKey(id)) expiredIds.contains(id) else null
+    }
+
+    @Synchronized
+    fun isExpired(id: Id, time: Long = System.currentTimeMillis()): Boolean {
+        return expiryTimes[id]?.let { it < time } ?: false
+    }
+
+    /**
+     * Ids of the entries expired at [time]
+     */
+    @Synchronized
+    fun getExpired(time: Long = System.currentTimeMillis()): List<Id> {
+        val ids = ArrayList<Id>()
+        idsByExpiryTime.headMap(time).values.forEach {
+            ids.addAll(it)
+        }
+        return ids
+    }
+
+    /**
+     * Ids of the entries not expired at [time] but expired in [days]
+     */
+    @Synchronized
+    fun getExpiringWithin(days: Int, time: Long = System.currentTimeMillis()): List<Id> {
+        val ids = ArrayList<Id>()
+        idsByExpiryTime.subMap(time, time + TimeUnit.DAYS.toMillis(days.toLong())).values.forEach {
+            ids.addAll(it)
+        }
+        return ids
+    }
+
+    /**
+     * Next time an entry expires after [time], or null if no entry will expire
+     */
+    @Synchronized
+    fun getNextExpiryTime(time: Long = System.currentTimeMillis()): Long? {
+        return idsByExpiryTime.ceilingKey(time)
+    }
+
+    @Synchronized
+    fun clear() {
+        expiryTimes.clear()
+        idsByExpiryTime.clear()
+        expiredIds.clear()
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.element.entry
+
+import android.os.Parcel
+import com.kunzisoft.keepass.database.element.security.ProtectedString
+
+/**
+ * Map of the entry fields in insertion order, stored in two arrays instead of a linked map,
+ * as an entry has few fields. The keys read by the parser are interned, so they are compared by identity first.
+ *
+ * A copy made with [copyFrom] shares the storage of its source (e.g. between an entry and its history)
+ * until one of them is modified, the values themselves are never modified in place.
+ */
+class EntryFields {
+
+    private var keys: Array<String?> = EMPTY_KEYS
+    private var values: Array<ProtectedString?> = EMPTY_VALUES
+    var size = 0
+        private set
+    // True if the storage may be referenced by another instance
+    private var mShared = false
+
+    constructor()
+
+    constructor(parcel: Parcel) {
+        val size = parcel.readInt()
+        for (i in 0 until size) {
+            val key = parcel.readString()
+            val value = parcel.readParcelable<ProtectedString>(ProtectedString::class.java.classLoader)
+            if (key != null && value != null)
+                set(key, value)
+        }
+    }
+
+    fun writeToParcel(dest: Parcel, flags: Int) {
+        dest.writeInt(size)
+        doForEachField { key, value ->
+            dest.writeString(key)
+            dest.writeParcelable(value, flags)
+        }
+    }
+
+    private fun indexOf(key: String): Int {
+        for (index in 0 until size) {
+            if (keys[index] === key)
+                return index
+        }
+        for (index in 0 until size) {
+            if (keys[index] == key)
+                return index
+        }
+        return -1
+    }
+
+    operator fun get(key: String): ProtectedString? {
+        val index = indexOf(key)
+        return if (index >= 0) values[index] else null
+    }
+
+    /**
+     * Replace the value of [key] at its position, or add it at the end
+     */
+    operator fun set(key: String, value: ProtectedString) {
+        val index = indexOf(key)
+        ensureNotShared()
+        if (index >= 0) {
+            values[index] = value
+        } else {
+            if (size == keys.size) {
+                val capacity = if (size == 0) INITIAL_CAPACITY else size * 2
+                keys = keys.copyOf(capacity)
+                values = values.copyOf(capacity)
+            }
+            keys[size] = key
+            values[size] = value
+            size++
+        }
+    }
+
+    fun remove(key: String): ProtectedString? {
+        val index = indexOf(key)
+        if (index < 0)
+            return null
+        ensureNotShared()
+        val previous = values[index]
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1)
+        System.arraycopy(values, index + 1, values, index, size - index - 1)
+        size--
+        keys[size] = null
+        values[size] = null
+        return previous
+    }
+
+    fun clear() {
+        keys = EMPTY_KEYS
+        values = EMPTY_VALUES
+        size = 0
+        mShared = false
+    }
+
+    /**
+     * Replace the fields by the ones of [source], without copy until one of the instances is modified
+     */
+    fun copyFrom(source: EntryFields) {
+        if (source === this)
+            return
+        keys = source.keys
+        values = source.values
+        size = source.size
+        mShared = true
+        source.mShared = true
+    }
+
+    private fun ensureNotShared() {
+        if (mShared) {
+            keys = keys.copyOf()
+            values = values.copyOf()
+            mShared = false
+        }
+    }
+
+    fun doForEachField(action: (key: String, value: ProtectedString) -> Unit) {
+        for (index in 0 until size) {
+            action.invoke(keys[index]!!, values[index]!!)
+        }
+    }
+
+    fun doForEachCustomField(action: (key: String, value: ProtectedString) -> Unit) {
+        for (index in 0 until size) {
+            val key = keys[index]!!
+            if (!isStandardKey(key))
+                action.invoke(key, values[index]!!)
+        }
+    }
+
+    companion object {
+        // Standard fields of a new entry
+        private const val INITIAL_CAPACITY = 5
+        private val EMPTY_KEYS = arrayOfNulls<String>(0)
+        private val EMPTY_VALUES = arrayOfNulls<ProtectedString>(0)
+
+        private val STANDARD_KEYS = arrayOf(
+                EntryKDBX.STR_TITLE,
+                EntryKDBX.STR_USERNAME,
+                EntryKDBX.STR_PASSWORD,
+                EntryKDBX.STR_URL,
+                EntryKDBX.STR_NOTES)
+
+        private fun isStandardKey(key: String): Boolean {
+            // Keys interned at load are the constants themselves
+            for (standardKey in STANDARD_KEYS) {
+                if (standardKey === key)
+                    return true
+            }
+            for (standardKey in STANDARD_KEYS) {
+                if (standardKey == key)
+                    return true
+            }
+            return false
+        }
+    }
+}
@@ -34,6 +34,7 @@ import com.kunzisoft.keepass.database.element.node.Type
 import com.kunzisoft.keepass.database.element.security.ProtectedString
 import com.kunzisoft.keepass.utils.ParcelableUtil
 import com.kunzisoft.keepass.utils.UnsignedLong
+import java.io.IOException
 import java.util.*
 import kotlin.collections.ArrayList
 import kotlin.collections.LinkedHashMap
@@ -45,20 +46,60 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
     private var mDatabase: DatabaseKDBX? = null
     @Transient
     private var mDecodeRef = false
+    // Size of the fields, labels and properties, without the attachments data and the history
+    @Transient
+    private var mDataSize = UNKNOWN_SIZE
+    // Sum of the data sizes of the history entries
+    @Transient
+    private var mHistoryDataSize = UNKNOWN_SIZE
 
     override var usageCount = UnsignedLong(0)
     override var locationChanged = DateInstant()
     override var customData = CustomData()
-    private var fields = LinkedHashMap<String, ProtectedString>()
+    private var fields = EntryFields()
     var binaries = LinkedHashMap<String, Int>() // Map<Label, PoolId>
     var foregroundColor = ""
     var backgroundColor = ""
     var overrideURL = ""
+        set(value) {
+            field = value
+            mDataSize = UNKNOWN_SIZE
+        }
     override var tags = Tags()
+        set(value) {
+            field = value
+            mDataSize = UNKNOWN_SIZE
+        }
     override var previousParentGroup: UUID = DatabaseVersioned.UUID_ZERO
     var qualityCheck = true
     var autoType = AutoType()
-    var history = ArrayList<EntryKDBX>()
+        set(value) {
+            field = value
+            mDataSize = UNKNOWN_SIZE
+        }
+    private var mHistory = ArrayList<EntryKDBX>()
+    // History not decoded yet, stored in the history cache of the database
+    @Transient
+    @Volatile
+    private var mEncodedHistory: HistoryCache.EncodedHistory? = null
+    /**
+     * History of the entry, decoded from the history cache the first time it is retrieved.
+     * The decoded list is published before the encoded history is released, so it is decoded only once.
+     */
+    val history: ArrayList<EntryKDBX>
+        get() {
+            if (mEncodedHistory != null) {
+                synchronized(this) {
+                    mEncodedHistory?.let { encodedHistory ->
+                        mHistory = encodedHistory.decode()
+                        mEncodedHistory = null
+                    }
+                }
+            }
+            return mHistory
+        }
+    val numberOfHistoryEntries: Int
+        get() = mEncodedHistory?.numberOfEntries ?: mHistory.size
     var additional = ""
 
     override var expires: Boolean = false
@@ -69,7 +110,7 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
         usageCount = UnsignedLong(parcel.readLong())
         locationChanged = parcel.readParcelable(DateInstant::class.java.classLoader) ?: locationChanged
         customData = parcel.readParcelable(CustomData::class.java.classLoader) ?: CustomData()
-        fields = ParcelableUtil.readStringParcelableMap(parcel, ProtectedString::class.java)
+        fields = EntryFields(parcel)
         binaries = ParcelableUtil.readStringIntMap(parcel)
         foregroundColor = parcel.readString() ?: foregroundColor
         backgroundColor = parcel.readString() ?: backgroundColor
@@ -77,7 +118,8 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
         tags = parcel.readParcelable(Tags::class.java.classLoader) ?: tags
         previousParentGroup = parcel.readParcelable<ParcelUuid>(ParcelUuid::class.java.classLoader)?.uuid ?: DatabaseVersioned.UUID_ZERO
         autoType = parcel.readParcelable(AutoType::class.java.classLoader) ?: autoType
-        parcel.readTypedList(history, CREATOR)
+        qualityCheck = parcel.readByte().toInt() != 0
+        parcel.readTypedList(mHistory, CREATOR)
         additional = parcel.readString() ?: additional
     }
 
@@ -94,7 +136,7 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
         dest.writeLong(usageCount.toKotlinLong())
         dest.writeParcelable(locationChanged, flags)
         dest.writeParcelable(customData, flags)
-        ParcelableUtil.writeStringParcelableMap(dest, flags, fields)
+        fields.writeToParcel(dest, flags)
         ParcelableUtil.writeStringIntMap(dest, binaries)
         dest.writeString(foregroundColor)
         dest.writeString(backgroundColor)
@@ -102,7 +144,8 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
         dest.writeParcelable(tags, flags)
         dest.writeParcelable(ParcelUuid(previousParentGroup), flags)
         dest.writeParcelable(autoType, flags)
-        dest.writeTypedList(history)
+        dest.writeByte((if (qualityCheck) 1 else 0).toByte())
+        dest.writeTypedList(getHistoryEntries())
         dest.writeString(additional)
     }
 
@@ -115,8 +158,7 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
         usageCount = source.usageCount
         locationChanged = DateInstant(source.locationChanged)
         customData = CustomData(source.customData)
-        fields.clear()
-        fields.putAll(source.fields)
+        fields.copyFrom(source.fields)
         binaries.clear()
         binaries.putAll(source.binaries)
         foregroundColor = source.foregroundColor
@@ -125,10 +167,17 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
         tags = source.tags
         previousParentGroup = source.previousParentGroup
         autoType = AutoType(source.autoType)
-        history.clear()
-        if (copyHistory)
-            history.addAll(source.history)
+        mHistory.clear()
+        mEncodedHistory = null
+        if (copyHistory) {
+            mHistory.addAll(source.mHistory)
+            // An encoded history is never modified, it can be shared
+            mEncodedHistory = source.mEncodedHistory
+        }
         additional = source.additional
+        // Same data as the source, only the history may differ
+        mDataSize = source.mDataSize
+        mHistoryDataSize = if (copyHistory) source.mHistoryDataSize else UNKNOWN_SIZE
     }
 
     fun startToManageFieldReferences(database: DatabaseKDBX) {
@@ -146,7 +195,7 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
     }
 
     override fun copyNodeId(nodeId: NodeId<UUID>): NodeId<UUID> {
-        return NodeIdUUID(nodeId.id)
+        return (nodeId as? NodeIdUUID)?.let { NodeIdUUID(it) } ?: NodeIdUUID(nodeId.id)
     }
 
     override val type: Type
@@ -175,6 +224,7 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
         set(value) {
             val protect = mDatabase != null && mDatabase!!.memoryProtection.protectTitle
             fields[STR_TITLE] = ProtectedString(protect, value)
+            mDataSize = UNKNOWN_SIZE
         }
 
     fun decodeUsernameKey(recursionLevel: Int): String {
@@ -186,6 +236,7 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
         set(value) {
             val protect = mDatabase != null && mDatabase!!.memoryProtection.protectUserName
             fields[STR_USERNAME] = ProtectedString(protect, value)
+            mDataSize = UNKNOWN_SIZE
         }
 
     fun decodePasswordKey(recursionLevel: Int): String {
@@ -197,6 +248,7 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
         set(value) {
             val protect = mDatabase != null && mDatabase!!.memoryProtection.protectPassword
             fields[STR_PASSWORD] = ProtectedString(protect, value)
+            mDataSize = UNKNOWN_SIZE
         }
 
     fun decodeUrlKey(recursionLevel: Int): String {
@@ -208,6 +260,7 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
         set(value) {
             val protect = mDatabase != null && mDatabase!!.memoryProtection.protectUrl
             fields[STR_URL] = ProtectedString(protect, value)
+            mDataSize = UNKNOWN_SIZE
         }
 
     fun decodeNotesKey(recursionLevel: Int): String {
@@ -219,6 +272,7 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
         set(value) {
             val protect = mDatabase != null && mDatabase!!.memoryProtection.protectNotes
             fields[STR_NOTES] = ProtectedString(protect, value)
+            mDataSize = UNKNOWN_SIZE
         }
 
     fun getCustomFieldValue(label: String): String {
@@ -226,55 +280,142 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
     }
 
     fun getSize(attachmentPool: AttachmentPool): Long {
-        var size = FIXED_LENGTH_SIZE
+        return getDataSize() + getAttachmentsSize(attachmentPool) + getHistorySize(attachmentPool)
+    }
 
-        for (entry in fields.entries) {
-            size += entry.key.length.toLong()
-            size += entry.value.length().toLong()
-        }
+    /**
+     * Size of the entry without attachments and history, cached until a field or a property is modified
+     */
+    private fun getDataSize(): Long {
+        if (mDataSize == UNKNOWN_SIZE) {
+            var size = FIXED_LENGTH_SIZE
+
+            fields.doForEachField { key, value ->
+                size += key.length.toLong()
+                size += value.length().toLong()
+            }
+
+            size += autoType.defaultSequence.length.toLong()
+            autoType.doForEachAutoTypeItem { key, value ->
+                size += key.length.toLong()
+                size += value.length.toLong()
+            }
 
-        size += getAttachmentsSize(attachmentPool)
+            size += overrideURL.length.toLong()
+            size += tags.toString().length
 
-        size += autoType.defaultSequence.length.toLong()
-        autoType.doForEachAutoTypeItem { key, value ->
-            size += key.length.toLong()
-            size += value.length.toLong()
+            mDataSize = size
         }
+        return mDataSize
+    }
 
-        for (entry in history) {
-            size += entry.getSize(attachmentPool)
+    /**
+     * Size of all the history entries, the data sizes are cached and updated when the history changes,
+     * only the attachments sizes are retrieved from the pool because they depend on the compression
+     */
+    fun getHistorySize(attachmentPool: AttachmentPool): Long {
+        val encodedHistory = mEncodedHistory
+        if (mHistoryDataSize == UNKNOWN_SIZE) {
+            var historyDataSize = encodedHistory?.dataSize ?: 0L
+            for (entry in mHistory) {
+                historyDataSize += entry.getDataSize()
+            }
+            mHistoryDataSize = historyDataSize
+        }
+        var size = mHistoryDataSize
+        if (encodedHistory != null) {
+            size += encodedHistory.getAttachmentsSize(attachmentPool)
+        }
+        for (entry in mHistory) {
+            size += entry.getAttachmentsSize(attachmentPool)
+            if (entry.numberOfHistoryEntries > 0)
+                size += entry.getHistorySize(attachmentPool)
         }
+        return size
+    }
+
+    /**
+     * Move the history in [historyCache], it will be decoded only when retrieved
+     */
+    @Throws(IOException::class)
+    @Synchronized
+    fun encodeHistory(historyCache: HistoryCache) {
+        if (mEncodedHistory != null || mHistory.isEmpty())
+            return
+        var dataSize = 0L
+        var attachmentLabelsSize = 0L
+        val attachmentKeys = ArrayList<Int>()
+        for (entry in mHistory) {
+            dataSize += entry.getDataSize()
+            for ((label, poolId) in entry.binaries) {
+                attachmentLabelsSize += label.length.toLong()
+                attachmentKeys.add(poolId)
+            }
+        }
+        mEncodedHistory = historyCache.encode(mHistory, dataSize, attachmentLabelsSize, attachmentKeys)
+        mHistory = ArrayList()
+        mHistoryDataSize = dataSize
+    }
 
-        size += overrideURL.length.toLong()
-        size += tags.toString().length
+    /**
+     * Entries of the history, an encoded history is decoded only for this call and not kept
+     */
+    fun getHistoryEntries(): List<EntryKDBX> {
+        return mEncodedHistory?.decode() ?: mHistory
+    }
 
-        return size
+    fun getHistoryAttachmentKeys(): List<Int> {
+        mEncodedHistory?.let { encodedHistory ->
+            return encodedHistory.getAttachmentKeys()
+        }
+        val keys = ArrayList<Int>()
+        mHistory.forEach { entryHistory ->
+            keys.addAll(entryHistory.binaries.values)
+        }
+        return keys
     }
 
     fun afterChangeParent() {
         locationChanged = DateInstant()
     }
 
-    private fun isStandardField(key: String): Boolean {
-        return (key == STR_TITLE
-                || key == STR_USERNAME
-                || key == STR_PASSWORD
-                || key == STR_URL
-                || key == STR_NOTES)
+    /**
+     * True if the field [key] contains [query] ignoring the case,
+     * the value is searched without building its string if it cannot contain a reference
+     */
+    fun fieldContains(key: String, query: String): Boolean {
+        val value = fields[key] ?: return false
+        return fieldContains(key, value, query)
+    }
+
+    /**
+     * True if one of the custom fields accepted by [filter] contains [query] ignoring the case
+     */
+    fun customFieldsContain(query: String, filter: (key: String) -> Boolean): Boolean {
+        var found = false
+        fields.doForEachCustomField { key, value ->
+            if (!found && filter.invoke(key) && fieldContains(key, value, query))
+                found = true
+        }
+        return found
+    }
+
+    private fun fieldContains(key: String, value: ProtectedString, query: String): Boolean {
+        return if (mDecodeRef && value.containsAsciiChar('{')) {
+            decodeRefKey(mDecodeRef, key, 0).contains(query, true)
+        } else {
+            value.containsIgnoreCase(query)
+        }
     }
 
     fun doForEachDecodedCustomField(action: (field: Field) -> Unit) {
-        val iterator = fields.entries.iterator()
-        while (iterator.hasNext()) {
-            val mapEntry = iterator.next()
-            if (!isStandardField(mapEntry.key)) {
-                action.invoke(Field(mapEntry.key,
-                        ProtectedString(mapEntry.value.isProtected,
-                                decodeRefKey(mDecodeRef, mapEntry.key, 0)
-                        )
+        fields.doForEachCustomField { key, value ->
+            action.invoke(Field(key,
+                    ProtectedString(value.isProtected,
+                            decodeRefKey(mDecodeRef, key, 0)
                     )
                 )
-            }
+            )
         }
     }
 
@@ -283,7 +424,11 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
     }
 
     fun getFields(): List<Field> {
-        return fields.map { Field(it.key, it.value) }
+        val fieldList = ArrayList<Field>(fields.size)
+        fields.doForEachField { key, value ->
+            fieldList.add(Field(key, value))
+        }
+        return fieldList
     }
 
     fun putField(field: Field) {
@@ -292,14 +437,17 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
 
     fun putField(label: String, value: ProtectedString) {
         fields[label] = value
+        mDataSize = UNKNOWN_SIZE
     }
 
     fun removeField(name: String) {
         fields.remove(name)
+        mDataSize = UNKNOWN_SIZE
     }
 
     fun removeAllFields() {
         fields.clear()
+        mDataSize = UNKNOWN_SIZE
     }
 
     /**
@@ -313,7 +461,7 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
             }
         }
         if (inHistory) {
-            history.forEach {
+            getHistoryEntries().forEach {
                 entryAttachmentList.addAll(it.getAttachments(attachmentPool, false))
             }
         }
@@ -347,10 +495,19 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
 
     fun addEntryToHistory(entry: EntryKDBX) {
         history.add(entry)
+        if (mHistoryDataSize != UNKNOWN_SIZE)
+            mHistoryDataSize += entry.getDataSize()
     }
 
     fun removeEntryFromHistory(position: Int): EntryKDBX {
-        return history.removeAt(position)
+        return removeHistoryAt(position)
+    }
+
+    private fun removeHistoryAt(position: Int): EntryKDBX {
+        val entry = history.removeAt(position)
+        if (mHistoryDataSize != UNKNOWN_SIZE)
+            mHistoryDataSize -= entry.getDataSize()
+        return entry
     }
 
     fun removeOldestEntryFromHistory(): EntryKDBX? {
@@ -367,7 +524,7 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
         }
 
         return if (index != -1) {
-            history.removeAt(index)
+            removeHistoryAt(index)
         } else null
     }
 
@@ -385,6 +542,7 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
         const val STR_NOTES = "Notes"
 
         private const val FIXED_LENGTH_SIZE: Long = 128 // Approximate fixed length size
+        private const val UNKNOWN_SIZE: Long = -1
 
         fun newCustomNameAllowed(name: String): Boolean {
             return !(name.equals(STR_TITLE, true)
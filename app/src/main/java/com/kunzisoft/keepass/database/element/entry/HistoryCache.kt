@@ -0,0 +1,136 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.element.entry
+
+import android.os.Parcel
+import com.kunzisoft.keepass.database.element.binary.AttachmentPool
+import com.kunzisoft.keepass.database.element.binary.ChunkedCipherFile
+import com.kunzisoft.keepass.database.element.binary.LoadedKey
+import java.io.File
+import java.io.IOException
+import java.io.OutputStream
+
+/**
+ * Histories of the entries written in an encrypted cache file during the load,
+ * each history is decoded in [EntryKDBX] objects only when its entry needs it.
+ * The histories are appended until [finishWriting], then can only be read,
+ * the cipher file can't be reopened to append without truncating it.
+ */
+class HistoryCache(private val file: File,
+                   private val loadedKey: LoadedKey) {
+
+    private var outputStream: OutputStream? = null
+    private var writingFinished = false
+    private var length = 0L
+
+    @Synchronized
+    @Throws(IOException::class)
+    fun encode(history: List<EntryKDBX>,
+               dataSize: Long,
+               attachmentLabelsSize: Long,
+               attachmentKeys: List<Int>): EncodedHistory {
+        if (writingFinished)
+            throw IOException("Unable to encode an history after the end of the writing")
+        val parcel = Parcel.obtain()
+        val bytes = try {
+            parcel.writeTypedList(history)
+            parcel.marshall()
+        } finally {
+            parcel.recycle()
+        }
+        val stream = outputStream
+                ?: ChunkedCipherFile(file, loadedKey).getOutputStream().also { outputStream = it }
+        stream.write(bytes)
+        val encodedHistory = EncodedHistory(this, length, bytes.size,
+                history.size, dataSize, attachmentLabelsSize, attachmentKeys.toIntArray())
+        length += bytes.size
+        return encodedHistory
+    }
+
+    @Synchronized
+    @Throws(IOException::class)
+    fun finishWriting() {
+        writingFinished = true
+        outputStream?.close()
+        outputStream = null
+    }
+
+    @Synchronized
+    @Throws(IOException::class)
+    private fun decode(encodedHistory: EncodedHistory): ArrayList<EntryKDBX> {
+        finishWriting()
+        val bytes = ByteArray(encodedHistory.length)
+        val read = ChunkedCipherFile(file, loadedKey).read(encodedHistory.position, bytes, 0, bytes.size)
+        if (read != bytes.size)
+            throw IOException("Unable to read the history at position ${encodedHistory.position}")
+        val history = ArrayList<EntryKDBX>()
+        val parcel = Parcel.obtain()
+        try {
+            parcel.unmarshall(bytes, 0, bytes.size)
+            parcel.setDataPosition(0)
+            parcel.readTypedList(history, EntryKDBX.CREATOR)
+        } finally {
+            parcel.recycle()
+        }
+        return history
+    }
+
+    @Synchronized
+    fun clear() {
+        try {
+            finishWriting()
+        } catch (ignored: IOException) {}
+        file.delete()
+        length = 0L
+        writingFinished = false
+    }
+
+    /**
+     * Location of an history in the cache, with what must be known without decoding it
+     */
+    class EncodedHistory(private val historyCache: HistoryCache,
+                         val position: Long,
+                         val length: Int,
+                         val numberOfEntries: Int,
+                         val dataSize: Long,
+                         private val attachmentLabelsSize: Long,
+                         private val attachmentKeys: IntArray) {
+
+        fun getAttachmentKeys(): List<Int> {
+            return attachmentKeys.toList()
+        }
+
+        /**
+         * Same computation as the attachments of each entry, the data size depends on the compression
+         */
+        fun getAttachmentsSize(attachmentPool: AttachmentPool): Long {
+            var size = attachmentLabelsSize
+            for (key in attachmentKeys) {
+                size += attachmentPool[key]?.getSize() ?: 0
+            }
+            return size
+        }
+
+        @Throws(IOException::class)
+        fun decode(): ArrayList<EntryKDBX> {
+            return historyCache.decode(this)
+        }
+    }
+}
@@ -58,7 +58,7 @@ class GroupKDBX : GroupVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
     }
 
     override fun copyNodeId(nodeId: NodeId<UUID>): NodeId<UUID> {
-        return NodeIdUUID(nodeId.id)
+        return (nodeId as? NodeIdUUID)?.let { NodeIdUUID(it) } ?: NodeIdUUID(nodeId.id)
     }
 
     constructor() : super()
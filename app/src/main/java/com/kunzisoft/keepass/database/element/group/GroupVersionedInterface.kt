@@ -20,6 +20,7 @@
 package com.kunzisoft.keepass.database.element.group
 
 import com.kunzisoft.keepass.database.action.node.NodeHandler
+import com.kunzisoft.keepass.database.action.node.ParallelNodeHandler
 import com.kunzisoft.keepass.database.element.node.NodeVersionedInterface
 
 interface GroupVersionedInterface<Group: GroupVersionedInterface<Group, Entry>, Entry> : NodeVersionedInterface<Group> {
@@ -71,6 +72,24 @@ interface GroupVersionedInterface<Group: GroupVersionedInterface<Group, Entry>,
         return true
     }
 
+    /**
+     * Read only traversal of the children split across threads, each thread fills its own accumulator
+     * built with [accumulatorBuilder], all the accumulators are combined with [merge], see [ParallelTreeTraversal]
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <A> doForEachChildInParallel(accumulatorBuilder: () -> A,
+                                     entryHandler: ParallelNodeHandler<Entry, A>?,
+                                     groupHandler: ParallelNodeHandler<Group, A>?,
+                                     merge: (A, A) -> A,
+                                     stopIterationWhenGroupHandlerOperateFalse: Boolean = true): A {
+        return ParallelTreeTraversal.traverse(this as Group,
+                accumulatorBuilder,
+                entryHandler,
+                groupHandler,
+                merge,
+                stopIterationWhenGroupHandlerOperateFalse)
+    }
+
     fun searchChildEntry(criteria: (entry: Entry) -> Boolean): Entry? {
         return searchChildEntry(this, criteria)
     }
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.element.group
+
+import com.kunzisoft.keepass.database.action.node.ParallelNodeHandler
+import java.util.ArrayDeque
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Read only traversal of a tree split in tasks executed on a pool of threads.
+ *
+ * The tree is split breadth first in the calling thread, entries of a group in slices of [ENTRIES_BY_TASK]
+ * and the deepest groups as whole subtrees. Each task fills its own accumulator, merged at the end.
+ * A handler returning false stops the whole traversal,
+ * a group handler returning false skips the subtree if the iteration must not be stopped.
+ */
+object ParallelTreeTraversal {
+
+    private val THREADS = Runtime.getRuntime().availableProcessors()
+    private const val TASKS_BY_THREAD = 4
+    private const val ENTRIES_BY_TASK = 512
+
+    private val inTraversalThread = ThreadLocal<Boolean>()
+
+    private val executor: ExecutorService by lazy {
+        Executors.newFixedThreadPool(THREADS) { runnable ->
+            Thread({
+                inTraversalThread.set(true)
+                runnable.run()
+            }, "ParallelTreeTraversal").apply {
+                isDaemon = true
+            }
+        }
+    }
+
+    fun <Group: GroupVersionedInterface<Group, Entry>, Entry, A> traverse(
+            rootGroup: Group,
+            accumulatorBuilder: () -> A,
+            entryHandler: ParallelNodeHandler<Entry, A>?,
+            groupHandler: ParallelNodeHandler<Group, A>?,
+            merge: (A, A) -> A,
+            stopIterationWhenGroupHandlerOperateFalse: Boolean): A {
+
+        val visitor = Visitor(entryHandler, groupHandler, stopIterationWhenGroupHandlerOperateFalse)
+        val accumulator = accumulatorBuilder.invoke()
+
+        // No split in a single core or from a traversal thread, to not wait for tasks of the same pool
+        if (THREADS <= 1 || inTraversalThread.get() == true) {
+            visitor.visitChildren(rootGroup, accumulator)
+            return accumulator
+        }
+
+        // Split the tree, the group handler is called here for the groups split
+        val tasks = ArrayList<Task<Group, Entry>>()
+        val groupsToSplit = ArrayDeque<Group>()
+        groupsToSplit.add(rootGroup)
+        while (groupsToSplit.isNotEmpty()
+                && !visitor.isStopped()
+                && tasks.size + groupsToSplit.size < THREADS * TASKS_BY_THREAD) {
+            val group = groupsToSplit.poll()!!
+            group.getChildEntries().chunked(ENTRIES_BY_TASK).forEach { entries ->
+                tasks.add(Task(entries, null))
+            }
+            for (childGroup in group.getChildGroups()) {
+                if (visitor.operateGroup(childGroup, accumulator))
+                    groupsToSplit.add(childGroup)
+                if (visitor.isStopped())
+                    break
+            }
+        }
+        groupsToSplit.forEach { group ->
+            tasks.add(Task(emptyList(), group))
+        }
+        if (visitor.isStopped() || tasks.isEmpty())
+            return accumulator
+
+        val futures = ArrayList<Future<A>>()
+        tasks.forEach { task ->
+            futures.add(executor.submit(Callable {
+                val taskAccumulator = accumulatorBuilder.invoke()
+                visitor.visitEntries(task.entries, taskAccumulator)
+                task.subtree?.let { visitor.visitChildren(it, taskAccumulator) }
+                taskAccumulator
+            }))
+        }
+        var result = accumulator
+        futures.forEach { future ->
+            try {
+                result = merge.invoke(result, future.get())
+            } catch (e: ExecutionException) {
+                throw e.cause ?: e
+            }
+        }
+        return result
+    }
+
+    /**
+     * [entries] to visit, and [subtree] a group whose children are all visited
+     */
+    private class Task<Group, Entry>(val entries: List<Entry>, val subtree: Group?)
+
+    private class Visitor<Group: GroupVersionedInterface<Group, Entry>, Entry, A>(
+            private val entryHandler: ParallelNodeHandler<Entry, A>?,
+            private val groupHandler: ParallelNodeHandler<Group, A>?,
+            private val stopIterationWhenGroupHandlerOperateFalse: Boolean) {
+
+        private val stop = AtomicBoolean(false)
+
+        fun isStopped(): Boolean {
+            return stop.get()
+        }
+
+        /**
+         * Return true if the children of [group] must be visited
+         */
+        fun operateGroup(group: Group, accumulator: A): Boolean {
+            if (groupHandler != null && !groupHandler.operate(group, accumulator)) {
+                if (stopIterationWhenGroupHandlerOperateFalse)
+                    stop.set(true)
+                return false
+            }
+            return true
+        }
+
+        fun visitEntries(entries: List<Entry>, accumulator: A) {
+            if (entryHandler != null) {
+                for (entry in entries) {
+                    if (stop.get())
+                        return
+                    if (!entryHandler.operate(entry, accumulator)) {
+                        stop.set(true)
+                        return
+                    }
+                }
+            }
+        }
+
+        fun visitChildren(group: Group, accumulator: A) {
+            visitEntries(group.getChildEntries(), accumulator)
+            for (childGroup in group.getChildGroups()) {
+                if (stop.get())
+                    return
+                if (operateGroup(childGroup, accumulator))
+                    visitChildren(childGroup, accumulator)
+            }
+        }
+    }
+}
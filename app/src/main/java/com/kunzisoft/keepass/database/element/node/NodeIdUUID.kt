@@ -20,29 +20,46 @@
 package com.kunzisoft.keepass.database.element.node
 
 import android.os.Parcel
-import android.os.ParcelUuid
 import android.os.Parcelable
 import com.kunzisoft.keepass.utils.UuidUtil
 import java.util.*
 
+/**
+ * The UUID is kept as two longs, the [UUID] object is only built when requested
+ */
 class NodeIdUUID : NodeId<UUID> {
 
-    override var id: UUID = UUID.randomUUID()
+    var mostSignificantBits: Long = 0L
+        private set
+    var leastSignificantBits: Long = 0L
         private set
+    private var mUuid: UUID? = null
+
+    override val id: UUID
+        get() = mUuid ?: UUID(mostSignificantBits, leastSignificantBits).also { mUuid = it }
 
-    constructor(source: NodeIdUUID) : this(source.id)
+    constructor(source: NodeIdUUID) : this(source.mostSignificantBits, source.leastSignificantBits)
 
     constructor(uuid: UUID = UUID.randomUUID()) : super() {
-        this.id = uuid
+        this.mostSignificantBits = uuid.mostSignificantBits
+        this.leastSignificantBits = uuid.leastSignificantBits
+        this.mUuid = uuid
+    }
+
+    constructor(mostSignificantBits: Long, leastSignificantBits: Long) : super() {
+        this.mostSignificantBits = mostSignificantBits
+        this.leastSignificantBits = leastSignificantBits
     }
 
     constructor(parcel: Parcel) {
-        id = parcel.readParcelable<ParcelUuid>(ParcelUuid::class.java.classLoader)?.uuid ?: id
+        mostSignificantBits = parcel.readLong()
+        leastSignificantBits = parcel.readLong()
     }
 
     override fun writeToParcel(dest: Parcel, flags: Int) {
         super.writeToParcel(dest, flags)
-        dest.writeParcelable(ParcelUuid(id), flags)
+        dest.writeLong(mostSignificantBits)
+        dest.writeLong(leastSignificantBits)
     }
 
     override fun equals(other: Any?): Boolean {
@@ -53,11 +70,14 @@ class NodeIdUUID : NodeId<UUID> {
         if (other !is NodeIdUUID) {
             return false
         }
-        return this.id == other.id
+        return this.mostSignificantBits == other.mostSignificantBits
+                && this.leastSignificantBits == other.leastSignificantBits
     }
 
     override fun hashCode(): Int {
-        return id.hashCode()
+        // Same as UUID.hashCode()
+        val hilo = mostSignificantBits xor leastSignificantBits
+        return (hilo shr 32).toInt() xor hilo.toInt()
     }
 
     override fun toString(): String {
@@ -22,15 +22,34 @@ package com.kunzisoft.keepass.database.element.security
 import android.os.Parcel
 import android.os.Parcelable
 
+/**
+ * Field value stored encoded in UTF-8, the string is built only when read,
+ * and kept after the first read for an unprotected value
+ */
 class ProtectedString : Parcelable {
 
     var isProtected: Boolean = false
         private set
-    var stringValue: String = ""
+    // Never modified in place, so the same array can be shared between values
+    private var mValue: ByteArray = EMPTY_VALUE
+    // Decoded value, never kept for a protected value
+    private var mStringValue: String? = null
+
+    var stringValue: String
+        get() {
+            if (isProtected)
+                return String(mValue, Charsets.UTF_8)
+            return mStringValue ?: String(mValue, Charsets.UTF_8).also { mStringValue = it }
+        }
+        set(value) {
+            mValue = value.toByteArray(Charsets.UTF_8)
+            mStringValue = if (isProtected) null else value
+        }
 
     constructor(toCopy: ProtectedString) {
         this.isProtected = toCopy.isProtected
-        this.stringValue = toCopy.stringValue
+        this.mValue = toCopy.mValue
+        this.mStringValue = toCopy.mStringValue
     }
 
     constructor(enableProtection: Boolean = false, string: String = "") {
@@ -38,9 +57,17 @@ class ProtectedString : Parcelable {
         this.stringValue = string
     }
 
+    /**
+     * Value already encoded in UTF-8, [utf8Value] is kept as is and must not be modified after
+     */
+    constructor(enableProtection: Boolean, utf8Value: ByteArray) {
+        this.isProtected = enableProtection
+        this.mValue = utf8Value
+    }
+
     constructor(parcel: Parcel) {
         isProtected = parcel.readByte().toInt() != 0
-        stringValue = parcel.readString() ?: stringValue
+        mValue = parcel.createByteArray() ?: mValue
     }
 
     override fun describeContents(): Int {
@@ -49,11 +76,71 @@ class ProtectedString : Parcelable {
 
     override fun writeToParcel(dest: Parcel, flags: Int) {
         dest.writeByte((if (isProtected) 1 else 0).toByte())
-        dest.writeString(stringValue)
+        dest.writeByteArray(mValue)
     }
 
+    /**
+     * Number of UTF-16 chars of the value, as the length of [stringValue], computed on the UTF-8 bytes
+     */
     fun length(): Int {
-        return stringValue.length
+        var length = 0
+        for (byte in mValue) {
+            val value = byte.toInt() and 0xFF
+            when {
+                // Lead byte of a 4 bytes sequence, a surrogate pair in UTF-16
+                value >= 0xF0 -> length += 2
+                // Not a continuation byte
+                value and 0xC0 != 0x80 -> length++
+            }
+        }
+        return length
+    }
+
+    fun isEmpty(): Boolean {
+        return mValue.isEmpty()
+    }
+
+    /**
+     * True if the value contains [char], an ASCII char, without building the string
+     */
+    fun containsAsciiChar(char: Char): Boolean {
+        val asciiByte = char.toByte()
+        for (byte in mValue) {
+            if (byte == asciiByte)
+                return true
+        }
+        return false
+    }
+
+    /**
+     * True if the value contains [query] ignoring the case,
+     * compared directly on the UTF-8 bytes when the value and the query are ASCII
+     */
+    fun containsIgnoreCase(query: String): Boolean {
+        if (query.isEmpty())
+            return true
+        if (query.length > mValue.size)
+            return false
+        for (char in query) {
+            if (char.toInt() >= 0x80)
+                return stringValue.contains(query, true)
+        }
+        for (byte in mValue) {
+            // Non ASCII letters have their own case rules
+            if (byte < 0)
+                return stringValue.contains(query, true)
+        }
+        val lastStart = mValue.size - query.length
+        for (start in 0..lastStart) {
+            var index = 0
+            while (index < query.length
+                    && lowerAscii(mValue[start + index].toInt()) == lowerAscii(query[index].toInt())) {
+                index++
+            }
+            if (index == query.length)
+                return true
+        }
+        return false
     }
 
     override fun toString(): String {
@@ -62,6 +149,12 @@ class ProtectedString : Parcelable {
 
     companion object {
 
+        private val EMPTY_VALUE = ByteArray(0)
+
+        private fun lowerAscii(char: Int): Int {
+            return if (char in 'A'.toInt()..'Z'.toInt()) char + ('a' - 'A') else char
+        }
+
         @JvmField
         val CREATOR: Parcelable.Creator<ProtectedString> = object : Parcelable.Creator<ProtectedString> {
             override fun createFromParcel(parcel: Parcel): ProtectedString {
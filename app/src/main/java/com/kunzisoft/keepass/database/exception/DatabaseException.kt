@@ -86,6 +86,13 @@ class KDFMemoryDatabaseException : LoadDatabaseException {
     constructor(exception: Throwable) : super(exception)
 }
 
+class CancelledDatabaseException : LoadDatabaseException {
+    @StringRes
+    override var errorId: Int = R.string.error_load_database_cancelled
+    constructor() : super()
+    constructor(exception: Throwable) : super(exception)
+}
+
 class SignatureDatabaseException : LoadDatabaseException {
     @StringRes
     override var errorId: Int = R.string.invalid_db_sig
@@ -149,4 +156,15 @@ open class DatabaseOutputException : DatabaseException {
     constructor(string: String) : super(string)
     constructor(string: String, e: Exception) : super(string, e)
     constructor(e: Exception) : super(e)
+}
+
+/**
+ * The database couldn't be replaced, the saved database is kept in [savedCopyPath]
+ */
+class SaveCopyDatabaseException : DatabaseOutputException {
+    @StringRes
+    override var errorId: Int = R.string.error_save_database_copy_kept
+    constructor(savedCopyPath: String, e: Exception) : super(e) {
+        parameters = arrayOf(savedCopyPath)
+    }
 }
\ No newline at end of file
@@ -21,7 +21,6 @@ package com.kunzisoft.keepass.database.file
 
 import org.joda.time.DateTime
 import org.joda.time.DateTimeZone
-import org.joda.time.Duration
 import java.util.*
 
 object DateKDBXUtil {
@@ -31,16 +30,23 @@ object DateKDBXUtil {
     private val epochOffset = (javaEpoch.millis - dotNetEpoch.millis) / 1000L
 
     fun convertKDBX4Time(seconds: Long): Date {
-        val dt = dotNetEpoch.plus(seconds * 1000L)
+        return Date(convertKDBX4TimeToMillis(seconds))
+    }
+
+    /**
+     * Same conversion as [convertKDBX4Time] without intermediate date objects
+     */
+    fun convertKDBX4TimeToMillis(seconds: Long): Long {
+        val millis = (seconds - epochOffset) * 1000L
         // Switch corrupted dates to a more recent date that won't cause issues on the client
-        return if (dt.isBefore(javaEpoch)) {
-            javaEpoch.toDate()
-        } else dt.toDate()
+        return if (millis < javaEpoch.millis) javaEpoch.millis else millis
     }
 
     fun convertDateToKDBX4Time(date: Date): Long {
-        val duration = Duration(javaEpoch, DateTime(date))
-        val seconds = duration.millis / 1000L
-        return seconds + epochOffset
+        return convertMillisToKDBX4Time(date.time)
+    }
+
+    fun convertMillisToKDBX4Time(millis: Long): Long {
+        return millis / 1000L + epochOffset
     }
-}
\ No newline at end of file
+}
@@ -20,6 +20,7 @@
 package com.kunzisoft.keepass.database.file.input
 
 import android.util.Log
+import com.kunzisoft.encrypt.TransformationToken
 import com.kunzisoft.keepass.R
 import com.kunzisoft.keepass.database.element.binary.LoadedKey
 import com.kunzisoft.keepass.database.element.database.DatabaseVersioned
@@ -30,7 +31,9 @@ import java.io.InputStream
 
 abstract class DatabaseInput<D : DatabaseVersioned<*, *, *, *>>
     (protected val cacheDirectory: File,
-     protected val isRAMSufficient: (memoryWanted: Long) -> Boolean) {
+     protected val isRAMSufficient: (memoryWanted: Long) -> Boolean,
+     // To stop the key derivation when the load is abandoned and follow its progress
+     protected val transformationToken: TransformationToken? = null) {
 
     private var startTimeKey = System.currentTimeMillis()
     private var startTimeContent = System.currentTimeMillis()
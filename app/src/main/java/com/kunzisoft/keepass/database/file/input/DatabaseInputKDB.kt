@@ -21,6 +21,8 @@
 package com.kunzisoft.keepass.database.file.input
 
 import com.kunzisoft.encrypt.HashManager
+import com.kunzisoft.encrypt.TransformationCancelledException
+import com.kunzisoft.encrypt.TransformationToken
 import com.kunzisoft.keepass.database.crypto.EncryptionAlgorithm
 import com.kunzisoft.keepass.database.element.DateInstant
 import com.kunzisoft.keepass.database.element.binary.LoadedKey
@@ -47,8 +49,9 @@ import kotlin.collections.HashMap
  * Load a KDB database file.
  */
 class DatabaseInputKDB(cacheDirectory: File,
-                       isRAMSufficient: (memoryWanted: Long) -> Boolean)
-    : DatabaseInput<DatabaseKDB>(cacheDirectory, isRAMSufficient) {
+                       isRAMSufficient: (memoryWanted: Long) -> Boolean,
+                       transformationToken: TransformationToken? = null)
+    : DatabaseInput<DatabaseKDB>(cacheDirectory, isRAMSufficient, transformationToken) {
 
     private lateinit var mDatabase: DatabaseKDB
 
@@ -130,7 +133,8 @@ class DatabaseInputKDB(cacheDirectory: File,
             mDatabase.makeFinalKey(
                     header.masterSeed,
                     header.transformSeed,
-                    mDatabase.numberKeyEncryptionRounds)
+                    mDatabase.numberKeyEncryptionRounds,
+                    transformationToken)
 
             stopKeyTimer()
             startContentTimer(progressTaskUpdater)
@@ -325,6 +329,9 @@ class DatabaseInputKDB(cacheDirectory: File,
         } catch (e: LoadDatabaseException) {
             mDatabase.clearCache()
             throw e
+        } catch (e: TransformationCancelledException) {
+            mDatabase.clearCache()
+            throw CancelledDatabaseException(e)
         } catch (e: IOException) {
             mDatabase.clearCache()
             throw IODatabaseException(e)
@@ -22,6 +22,8 @@ package com.kunzisoft.keepass.database.file.input
 import android.util.Base64
 import android.util.Log
 import com.kunzisoft.encrypt.StreamCipher
+import com.kunzisoft.encrypt.TransformationCancelledException
+import com.kunzisoft.encrypt.TransformationToken
 import com.kunzisoft.keepass.database.crypto.CipherEngine
 import com.kunzisoft.keepass.database.crypto.CrsAlgorithm
 import com.kunzisoft.keepass.database.crypto.EncryptionAlgorithm
@@ -34,6 +36,7 @@ import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
 import com.kunzisoft.keepass.database.element.database.DatabaseKDBX.Companion.BASE_64_FLAG
 import com.kunzisoft.keepass.database.element.database.DatabaseVersioned
 import com.kunzisoft.keepass.database.element.entry.EntryKDBX
+import com.kunzisoft.keepass.database.element.entry.HistoryCache
 import com.kunzisoft.keepass.database.element.group.GroupKDBX
 import com.kunzisoft.keepass.database.element.node.NodeIdUUID
 import com.kunzisoft.keepass.database.element.node.NodeKDBXInterface
@@ -45,6 +48,7 @@ import com.kunzisoft.keepass.database.file.DatabaseKDBXXML
 import com.kunzisoft.keepass.database.file.DateKDBXUtil
 import com.kunzisoft.keepass.stream.HashedBlockInputStream
 import com.kunzisoft.keepass.stream.HmacBlockInputStream
+import com.kunzisoft.keepass.stream.PooledGzipInputStream
 import com.kunzisoft.keepass.tasks.ProgressTaskUpdater
 import com.kunzisoft.keepass.utils.*
 import org.xmlpull.v1.XmlPullParser
@@ -53,19 +57,17 @@ import org.xmlpull.v1.XmlPullParserFactory
 import java.io.File
 import java.io.IOException
 import java.io.InputStream
-import java.io.UnsupportedEncodingException
-import java.nio.charset.Charset
 import java.text.ParseException
 import java.util.*
-import java.util.zip.GZIPInputStream
 import javax.crypto.Cipher
 import javax.crypto.CipherInputStream
 import javax.crypto.Mac
 import kotlin.math.min
 
 class DatabaseInputKDBX(cacheDirectory: File,
-                        isRAMSufficient: (memoryWanted: Long) -> Boolean)
-    : DatabaseInput<DatabaseKDBX>(cacheDirectory, isRAMSufficient) {
+                        isRAMSufficient: (memoryWanted: Long) -> Boolean,
+                        transformationToken: TransformationToken? = null)
+    : DatabaseInput<DatabaseKDBX>(cacheDirectory, isRAMSufficient, transformationToken) {
 
     private var randomStream: StreamCipher? = null
     private lateinit var mDatabase: DatabaseKDBX
@@ -97,6 +99,19 @@ class DatabaseInputKDBX(cacheDirectory: File,
     private var entryCustomDataKey: String? = null
     private var entryCustomDataValue: String? = null
 
+    // Same instance for the names and the short values repeated in entries and histories
+    private val stringPool = StringPool(initialStrings = listOf(
+            EntryKDBX.STR_TITLE,
+            EntryKDBX.STR_USERNAME,
+            EntryKDBX.STR_PASSWORD,
+            EntryKDBX.STR_URL,
+            EntryKDBX.STR_NOTES))
+
+    // Reusable buffers to decode the dates and UUIDs of each node without intermediate strings
+    private val dateBuffer = ByteArray(8)
+    private val uuidBuffer = ByteArray(UUID_SIZE)
+    private val textHolder = IntArray(2)
+
     @Throws(LoadDatabaseException::class)
     override fun openDatabase(databaseInputStream: InputStream,
                               password: String?,
@@ -143,7 +158,7 @@ class DatabaseInputKDBX(cacheDirectory: File,
             val pbHeader = headerAndHash.header
 
             assignMasterKey?.invoke()
-            mDatabase.makeFinalKey(header.masterSeed)
+            mDatabase.makeFinalKey(header.masterSeed, transformationToken)
 
             stopKeyTimer()
             startContentTimer(progressTaskUpdater)
@@ -207,7 +222,7 @@ class DatabaseInputKDBX(cacheDirectory: File,
             }
 
             val inputStreamXml: InputStream = when (mDatabase.compressionAlgorithm) {
-                CompressionAlgorithm.GZip -> GZIPInputStream(plainInputStream)
+                CompressionAlgorithm.GZip -> PooledGzipInputStream(plainInputStream)
                 else -> plainInputStream
             }
 
@@ -227,12 +242,18 @@ class DatabaseInputKDBX(cacheDirectory: File,
             val xmlPullParser = xmlPullParserFactory.newPullParser().apply {
                 setInput(inputStreamXml, null)
             }
+            mDatabase.historyCache = mDatabase.binaryCache.cacheDirectory?.let { cacheDirectory ->
+                HistoryCache(File(cacheDirectory, HISTORY_CACHE_FILE), mDatabase.binaryCache.loadedCipherKey)
+            }
             readDocumentStreamed(xmlPullParser)
+            mDatabase.historyCache?.finishWriting()
 
             stopContentTimer()
 
         } catch (e: LoadDatabaseException) {
             throw e
+        } catch (e: TransformationCancelledException) {
+            throw CancelledDatabaseException(e)
         } catch (e: XmlPullParserException) {
             throw IODatabaseException(e)
         } catch (e: IOException) {
@@ -244,6 +265,8 @@ class DatabaseInputKDBX(cacheDirectory: File,
             throw NoMemoryDatabaseException(e)
         } catch (e: Exception) {
             throw LoadDatabaseException(e)
+        } finally {
+            stringPool.clear()
         }
 
         return mDatabase
@@ -515,7 +538,7 @@ class DatabaseInputKDBX(cacheDirectory: File,
             }
 
             KdbContext.Group -> if (name.equals(DatabaseKDBXXML.ElemUuid, ignoreCase = true)) {
-                ctxGroup?.nodeId = NodeIdUUID(readUuid(xpp))
+                ctxGroup?.nodeId = readNodeIdUUID(xpp)
                 ctxGroup?.let { mDatabase.addGroupIndex(it) }
             } else if (name.equals(DatabaseKDBXXML.ElemName, ignoreCase = true)) {
                 ctxGroup?.title = readString(xpp)
@@ -571,25 +594,25 @@ class DatabaseInputKDBX(cacheDirectory: File,
                 readUnknown(xpp)
             }
             KdbContext.GroupCustomDataItem -> when {
-                name.equals(DatabaseKDBXXML.ElemKey, ignoreCase = true) -> groupCustomDataKey = readString(xpp)
-                name.equals(DatabaseKDBXXML.ElemValue, ignoreCase = true) -> groupCustomDataValue = readString(xpp)
+                name.equals(DatabaseKDBXXML.ElemKey, ignoreCase = true) -> groupCustomDataKey = readPooledString(xpp)
+                name.equals(DatabaseKDBXXML.ElemValue, ignoreCase = true) -> groupCustomDataValue = readPooledString(xpp)
                 name.equals(DatabaseKDBXXML.ElemLastModTime, ignoreCase = true) -> readDateInstant(xpp) // Ignore
                 else -> readUnknown(xpp)
             }
 
 
             KdbContext.Entry -> if (name.equals(DatabaseKDBXXML.ElemUuid, ignoreCase = true)) {
-                ctxEntry?.nodeId = NodeIdUUID(readUuid(xpp))
+                ctxEntry?.nodeId = readNodeIdUUID(xpp)
             } else if (name.equals(DatabaseKDBXXML.ElemIcon, ignoreCase = true)) {
                 ctxEntry?.icon?.standard = mDatabase.getStandardIcon(readUInt(xpp, UnsignedInt(0)).toKotlinInt())
             } else if (name.equals(DatabaseKDBXXML.ElemCustomIconID, ignoreCase = true)) {
                 ctxEntry?.icon?.custom = mDatabase.getCustomIcon(readUuid(xpp))
             } else if (name.equals(DatabaseKDBXXML.ElemFgColor, ignoreCase = true)) {
-                ctxEntry?.foregroundColor = readString(xpp)
+                ctxEntry?.foregroundColor = readPooledString(xpp)
             } else if (name.equals(DatabaseKDBXXML.ElemBgColor, ignoreCase = true)) {
-                ctxEntry?.backgroundColor = readString(xpp)
+                ctxEntry?.backgroundColor = readPooledString(xpp)
             } else if (name.equals(DatabaseKDBXXML.ElemOverrideUrl, ignoreCase = true)) {
-                ctxEntry?.overrideURL = readString(xpp)
+                ctxEntry?.overrideURL = readPooledString(xpp)
             } else if (name.equals(DatabaseKDBXXML.ElemQualityCheck, ignoreCase = true)) {
                 ctxEntry?.qualityCheck = readBool(xpp, true)
             } else if (name.equals(DatabaseKDBXXML.ElemTags, ignoreCase = true)) {
@@ -622,8 +645,8 @@ class DatabaseInputKDBX(cacheDirectory: File,
                 readUnknown(xpp)
             }
             KdbContext.EntryCustomDataItem -> when {
-                name.equals(DatabaseKDBXXML.ElemKey, ignoreCase = true) -> entryCustomDataKey = readString(xpp)
-                name.equals(DatabaseKDBXXML.ElemValue, ignoreCase = true) -> entryCustomDataValue = readString(xpp)
+                name.equals(DatabaseKDBXXML.ElemKey, ignoreCase = true) -> entryCustomDataKey = readPooledString(xpp)
+                name.equals(DatabaseKDBXXML.ElemValue, ignoreCase = true) -> entryCustomDataValue = readPooledString(xpp)
                 name.equals(DatabaseKDBXXML.ElemLastModTime, ignoreCase = true) -> readDateInstant(xpp) // Ignore
                 else -> readUnknown(xpp)
             }
@@ -649,7 +672,7 @@ class DatabaseInputKDBX(cacheDirectory: File,
             }
 
             KdbContext.EntryString -> if (name.equals(DatabaseKDBXXML.ElemKey, ignoreCase = true)) {
-                ctxStringName = readString(xpp)
+                ctxStringName = readPooledString(xpp)
             } else if (name.equals(DatabaseKDBXXML.ElemValue, ignoreCase = true)) {
                 ctxStringValue = readProtectedString(xpp)
             } else {
@@ -657,7 +680,7 @@ class DatabaseInputKDBX(cacheDirectory: File,
             }
 
             KdbContext.EntryBinary -> if (name.equals(DatabaseKDBXXML.ElemKey, ignoreCase = true)) {
-                ctxBinaryName = readString(xpp)
+                ctxBinaryName = readPooledString(xpp)
             } else if (name.equals(DatabaseKDBXXML.ElemValue, ignoreCase = true)) {
                 ctxBinaryValue = readBinary(xpp)
             }
@@ -667,7 +690,7 @@ class DatabaseInputKDBX(cacheDirectory: File,
             } else if (name.equals(DatabaseKDBXXML.ElemAutoTypeObfuscation, ignoreCase = true)) {
                 ctxEntry?.autoType?.obfuscationOptions = readUInt(xpp, UnsignedInt(0))
             } else if (name.equals(DatabaseKDBXXML.ElemAutoTypeDefaultSeq, ignoreCase = true)) {
-                ctxEntry?.autoType?.defaultSequence = readString(xpp)
+                ctxEntry?.autoType?.defaultSequence = readPooledString(xpp)
             } else if (name.equals(DatabaseKDBXXML.ElemAutoTypeItem, ignoreCase = true)) {
                 return switchContext(ctx, KdbContext.EntryAutoTypeItem, xpp)
             } else {
@@ -675,9 +698,9 @@ class DatabaseInputKDBX(cacheDirectory: File,
             }
 
             KdbContext.EntryAutoTypeItem -> if (name.equals(DatabaseKDBXXML.ElemWindow, ignoreCase = true)) {
-                ctxATName = readString(xpp)
+                ctxATName = readPooledString(xpp)
             } else if (name.equals(DatabaseKDBXXML.ElemKeystrokeSequence, ignoreCase = true)) {
-                ctxATSeq = readString(xpp)
+                ctxATSeq = readPooledString(xpp)
             } else {
                 readUnknown(xpp)
             }
@@ -765,6 +788,8 @@ class DatabaseInputKDBX(cacheDirectory: File,
                 ctxGroup?.nodeId = mDatabase.newGroupId()
                 mDatabase.addGroupIndex(ctxGroup!!)
             }
+            // Group indexed when its UUID is read, refresh it with all its values
+            ctxGroup?.let { mDatabase.refreshGroupIndex(it) }
 
             ctxGroups.pop()
 
@@ -841,6 +866,10 @@ class DatabaseInputKDBX(cacheDirectory: File,
             entryCustomDataValue = null
             return KdbContext.EntryCustomData
         } else if (ctx == KdbContext.EntryHistory && name.equals(DatabaseKDBXXML.ElemHistory, ignoreCase = true)) {
+            // Keep the history encoded until it's retrieved
+            mDatabase.historyCache?.let { historyCache ->
+                ctxEntry?.encodeHistory(historyCache)
+            }
             entryInHistory = false
             return KdbContext.Entry
         } else if (ctx == KdbContext.RootDeletedObjects && name.equals(DatabaseKDBXXML.ElemDeletedObjects, ignoreCase = true)) {
@@ -859,33 +888,27 @@ class DatabaseInputKDBX(cacheDirectory: File,
 
     @Throws(IOException::class, XmlPullParserException::class)
     private fun readDateInstant(xpp: XmlPullParser): DateInstant {
-        val sDate = readString(xpp)
-        var utcDate: Date? = null
-
         if (mDatabase.kdbxVersion.isBefore(FILE_VERSION_40)) {
+            val sDate = readString(xpp)
+            var utcDate: Date? = null
             try {
                 utcDate = DatabaseKDBXXML.DateFormatter.parse(sDate)
             } catch (e: ParseException) {
                 // Catch with null test below
             }
-        } else {
-            var buf = Base64.decode(sDate, BASE_64_FLAG)
-            if (buf.size != 8) {
-                val buf8 = ByteArray(8)
-                System.arraycopy(buf, 0, buf8, 0, min(buf.size, 8))
-                buf = buf8
-            }
-
-            val seconds = bytes64ToLong(buf)
-            utcDate = DateKDBXUtil.convertKDBX4Time(seconds)
+            return DateInstant(utcDate ?: Date(0L))
         }
 
-        return DateInstant(utcDate ?: Date(0L))
+        // Decoded directly in the reusable buffer, padded with zeros if too short
+        dateBuffer.fill(0)
+        readBase64Bytes(xpp, dateBuffer)
+        val seconds = bytes64ToLong(dateBuffer, 0)
+        return DateInstant(DateKDBXUtil.convertKDBX4TimeToMillis(seconds))
     }
 
     @Throws(IOException::class, XmlPullParserException::class)
     private fun readTags(xpp: XmlPullParser): Tags {
-        return Tags(readString(xpp))
+        return Tags(readString(xpp).split(';').map { stringPool.intern(it) })
     }
 
     @Throws(XmlPullParserException::class, IOException::class)
@@ -926,19 +949,41 @@ class DatabaseInputKDBX(cacheDirectory: File,
 
     @Throws(IOException::class, XmlPullParserException::class)
     private fun readUuid(xpp: XmlPullParser): UUID {
-        val encoded = readString(xpp)
+        return when (readUuidBuffer(xpp)) {
+            0 -> DatabaseVersioned.UUID_ZERO
+            UUID_SIZE -> bytes16ToUuid(uuidBuffer)
+            else -> UUID.randomUUID()
+        }
+    }
 
-        if (encoded.isEmpty()) {
-            return DatabaseVersioned.UUID_ZERO
+    /**
+     * Same as [readUuid] but the node id is built from the bits, without UUID object
+     */
+    @Throws(IOException::class, XmlPullParserException::class)
+    private fun readNodeIdUUID(xpp: XmlPullParser): NodeIdUUID {
+        return when (readUuidBuffer(xpp)) {
+            0 -> NodeIdUUID(DatabaseVersioned.UUID_ZERO)
+            UUID_SIZE -> NodeIdUUID(bytes64ToLong(uuidBuffer, 0), bytes64ToLong(uuidBuffer, 8))
+            else -> NodeIdUUID()
         }
+    }
 
-        return try {
-            val buf = Base64.decode(encoded, BASE_64_FLAG)
-            bytes16ToUuid(buf)
-        } catch (e: Exception) {
+    /**
+     * Decode the base 64 UUID in [uuidBuffer], return its size, or -1 if it can't be read
+     */
+    @Throws(IOException::class, XmlPullParserException::class)
+    private fun readUuidBuffer(xpp: XmlPullParser): Int {
+        val size = try {
+            readBase64Bytes(xpp, uuidBuffer)
+        } catch (e: IllegalArgumentException) {
             Log.e(TAG, "Unable to read base 64 UUID, create a random one", e)
-            UUID.randomUUID()
+            return -1
+        }
+        if (size in 1 until UUID_SIZE) {
+            Log.e(TAG, "Unable to read base 64 UUID of $size bytes, create a random one")
+            return -1
         }
+        return size
     }
 
     @Throws(IOException::class, XmlPullParserException::class)
@@ -982,15 +1027,11 @@ class DatabaseInputKDBX(cacheDirectory: File,
         val buf = readProtectedBase64String(xpp)
 
         if (buf != null) {
-            try {
-                return ProtectedString(true, String(buf, Charset.forName("UTF-8")))
-            } catch (e: UnsupportedEncodingException) {
-                e.printStackTrace()
-                throw IOException(e.localizedMessage)
-            }
+            // Already encoded in UTF-8, no string to build
+            return ProtectedString(true, buf)
         }
 
-        return ProtectedString(false, readString(xpp))
+        return ProtectedString(false, stringPool.internUtf8(readString(xpp)))
     }
 
     @Throws(XmlPullParserException::class, IOException::class)
@@ -1070,24 +1111,57 @@ class DatabaseInputKDBX(cacheDirectory: File,
         val buf = readProtectedBase64String(xpp)
 
         if (buf != null) {
-            try {
-                return String(buf, Charset.forName("UTF-8"))
-            } catch (e: UnsupportedEncodingException) {
-                throw IOException(e)
-            }
+            return String(buf, Charsets.UTF_8)
         }
 
         return xpp.safeNextText()
     }
 
 
+    /**
+     * Read a string shared with the equal strings already read during the load
+     */
+    @Throws(IOException::class, XmlPullParserException::class)
+    private fun readPooledString(xpp: XmlPullParser): String {
+        return stringPool.intern(readString(xpp))
+    }
+
+    /**
+     * Decode the base 64 text of the current element in [output] directly from the parser buffer,
+     * the bytes beyond the size of [output] are dropped, return the number of bytes decoded
+     */
+    @Throws(IOException::class, XmlPullParserException::class, IllegalArgumentException::class)
+    private fun readBase64Bytes(xpp: XmlPullParser, output: ByteArray): Int {
+        if (xpp.attributeCount > 0) {
+            // Protected value, rare for these elements
+            val bytes = Base64.decode(readString(xpp), BASE_64_FLAG)
+            System.arraycopy(bytes, 0, output, 0, min(bytes.size, output.size))
+            return min(bytes.size, output.size)
+        }
+        var size = 0
+        var eventType = xpp.next()
+        if (eventType == XmlPullParser.TEXT) {
+            val chars = xpp.getTextCharacters(textHolder)
+            size = Base64Util.decode(chars, textHolder[0], textHolder[1], output)
+            eventType = xpp.next()
+        }
+        if (eventType != XmlPullParser.END_TAG) {
+            xpp.nextTag()
+        }
+        return size
+    }
+
     @Throws(XmlPullParserException::class, IOException::class)
     private fun readProtectedBase64String(xpp: XmlPullParser): ByteArray? {
         if (xpp.attributeCount > 0) {
             val protect = xpp.getAttributeValue(null, DatabaseKDBXXML.AttrProtected)
             if (protect != null && protect.equals(DatabaseKDBXXML.ValTrue, ignoreCase = true)) {
                 Base64.decode(xpp.safeNextText(), BASE_64_FLAG)?.let { data ->
-                    return randomStream?.processBytes(data)
+                    // The decoded array is not shared, no copy needed
+                    return randomStream?.let { stream ->
+                        stream.processBytesInPlace(data)
+                        data
+                    }
                 }
                 return ByteArray(0)
             }
@@ -1111,6 +1185,10 @@ class DatabaseInputKDBX(cacheDirectory: File,
         private val TAG = DatabaseInputKDBX::class.java.name
 
         private val DEFAULT_HISTORY_DAYS = UnsignedInt(365)
+
+        private const val HISTORY_CACHE_FILE = "history_cache"
+
+        private const val UUID_SIZE = 16
     }
 
 }
@@ -26,11 +26,13 @@ import com.kunzisoft.keepass.database.element.group.GroupKDB
 import com.kunzisoft.keepass.database.exception.DatabaseOutputException
 import com.kunzisoft.keepass.database.file.DatabaseHeader
 import com.kunzisoft.keepass.database.file.DatabaseHeaderKDB
+import com.kunzisoft.keepass.stream.SpillableOutputStream
 import com.kunzisoft.keepass.utils.UnsignedInt
 import com.kunzisoft.keepass.utils.write2BytesUShort
 import com.kunzisoft.keepass.utils.write4BytesUInt
 import java.io.BufferedOutputStream
 import java.io.ByteArrayOutputStream
+import java.io.File
 import java.io.IOException
 import java.io.OutputStream
 import java.security.*
@@ -43,6 +45,8 @@ class DatabaseOutputKDB(private val mDatabaseKDB: DatabaseKDB,
     : DatabaseOutput<DatabaseHeaderKDB>(outputStream) {
 
     private var headerHashBlock: ByteArray? = null
+    // Groups and entries serialized once, to compute the content checksum then to be encrypted
+    private var mContentBuffer: SpillableOutputStream? = null
 
     @Throws(DatabaseOutputException::class)
     fun getFinalKey(header: DatabaseHeader): ByteArray? {
@@ -63,32 +67,40 @@ class DatabaseOutputKDB(private val mDatabaseKDB: DatabaseKDB,
         val rootGroup = mDatabaseKDB.rootGroup
         sortGroupsForOutput()
 
-        val header = outputHeader(mOutputStream)
+        try {
+            val header = outputHeader(mOutputStream)
 
-        val finalKey = getFinalKey(header)
+            val finalKey = getFinalKey(header)
 
-        val cipher: Cipher = try {
-            mDatabaseKDB.encryptionAlgorithm
-                    .cipherEngine.getCipher(Cipher.ENCRYPT_MODE,
-                            finalKey ?: ByteArray(0),
-                            header.encryptionIV)
-        } catch (e: Exception) {
-            throw IOException("Algorithm not supported.", e)
-        }
+            val cipher: Cipher = try {
+                mDatabaseKDB.encryptionAlgorithm
+                        .cipherEngine.getCipher(Cipher.ENCRYPT_MODE,
+                                finalKey ?: ByteArray(0),
+                                header.encryptionIV)
+            } catch (e: Exception) {
+                throw IOException("Algorithm not supported.", e)
+            }
 
-        try {
-            val cos = CipherOutputStream(mOutputStream, cipher)
-            val bos = BufferedOutputStream(cos)
-            outputPlanGroupAndEntries(bos)
-            bos.flush()
-            bos.close()
-        } catch (e: InvalidKeyException) {
-            throw DatabaseOutputException("Invalid key", e)
-        } catch (e: InvalidAlgorithmParameterException) {
-            throw DatabaseOutputException("Invalid algorithm parameter.", e)
-        } catch (e: IOException) {
-            throw DatabaseOutputException("Failed to output final encrypted part.", e)
+            try {
+                val cos = CipherOutputStream(mOutputStream, cipher)
+                val bos = BufferedOutputStream(cos)
+                // Content already serialized to compute the checksum of the header
+                mContentBuffer?.getInputStream()?.use { inputStream ->
+                    inputStream.copyTo(bos)
+                }
+                bos.flush()
+                bos.close()
+            } catch (e: InvalidKeyException) {
+                throw DatabaseOutputException("Invalid key", e)
+            } catch (e: InvalidAlgorithmParameterException) {
+                throw DatabaseOutputException("Invalid algorithm parameter.", e)
+            } catch (e: IOException) {
+                throw DatabaseOutputException("Failed to output final encrypted part.", e)
+            }
         } finally {
+            // The content buffer can be spilled in a temp file from the header output
+            mContentBuffer?.delete()
+            mContentBuffer = null
             // Add again the virtual root group for better management
             mDatabaseKDB.rootGroup = rootGroup
         }
@@ -146,8 +158,13 @@ class DatabaseOutputKDB(private val mDatabaseKDB: DatabaseKDB,
         // Content checksum
         val messageDigest: MessageDigest = HashManager.getHash256()
 
-        // Output database for the purpose of calculating the content checksum
-        val dos = DigestOutputStream(NullOutputStream(), messageDigest)
+        // Output database in a buffer and calculate the content checksum at the same time
+        val binaryCache = mDatabaseKDB.binaryCache
+        val contentBuffer = SpillableOutputStream(CONTENT_MEMORY_THRESHOLD,
+                binaryCache.cacheDirectory?.let { File(it, CONTENT_TEMP_FILE) },
+                binaryCache.loadedCipherKey)
+        mContentBuffer = contentBuffer
+        val dos = DigestOutputStream(contentBuffer, messageDigest)
         val bos = BufferedOutputStream(dos)
         try {
             outputPlanGroupAndEntries(bos)
@@ -163,11 +180,8 @@ class DatabaseOutputKDB(private val mDatabaseKDB: DatabaseKDB,
         pho = DatabaseHeaderOutputKDB(header, outputStream)
         try {
             pho.outputStart()
-            dos.on(false)
             pho.outputContentHash()
-            dos.on(true)
             pho.outputEnd()
-            dos.flush()
         } catch (e: IOException) {
             throw DatabaseOutputException(e)
         }
@@ -179,6 +193,12 @@ class DatabaseOutputKDB(private val mDatabaseKDB: DatabaseKDB,
         override fun write(oneByte: Int) {}
     }
 
+    companion object {
+        // Above this size, the serialized content is written in an encrypted temp file
+        private const val CONTENT_MEMORY_THRESHOLD = 4 * 1024 * 1024
+        private const val CONTENT_TEMP_FILE = "kdb_content_temp"
+    }
+
     @Throws(DatabaseOutputException::class)
     fun outputPlanGroupAndEntries(outputStream: OutputStream) {
 
@@ -36,6 +36,8 @@ import com.kunzisoft.keepass.database.element.database.DatabaseVersioned
 import com.kunzisoft.keepass.database.element.entry.AutoType
 import com.kunzisoft.keepass.database.element.entry.EntryKDBX
 import com.kunzisoft.keepass.database.element.group.GroupKDBX
+import com.kunzisoft.keepass.database.element.node.NodeId
+import com.kunzisoft.keepass.database.element.node.NodeIdUUID
 import com.kunzisoft.keepass.database.element.node.NodeKDBXInterface
 import com.kunzisoft.keepass.database.element.security.MemoryProtectionConfig
 import com.kunzisoft.keepass.database.exception.DatabaseOutputException
@@ -45,24 +47,29 @@ import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX.Companion.FILE_VER
 import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX.Companion.FILE_VERSION_41
 import com.kunzisoft.keepass.database.file.DatabaseKDBXXML
 import com.kunzisoft.keepass.database.file.DateKDBXUtil
+import com.kunzisoft.keepass.stream.CopyOutputStream
 import com.kunzisoft.keepass.stream.HashedBlockOutputStream
 import com.kunzisoft.keepass.stream.HmacBlockOutputStream
+import com.kunzisoft.keepass.stream.ParallelGzipOutputStream
+import com.kunzisoft.keepass.stream.PipelineOutputStream
 import com.kunzisoft.keepass.utils.*
 import org.joda.time.DateTime
 import org.xmlpull.v1.XmlSerializer
 import java.io.IOException
+import java.io.InputStream
 import java.io.OutputStream
 import java.security.NoSuchAlgorithmException
 import java.security.SecureRandom
 import java.util.*
-import java.util.zip.GZIPOutputStream
+import java.util.zip.Deflater
 import javax.crypto.Cipher
 import javax.crypto.CipherOutputStream
 import kotlin.experimental.or
 
 
 class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
-                         outputStream: OutputStream)
+                         outputStream: OutputStream,
+                         private val compressionLevel: Int = Deflater.DEFAULT_COMPRESSION)
     : DatabaseOutput<DatabaseHeaderKDBX>(outputStream) {
 
     private var randomStream: StreamCipher? = null
@@ -72,6 +79,41 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
     private var headerHmac: ByteArray? = null
     private var engine: CipherEngine? = null
 
+    // Reusable buffers to encode the dates and UUIDs of each node without intermediate strings
+    private val dateBuffer = ByteArray(8)
+    private val uuidBuffer = ByteArray(16)
+    private val base64Buffer = CharArray(Base64Util.encodedLength(16))
+
+    /**
+     * Stream receiving a copy of the payload (inner header and XML before compression) of a KDBX 4 file,
+     * written in its own stage of the pipeline, [isPayloadCopied] tells if the copy was made
+     */
+    var payloadOutputStream: OutputStream? = null
+    var isPayloadCopied = false
+        private set
+
+    /**
+     * Payload copied by [payloadOutputStream] written instead of the content of the database,
+     * to rebuild a KDBX 4 file with the current credentials and settings
+     */
+    var payloadInputStream: InputStream? = null
+
+    // Stages of the save, each one with its thread
+    private val pipelineStages = ArrayList<PipelineOutputStream>()
+    // Compression threads, fed by a stage
+    private var gzipOutputStream: ParallelGzipOutputStream? = null
+
+    /**
+     * Write [outputStream] in a new stage of the pipeline, or directly with a single core
+     */
+    private fun pipeline(outputStream: OutputStream, name: String): OutputStream {
+        if (THREADS <= 1)
+            return outputStream
+        return PipelineOutputStream(outputStream, name).also {
+            pipelineStages.add(it)
+        }
+    }
+
     @Throws(DatabaseOutputException::class)
     override fun output() {
 
@@ -84,8 +126,11 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
 
             header = outputHeader(mOutputStream)
 
+            // The XML is serialized in the current thread, compressed and encrypted in a second one,
+            // the blocks are hashed and written in the file by a third one
             val osPlain: OutputStream = if (header!!.version.isBefore(FILE_VERSION_40)) {
-                val cos = attachStreamEncryptor(header!!, mOutputStream)
+                val cos = attachStreamEncryptor(header!!,
+                        pipeline(mOutputStream, "DatabaseOutputKDBX write"))
                 cos.write(header!!.streamStartBytes)
 
                 HashedBlockOutputStream(cos)
@@ -93,21 +138,44 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
                 mOutputStream.write(hashOfHeader!!)
                 mOutputStream.write(headerHmac!!)
 
-                attachStreamEncryptor(header!!, HmacBlockOutputStream(mOutputStream, mDatabaseKDBX.hmacKey!!))
+                attachStreamEncryptor(header!!,
+                        pipeline(HmacBlockOutputStream(mOutputStream, mDatabaseKDBX.hmacKey!!),
+                                "DatabaseOutputKDBX write"))
             }
 
-            val xmlOutputStream: OutputStream
+            var xmlOutputStream: OutputStream
             try {
-                xmlOutputStream = when(mDatabaseKDBX.compressionAlgorithm) {
-                    CompressionAlgorithm.GZip -> GZIPOutputStream(osPlain)
+                xmlOutputStream = pipeline(when(mDatabaseKDBX.compressionAlgorithm) {
+                    CompressionAlgorithm.GZip -> ParallelGzipOutputStream(osPlain, compressionLevel).also {
+                        gzipOutputStream = it
+                    }
                     else -> osPlain
+                }, "DatabaseOutputKDBX encrypt")
+
+                val payloadIsSelfContained = !header!!.version.isBefore(FILE_VERSION_40)
+                payloadOutputStream?.let { copyStream ->
+                    if (payloadIsSelfContained) {
+                        xmlOutputStream = CopyOutputStream(xmlOutputStream,
+                                pipeline(copyStream, "DatabaseOutputKDBX copy"))
+                        isPayloadCopied = true
+                    }
                 }
 
-                if (!header!!.version.isBefore(FILE_VERSION_40)) {
-                    outputInnerHeader(mDatabaseKDBX, header!!, xmlOutputStream)
-                }
+                val payload = payloadInputStream
+                if (payload != null) {
+                    // Before KDBX 4, the payload depends on the outer header
+                    if (!payloadIsSelfContained)
+                        throw DatabaseOutputException("Payload can only be written in a KDBX 4 file")
+                    payload.readAllBytes { buffer ->
+                        xmlOutputStream.write(buffer)
+                    }
+                } else {
+                    if (payloadIsSelfContained) {
+                        outputInnerHeader(mDatabaseKDBX, header!!, xmlOutputStream)
+                    }
 
-                outputDatabase(xmlOutputStream)
+                    outputDatabase(xmlOutputStream)
+                }
                 xmlOutputStream.close()
             } catch (e: IllegalArgumentException) {
                 throw DatabaseOutputException(e)
@@ -117,6 +185,13 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
 
         } catch (e: IOException) {
             throw DatabaseOutputException(e)
+        } finally {
+            // Stop the threads if the save failed, without effect on the closed stages
+            pipelineStages.forEach { it.abort() }
+            pipelineStages.clear()
+            // Once no stage writes in it
+            gzipOutputStream?.abort()
+            gzipOutputStream = null
         }
     }
 
@@ -353,7 +428,7 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun startGroup(group: GroupKDBX) {
         xml.startTag(null, DatabaseKDBXXML.ElemGroup)
-        writeUuid(DatabaseKDBXXML.ElemUuid, group.id)
+        writeUuid(DatabaseKDBXXML.ElemUuid, group.nodeId)
         writeString(DatabaseKDBXXML.ElemName, group.title)
         writeString(DatabaseKDBXXML.ElemNotes, group.notes)
         writeLong(DatabaseKDBXXML.ElemIcon, group.icon.standard.id.toLong())
@@ -382,7 +457,7 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
 
         xml.startTag(null, DatabaseKDBXXML.ElemEntry)
 
-        writeUuid(DatabaseKDBXXML.ElemUuid, entry.id)
+        writeUuid(DatabaseKDBXXML.ElemUuid, entry.nodeId)
         writeLong(DatabaseKDBXXML.ElemIcon, entry.icon.standard.id.toLong())
 
         if (!entry.icon.custom.isUnknown) {
@@ -406,7 +481,8 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
         writeAutoType(entry.autoType)
 
         if (!isHistory) {
-            writeEntryHistory(entry.history)
+            // Decoded only to be written, an history not modified stays in the cache
+            writeEntryHistory(entry.getHistoryEntries())
         }
 
         xml.endTag(null, DatabaseKDBXXML.ElemEntry)
@@ -428,13 +504,11 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeDateInstant(name: String, value: DateInstant) {
-        val date = value.date
         if (header!!.version.isBefore(FILE_VERSION_40)) {
-            writeString(name, DatabaseKDBXXML.DateFormatter.format(date))
+            writeString(name, DatabaseKDBXXML.DateFormatter.format(value.date))
         } else {
-            val buf = longTo8Bytes(DateKDBXUtil.convertDateToKDBX4Time(date))
-            val b64 = String(Base64.encode(buf, BASE_64_FLAG))
-            writeString(name, b64)
+            longTo8Bytes(DateKDBXUtil.convertMillisToKDBX4Time(value.time), dateBuffer, 0)
+            writeBase64(name, dateBuffer)
         }
     }
 
@@ -456,8 +530,34 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
 
     @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
     private fun writeUuid(name: String, uuid: UUID) {
-        val data = uuidTo16Bytes(uuid)
-        writeString(name, String(Base64.encode(data, BASE_64_FLAG)))
+        writeUuid(name, uuid.mostSignificantBits, uuid.leastSignificantBits)
+    }
+
+    @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
+    private fun writeUuid(name: String, nodeId: NodeId<UUID>) {
+        if (nodeId is NodeIdUUID) {
+            writeUuid(name, nodeId.mostSignificantBits, nodeId.leastSignificantBits)
+        } else {
+            writeUuid(name, nodeId.id)
+        }
+    }
+
+    @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
+    private fun writeUuid(name: String, mostSignificantBits: Long, leastSignificantBits: Long) {
+        longTo8Bytes(mostSignificantBits, uuidBuffer, 0)
+        longTo8Bytes(leastSignificantBits, uuidBuffer, 8)
+        writeBase64(name, uuidBuffer)
+    }
+
+    /**
+     * Write the base 64 of [data] from the reusable char buffer, without intermediate string
+     */
+    @Throws(IllegalArgumentException::class, IllegalStateException::class, IOException::class)
+    private fun writeBase64(name: String, data: ByteArray) {
+        val length = Base64Util.encode(data, base64Buffer)
+        xml.startTag(null, name)
+        xml.text(base64Buffer, 0, length)
+        xml.endTag(null, name)
     }
 
     /*
@@ -576,8 +676,9 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
 
         if (protect) {
             xml.attribute(null, DatabaseKDBXXML.AttrProtected, DatabaseKDBXXML.ValTrue)
-            val data = value.toString().toByteArray()
-            val encoded = randomStream?.processBytes(data) ?: ByteArray(0)
+            val encoded = randomStream?.let { stream ->
+                value.toString().toByteArray().also { stream.processBytesInPlace(it) }
+            } ?: ByteArray(0)
             xml.text(String(Base64.encode(encoded, BASE_64_FLAG)))
         } else {
             xml.text(value.toString())
@@ -781,5 +882,7 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX,
 
     companion object {
         private val TAG = DatabaseOutputKDBX::class.java.name
+
+        private val THREADS = Runtime.getRuntime().availableProcessors()
     }
 }
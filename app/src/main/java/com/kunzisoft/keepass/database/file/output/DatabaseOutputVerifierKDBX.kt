@@ -0,0 +1,256 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.file.output
+
+import com.kunzisoft.encrypt.HashManager
+import com.kunzisoft.keepass.database.crypto.EncryptionAlgorithm
+import com.kunzisoft.keepass.database.crypto.HmacBlock
+import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
+import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX
+import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX.Companion.FILE_VERSION_40
+import com.kunzisoft.keepass.stream.CopyInputStream
+import com.kunzisoft.keepass.utils.*
+import java.io.*
+import java.security.MessageDigest
+import java.util.*
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import javax.crypto.Cipher
+import javax.crypto.CipherInputStream
+
+/**
+ * Verification of a file just written by [DatabaseOutputKDBX], with the final key and the HMAC key
+ * computed for this save, so the key derivation is not run again.
+ *
+ * KDBX 4: the hash and the HMAC of the header, then the HMAC of each block, verified in parallel.
+ * KDBX 3.1: the stream start bytes and the hash of each block, after decryption.
+ */
+class DatabaseOutputVerifierKDBX(private val mDatabaseKDBX: DatabaseKDBX,
+                                 private val threads: Int = THREADS) {
+
+    private class Header(val bytes: ByteArray,
+                         val version: UnsignedInt,
+                         val cipherId: ByteArray?,
+                         val encryptionIV: ByteArray?,
+                         val streamStartBytes: ByteArray?)
+
+    private class Block(val index: Long,
+                        val storedHmac: ByteArray,
+                        val sizeBytes: ByteArray,
+                        val data: ByteArray)
+
+    @Throws(IOException::class)
+    fun verify(inputStream: InputStream) {
+        val input = DataInputStream(inputStream)
+        val header = readHeader(input)
+        if (header.version.isBefore(FILE_VERSION_40)) {
+            verifyHashedBlocks(input, header)
+        } else {
+            verifyHeaderHmac(input, header)
+            verifyHmacBlocks(input)
+            if (input.read() != -1)
+                throw IOException("Data after the last block")
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun readHeader(input: DataInputStream): Header {
+        val headerBytes = ByteArrayOutputStream()
+        val headerInput = DataInputStream(CopyInputStream(input, headerBytes))
+
+        val sig1 = headerInput.readBytes4ToUInt()
+        val sig2 = headerInput.readBytes4ToUInt()
+        if (!DatabaseHeaderKDBX.matchesHeader(sig1, sig2))
+            throw IOException("Invalid signature")
+        val version = headerInput.readBytes4ToUInt()
+
+        var cipherId: ByteArray? = null
+        var encryptionIV: ByteArray? = null
+        var streamStartBytes: ByteArray? = null
+        while (true) {
+            val fieldId = headerInput.readByte()
+            val fieldSize = if (version.isBefore(FILE_VERSION_40))
+                headerInput.readBytes2ToUShort()
+            else
+                headerInput.readBytes4ToUInt().toKotlinInt()
+            if (fieldSize < 0 || fieldSize > MAX_HEADER_FIELD_SIZE)
+                throw IOException("Invalid header field size")
+            val fieldData = ByteArray(fieldSize)
+            headerInput.readFully(fieldData)
+            when (fieldId) {
+                DatabaseHeaderKDBX.PwDbHeaderV4Fields.EndOfHeader -> {
+                    return Header(headerBytes.toByteArray(), version,
+                            cipherId, encryptionIV, streamStartBytes)
+                }
+                DatabaseHeaderKDBX.PwDbHeaderV4Fields.CipherID -> cipherId = fieldData
+                DatabaseHeaderKDBX.PwDbHeaderV4Fields.EncryptionIV -> encryptionIV = fieldData
+                DatabaseHeaderKDBX.PwDbHeaderV4Fields.StreamStartBytes -> streamStartBytes = fieldData
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun verifyHeaderHmac(input: DataInputStream, header: Header) {
+        val hmacKey = mDatabaseKDBX.hmacKey ?: throw IOException("HmacKey is not defined")
+
+        val storedHash = ByteArray(HASH_SIZE).also { input.readFully(it) }
+        if (!MessageDigest.isEqual(HashManager.hashSha256(header.bytes), storedHash))
+            throw IOException("Invalid hash of the header")
+
+        val storedHmac = ByteArray(HASH_SIZE).also { input.readFully(it) }
+        val blockKey = HmacBlock.getHmacKey64(hmacKey, UnsignedLong.MAX_BYTES)
+        val hmac = HmacBlock.getHmacSha256(blockKey)
+        Arrays.fill(blockKey, 0.toByte())
+        if (!MessageDigest.isEqual(hmac.doFinal(header.bytes), storedHmac))
+            throw IOException("Invalid HMAC of the header")
+    }
+
+    /**
+     * Blocks read in the current thread and verified by batches of [BATCH_SIZE] bytes in [threads] threads
+     */
+    @Throws(IOException::class)
+    private fun verifyHmacBlocks(input: DataInputStream) {
+        val hmacKey = mDatabaseKDBX.hmacKey ?: throw IOException("HmacKey is not defined")
+
+        var executor: ExecutorService? = null
+        val pendingBatches = ArrayDeque<Future<Unit>>()
+        try {
+            var batch = ArrayList<Block>()
+            var batchSize = 0
+            var blockIndex = 0L
+            var lastBlock = false
+            while (!lastBlock) {
+                val storedHmac = ByteArray(HASH_SIZE).also { input.readFully(it) }
+                val sizeBytes = ByteArray(4).also { input.readFully(it) }
+                val size = bytes4ToUInt(sizeBytes).toKotlinLong()
+                if (size > MAX_BLOCK_SIZE)
+                    throw IOException("Invalid block size")
+                val data = ByteArray(size.toInt()).also { input.readFully(it) }
+                batch.add(Block(blockIndex, storedHmac, sizeBytes, data))
+                batchSize += data.size
+                blockIndex++
+                lastBlock = size == 0L
+
+                if (batchSize >= BATCH_SIZE || lastBlock) {
+                    val blocks = batch
+                    if (threads <= 1) {
+                        verifyHmacBlocks(hmacKey, blocks)
+                    } else {
+                        while (pendingBatches.size >= threads * 2) {
+                            waitFor(pendingBatches.poll()!!)
+                        }
+                        val batchExecutor = executor ?: Executors.newFixedThreadPool(threads) { runnable ->
+                            Thread(runnable, "DatabaseOutputVerifierKDBX").apply { isDaemon = true }
+                        }.also { executor = it }
+                        pendingBatches.add(batchExecutor.submit<Unit> {
+                            verifyHmacBlocks(hmacKey, blocks)
+                        })
+                    }
+                    batch = ArrayList()
+                    batchSize = 0
+                }
+            }
+            while (pendingBatches.isNotEmpty()) {
+                waitFor(pendingBatches.poll()!!)
+            }
+        } finally {
+            executor?.shutdownNow()
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun verifyHmacBlocks(hmacKey: ByteArray, blocks: List<Block>) {
+        val hash512 = HmacBlock.getHash512()
+        for (block in blocks) {
+            val blockIndexBytes = uLongTo8Bytes(UnsignedLong(block.index))
+            val blockKey = HmacBlock.getHmacKey64(hash512, hmacKey, blockIndexBytes)
+            val hmac = HmacBlock.getHmacSha256(blockKey)
+            Arrays.fill(blockKey, 0.toByte())
+            hmac.update(blockIndexBytes)
+            hmac.update(block.sizeBytes)
+            hmac.update(block.data)
+            if (!MessageDigest.isEqual(hmac.doFinal(), block.storedHmac))
+                throw IOException("Invalid HMAC of the block ${block.index}")
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun waitFor(future: Future<Unit>) {
+        try {
+            future.get()
+        } catch (e: InterruptedException) {
+            throw InterruptedIOException("Verification interrupted")
+        } catch (e: ExecutionException) {
+            val cause = e.cause
+            throw cause as? IOException ?: IOException(cause)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun verifyHashedBlocks(input: DataInputStream, header: Header) {
+        val finalKey = mDatabaseKDBX.finalKey ?: throw IOException("FinalKey is not defined")
+        val cipherId = header.cipherId ?: throw IOException("No cipher in the header")
+        val encryptionIV = header.encryptionIV ?: throw IOException("No encryption IV in the header")
+        val streamStartBytes = header.streamStartBytes ?: throw IOException("No stream start bytes in the header")
+
+        val cipher: Cipher = try {
+            EncryptionAlgorithm.getFrom(bytes16ToUuid(cipherId)).cipherEngine
+                    .getCipher(Cipher.DECRYPT_MODE, finalKey, encryptionIV)
+        } catch (e: Exception) {
+            throw IOException("Invalid algorithm", e)
+        }
+        val plainInput = DataInputStream(BufferedInputStream(CipherInputStream(input, cipher), BATCH_SIZE))
+
+        val startBytes = ByteArray(streamStartBytes.size).also { plainInput.readFully(it) }
+        if (!MessageDigest.isEqual(startBytes, streamStartBytes))
+            throw IOException("Invalid stream start bytes")
+
+        val messageDigest = HashManager.getHash256()
+        val storedHash = ByteArray(HASH_SIZE)
+        var blockIndex = 0L
+        while (true) {
+            if (plainInput.readBytes4ToUInt().toKotlinLong() != blockIndex)
+                throw IOException("Invalid block index")
+            plainInput.readFully(storedHash)
+            val size = plainInput.readBytes4ToUInt().toKotlinLong()
+            if (size == 0L) {
+                if (storedHash.any { it.toInt() != 0 })
+                    throw IOException("Invalid last block")
+                return
+            }
+            if (size > MAX_BLOCK_SIZE)
+                throw IOException("Invalid block size")
+            val data = ByteArray(size.toInt()).also { plainInput.readFully(it) }
+            if (!MessageDigest.isEqual(messageDigest.digest(data), storedHash))
+                throw IOException("Invalid hash of the block $blockIndex")
+            blockIndex++
+        }
+    }
+
+    companion object {
+        private const val HASH_SIZE = 32
+        private const val MAX_HEADER_FIELD_SIZE = 1024 * 1024
+        private const val MAX_BLOCK_SIZE = 64L * 1024 * 1024
+        private const val BATCH_SIZE = 1024 * 1024
+        private val THREADS = Runtime.getRuntime().availableProcessors()
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.merge
+
+import com.kunzisoft.keepass.database.element.CustomData
+import com.kunzisoft.keepass.database.element.DateInstant
+import com.kunzisoft.keepass.database.element.DeletedObject
+import com.kunzisoft.keepass.database.element.binary.BinaryByte
+import com.kunzisoft.keepass.database.element.binary.BinaryCache
+import com.kunzisoft.keepass.database.element.binary.BinaryData
+import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
+import com.kunzisoft.keepass.database.element.entry.EntryKDBX
+import com.kunzisoft.keepass.database.element.group.GroupKDBX
+import com.kunzisoft.keepass.database.element.node.NodeIdUUID
+import java.io.IOException
+import java.util.*
+import kotlin.collections.ArrayList
+import kotlin.collections.HashMap
+import kotlin.collections.HashSet
+import kotlin.collections.LinkedHashMap
+
+/**
+ * Merge a database modified outside the app in [database], in the manner of the KeePass synchronization:
+ * the nodes are joined by UUID, the last modified version of each node wins and the other one goes in its history,
+ * the locations are resolved with the location change times and the deletions with the deleted objects of both databases.
+ * The meta data of [database] are kept, only the missing custom icons and attachments are added.
+ */
+class DatabaseKDBXMerger(private val database: DatabaseKDBX) {
+
+    // Key in the pool of [database] of each attachment key of the database to merge
+    private val attachmentKeys = HashMap<Int, Int>()
+    // Last deletion time of each node, in one of the databases
+    private val deletionTimes = HashMap<UUID, DateInstant>()
+    // Entries created or updated, their history may be longer than the maximum allowed
+    private val mergedEntries = LinkedHashMap<UUID, EntryKDBX>()
+    // Attachments and custom icons added in [database], removed if the merge fails
+    private val addedAttachmentKeys = ArrayList<Int>()
+    private val addedCustomIcons = ArrayList<UUID>()
+    // Histories of the database to merge, decoded before any node is modified
+    private val historiesToMerge = HashMap<UUID, List<EntryKDBX>>()
+    // Entries of [database] whose history is merged, already decoded
+    private val entriesWithMergedHistory = HashSet<UUID>()
+
+    /**
+     * Merge [databaseToMerge] in the database, return the entries created or updated,
+     * [databaseToMerge] must be loaded with its history cache and can be cleared after.
+     * The data is copied and the histories are decoded before any node is modified,
+     * so the database is unchanged if an exception is thrown
+     */
+    @Throws(IOException::class)
+    fun merge(databaseToMerge: DatabaseKDBX): List<EntryKDBX> {
+        attachmentKeys.clear()
+        deletionTimes.clear()
+        mergedEntries.clear()
+        addedAttachmentKeys.clear()
+        addedCustomIcons.clear()
+        historiesToMerge.clear()
+        entriesWithMergedHistory.clear()
+
+        try {
+            decodeHistories(databaseToMerge)
+            mergeCustomIcons(databaseToMerge)
+            mergeAttachments(databaseToMerge)
+        } catch (e: Exception) {
+            removeAddedData()
+            historiesToMerge.clear()
+            throw e
+        }
+
+        database.deletedObjects.forEach { putDeletion(it) }
+        databaseToMerge.deletedObjects.forEach { putDeletion(it) }
+
+        val rootGroupToMerge = databaseToMerge.rootGroup
+        val rootGroup = database.rootGroup
+        if (rootGroupToMerge != null && rootGroup != null) {
+            if (rootGroupToMerge.id == rootGroup.id
+                    && rootGroupToMerge.lastModificationTime.isAfter(rootGroup.lastModificationTime)) {
+                copyGroupProperties(rootGroupToMerge, rootGroup)
+                database.updateGroup(rootGroup)
+            }
+            // Parents are merged before their children
+            mergeChildGroups(rootGroupToMerge)
+            databaseToMerge.getEntryIndexes().forEach { entryToMerge ->
+                mergeEntry(entryToMerge)
+            }
+        }
+
+        applyDeletions()
+        historiesToMerge.clear()
+
+        // Attachments of the nodes not merged are not kept
+        addedAttachmentKeys.forEach { key ->
+            database.attachmentPool[key]?.let { database.removeUnlinkedAttachment(it, true) }
+        }
+
+        return ArrayList(mergedEntries.values)
+    }
+
+    /**
+     * Read the histories in the history caches, the only reads of the node merge which can fail.
+     * The history of an entry of [database] is decoded and kept only if the merge changes it,
+     * so the histories of the unchanged entries stay encoded
+     */
+    @Throws(IOException::class)
+    private fun decodeHistories(databaseToMerge: DatabaseKDBX) {
+        databaseToMerge.getEntryIndexes().forEach { entryToMerge ->
+            val historyToMerge = entryToMerge.getHistoryEntries()
+            historiesToMerge[entryToMerge.id] = historyToMerge
+            database.getEntryById(entryToMerge.id)?.let { entry ->
+                val historyMerged = if (entry.lastModificationTime.date.time
+                        != entryToMerge.lastModificationTime.date.time) {
+                    true
+                } else {
+                    val modificationTimes = HashSet<Long>()
+                    entry.getHistoryEntries().forEach {
+                        modificationTimes.add(it.lastModificationTime.date.time)
+                    }
+                    historyToMerge.any { !modificationTimes.contains(it.lastModificationTime.date.time) }
+                }
+                if (historyMerged) {
+                    // Decoded in the entry
+                    entry.history
+                    entriesWithMergedHistory.add(entry.id)
+                }
+            }
+        }
+    }
+
+    private fun removeAddedData() {
+        addedAttachmentKeys.forEach { key ->
+            database.attachmentPool[key]?.let { database.removeUnlinkedAttachment(it, true) }
+        }
+        addedCustomIcons.forEach { iconUuid ->
+            database.iconsManager.removeCustomIcon(database.binaryCache, iconUuid)
+        }
+    }
+
+    private fun putDeletion(deletedObject: DeletedObject) {
+        val deletionTime = deletedObject.getDeletionTime()
+        val previousTime = deletionTimes[deletedObject.uuid]
+        if (previousTime == null || deletionTime.isAfter(previousTime))
+            deletionTimes[deletedObject.uuid] = deletionTime
+    }
+
+    /**
+     * Group of [database] for the parent [groupToMerge] of a node to merge,
+     * the closest ancestor present if the group was not merged, the root group by default
+     */
+    private fun getParent(groupToMerge: GroupKDBX?): GroupKDBX? {
+        var group = groupToMerge
+        while (group != null) {
+            database.getGroupById(group.id)?.let {
+                return it
+            }
+            group = group.parent
+        }
+        return database.rootGroup
+    }
+
+    private fun mergeChildGroups(groupToMerge: GroupKDBX) {
+        groupToMerge.getChildGroups().forEach { childGroupToMerge ->
+            mergeGroup(childGroupToMerge)
+            mergeChildGroups(childGroupToMerge)
+        }
+    }
+
+    private fun mergeGroup(groupToMerge: GroupKDBX) {
+        val group = database.getGroupById(groupToMerge.id)
+        if (group == null) {
+            // Not created if deleted after its last modification
+            val deletionTime = deletionTimes[groupToMerge.id]
+            if (deletionTime != null && !groupToMerge.lastModificationTime.isAfter(deletionTime))
+                return
+            val newGroup = GroupKDBX().apply {
+                nodeId = NodeIdUUID(groupToMerge.id)
+            }
+            copyGroupProperties(groupToMerge, newGroup)
+            newGroup.locationChanged = DateInstant(groupToMerge.locationChanged)
+            database.addGroupTo(newGroup, getParent(groupToMerge.parent))
+            deletionTimes.remove(groupToMerge.id)
+        } else {
+            if (groupToMerge.locationChanged.isAfter(group.locationChanged)) {
+                val newParent = getParent(groupToMerge.parent)
+                // A group can't be moved in itself or in one of its children
+                if (newParent != null
+                        && newParent != group.parent
+                        && !newParent.isContainedIn(group)) {
+                    database.removeGroupFrom(group, group.parent)
+                    database.addGroupTo(group, newParent)
+                }
+                group.locationChanged = DateInstant(groupToMerge.locationChanged)
+            }
+            if (groupToMerge.lastModificationTime.isAfter(group.lastModificationTime)) {
+                copyGroupProperties(groupToMerge, group)
+                database.updateGroup(group)
+            }
+        }
+    }
+
+    /**
+     * Copy the properties of [source] without its children and its location, unlike [GroupKDBX.updateWith]
+     */
+    private fun copyGroupProperties(source: GroupKDBX, target: GroupKDBX) {
+        target.title = source.title
+        target.icon = source.icon
+        target.creationTime = DateInstant(source.creationTime)
+        target.lastModificationTime = DateInstant(source.lastModificationTime)
+        target.lastAccessTime = DateInstant(source.lastAccessTime)
+        target.expiryTime = DateInstant(source.expiryTime)
+        target.expires = source.expires
+        target.usageCount = source.usageCount
+        target.customData = CustomData(source.customData)
+        target.notes = source.notes
+        target.defaultAutoTypeSequence = source.defaultAutoTypeSequence
+        target.enableAutoType = source.enableAutoType
+        target.enableSearching = source.enableSearching
+        target.lastTopVisibleEntry = source.lastTopVisibleEntry
+        target.tags = source.tags
+        target.previousParentGroup = source.previousParentGroup
+    }
+
+    private fun mergeEntry(entryToMerge: EntryKDBX) {
+        val entry = database.getEntryById(entryToMerge.id)
+        if (entry == null) {
+            // Not created if deleted after its last modification
+            val deletionTime = deletionTimes[entryToMerge.id]
+            if (deletionTime != null && !entryToMerge.lastModificationTime.isAfter(deletionTime))
+                return
+            val newEntry = copyEntry(entryToMerge)
+            historiesToMerge[entryToMerge.id]?.forEach { historyEntryToMerge ->
+                newEntry.addEntryToHistory(copyEntry(historyEntryToMerge))
+            }
+            database.addEntryTo(newEntry, getParent(entryToMerge.parent))
+            deletionTimes.remove(entryToMerge.id)
+            mergedEntries[newEntry.id] = newEntry
+            return
+        }
+
+        var modified = false
+        if (entryToMerge.locationChanged.isAfter(entry.locationChanged)) {
+            val newParent = getParent(entryToMerge.parent)
+            if (newParent != null && newParent != entry.parent) {
+                database.removeEntryFrom(entry, entry.parent)
+                database.addEntryTo(entry, newParent)
+            }
+            entry.locationChanged = DateInstant(entryToMerge.locationChanged)
+            modified = true
+        }
+
+        // Same version with the same history
+        if (!entriesWithMergedHistory.contains(entry.id)) {
+            if (modified) {
+                database.updateEntry(entry)
+                mergedEntries[entry.id] = entry
+            }
+            return
+        }
+
+        // Union of the histories, a version is identified by its modification time
+        val history = ArrayList(entry.history)
+        val modificationTimes = HashSet<Long>()
+        history.forEach { modificationTimes.add(it.lastModificationTime.date.time) }
+        val historyToAdd = ArrayList<EntryKDBX>()
+        historiesToMerge[entryToMerge.id]?.forEach { historyEntryToMerge ->
+            if (modificationTimes.add(historyEntryToMerge.lastModificationTime.date.time))
+                historyToAdd.add(copyEntry(historyEntryToMerge))
+        }
+
+        when {
+            entryToMerge.lastModificationTime.isAfter(entry.lastModificationTime) -> {
+                // The current version goes in the history
+                val previousEntry = EntryKDBX().apply {
+                    updateWith(entry, false)
+                    parent = null
+                }
+                if (modificationTimes.add(previousEntry.lastModificationTime.date.time))
+                    historyToAdd.add(previousEntry)
+                val parent = entry.parent
+                val locationChanged = entry.locationChanged
+                entry.updateWith(entryToMerge, false)
+                entry.parent = parent
+                entry.locationChanged = locationChanged
+                remapAttachments(entry)
+                // History cleared by the update
+                history.forEach { entry.addEntryToHistory(it) }
+                modified = true
+            }
+            entry.lastModificationTime.isAfter(entryToMerge.lastModificationTime) -> {
+                // The other version goes in the history
+                if (modificationTimes.add(entryToMerge.lastModificationTime.date.time))
+                    historyToAdd.add(copyEntry(entryToMerge))
+            }
+        }
+
+        if (historyToAdd.isNotEmpty()) {
+            historyToAdd.forEach { entry.addEntryToHistory(it) }
+            entry.history.sortBy { it.lastModificationTime.date.time }
+            modified = true
+        }
+
+        if (modified) {
+            database.updateEntry(entry)
+            mergedEntries[entry.id] = entry
+        }
+    }
+
+    /**
+     * Copy of [entryToMerge] without history, with the attachments added in the pool of [database]
+     */
+    private fun copyEntry(entryToMerge: EntryKDBX): EntryKDBX {
+        return EntryKDBX().apply {
+            updateWith(entryToMerge, false)
+            parent = null
+            remapAttachments(this)
+        }
+    }
+
+    private fun remapAttachments(entry: EntryKDBX) {
+        val binaries = LinkedHashMap<String, Int>()
+        entry.binaries.forEach { (label, keyToMerge) ->
+            getAttachmentKey(keyToMerge)?.let { key ->
+                binaries[label] = key
+            }
+        }
+        entry.binaries = binaries
+    }
+
+    /**
+     * Key in the pool of [database] of the attachment [keyToMerge], known after [mergeAttachments]
+     */
+    private fun getAttachmentKey(keyToMerge: Int): Int? {
+        return attachmentKeys[keyToMerge]
+    }
+
+    /**
+     * Add in the pool of [database] each attachment of [databaseToMerge],
+     * copied only if the same data is not already in the pool
+     */
+    @Throws(IOException::class)
+    private fun mergeAttachments(databaseToMerge: DatabaseKDBX) {
+        databaseToMerge.attachmentPool.doForEachBinary { keyToMerge, binaryToMerge ->
+            attachmentKeys[keyToMerge] = getAttachmentKey(databaseToMerge, binaryToMerge)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun getAttachmentKey(databaseToMerge: DatabaseKDBX, binaryToMerge: BinaryData): Int {
+        // Hash and size computed when the data was written, the data is only read to confirm a match,
+        // the binaries themselves are never equal as they point to different data
+        val candidateKeys = ArrayList<Int>()
+        database.attachmentPool.doForEachBinary { poolKey, binary ->
+            if (binary.isCompressed == binaryToMerge.isCompressed
+                    && binary.isProtected == binaryToMerge.isProtected
+                    && binary.getSize() == binaryToMerge.getSize()
+                    && binary.binaryHash() == binaryToMerge.binaryHash()) {
+                candidateKeys.add(poolKey)
+            }
+        }
+        candidateKeys.forEach { poolKey ->
+            database.attachmentPool[poolKey]?.let { binary ->
+                if (isSameData(databaseToMerge.binaryCache, binaryToMerge, binary))
+                    return poolKey
+            }
+        }
+        val keyBinary = database.attachmentPool.put { uniqueBinaryId ->
+            database.binaryCache.getBinaryData(uniqueBinaryId,
+                    binaryToMerge is BinaryByte,
+                    binaryToMerge.isCompressed,
+                    binaryToMerge.isProtected)
+        }
+        val attachmentKey = keyBinary.keys.first()
+        addedAttachmentKeys.add(attachmentKey)
+        copyData(databaseToMerge.binaryCache, binaryToMerge, keyBinary.binary)
+        return attachmentKey
+    }
+
+    @Throws(IOException::class)
+    private fun mergeCustomIcons(databaseToMerge: DatabaseKDBX) {
+        databaseToMerge.iconsManager.doForEachCustomIcon { customIconToMerge, binaryToMerge ->
+            if (database.iconsManager.getBinaryForCustomIcon(customIconToMerge.uuid) == null) {
+                addedCustomIcons.add(customIconToMerge.uuid)
+                database.iconsManager.addCustomIcon(customIconToMerge.uuid,
+                        customIconToMerge.name,
+                        customIconToMerge.lastModificationTime,
+                        binaryToMerge is BinaryByte) { _, binary ->
+                    binary?.let {
+                        copyData(databaseToMerge.binaryCache, binaryToMerge, it)
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Compare the stored data of [binaryToMerge] and of [binary] of [database], byte by byte
+     */
+    @Throws(IOException::class)
+    private fun isSameData(binaryCacheToMerge: BinaryCache, binaryToMerge: BinaryData, binary: BinaryData): Boolean {
+        binaryToMerge.getInputDataStream(binaryCacheToMerge).buffered().use { inputStreamToMerge ->
+            binary.getInputDataStream(database.binaryCache).buffered().use { inputStream ->
+                while (true) {
+                    val byte = inputStream.read()
+                    if (byte != inputStreamToMerge.read())
+                        return false
+                    if (byte == -1)
+                        return true
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy the stored data, already compressed and encrypted as in the source
+     */
+    @Throws(IOException::class)
+    private fun copyData(binaryCacheToMerge: BinaryCache, source: BinaryData, target: BinaryData) {
+        source.getInputDataStream(binaryCacheToMerge).use { inputStream ->
+            target.getOutputDataStream(database.binaryCache).use { outputStream ->
+                inputStream.copyTo(outputStream)
+            }
+        }
+    }
+
+    private fun applyDeletions() {
+        deletionTimes.forEach { (uuid, deletionTime) ->
+            database.getEntryById(uuid)?.let { entry ->
+                // Kept if modified after the deletion
+                if (!entry.lastModificationTime.isAfter(deletionTime)) {
+                    val keys = ArrayList<Int>(entry.binaries.values)
+                    keys.addAll(entry.getHistoryAttachmentKeys())
+                    val attachments = keys.mapNotNull { database.attachmentPool[it] }
+                    database.removeEntryFrom(entry, entry.parent)
+                    attachments.forEach { database.removeUnlinkedAttachment(it, true) }
+                    mergedEntries.remove(uuid)
+                }
+            }
+        }
+        // Groups deleted only when empty, the deepest first to empty their parents
+        deletionTimes.mapNotNull { (uuid, deletionTime) ->
+            database.getGroupById(uuid)?.takeIf { group ->
+                group != database.rootGroup && !group.lastModificationTime.isAfter(deletionTime)
+            }
+        }.sortedByDescending { it.getLevel() }.forEach { group ->
+            if (group.getChildGroups().isEmpty() && group.getChildEntries().isEmpty()) {
+                database.removeGroupFrom(group, group.parent)
+            }
+        }
+        // Replace the deleted objects added by the removals, with the times of both databases
+        database.deletedObjects.clear()
+        deletionTimes.forEach { (uuid, deletionTime) ->
+            database.addDeletedObject(DeletedObject(uuid, deletionTime))
+        }
+    }
+
+    private fun DateInstant.isAfter(other: DateInstant): Boolean {
+        return date.after(other.date)
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.search
+
+import com.kunzisoft.keepass.model.SearchInfo
+import java.util.*
+import kotlin.collections.HashMap
+import kotlin.collections.LinkedHashSet
+
+/**
+ * Index of the web domains and application ids referenced by entries,
+ * to retrieve the entries of an autofill request without scanning the database.
+ *
+ * Web domains are indexed with each of their parent domains (except top level),
+ * so a request with a registrable domain (e.g. "example.co.uk") or a full host
+ * (e.g. "login.example.co.uk") is an exact key lookup.
+ */
+class AutofillIndex<Id> {
+
+    private val idsByKey = HashMap<String, LinkedHashSet<Id>>()
+    private val keysById = HashMap<Id, Set<String>>()
+
+    /**
+     * Replace the keys of the entry [id] by the ones built with [keysBuilder]
+     */
+    fun put(id: Id, keysBuilder: KeysBuilder) {
+        remove(id)
+        val keys = keysBuilder.build()
+        if (keys.isNotEmpty()) {
+            keysById[id] = keys
+            keys.forEach { key ->
+                idsByKey.getOrPut(key) { LinkedHashSet() }.add(id)
+            }
+        }
+    }
+
+    fun remove(id: Id) {
+        keysById.remove(id)?.forEach { key ->
+            idsByKey[key]?.let { ids ->
+                ids.remove(id)
+                if (ids.isEmpty())
+                    idsByKey.remove(key)
+            }
+        }
+    }
+
+    /**
+     * Retrieve the ids of entries which reference the web domain or the application id of [searchInfo]
+     */
+    fun getIds(searchInfo: SearchInfo): List<Id> {
+        val key = searchInfo.webDomain?.let { webDomain ->
+            parseHost(webDomain)?.let { WEB_DOMAIN_PREFIX + it }
+        } ?: searchInfo.applicationId?.let { applicationId ->
+            APPLICATION_ID_PREFIX + applicationId.trim()
+        } ?: return emptyList()
+        return idsByKey[key]?.toList() ?: emptyList()
+    }
+
+    fun clear() {
+        idsByKey.clear()
+        keysById.clear()
+    }
+
+    class KeysBuilder {
+
+        private val keys = HashSet<String>()
+
+        /**
+         * Add a web domain or an application id from an URL value
+         */
+        fun addUrl(url: String) {
+            val value = url.trim()
+            if (value.startsWith(ANDROID_APP_SCHEME, true)) {
+                addApplicationId(value.substring(ANDROID_APP_SCHEME.length))
+                return
+            }
+            parseHost(value)?.let { host ->
+                keys.add(WEB_DOMAIN_PREFIX + host)
+                // Parent domains, not for an IP
+                if (!WEB_IP_REGEX.matches(host)) {
+                    var dotIndex = host.indexOf('.')
+                    while (dotIndex >= 0) {
+                        val parentDomain = host.substring(dotIndex + 1)
+                        if (parentDomain.indexOf('.') < 0)
+                            break
+                        keys.add(WEB_DOMAIN_PREFIX + parentDomain)
+                        dotIndex = host.indexOf('.', dotIndex + 1)
+                    }
+                }
+            }
+        }
+
+        fun addApplicationId(applicationId: String) {
+            val value = applicationId.trim().trimEnd('/')
+            if (APPLICATION_ID_REGEX.matches(value))
+                keys.add(APPLICATION_ID_PREFIX + value)
+        }
+
+        internal fun build(): Set<String> {
+            return keys
+        }
+    }
+
+    companion object {
+        private const val WEB_DOMAIN_PREFIX = "w:"
+        private const val APPLICATION_ID_PREFIX = "a:"
+
+        const val ANDROID_APP_SCHEME = "androidapp://"
+
+        private val WEB_DOMAIN_REGEX = Regex(SearchInfo.WEB_DOMAIN_REGEX)
+        private val WEB_IP_REGEX = Regex(SearchInfo.WEB_IP_REGEX)
+        private val APPLICATION_ID_REGEX = Regex(SearchInfo.APPLICATION_ID_REGEX)
+
+        /**
+         * Retrieve the lower case host of an URL or of a domain, null if not a valid web domain
+         */
+        private fun parseHost(url: String): String? {
+            var host = url.trim()
+            val schemeIndex = host.indexOf("://")
+            if (schemeIndex >= 0)
+                host = host.substring(schemeIndex + 3)
+            val authorityEnd = host.indexOfFirst { it == '/' || it == '?' || it == '#' }
+            if (authorityEnd >= 0)
+                host = host.substring(0, authorityEnd)
+            val userInfoEnd = host.lastIndexOf('@')
+            if (userInfoEnd >= 0)
+                host = host.substring(userInfoEnd + 1)
+            val portStart = host.lastIndexOf(':')
+            if (portStart >= 0)
+                host = host.substring(0, portStart)
+            host = host.trimEnd('.').toLowerCase(Locale.ENGLISH)
+            if (host.isEmpty())
+                return null
+            return if (WEB_DOMAIN_REGEX.matches(host) || WEB_IP_REGEX.matches(host)) host else null
+        }
+    }
+}
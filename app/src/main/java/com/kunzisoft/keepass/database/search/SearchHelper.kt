@@ -24,6 +24,7 @@ import com.kunzisoft.keepass.database.action.node.NodeHandler
 import com.kunzisoft.keepass.database.element.Database
 import com.kunzisoft.keepass.database.element.Entry
 import com.kunzisoft.keepass.database.element.Group
+import com.kunzisoft.keepass.database.element.entry.EntryKDBX
 import com.kunzisoft.keepass.model.EntryInfo
 import com.kunzisoft.keepass.model.SearchInfo
 import com.kunzisoft.keepass.otp.OtpEntryFields.OTP_FIELD
@@ -76,6 +77,36 @@ class SearchHelper {
         return searchGroup
     }
 
+    /**
+     * Build a virtual group with the [entries] retrieved from an index, filtered as a search result
+     */
+    fun createVirtualGroupWithIndexedEntries(database: Database,
+                                             searchTitle: String,
+                                             entries: List<Entry>,
+                                             omitBackup: Boolean,
+                                             max: Int): Group? {
+
+        val searchGroup = database.createGroup()
+        searchGroup?.isVirtual = true
+        searchGroup?.title = "\"" + searchTitle + "\""
+
+        incrementEntry = 0
+        for (entry in entries) {
+            if (incrementEntry >= max)
+                break
+            if (database.entryIsTemplate(entry))
+                continue
+            val parent = entry.parent
+            if (parent == null || !database.isGroupSearchable(parent, omitBackup))
+                continue
+            searchGroup?.addChildEntry(entry)
+            incrementEntry++
+        }
+
+        searchGroup?.refreshNumberOfChildEntries()
+        return searchGroup
+    }
+
     private fun entryContainsString(database: Database,
                                     entry: Entry,
                                     searchParameters: SearchParameters): Boolean {
@@ -110,7 +141,7 @@ class SearchHelper {
                         && !searchInfo.containsOnlyNullValues()) {
                     // If search provide results
                     database.createVirtualGroupFromSearchInfo(
-                            searchInfo.toString(),
+                            searchInfo,
                             PreferencesUtil.omitBackup(context),
                             MAX_SEARCH_ENTRY
                     )?.let { searchGroup ->
@@ -139,38 +170,36 @@ class SearchHelper {
 
             // Search all strings in the KDBX entry
             if (searchParameters.searchInTitles) {
-                if (checkSearchQuery(entry.title, searchParameters))
+                if (entry.fieldContains(EntryKDBX.STR_TITLE, searchQuery))
                     return true
             }
             if (searchParameters.searchInUserNames) {
-                if (checkSearchQuery(entry.username, searchParameters))
+                if (entry.fieldContains(EntryKDBX.STR_USERNAME, searchQuery))
                     return true
             }
             if (searchParameters.searchInPasswords) {
-                if (checkSearchQuery(entry.password, searchParameters))
+                if (entry.fieldContains(EntryKDBX.STR_PASSWORD, searchQuery))
                     return true
             }
             if (searchParameters.searchInUrls) {
-                if (checkSearchQuery(entry.url, searchParameters))
+                if (entry.fieldContains(EntryKDBX.STR_URL, searchQuery))
                     return true
             }
             if (searchParameters.searchInNotes) {
-                if (checkSearchQuery(entry.notes, searchParameters))
+                if (entry.fieldContains(EntryKDBX.STR_NOTES, searchQuery))
                     return true
             }
             if (searchParameters.searchInUUIDs) {
                 val hexString = UuidUtil.toHexString(entry.nodeId.id)
-                if (hexString != null && hexString.contains(searchQuery, true))
+                if (hexString != null && checkSearchQuery(hexString, searchParameters))
                     return true
             }
             if (searchParameters.searchInOther) {
-                entry.getExtraFields().forEach { field ->
-                    if (field.name != OTP_FIELD
-                            || (field.name == OTP_FIELD && searchParameters.searchInOTP)) {
-                        if (checkSearchQuery(field.protectedValue.toString(), searchParameters))
-                            return true
-                    }
-                }
+                if (entry.extraFieldsContain(searchQuery) { name ->
+                            name != OTP_FIELD
+                                    || (name == OTP_FIELD && searchParameters.searchInOTP)
+                        })
+                    return true
             }
             return false
         }
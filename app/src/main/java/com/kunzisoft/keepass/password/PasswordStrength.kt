@@ -0,0 +1,36 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.password
+
+/**
+ * Strength level of a password, from its entropy estimated by [PasswordStrengthEstimator]
+ */
+enum class PasswordStrength(val minimumEntropy: Double) {
+    POOR(0.0),
+    WEAK(40.0),
+    GOOD(65.0),
+    EXCELLENT(100.0);
+
+    companion object {
+        fun fromEntropy(entropy: Double): PasswordStrength {
+            return values().last { entropy >= it.minimumEntropy }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.password
+
+import kotlin.math.ln
+
+/**
+ * Offline estimation of the entropy of a password in bits, without network or large dictionary.
+ *
+ * The password is split in the sequence of patterns the cheapest to guess (like zxcvbn):
+ * characters of its character set, repetitions, alphabetical or numerical sequences,
+ * keyboard rows, common passwords (also with uppercase or leet substitutions) and years.
+ * The entropy is the sum of the bits of each pattern.
+ */
+object PasswordStrengthEstimator {
+
+    // Longer passwords are estimated on their beginning, with their character set for the rest
+    private const val MAX_ANALYSED_LENGTH = 128
+    private const val MIN_PATTERN_LENGTH = 3
+
+    private val KEYBOARD_ROWS = arrayOf(
+            "1234567890",
+            "qwertyuiop",
+            "asdfghjkl",
+            "zxcvbnm",
+            "azertyuiop",
+            "qsdfghjklm",
+            "wxcvbn",
+            "qwertzuiop",
+            "yxcvbnm",
+            "!@#$%^&*()")
+    private val KEYBOARD_BITS = log2(KEYBOARD_ROWS.sumBy { it.length } * 2.0)
+
+    // Most common passwords and words of passwords, ordered by frequency
+    private val COMMON_WORDS = ("password qwerty dragon monkey letmein football baseball master " +
+            "shadow sunshine princess welcome login admin iloveyou trustno1 superman batman " +
+            "michael jordan hunter killer soccer hockey ranger harley charlie andrew thomas " +
+            "jennifer jessica daniel robert matthew joshua ashley hello secret freedom whatever " +
+            "access flower starwars computer internet summer winter spring autumn orange banana " +
+            "cheese coffee chocolate cookie pepper ginger tigger buster maggie ginger mustang " +
+            "corvette ferrari porsche mercedes yankees lakers cowboys eagles dolphins chelsea " +
+            "liverpool arsenal pokemon naruto minecraft google facebook apple samsung microsoft " +
+            "keepass passw0rd admin123 root toor guest test user default changeme azerty " +
+            "soleil bonjour motdepasse chouchou doudou loulou marseille passwort hallo schatz " +
+            "contrasena amor hola casa love angel baby lucky happy money magic silver golden " +
+            "diamond purple yellow black white blue green red house family friend forever " +
+            "heaven jesus god rainbow butterfly unicorn ninja pirate zombie thunder lightning")
+            .split(" ")
+            .distinct()
+
+    private val LEET_SUBSTITUTIONS = mapOf(
+            '0' to "o",
+            '1' to "il",
+            '3' to "e",
+            '4' to "a",
+            '@' to "a",
+            '5' to "s",
+            '$' to "s",
+            '7' to "t",
+            '+' to "t",
+            '!' to "i",
+            '|' to "il",
+            '8' to "b",
+            '9' to "g")
+
+    // Rank of each common word, by first letter
+    private val COMMON_WORDS_BY_FIRST_LETTER = COMMON_WORDS.withIndex().groupBy { it.value[0] }
+
+    private fun log2(value: Double): Double {
+        return ln(value) / ln(2.0)
+    }
+
+    /**
+     * Number of characters of the classes used by [password]
+     */
+    fun getCharacterSetSize(password: CharSequence): Int {
+        var lower = false
+        var upper = false
+        var digit = false
+        var special = false
+        var other = false
+        for (char in password) {
+            when (char) {
+                in 'a'..'z' -> lower = true
+                in 'A'..'Z' -> upper = true
+                in '0'..'9' -> digit = true
+                in ' '..'~' -> special = true
+                else -> other = true
+            }
+        }
+        return (if (lower) 26 else 0) +
+                (if (upper) 26 else 0) +
+                (if (digit) 10 else 0) +
+                (if (special) 33 else 0) +
+                (if (other) 100 else 0)
+    }
+
+    /**
+     * Estimated entropy of [password] in bits
+     */
+    fun estimateEntropy(password: CharSequence): Double {
+        if (password.isEmpty())
+            return 0.0
+        val characterBits = log2(getCharacterSetSize(password).toDouble())
+        val length = minOf(password.length, MAX_ANALYSED_LENGTH)
+
+        // Cheapest guess of each prefix
+        val bits = DoubleArray(length + 1) { Double.MAX_VALUE }
+        bits[0] = 0.0
+        for (start in 0 until length) {
+            val prefixBits = bits[start]
+            val update = { end: Int, patternBits: Double ->
+                if (prefixBits + patternBits < bits[end])
+                    bits[end] = prefixBits + patternBits
+            }
+            update(start + 1, characterBits)
+            matchRepetition(password, start, length, characterBits, update)
+            matchSequence(password, start, length, update)
+            matchKeyboard(password, start, length, update)
+            matchCommonWord(password, start, length, update)
+            matchYear(password, start, length, update)
+        }
+        return bits[length] + (password.length - length) * characterBits
+    }
+
+    fun estimateStrength(password: CharSequence): PasswordStrength {
+        return PasswordStrength.fromEntropy(estimateEntropy(password))
+    }
+
+    /**
+     * Same character repeated, or a part of the password already seen
+     */
+    private fun matchRepetition(password: CharSequence, start: Int, length: Int,
+                                characterBits: Double,
+                                update: (Int, Double) -> Unit) {
+        var end = start + 1
+        while (end < length && password[end] == password[start])
+            end++
+        if (end - start >= MIN_PATTERN_LENGTH)
+            update(end, characterBits + log2((end - start).toDouble()))
+
+        for (previous in 0 until start) {
+            var size = 0
+            while (start + size < length
+                    && previous + size < start
+                    && password[previous + size] == password[start + size])
+                size++
+            if (size >= MIN_PATTERN_LENGTH)
+                update(start + size, log2(start.toDouble()) + log2(size.toDouble()))
+        }
+    }
+
+    /**
+     * Characters with a constant difference of 1 or -1, like "abcd" or "9876"
+     */
+    private fun matchSequence(password: CharSequence, start: Int, length: Int,
+                              update: (Int, Double) -> Unit) {
+        if (start + 1 >= length)
+            return
+        val step = password[start + 1].toInt() - password[start].toInt()
+        if (step != 1 && step != -1)
+            return
+        var end = start + 2
+        while (end < length && password[end].toInt() - password[end - 1].toInt() == step)
+            end++
+        if (end - start >= MIN_PATTERN_LENGTH) {
+            val first = password[start]
+            val firstBits = if (first == 'a' || first == 'A' || first == '0' || first == '1') 1.0
+                    else log2(getCharacterSetSize(first.toString()).toDouble())
+            update(end, firstBits + log2((end - start).toDouble()) + if (step < 0) 1.0 else 0.0)
+        }
+    }
+
+    /**
+     * Adjacent keys of a keyboard row, in both directions
+     */
+    private fun matchKeyboard(password: CharSequence, start: Int, length: Int,
+                              update: (Int, Double) -> Unit) {
+        val first = Character.toLowerCase(password[start])
+        for (row in KEYBOARD_ROWS) {
+            val index = row.indexOf(first)
+            if (index < 0)
+                continue
+            for (direction in intArrayOf(1, -1)) {
+                var size = 1
+                while (start + size < length) {
+                    val rowIndex = index + size * direction
+                    if (rowIndex < 0 || rowIndex >= row.length
+                            || Character.toLowerCase(password[start + size]) != row[rowIndex])
+                        break
+                    size++
+                }
+                if (size >= MIN_PATTERN_LENGTH)
+                    update(start + size, KEYBOARD_BITS + log2(size.toDouble())
+                            + uppercaseBits(password, start, size))
+            }
+        }
+    }
+
+    /**
+     * Common password, with uppercase letters or leet substitutions
+     */
+    private fun matchCommonWord(password: CharSequence, start: Int, length: Int,
+                                update: (Int, Double) -> Unit) {
+        val first = password[start]
+        matchCommonWord(password, start, length, Character.toLowerCase(first), update)
+        LEET_SUBSTITUTIONS[first]?.forEach { letter ->
+            matchCommonWord(password, start, length, letter, update)
+        }
+    }
+
+    private fun matchCommonWord(password: CharSequence, start: Int, length: Int,
+                                firstLetter: Char,
+                                update: (Int, Double) -> Unit) {
+        COMMON_WORDS_BY_FIRST_LETTER[firstLetter]?.forEach { (rank, word) ->
+            if (start + word.length > length)
+                return@forEach
+            var substitutions = 0
+            for (i in word.indices) {
+                val char = password[start + i]
+                if (Character.toLowerCase(char) != word[i]) {
+                    if (LEET_SUBSTITUTIONS[char]?.indexOf(word[i]) ?: -1 < 0)
+                        return@forEach
+                    substitutions++
+                }
+            }
+            update(start + word.length, log2(rank + 1.0)
+                    + uppercaseBits(password, start, word.length)
+                    + substitutions)
+        }
+    }
+
+    /**
+     * Year from 1900 to 2099
+     */
+    private fun matchYear(password: CharSequence, start: Int, length: Int,
+                          update: (Int, Double) -> Unit) {
+        if (start + 4 > length)
+            return
+        val century = password.subSequence(start, start + 2)
+        if ((century == "19" || century == "20")
+                && password[start + 2] in '0'..'9'
+                && password[start + 3] in '0'..'9')
+            update(start + 4, log2(200.0))
+    }
+
+    private fun uppercaseBits(password: CharSequence, start: Int, size: Int): Double {
+        var uppercase = 0
+        for (i in start until start + size) {
+            if (Character.isUpperCase(password[i]))
+                uppercase++
+        }
+        return when {
+            uppercase == 0 -> 0.0
+            // Only the first letter or all the letters
+            uppercase == size || (uppercase == 1 && Character.isUpperCase(password[start])) -> 1.0
+            else -> uppercase.toDouble()
+        }
+    }
+}
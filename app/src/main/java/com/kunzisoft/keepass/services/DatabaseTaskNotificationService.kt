@@ -24,6 +24,7 @@ import android.content.Intent
 import android.net.Uri
 import android.os.*
 import android.util.Log
+import androidx.core.app.NotificationCompat
 import com.kunzisoft.keepass.R
 import com.kunzisoft.keepass.activities.GroupActivity
 import com.kunzisoft.keepass.app.database.CipherDatabaseEntity
@@ -40,6 +41,7 @@ import com.kunzisoft.keepass.database.element.node.NodeId
 import com.kunzisoft.keepass.database.element.node.Type
 import com.kunzisoft.keepass.model.MainCredential
 import com.kunzisoft.keepass.model.SnapFileDatabaseInfo
+import com.kunzisoft.keepass.settings.PreferencesUtil
 import com.kunzisoft.keepass.tasks.ActionRunnable
 import com.kunzisoft.keepass.tasks.ProgressTaskUpdater
 import com.kunzisoft.keepass.timeout.TimeoutHelper
@@ -62,6 +64,9 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
     private var mActionTaskBinder = ActionTaskBinder()
     private var mActionTaskListeners = LinkedList<ActionTaskListener>()
     private var mActionRunning = false
+    private var mActionRunnable: ActionRunnable? = null
+    private var mProgressJob: Job? = null
+    private var mProgress: Int? = null
     private var mTaskRemovedRequested = false
     private var mCreationState = false
 
@@ -69,6 +74,7 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
     private var mTitleId: Int = R.string.database_opened
     private var mMessageId: Int? = null
     private var mWarningId: Int? = null
+    private var mNotificationBuilder: NotificationCompat.Builder? = null
 
     override fun retrieveChannelId(): String {
         return CHANNEL_DATABASE_ID
@@ -122,6 +128,7 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
     interface ActionTaskListener {
         fun onStartAction(database: Database, titleId: Int?, messageId: Int?, warningId: Int?)
         fun onUpdateAction(database: Database, titleId: Int?, messageId: Int?, warningId: Int?)
+        fun onUpdateProgress(database: Database, progress: Int?)
         fun onStopAction(database: Database, actionTask: String, result: ActionRunnable.Result)
     }
 
@@ -172,6 +179,25 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
         }
     }
 
+    /**
+     * Derive the key of the backup snapshots in the background, so the next saves don't run the KDF,
+     * only needed after the unlock or a change of credentials
+     */
+    private fun prepareBackupSnapshots(database: Database) {
+        if (PreferencesUtil.isBackupSnapshotsEnabled(this)) {
+            val backupDirectory = UriUtil.getBackupDir(this)
+            mainScope.launch {
+                withContext(Dispatchers.IO) {
+                    try {
+                        database.prepareBackupSnapshots(backupDirectory)
+                    } catch (e: Exception) {
+                        Log.e(TAG, "Unable to prepare the backup snapshots", e)
+                    }
+                }
+            }
+        }
+    }
+
     fun saveDatabaseInfo() {
         try {
             mDatabase?.fileUri?.let {
@@ -192,11 +218,29 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
             if (mActionRunning) {
                 mActionTaskListeners.forEach { actionTaskListener ->
                     actionTaskListener.onStartAction(database, mTitleId, mMessageId, mWarningId)
+                    actionTaskListener.onUpdateProgress(database, mProgress)
                 }
             }
         }
     }
 
+    /**
+     * True if the running action can be stopped by [cancelAction]
+     */
+    fun isActionCancellable(): Boolean {
+        return mActionRunnable?.isCancellable == true
+    }
+
+    /**
+     * Stop the running action at the user request, if it can be cancelled
+     */
+    fun cancelAction() {
+        mActionRunnable?.let { actionRunnable ->
+            if (actionRunnable.isCancellable)
+                actionRunnable.cancel()
+        }
+    }
+
     override fun onBind(intent: Intent): IBinder? {
         super.onBind(intent)
         return mActionTaskBinder
@@ -226,6 +270,7 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
             ACTION_DATABASE_CREATE_TASK -> buildDatabaseCreateActionTask(intent, database)
             ACTION_DATABASE_LOAD_TASK -> buildDatabaseLoadActionTask(intent, database)
             ACTION_DATABASE_RELOAD_TASK -> buildDatabaseReloadActionTask(database)
+            ACTION_DATABASE_MERGE_TASK -> buildDatabaseMergeActionTask(intent, database)
             ACTION_DATABASE_ASSIGN_PASSWORD_TASK -> buildDatabaseAssignPasswordActionTask(intent, database)
             ACTION_DATABASE_CREATE_GROUP_TASK -> buildDatabaseCreateGroupActionTask(intent, database)
             ACTION_DATABASE_UPDATE_GROUP_TASK -> buildDatabaseUpdateGroupActionTask(intent, database)
@@ -270,15 +315,28 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
                                 putExtra(DATABASE_TASK_WARNING_KEY, mWarningId)
                             })
 
+                            // Known before the start so the listeners can offer the cancellation
+                            mActionRunnable = actionRunnable
+
                             mActionTaskListeners.forEach { actionTaskListener ->
                                 actionTaskListener.onStartAction(database, mTitleId, mMessageId, mWarningId)
                             }
 
+                            mProgressJob = mainScope.launch {
+                                while (isActive) {
+                                    delay(PROGRESS_UPDATE_DELAY)
+                                    updateProgress(actionRunnable.progress)
+                                }
+                            }
                         },
                         {
                             actionRunnable
                         },
                         { result ->
+                            mProgressJob?.cancel()
+                            mProgressJob = null
+                            mActionRunnable = null
+                            updateProgress(null)
                             try {
                                 mActionTaskListeners.forEach { actionTaskListener ->
                                     mTaskRemovedRequested = false
@@ -301,6 +359,9 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
                                         mSnapFileDatabaseInfo = newSnapFileDatabaseInfo
                                     }
                                 }
+                                if (result.isSuccess && (intentAction == ACTION_DATABASE_LOAD_TASK || save)) {
+                                    prepareBackupSnapshots(database)
+                                }
                                 removeIntentData(intent)
                                 TimeoutHelper.releaseTemporarilyDisableTimeout()
                                 // Stop service after save if user remove task
@@ -366,7 +427,8 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
                 when (intentAction) {
                     ACTION_DATABASE_CREATE_TASK -> R.string.creating_database
                     ACTION_DATABASE_LOAD_TASK,
-                    ACTION_DATABASE_RELOAD_TASK -> R.string.loading_database
+                    ACTION_DATABASE_RELOAD_TASK,
+                    ACTION_DATABASE_MERGE_TASK -> R.string.loading_database
                     ACTION_DATABASE_SAVE -> R.string.saving_database
                     else -> {
                         R.string.command_execution
@@ -429,6 +491,7 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
         }
 
         // Create the notification
+        mNotificationBuilder = notificationBuilder
         startForeground(notificationId, notificationBuilder.build())
     }
 
@@ -490,7 +553,30 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
         }
     }
 
+    override fun updateProgress(progress: Int?) {
+        if (mProgress == progress)
+            return
+        mProgress = progress
+        mDatabase?.let { database ->
+            mActionTaskListeners.forEach { actionTaskListener ->
+                actionTaskListener.onUpdateProgress(database, progress)
+            }
+        }
+        // Progress of the action in the notification
+        if (mActionRunning) {
+            mNotificationBuilder?.let { notificationBuilder ->
+                if (progress != null)
+                    notificationBuilder.setProgress(100, progress, false)
+                else
+                    notificationBuilder.setProgress(0, 0, false)
+                notificationManager?.notify(notificationId, notificationBuilder.build())
+            }
+        }
+    }
+
     override fun actionOnLock() {
+        // An abandoned action is stopped, the actions which must finish (as the saves) ignore it
+        mActionRunnable?.cancel()
         if (!TimeoutHelper.temporarilyDisableLock) {
             closeDatabase(mDatabase)
             // Remove the lock timer (no more needed if it exists)
@@ -504,9 +590,16 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
         if (TimeoutHelper.temporarilyDisableLock) {
             mTaskRemovedRequested = true
         }
+        mActionRunnable?.cancel()
         super.onTaskRemoved(rootIntent)
     }
 
+    override fun onDestroy() {
+        mActionRunnable?.cancel()
+        mProgressJob?.cancel()
+        super.onDestroy()
+    }
+
     private fun buildDatabaseCreateActionTask(intent: Intent, database: Database): ActionRunnable? {
 
         if (intent.hasExtra(DATABASE_URI_KEY)
@@ -590,6 +683,21 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
             }
     }
 
+    private fun buildDatabaseMergeActionTask(intent: Intent, database: Database): ActionRunnable {
+        // A KDB database can't be merged, it's reloaded
+        if (!database.allowMerge)
+            return buildDatabaseReloadActionTask(database)
+        return MergeDatabaseRunnable(this,
+                database,
+                this,
+                !database.isReadOnly && intent.getBooleanExtra(SAVE_DATABASE_KEY, false)
+        ).apply {
+            mAfterSaveDatabase = { result ->
+                result.data = intent.extras
+            }
+        }
+    }
+
     private fun buildDatabaseAssignPasswordActionTask(intent: Intent, database: Database): ActionRunnable? {
         return if (intent.hasExtra(DATABASE_URI_KEY)
                 && intent.hasExtra(MAIN_CREDENTIAL_KEY)
@@ -886,10 +994,12 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
         private val TAG = DatabaseTaskNotificationService::class.java.name
 
         private const val CHANNEL_DATABASE_ID = "com.kunzisoft.keepass.notification.channel.database"
+        private const val PROGRESS_UPDATE_DELAY = 250L
 
         const val ACTION_DATABASE_CREATE_TASK = "ACTION_DATABASE_CREATE_TASK"
         const val ACTION_DATABASE_LOAD_TASK = "ACTION_DATABASE_LOAD_TASK"
         const val ACTION_DATABASE_RELOAD_TASK = "ACTION_DATABASE_RELOAD_TASK"
+        const val ACTION_DATABASE_MERGE_TASK = "ACTION_DATABASE_MERGE_TASK"
         const val ACTION_DATABASE_ASSIGN_PASSWORD_TASK = "ACTION_DATABASE_ASSIGN_PASSWORD_TASK"
         const val ACTION_DATABASE_CREATE_GROUP_TASK = "ACTION_DATABASE_CREATE_GROUP_TASK"
         const val ACTION_DATABASE_UPDATE_GROUP_TASK = "ACTION_DATABASE_UPDATE_GROUP_TASK"
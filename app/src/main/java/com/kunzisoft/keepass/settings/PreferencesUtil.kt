@@ -30,6 +30,7 @@ import com.kunzisoft.keepass.BuildConfig
 import com.kunzisoft.keepass.R
 import com.kunzisoft.keepass.activities.stylish.Stylish
 import com.kunzisoft.keepass.biometric.AdvancedUnlockManager
+import com.kunzisoft.keepass.database.backup.BackupStore
 import com.kunzisoft.keepass.database.element.SortNodeEnum
 import com.kunzisoft.keepass.education.Education
 import com.kunzisoft.keepass.timeout.TimeoutHelper
@@ -278,6 +279,23 @@ object PreferencesUtil {
                 context.resources.getBoolean(R.bool.enable_auto_save_database_default))
     }
 
+    fun isBackupSnapshotsEnabled(context: Context): Boolean {
+        val prefs = PreferenceManager.getDefaultSharedPreferences(context)
+        return prefs.getBoolean(context.getString(R.string.backup_snapshots_enable_key),
+                context.resources.getBoolean(R.bool.backup_snapshots_enable_default))
+    }
+
+    fun getBackupSnapshotsRetention(context: Context): BackupStore.Retention {
+        val prefs = PreferenceManager.getDefaultSharedPreferences(context)
+        val numberOfSnapshots = prefs.getString(context.getString(R.string.backup_snapshots_number_key),
+                context.getString(R.string.backup_snapshots_number_default))?.toIntOrNull()
+                ?: context.getString(R.string.backup_snapshots_number_default).toInt()
+        val numberOfDays = prefs.getString(context.getString(R.string.backup_snapshots_days_key),
+                context.getString(R.string.backup_snapshots_days_default))?.toIntOrNull()
+                ?: context.getString(R.string.backup_snapshots_days_default).toInt()
+        return BackupStore.Retention(numberOfSnapshots, numberOfDays)
+    }
+
     fun isAdvancedUnlockEnable(context: Context): Boolean {
         return isBiometricUnlockEnable(context) || isDeviceCredentialUnlockEnable(context)
     }
@@ -595,6 +613,9 @@ object PreferencesUtil {
                 context.getString(R.string.delete_entered_password_key) -> editor.putBoolean(name, value.toBoolean())
                 context.getString(R.string.enable_read_only_key) -> editor.putBoolean(name, value.toBoolean())
                 context.getString(R.string.enable_auto_save_database_key) -> editor.putBoolean(name, value.toBoolean())
+                context.getString(R.string.backup_snapshots_enable_key) -> editor.putBoolean(name, value.toBoolean())
+                context.getString(R.string.backup_snapshots_number_key) -> editor.putString(name, value.toInt().toString())
+                context.getString(R.string.backup_snapshots_days_key) -> editor.putString(name, value.toInt().toString())
                 context.getString(R.string.omit_backup_search_key) -> editor.putBoolean(name, value.toBoolean())
                 context.getString(R.string.auto_focus_search_key) -> editor.putBoolean(name, value.toBoolean())
                 context.getString(R.string.subdomain_search_key) -> editor.putBoolean(name, value.toBoolean())
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import java.io.IOException
+import java.io.OutputStream
+
+/**
+ * This class writes everything in its output stream and copies it into a second output stream.
+ */
+class CopyOutputStream(private val outputStream: OutputStream,
+                       private val copyOutputStream: OutputStream) : OutputStream() {
+
+    @Throws(IOException::class)
+    override fun write(b: Int) {
+        outputStream.write(b)
+        copyOutputStream.write(b)
+    }
+
+    @Throws(IOException::class)
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        outputStream.write(b, off, len)
+        copyOutputStream.write(b, off, len)
+    }
+
+    @Throws(IOException::class)
+    override fun flush() {
+        outputStream.flush()
+        copyOutputStream.flush()
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        try {
+            outputStream.close()
+        } finally {
+            copyOutputStream.close()
+        }
+    }
+}
@@ -19,13 +19,13 @@
  */
 package com.kunzisoft.keepass.stream
 
-import com.kunzisoft.keepass.utils.UnsignedInt
 import com.kunzisoft.keepass.utils.UnsignedLong
-import com.kunzisoft.keepass.utils.uIntTo4Bytes
-import com.kunzisoft.keepass.utils.uLongTo8Bytes
+import com.kunzisoft.keepass.utils.intTo4Bytes
+import com.kunzisoft.keepass.utils.longTo8Bytes
 import com.kunzisoft.keepass.database.crypto.HmacBlock
 import java.io.IOException
 import java.io.OutputStream
+import java.util.*
 import javax.crypto.Mac
 
 class HmacBlockOutputStream(private val baseStream: OutputStream,
@@ -36,6 +36,12 @@ class HmacBlockOutputStream(private val baseStream: OutputStream,
     private var bufferPos = 0
     private var blockIndex = UnsignedLong(0L)
 
+    // Reused for each block
+    private val blockIndexBytes = ByteArray(8)
+    private val blockSizeBytes = ByteArray(4)
+    private val hash512 = HmacBlock.getHash512()
+    private var hmac: Mac? = null
+
     @Throws(IOException::class)
     override fun close() {
         if (bufferPos == 0) {
@@ -79,27 +85,30 @@ class HmacBlockOutputStream(private val baseStream: OutputStream,
 
     @Throws(IOException::class)
     override fun write(oneByte: Int) {
-        val outByte = ByteArray(1)
-        write(outByte, 0, 1)
+        if (bufferPos == buffer.size) {
+            writeSafeBlock()
+        }
+        buffer[bufferPos++] = oneByte.toByte()
     }
 
     @Throws(IOException::class)
     private fun writeSafeBlock() {
-        val bufBlockIndex = uLongTo8Bytes(blockIndex)
-        val blockSizeBuf = uIntTo4Bytes(UnsignedInt(bufferPos))
+        longTo8Bytes(blockIndex.toKotlinLong(), blockIndexBytes, 0)
+        intTo4Bytes(bufferPos, blockSizeBytes, 0)
 
-        val blockKey = HmacBlock.getHmacKey64(key, bufBlockIndex)
-        val hmac: Mac = HmacBlock.getHmacSha256(blockKey)
-        hmac.update(bufBlockIndex)
-        hmac.update(blockSizeBuf)
+        val blockKey = HmacBlock.getHmacKey64(hash512, key, blockIndexBytes)
+        val blockHmac = hmac?.also { HmacBlock.initHmacSha256(it, blockKey) }
+                ?: HmacBlock.getHmacSha256(blockKey).also { hmac = it }
+        Arrays.fill(blockKey, 0.toByte())
+        blockHmac.update(blockIndexBytes)
+        blockHmac.update(blockSizeBytes)
 
         if (bufferPos > 0) {
-            hmac.update(buffer, 0, bufferPos)
+            blockHmac.update(buffer, 0, bufferPos)
         }
 
-        val blockHmac: ByteArray = hmac.doFinal()
-        baseStream.write(blockHmac)
-        baseStream.write(blockSizeBuf)
+        baseStream.write(blockHmac.doFinal())
+        baseStream.write(blockSizeBytes)
 
         if (bufferPos > 0) {
             baseStream.write(buffer, 0, bufferPos)
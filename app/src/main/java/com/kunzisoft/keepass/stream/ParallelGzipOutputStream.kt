@@ -0,0 +1,304 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.io.OutputStream
+import java.util.*
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+
+/**
+ * Gzip stream compressing independent blocks of [blockSize] in parallel, like pigz.
+ * Each block is deflated with the end of the previous block as dictionary and terminated by a sync flush,
+ * so the blocks are concatenated in a single standard gzip member, readable by any gzip decoder.
+ * A stream of a single block or with [threads] <= 1 is compressed in the writer thread.
+ * If the writer fails, [abort] must be called to stop the threads and release the deflaters.
+ */
+class ParallelGzipOutputStream(private val baseStream: OutputStream,
+                               private val level: Int = Deflater.DEFAULT_COMPRESSION,
+                               private val blockSize: Int = DEFAULT_BLOCK_SIZE,
+                               private val threads: Int = THREADS)
+    : OutputStream() {
+
+    private class CompressedBlock(val input: ByteArray,
+                                  val output: ByteArray,
+                                  val length: Int)
+
+    private val crc = CRC32()
+    private var totalLength = 0L
+    private var currentBlock: ByteArray
+    private var currentLength = 0
+    // Input of the previous block, dictionary of the current one
+    private var previousBlock: ByteArray? = null
+    private var previousLength = 0
+    // Input of the last block written, still used as dictionary by the next pending block
+    private var lastWrittenInput: ByteArray? = null
+
+    private var executor: ExecutorService? = null
+    private val pendingBlocks = ArrayDeque<Future<CompressedBlock>>()
+    private val freeInputs = ConcurrentLinkedQueue<ByteArray>()
+    private val freeOutputs = ConcurrentLinkedQueue<ByteArray>()
+    private val deflaters = ConcurrentLinkedQueue<Deflater>()
+    private var finished = false
+    @Volatile
+    private var released = false
+    private var closed = false
+
+    init {
+        currentBlock = ByteArray(blockSize)
+        baseStream.write(HEADER)
+    }
+
+    @Throws(IOException::class)
+    override fun write(b: Int) {
+        if (finished)
+            throw IOException("Gzip stream finished")
+        currentBlock[currentLength++] = b.toByte()
+        crc.update(b)
+        totalLength++
+        if (currentLength == blockSize)
+            compressCurrentBlock(false)
+    }
+
+    @Throws(IOException::class)
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        if (finished)
+            throw IOException("Gzip stream finished")
+        crc.update(b, off, len)
+        totalLength += len
+        var offset = off
+        var remaining = len
+        while (remaining > 0) {
+            val copy = minOf(blockSize - currentLength, remaining)
+            System.arraycopy(b, offset, currentBlock, currentLength, copy)
+            currentLength += copy
+            offset += copy
+            remaining -= copy
+            if (currentLength == blockSize)
+                compressCurrentBlock(false)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun compressCurrentBlock(last: Boolean) {
+        try {
+            submitCurrentBlock(last)
+        } catch (e: Exception) {
+            // Stop the threads, the stream can't be used after an error
+            release()
+            throw e
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun submitCurrentBlock(last: Boolean) {
+        val input = currentBlock
+        val length = currentLength
+        val dictionary = previousBlock
+        val dictionaryLength = previousLength
+        val output = freeOutputs.poll() ?: ByteArray(blockSize + blockSize / 16 + 64)
+
+        // Only a stream of several blocks is worth the threads
+        if (threads <= 1 || (last && pendingBlocks.isEmpty())) {
+            writeCompressedBlock(deflate(input, length, dictionary, dictionaryLength, output, last))
+        } else {
+            while (pendingBlocks.size >= threads * 2) {
+                writeCompressedBlock(waitFor(pendingBlocks.poll()!!))
+            }
+            val blockExecutor = executor ?: newExecutor().also { executor = it }
+            pendingBlocks.add(blockExecutor.submit<CompressedBlock> {
+                deflate(input, length, dictionary, dictionaryLength, output, last)
+            })
+        }
+
+        previousBlock = input
+        previousLength = length
+        currentBlock = freeInputs.poll() ?: ByteArray(blockSize)
+        currentLength = 0
+    }
+
+    private fun deflate(input: ByteArray,
+                        length: Int,
+                        dictionary: ByteArray?,
+                        dictionaryLength: Int,
+                        output: ByteArray,
+                        last: Boolean): CompressedBlock {
+        val deflater = deflaters.poll() ?: Deflater(level, true)
+        try {
+            if (dictionary != null) {
+                val size = minOf(dictionaryLength, DICTIONARY_SIZE)
+                deflater.setDictionary(dictionary, dictionaryLength - size, size)
+            }
+            deflater.setInput(input, 0, length)
+            if (last)
+                deflater.finish()
+            var compressed = output
+            var compressedLength = 0
+            while (true) {
+                if (compressedLength == compressed.size)
+                    compressed = compressed.copyOf(compressed.size * 2)
+                compressedLength += deflater.deflate(compressed, compressedLength,
+                        compressed.size - compressedLength,
+                        if (last) Deflater.NO_FLUSH else Deflater.SYNC_FLUSH)
+                // The sync flush is complete when the output is not full
+                if (if (last) deflater.finished() else compressedLength < compressed.size)
+                    break
+            }
+            return CompressedBlock(input, compressed, compressedLength)
+        } finally {
+            if (released) {
+                deflater.end()
+            } else {
+                deflater.reset()
+                deflaters.add(deflater)
+                // A block still running when the stream is released must not keep its deflater
+                if (released)
+                    endDeflaters()
+            }
+        }
+    }
+
+    /**
+     * Pool of [threads] stopped when idle, to not keep threads if the stream is never finished
+     */
+    private fun newExecutor(): ExecutorService {
+        return ThreadPoolExecutor(threads, threads,
+                THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                LinkedBlockingQueue<Runnable>()) { runnable ->
+            Thread(runnable, "ParallelGzipOutputStream").apply { isDaemon = true }
+        }.apply {
+            allowCoreThreadTimeOut(true)
+        }
+    }
+
+    private fun endDeflaters() {
+        while (true) {
+            deflaters.poll()?.end() ?: break
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun waitFor(future: Future<CompressedBlock>): CompressedBlock {
+        try {
+            return future.get()
+        } catch (e: ExecutionException) {
+            throw IOException("Unable to compress the block", e.cause)
+        } catch (e: InterruptedException) {
+            throw InterruptedIOException("Compression interrupted")
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun writeCompressedBlock(block: CompressedBlock) {
+        baseStream.write(block.output, 0, block.length)
+        freeOutputs.add(block.output)
+        // The block before is no longer a dictionary of a pending block
+        lastWrittenInput?.let { freeInputs.add(it) }
+        lastWrittenInput = block.input
+    }
+
+    /**
+     * Write the remaining blocks and the gzip trailer without closing [baseStream]
+     */
+    @Throws(IOException::class)
+    fun finish() {
+        if (finished)
+            return
+        try {
+            compressCurrentBlock(true)
+            while (pendingBlocks.isNotEmpty()) {
+                writeCompressedBlock(waitFor(pendingBlocks.poll()!!))
+            }
+            val trailer = ByteArray(8)
+            writeIntLittleEndian(crc.value, trailer, 0)
+            writeIntLittleEndian(totalLength, trailer, 4)
+            baseStream.write(trailer)
+        } finally {
+            release()
+        }
+    }
+
+    /**
+     * Stop the compression without writing the remaining blocks and the trailer, [baseStream] is not closed.
+     * Has no effect once the stream is finished.
+     */
+    fun abort() {
+        if (!released)
+            release()
+    }
+
+    private fun release() {
+        finished = true
+        released = true
+        executor?.shutdownNow()
+        executor = null
+        pendingBlocks.clear()
+        endDeflaters()
+        // The blocks contain the data in clear
+        currentBlock.fill(0)
+        previousBlock?.fill(0)
+        lastWrittenInput?.fill(0)
+        freeInputs.forEach { it.fill(0) }
+        freeInputs.clear()
+        freeOutputs.clear()
+    }
+
+    @Throws(IOException::class)
+    override fun flush() {
+        baseStream.flush()
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        if (closed)
+            return
+        closed = true
+        try {
+            finish()
+        } finally {
+            baseStream.close()
+        }
+    }
+
+    companion object {
+        const val DEFAULT_BLOCK_SIZE = 128 * 1024
+        private const val DICTIONARY_SIZE = 32 * 1024
+        private val THREADS = Runtime.getRuntime().availableProcessors()
+        private const val THREAD_KEEP_ALIVE_SECONDS = 10L
+
+        // Same header as GZIPOutputStream, deflate without flag, time and extra flags
+        private val HEADER = byteArrayOf(0x1f, 0x8b.toByte(), Deflater.DEFLATED.toByte(), 0, 0, 0, 0, 0, 0, 0)
+
+        private fun writeIntLittleEndian(value: Long, buffer: ByteArray, offset: Int) {
+            for (i in 0 until 4) {
+                buffer[offset + i] = (value ushr (8 * i)).toByte()
+            }
+        }
+    }
+}
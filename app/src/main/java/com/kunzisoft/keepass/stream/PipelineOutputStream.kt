@@ -0,0 +1,189 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.io.OutputStream
+import java.util.concurrent.ArrayBlockingQueue
+
+/**
+ * Stage of a pipeline, the data written is copied in reusable blocks
+ * and written in [baseStream] by a dedicated thread, so the writer and [baseStream] work in parallel.
+ * The blocks are exchanged with bounded queues, the writer waits when all the blocks are filled.
+ * [close] waits for the thread and closes [baseStream], an error of [baseStream] is thrown by the next call.
+ */
+class PipelineOutputStream(private val baseStream: OutputStream,
+                           name: String,
+                           blockSize: Int = DEFAULT_BLOCK_SIZE,
+                           numberOfBlocks: Int = DEFAULT_NUMBER_OF_BLOCKS)
+    : OutputStream() {
+
+    private class Block(val data: ByteArray) {
+        var length = 0
+    }
+
+    private val freeBlocks = ArrayBlockingQueue<Block>(numberOfBlocks)
+    // One more place for the end of stream
+    private val filledBlocks = ArrayBlockingQueue<Block>(numberOfBlocks + 1)
+    private var currentBlock: Block
+    private var closed = false
+    @Volatile
+    private var error: Throwable? = null
+    @Volatile
+    private var aborted = false
+    private val thread: Thread
+
+    init {
+        for (i in 0 until numberOfBlocks) {
+            freeBlocks.add(Block(ByteArray(blockSize)))
+        }
+        currentBlock = freeBlocks.poll()!!
+        thread = Thread({ writeBlocks() }, name).apply {
+            isDaemon = true
+            start()
+        }
+    }
+
+    private fun writeBlocks() {
+        try {
+            var block = filledBlocks.take()
+            while (block !== END_OF_STREAM) {
+                // After an error, the blocks are only recycled to not block the writer
+                if (error == null) {
+                    try {
+                        baseStream.write(block.data, 0, block.length)
+                    } catch (e: Throwable) {
+                        error = e
+                    }
+                }
+                // The interruption may have been consumed by the base stream
+                if (aborted)
+                    return
+                block.length = 0
+                freeBlocks.put(block)
+                block = filledBlocks.take()
+            }
+            if (error == null)
+                baseStream.close()
+        } catch (e: InterruptedException) {
+            // Aborted, nothing more is written
+        } catch (e: Throwable) {
+            error = e
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun checkError() {
+        error?.let {
+            throw it as? IOException ?: IOException("Unable to write in the pipeline", it)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun sendCurrentBlock() {
+        checkError()
+        try {
+            filledBlocks.put(currentBlock)
+            currentBlock = freeBlocks.take()
+        } catch (e: InterruptedException) {
+            throw InterruptedIOException("Pipeline interrupted")
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun write(b: Int) {
+        if (closed)
+            throw IOException("Pipeline closed")
+        currentBlock.data[currentBlock.length++] = b.toByte()
+        if (currentBlock.length == currentBlock.data.size)
+            sendCurrentBlock()
+    }
+
+    @Throws(IOException::class)
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        if (closed)
+            throw IOException("Pipeline closed")
+        var offset = off
+        var remaining = len
+        while (remaining > 0) {
+            val block = currentBlock
+            val copy = minOf(block.data.size - block.length, remaining)
+            System.arraycopy(b, offset, block.data, block.length, copy)
+            block.length += copy
+            offset += copy
+            remaining -= copy
+            if (block.length == block.data.size)
+                sendCurrentBlock()
+        }
+    }
+
+    /**
+     * Send the data already written to the thread, without waiting for it
+     */
+    @Throws(IOException::class)
+    override fun flush() {
+        if (!closed && currentBlock.length > 0)
+            sendCurrentBlock()
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        if (closed)
+            return
+        flush()
+        closed = true
+        try {
+            filledBlocks.put(END_OF_STREAM)
+            thread.join()
+        } catch (e: InterruptedException) {
+            abort()
+            throw InterruptedIOException("Pipeline interrupted")
+        }
+        checkError()
+    }
+
+    /**
+     * Stop the thread without writing the remaining blocks, [baseStream] is not closed.
+     * Must be called if the writer fails, has no effect once the stream is closed.
+     */
+    fun abort() {
+        closed = true
+        aborted = true
+        thread.interrupt()
+        var interrupted = false
+        while (thread.isAlive) {
+            try {
+                thread.join()
+            } catch (e: InterruptedException) {
+                interrupted = true
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt()
+    }
+
+    companion object {
+        private val END_OF_STREAM = Block(ByteArray(0))
+
+        const val DEFAULT_BLOCK_SIZE = 64 * 1024
+        const val DEFAULT_NUMBER_OF_BLOCKS = 4
+    }
+}
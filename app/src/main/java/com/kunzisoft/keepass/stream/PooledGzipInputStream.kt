@@ -0,0 +1,61 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import java.io.IOException
+import java.io.InputStream
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.zip.GZIPInputStream
+
+/**
+ * Gzip input stream reading the compressed data in large buffers, taken from a pool
+ * to not allocate a new one for each binary, and cleared when released.
+ */
+class PooledGzipInputStream(inputStream: InputStream)
+    // The buffer allocated by the parent is immediately replaced by the pooled one
+    : GZIPInputStream(inputStream, 1) {
+
+    private var released = false
+
+    init {
+        buf = BUFFERS.poll() ?: ByteArray(BUFFER_SIZE)
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        try {
+            super.close()
+        } finally {
+            if (!released) {
+                released = true
+                val buffer = buf
+                buffer.fill(0)
+                if (BUFFERS.size < MAX_POOLED_BUFFERS)
+                    BUFFERS.add(buffer)
+            }
+        }
+    }
+
+    companion object {
+        const val BUFFER_SIZE = 64 * 1024
+        private const val MAX_POOLED_BUFFERS = 4
+        private val BUFFERS = ConcurrentLinkedQueue<ByteArray>()
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import com.kunzisoft.keepass.database.element.binary.ChunkedCipherFile
+import com.kunzisoft.keepass.database.element.binary.LoadedKey
+import java.io.*
+
+/**
+ * Buffer kept in memory up to [memoryThreshold] bytes, then moved to [tempFile] encrypted with [loadedKey].
+ * Without [tempFile], everything stays in memory.
+ * Once closed, the content can be read with [getInputStream], [delete] removes the temp file.
+ */
+class SpillableOutputStream(private val memoryThreshold: Int,
+                            private val tempFile: File?,
+                            private val loadedKey: LoadedKey) : OutputStream() {
+
+    private var memoryOutputStream: MemoryOutputStream? = MemoryOutputStream()
+    private var fileOutputStream: OutputStream? = null
+
+    @Throws(IOException::class)
+    private fun spillIfNeeded(length: Int) {
+        val memoryStream = memoryOutputStream ?: return
+        if (tempFile != null && memoryStream.size() + length > memoryThreshold) {
+            val outputStream = ChunkedCipherFile(tempFile, loadedKey).getOutputStream()
+            memoryStream.writeTo(outputStream)
+            fileOutputStream = outputStream
+            memoryOutputStream = null
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun write(b: Int) {
+        spillIfNeeded(1)
+        val memoryStream = memoryOutputStream
+        if (memoryStream != null)
+            memoryStream.write(b)
+        else
+            fileOutputStream?.write(b)
+    }
+
+    @Throws(IOException::class)
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        spillIfNeeded(len)
+        val memoryStream = memoryOutputStream
+        if (memoryStream != null)
+            memoryStream.write(b, off, len)
+        else
+            fileOutputStream?.write(b, off, len)
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        fileOutputStream?.close()
+    }
+
+    @Throws(IOException::class)
+    fun getInputStream(): InputStream {
+        return memoryOutputStream?.getInputStream()
+                ?: ChunkedCipherFile(tempFile!!, loadedKey).getInputStream()
+    }
+
+    fun delete() {
+        memoryOutputStream = null
+        if (fileOutputStream != null) {
+            try {
+                fileOutputStream?.close()
+            } catch (ignored: IOException) {}
+            tempFile?.delete()
+        }
+    }
+
+    /**
+     * Read the buffer without copy
+     */
+    private class MemoryOutputStream : ByteArrayOutputStream() {
+        fun getInputStream(): InputStream {
+            return ByteArrayInputStream(buf, 0, count)
+        }
+    }
+}
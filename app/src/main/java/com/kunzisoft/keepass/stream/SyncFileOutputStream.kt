@@ -0,0 +1,66 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import java.io.*
+
+/**
+ * Buffered stream of [file] forced to the storage when it is closed, before the descriptor is released,
+ * so the data is durable as soon as [close] returns, even if the stream is closed by the writer.
+ */
+class SyncFileOutputStream(file: File,
+                           bufferSize: Int = DEFAULT_BUFFER_SIZE) : OutputStream() {
+
+    private val fileOutputStream = FileOutputStream(file)
+    private val bufferedOutputStream = BufferedOutputStream(fileOutputStream, bufferSize)
+    private var closed = false
+
+    @Throws(IOException::class)
+    override fun write(b: Int) {
+        bufferedOutputStream.write(b)
+    }
+
+    @Throws(IOException::class)
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        bufferedOutputStream.write(b, off, len)
+    }
+
+    @Throws(IOException::class)
+    override fun flush() {
+        bufferedOutputStream.flush()
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        if (closed)
+            return
+        closed = true
+        try {
+            bufferedOutputStream.flush()
+            fileOutputStream.fd.sync()
+        } finally {
+            fileOutputStream.close()
+        }
+    }
+
+    companion object {
+        const val DEFAULT_BUFFER_SIZE = 1024 * 1024
+    }
+}
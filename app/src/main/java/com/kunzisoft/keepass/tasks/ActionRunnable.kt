@@ -45,6 +45,23 @@ abstract class ActionRunnable: Runnable {
      */
     abstract fun onFinishRun()
 
+    /**
+     * Progress of the action in percent, null if it is not known
+     */
+    open val progress: Int?
+        get() = null
+
+    /**
+     * Request to stop the action as soon as possible, when it is abandoned, does nothing by default
+     */
+    open fun cancel() {}
+
+    /**
+     * True if the user can stop the action with [cancel]
+     */
+    open val isCancellable: Boolean
+        get() = false
+
     protected fun setError(message: String) {
         result.isSuccess = false
         result.exception = null
@@ -24,6 +24,7 @@ import android.app.Dialog
 import android.os.Bundle
 import android.util.Log
 import android.view.View
+import android.widget.Button
 import android.widget.ProgressBar
 import android.widget.TextView
 import androidx.annotation.StringRes
@@ -45,6 +46,9 @@ open class ProgressTaskDialogFragment : DialogFragment(), ProgressTaskUpdater {
     private var messageView: TextView? = null
     private var warningView: TextView? = null
     private var progressView: ProgressBar? = null
+    private var cancelView: Button? = null
+
+    private var cancelAction: (() -> Unit)? = null
 
     override fun onCreateDialog(savedInstanceState: Bundle?): Dialog {
 
@@ -64,10 +68,17 @@ open class ProgressTaskDialogFragment : DialogFragment(), ProgressTaskUpdater {
                 messageView = root.findViewById(R.id.progress_dialog_message)
                 warningView = root.findViewById(R.id.progress_dialog_warning)
                 progressView = root.findViewById(R.id.progress_dialog_bar)
+                cancelView = root.findViewById(R.id.progress_dialog_cancel)
+                cancelView?.setOnClickListener {
+                    // The dialog is dismissed when the cancelled action stops
+                    it.isEnabled = false
+                    cancelAction?.invoke()
+                }
 
                 updateTitle(title)
                 updateMessage(message)
                 updateWarning(warning)
+                updateCancelAction(cancelAction)
 
                 isCancelable = false
 
@@ -109,6 +120,29 @@ open class ProgressTaskDialogFragment : DialogFragment(), ProgressTaskUpdater {
         updateView(warningView, warning)
     }
 
+    /**
+     * Show a cancel button calling [action], or hide it if the running action can't be cancelled
+     */
+    fun updateCancelAction(action: (() -> Unit)?) {
+        this.cancelAction = action
+        activity?.runOnUiThread {
+            cancelView?.visibility = if (action == null) View.GONE else View.VISIBLE
+        }
+    }
+
+    override fun updateProgress(progress: Int?) {
+        activity?.runOnUiThread {
+            progressView?.apply {
+                if (progress == null) {
+                    isIndeterminate = true
+                } else {
+                    isIndeterminate = false
+                    this.progress = progress
+                }
+            }
+        }
+    }
+
     companion object {
         private val TAG = ProgressTaskDialogFragment::class.java.simpleName
         const val PROGRESS_TASK_DIALOG_TAG = "progressDialogFragment"
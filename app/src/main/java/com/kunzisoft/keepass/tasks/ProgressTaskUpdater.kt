@@ -23,4 +23,6 @@ import androidx.annotation.StringRes
 
 interface ProgressTaskUpdater {
     fun updateMessage(@StringRes resId: Int)
+    // Progress in percent, null if it is not known
+    fun updateProgress(progress: Int?)
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.utils
+
+/**
+ * Standard base 64 with padding and without wrap, working on char and byte arrays given by the caller,
+ * for the small values (dates, UUIDs) read and written for each node
+ */
+object Base64Util {
+
+    private val ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray()
+    private const val PADDING = '='
+
+    private val DECODE_TABLE = IntArray(128) { -1 }.apply {
+        ALPHABET.forEachIndexed { index, char -> this[char.toInt()] = index }
+    }
+
+    /**
+     * Decode [length] chars of [chars] from [start] in [output], whitespaces are ignored
+     * and the bytes beyond the size of [output] are dropped, return the number of bytes written
+     */
+    @Throws(IllegalArgumentException::class)
+    fun decode(chars: CharArray, start: Int, length: Int, output: ByteArray): Int {
+        var outputLength = 0
+        var accumulator = 0
+        var bits = 0
+        for (i in start until start + length) {
+            val char = chars[i]
+            if (char == PADDING)
+                break
+            if (char == ' ' || char == '\n' || char == '\r' || char == '\t')
+                continue
+            val value = if (char.toInt() < DECODE_TABLE.size) DECODE_TABLE[char.toInt()] else -1
+            if (value < 0)
+                throw IllegalArgumentException("Bad base-64 char $char")
+            accumulator = (accumulator shl 6) or value
+            bits += 6
+            if (bits >= 8) {
+                bits -= 8
+                if (outputLength < output.size)
+                    output[outputLength] = (accumulator shr bits).toByte()
+                outputLength++
+            }
+        }
+        return minOf(outputLength, output.size)
+    }
+
+    /**
+     * Number of chars to encode [length] bytes
+     */
+    fun encodedLength(length: Int): Int {
+        return (length + 2) / 3 * 4
+    }
+
+    /**
+     * Encode [input] in [output], which must contain at least [encodedLength] chars, return the number of chars
+     */
+    fun encode(input: ByteArray, output: CharArray): Int {
+        var outputLength = 0
+        var i = 0
+        while (i < input.size) {
+            val remaining = input.size - i
+            val block = ((input[i].toInt() and 0xFF) shl 16) or
+                    ((if (remaining > 1) input[i + 1].toInt() and 0xFF else 0) shl 8) or
+                    (if (remaining > 2) input[i + 2].toInt() and 0xFF else 0)
+            output[outputLength++] = ALPHABET[(block shr 18) and 0x3F]
+            output[outputLength++] = ALPHABET[(block shr 12) and 0x3F]
+            output[outputLength++] = if (remaining > 1) ALPHABET[(block shr 6) and 0x3F] else PADDING
+            output[outputLength++] = if (remaining > 2) ALPHABET[block and 0x3F] else PADDING
+            i += 3
+        }
+        return outputLength
+    }
+}
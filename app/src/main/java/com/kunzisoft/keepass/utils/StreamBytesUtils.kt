@@ -183,6 +183,17 @@ fun bytes64ToLong(buf: ByteArray): Long {
             + (buf[7].toLong() and 0xFF shl 56))
 }
 
+/**
+ * Read a 64 bit long at [offset], without copy of the buffer
+ */
+fun bytes64ToLong(buf: ByteArray, offset: Int): Long {
+    var value = 0L
+    for (i in offset + 7 downTo offset) {
+        value = value shl 8 or (buf[i].toLong() and 0xFF)
+    }
+    return value
+}
+
 /**
  * Read a 32-bit value.
  */
@@ -255,10 +266,17 @@ fun uShortTo2Bytes(value: Int): ByteArray {
  */
 fun uIntTo4Bytes(value: UnsignedInt): ByteArray {
     val buf = ByteArray(4)
+    intTo4Bytes(value.toKotlinInt(), buf, 0)
+    return buf
+}
+
+/**
+ * Write a 32 bit int in [buf] at [offset], without allocation
+ */
+fun intTo4Bytes(value: Int, buf: ByteArray, offset: Int) {
     for (i in 0 until 4) {
-        buf[i] = (value.toKotlinInt().ushr(8 * i) and 0xFF).toByte()
+        buf[offset + i] = (value.ushr(8 * i) and 0xFF).toByte()
     }
-    return buf
 }
 
 fun uLongTo8Bytes(value: UnsignedLong): ByteArray {
@@ -273,6 +291,15 @@ fun longTo8Bytes(value: Long): ByteArray {
     return buf
 }
 
+/**
+ * Write a 64 bit long in [buf] at [offset], without allocation
+ */
+fun longTo8Bytes(value: Long, buf: ByteArray, offset: Int) {
+    for (i in 0 until 8) {
+        buf[offset + i] = (value.ushr(8 * i) and 0xFF).toByte()
+    }
+}
+
 fun uuidTo16Bytes(uuid: UUID): ByteArray {
     val buf = ByteArray(16)
     for (i in 0 until 8) {
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.utils
+
+/**
+ * Pool to share the same instance between equal strings, used only during a load
+ * and cleared after, so it never holds sensitive data longer than the parser.
+ * Strings longer than [maxLength] are returned as is, they rarely repeat.
+ */
+class StringPool(private val maxLength: Int = DEFAULT_MAX_LENGTH,
+                 initialStrings: Collection<String> = emptyList()) {
+
+    private val strings = HashMap<String, String>()
+    private val utf8Values = HashMap<String, ByteArray>()
+
+    init {
+        initialStrings.forEach { strings[it] = it }
+    }
+
+    fun intern(value: String): String {
+        if (value.length > maxLength)
+            return value
+        return strings[value] ?: value.also { strings[it] = it }
+    }
+
+    /**
+     * UTF-8 encoding of [value], the same array is returned for the equal strings so it must not be modified
+     */
+    fun internUtf8(value: String): ByteArray {
+        if (value.length > maxLength)
+            return value.toByteArray(Charsets.UTF_8)
+        return utf8Values[value] ?: value.toByteArray(Charsets.UTF_8).also { utf8Values[value] = it }
+    }
+
+    fun clear() {
+        strings.clear()
+        utf8Values.clear()
+    }
+
+    companion object {
+        const val DEFAULT_MAX_LENGTH = 256
+    }
+}
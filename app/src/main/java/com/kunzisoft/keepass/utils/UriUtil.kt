@@ -296,5 +296,20 @@ object UriUtil {
         }
     }
 
+    /**
+     * Private directory of the backup snapshots, out of the files directory cleaned with the database
+     */
+    fun getBackupDir(context: Context): File {
+        return context.applicationContext.getDir("backup", Context.MODE_PRIVATE)
+    }
+
+    /**
+     * Directory of the databases saved but not written in their location, reachable by the user if possible
+     */
+    fun getSavedCopyDir(context: Context): File {
+        return context.applicationContext.getExternalFilesDir("saved")
+                ?: context.applicationContext.getDir("saved", Context.MODE_PRIVATE)
+    }
+
     private const val TAG = "UriUtil"
 }
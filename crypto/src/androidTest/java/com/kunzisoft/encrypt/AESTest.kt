@@ -98,11 +98,20 @@ class AESTest {
 
     @Test
     fun testAESKDF() {
+        checkAESKDF(60000L)
+    }
+
+    @Test
+    fun testAESKDFOddRounds() {
+        // The result is left in the other buffer of the native loop
+        checkAESKDF(60001L)
+    }
+
+    private fun checkAESKDF(rounds: Long) {
         val seed = ByteArray(32)
         mRand.nextBytes(seed)
         val key = ByteArray(32)
         mRand.nextBytes(key)
-        val rounds = 60000L
 
         val androidKey = AESTransformer.transformKeyInJVM(seed, key, rounds)
         val nativeKey = AESTransformer.transformKey(seed, key, rounds)
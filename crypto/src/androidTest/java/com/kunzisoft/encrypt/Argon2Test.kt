@@ -0,0 +1,104 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.encrypt
+
+import com.kunzisoft.encrypt.argon2.Argon2Transformer
+import com.kunzisoft.encrypt.argon2.Argon2Type
+import com.kunzisoft.encrypt.argon2.NativeArgon2KeyTransformer
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+
+/**
+ * Test vectors of RFC 9106, computed with the fill_segment implementation selected for the device
+ */
+class Argon2Test {
+
+    @Before
+    fun loadLibraries() {
+        NativeLib.init()
+    }
+
+    private fun transformRfcVector(type: Int): ByteArray {
+        return NativeArgon2KeyTransformer.nTransformKey(
+                type,
+                ByteArray(32) { 0x01 },
+                ByteArray(16) { 0x02 },
+                4,
+                32,
+                3,
+                ByteArray(8) { 0x03 },
+                ByteArray(12) { 0x04 },
+                0x13,
+                null)
+    }
+
+    private fun hexToBytes(hex: String): ByteArray {
+        return ByteArray(hex.length / 2) { i ->
+            hex.substring(2 * i, 2 * i + 2).toInt(16).toByte()
+        }
+    }
+
+    @Test
+    fun testArgon2d() {
+        assertArrayEquals("Check Argon2d",
+                hexToBytes("512b391b6f1162975371d30919734294f868e3be3984f3c1a13a4db9fabe4acb"),
+                transformRfcVector(ARGON2_D))
+    }
+
+    @Test
+    fun testArgon2i() {
+        assertArrayEquals("Check Argon2i",
+                hexToBytes("c814d9d1dc7f37aa13f0d77f2494bda1c8de6b016dd388d29952a4c4672b6ce8"),
+                transformRfcVector(ARGON2_I))
+    }
+
+    @Test
+    fun testArgon2id() {
+        assertArrayEquals("Check Argon2id",
+                hexToBytes("0d640df58d78766c08c037a34a8b53c9d01ef0452d75b65eb52520e96b01e659"),
+                transformRfcVector(ARGON2_ID))
+    }
+
+    @Test
+    fun testArgon2Progress() {
+        val token = TransformationToken()
+        Argon2Transformer.transformKey(Argon2Type.ARGON2_ID,
+                ByteArray(32) { 0x01 }, ByteArray(16) { 0x02 },
+                2, 1024, 4, 0x13, token)
+        assertEquals("Check progress", 1f, token.progress)
+    }
+
+    @Test(expected = TransformationCancelledException::class)
+    fun testArgon2Cancelled() {
+        val token = TransformationToken()
+        token.cancel()
+        Argon2Transformer.transformKey(Argon2Type.ARGON2_ID,
+                ByteArray(32) { 0x01 }, ByteArray(16) { 0x02 },
+                2, 1024, 4, 0x13, token)
+    }
+
+    companion object {
+        private const val ARGON2_D = 0
+        private const val ARGON2_I = 1
+        private const val ARGON2_ID = 2
+    }
+}
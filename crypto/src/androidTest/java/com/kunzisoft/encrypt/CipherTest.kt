@@ -19,8 +19,89 @@
  */
 package com.kunzisoft.encrypt
 
+import org.bouncycastle.crypto.engines.ChaCha7539Engine
+import org.bouncycastle.crypto.params.KeyParameter
+import org.bouncycastle.crypto.params.ParametersWithIV
+import org.bouncycastle.jce.provider.BouncyCastleProvider
+import org.junit.Assert.assertArrayEquals
+import org.junit.Test
+import java.util.*
+import javax.crypto.Cipher
+import javax.crypto.spec.IvParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
 class CipherTest {
 
-    // TODO Cipher Tests
+    private val mRand = Random()
+
+    @Test
+    fun testTwofish() {
+        // Generate random input
+        val input = ByteArray(mRand.nextInt(4094) + 18)
+        mRand.nextBytes(input)
+        val keyArray = ByteArray(32)
+        mRand.nextBytes(keyArray)
+        val ivArray = ByteArray(16)
+        mRand.nextBytes(ivArray)
+
+        val javaEncrypt = Cipher.getInstance("Twofish/CBC/PKCS7Padding", BouncyCastleProvider())
+        javaEncrypt.init(Cipher.ENCRYPT_MODE, SecretKeySpec(keyArray, "AES"), IvParameterSpec(ivArray))
+        val javaEncrypted = javaEncrypt.doFinal(input)
+        val nativeEncrypted = CipherFactory.getTwofish(Cipher.ENCRYPT_MODE, keyArray, ivArray, forceNative = true)
+                .doFinal(input)
+
+        assertArrayEquals("Check Twofish encryption", javaEncrypted, nativeEncrypted)
+
+        val nativeDecrypted = CipherFactory.getTwofish(Cipher.DECRYPT_MODE, keyArray, ivArray, forceNative = true)
+                .doFinal(javaEncrypted)
+
+        assertArrayEquals("Check Twofish decryption", input, nativeDecrypted)
+    }
+
+    @Test
+    fun testChaCha20() {
+        // Generate random input
+        val input = ByteArray(mRand.nextInt(4094) + 18)
+        mRand.nextBytes(input)
+        val keyArray = ByteArray(32)
+        mRand.nextBytes(keyArray)
+        val ivArray = ByteArray(12)
+        mRand.nextBytes(ivArray)
+
+        val javaEncrypt = Cipher.getInstance("ChaCha7539", BouncyCastleProvider())
+        javaEncrypt.init(Cipher.ENCRYPT_MODE, SecretKeySpec(keyArray, "ChaCha7539"), IvParameterSpec(ivArray))
+        val javaEncrypted = javaEncrypt.doFinal(input)
+
+        // Processed by pieces not aligned on the blocks
+        val nativeEncrypt = CipherFactory.getChacha20(Cipher.ENCRYPT_MODE, keyArray, ivArray, forceNative = true)
+        val nativeEncrypted = ByteArray(input.size)
+        var position = 0
+        while (position < input.size) {
+            val length = minOf(mRand.nextInt(300), input.size - position)
+            nativeEncrypt.update(input, position, length, nativeEncrypted, position)
+            position += length
+        }
+
+        assertArrayEquals("Check ChaCha20 encryption", javaEncrypted, nativeEncrypted)
+    }
+
+    @Test
+    fun testInnerStream() {
+        val key = ByteArray(64)
+        mRand.nextBytes(key)
+        val hash = HashManager.getHash512().digest(key)
+        val cipher = ChaCha7539Engine()
+        cipher.init(true, ParametersWithIV(KeyParameter(hash.copyOf(32)), hash.copyOfRange(32, 44)))
+
+        // Values of the protected fields, read one after the other from the same stream
+        val streamCipher = HashManager.getChaCha20(key)
+        for (i in 0 until 500) {
+            val value = ByteArray(mRand.nextInt(100))
+            mRand.nextBytes(value)
+            val expected = ByteArray(value.size)
+            cipher.processBytes(value, 0, value.size, expected, 0)
 
+            assertArrayEquals("Check inner stream", expected, streamCipher.processBytes(value))
+        }
+    }
 }
@@ -2,10 +2,13 @@ package com.kunzisoft.encrypt
 
 import android.util.Log
 import com.kunzisoft.encrypt.aes.AESProvider
+import com.kunzisoft.encrypt.chacha.ChaCha20Provider
+import com.kunzisoft.encrypt.twofish.TwofishProvider
 import org.bouncycastle.jce.provider.BouncyCastleProvider
 import java.security.InvalidAlgorithmParameterException
 import java.security.InvalidKeyException
 import java.security.NoSuchAlgorithmException
+import java.security.Provider
 import java.security.Security
 import javax.crypto.Cipher
 import javax.crypto.NoSuchPaddingException
@@ -14,43 +17,61 @@ import javax.crypto.spec.SecretKeySpec
 
 object CipherFactory {
 
+    // Created once, each provider registers all its services when built
+    private val bouncyCastleProvider = BouncyCastleProvider()
+    private val aesProvider = AESProvider()
+    private val chaCha20Provider = ChaCha20Provider()
+    private val twofishProvider = TwofishProvider()
+
     init {
         Security.removeProvider(BouncyCastleProvider.PROVIDER_NAME)
-        Security.addProvider(BouncyCastleProvider())
+        Security.addProvider(bouncyCastleProvider)
     }
 
-    @Throws(NoSuchAlgorithmException::class, NoSuchPaddingException::class, InvalidKeyException::class, InvalidAlgorithmParameterException::class)
-    fun getAES(opmode: Int, key: ByteArray, IV: ByteArray, forceNative: Boolean = false): Cipher {
-        val transformation = "AES/CBC/PKCS5Padding"
-        val cipher = if (forceNative || NativeLib.loaded()) {
+    /**
+     * Cipher of [nativeProvider] if the native library is loaded, else of [defaultProvider] or the registered providers
+     */
+    @Throws(NoSuchAlgorithmException::class, NoSuchPaddingException::class)
+    private fun getCipher(transformation: String,
+                          nativeProvider: Provider,
+                          defaultProvider: Provider? = null,
+                          forceNative: Boolean = false): Cipher {
+        if (forceNative || NativeLib.loaded()) {
             // Try native implementation
             try {
-                Cipher.getInstance(transformation, AESProvider())
+                return Cipher.getInstance(transformation, nativeProvider)
             } catch (exception: Exception) {
-                Log.e(CipherFactory::class.java.simpleName, "Unable to retrieve native AES cipher", exception)
-                Cipher.getInstance(transformation)
+                Log.e(CipherFactory::class.java.simpleName, "Unable to retrieve native cipher $transformation", exception)
             }
-        } else {
-            Cipher.getInstance(transformation)
         }
+        return if (defaultProvider != null)
+            Cipher.getInstance(transformation, defaultProvider)
+        else
+            Cipher.getInstance(transformation)
+    }
+
+    @Throws(NoSuchAlgorithmException::class, NoSuchPaddingException::class, InvalidKeyException::class, InvalidAlgorithmParameterException::class)
+    fun getAES(opmode: Int, key: ByteArray, IV: ByteArray, forceNative: Boolean = false): Cipher {
+        val cipher = getCipher("AES/CBC/PKCS5Padding", aesProvider, forceNative = forceNative)
         cipher.init(opmode, SecretKeySpec(key, "AES"), IvParameterSpec(IV))
         return cipher
     }
 
     @Throws(NoSuchAlgorithmException::class, NoSuchPaddingException::class, InvalidKeyException::class, InvalidAlgorithmParameterException::class)
-    fun getTwofish(opmode: Int, key: ByteArray, IV: ByteArray, forceCompatibility: Boolean = false): Cipher {
-        val cipher: Cipher = if (forceCompatibility) {
-            Cipher.getInstance("Twofish/CBC/NoPadding")
+    fun getTwofish(opmode: Int, key: ByteArray, IV: ByteArray, forceCompatibility: Boolean = false, forceNative: Boolean = false): Cipher {
+        val transformation = if (forceCompatibility) {
+            "Twofish/CBC/NoPadding"
         } else {
-            Cipher.getInstance("Twofish/CBC/PKCS7PADDING")
+            "Twofish/CBC/PKCS7PADDING"
         }
+        val cipher = getCipher(transformation, twofishProvider, bouncyCastleProvider, forceNative)
         cipher.init(opmode, SecretKeySpec(key, "AES"), IvParameterSpec(IV))
         return cipher
     }
 
     @Throws(NoSuchAlgorithmException::class, NoSuchPaddingException::class, InvalidKeyException::class, InvalidAlgorithmParameterException::class)
-    fun getChacha20(opmode: Int, key: ByteArray, IV: ByteArray): Cipher {
-        val cipher = Cipher.getInstance("Chacha7539", BouncyCastleProvider())
+    fun getChacha20(opmode: Int, key: ByteArray, IV: ByteArray, forceNative: Boolean = false): Cipher {
+        val cipher = getCipher("Chacha7539", chaCha20Provider, bouncyCastleProvider, forceNative)
         cipher.init(opmode, SecretKeySpec(key, "ChaCha7539"), IvParameterSpec(IV))
         return cipher
     }
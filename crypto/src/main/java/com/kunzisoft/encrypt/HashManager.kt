@@ -19,6 +19,7 @@
  */
 package com.kunzisoft.encrypt
 
+import com.kunzisoft.encrypt.chacha.NativeChaCha7539Engine
 import org.bouncycastle.crypto.engines.ChaCha7539Engine
 import org.bouncycastle.crypto.engines.Salsa20Engine
 import org.bouncycastle.crypto.params.KeyParameter
@@ -100,7 +101,7 @@ object HashManager {
         val keyParam = KeyParameter(key32)
         val ivParam = ParametersWithIV(keyParam, iv)
 
-        val cipher = ChaCha7539Engine()
+        val cipher = if (NativeLib.loaded()) NativeChaCha7539Engine() else ChaCha7539Engine()
         cipher.init(true, ivParam)
 
         return StreamCipher(cipher)
@@ -32,6 +32,8 @@ object NativeLib {
             try {
                 System.loadLibrary("aes")
                 System.loadLibrary("argon2")
+                System.loadLibrary("chacha")
+                System.loadLibrary("twofish")
             } catch (e: UnsatisfiedLinkError) {
                 return false
             }
@@ -4,9 +4,14 @@ import org.bouncycastle.crypto.CipherParameters
 import org.bouncycastle.crypto.DataLengthException
 
 /**
- * Stream cipher to process data
+ * Stream cipher to process data, the keystream is generated by blocks of [KEY_STREAM_SIZE] bytes
+ * and XORed with the data, so the small values don't each go through the cipher
  */
 class StreamCipher(private val streamCipher: org.bouncycastle.crypto.StreamCipher) {
+
+    private val keyStream = ByteArray(KEY_STREAM_SIZE)
+    private var keyStreamPosition = KEY_STREAM_SIZE
+
     /**
      * Initialise the cipher.
      *
@@ -19,6 +24,8 @@ class StreamCipher(private val streamCipher: org.bouncycastle.crypto.StreamCiphe
     @Throws(IllegalArgumentException::class)
     fun init(forEncryption: Boolean, params: CipherParameters?) {
         streamCipher.init(forEncryption, params)
+        keyStream.fill(0)
+        keyStreamPosition = KEY_STREAM_SIZE
     }
 
     /**
@@ -30,9 +37,38 @@ class StreamCipher(private val streamCipher: org.bouncycastle.crypto.StreamCiphe
      */
     @Throws(DataLengthException::class)
     fun processBytes(data: ByteArray): ByteArray {
-        val size = data.size
-        val out = ByteArray(size)
-        streamCipher.processBytes(data, 0, size, out, 0)
+        val out = data.copyOf()
+        processBytesInPlace(out)
         return out
     }
-}
\ No newline at end of file
+
+    /**
+     * XOR [length] bytes of [data] from [offset] with the keystream, without allocation
+     */
+    @Throws(DataLengthException::class)
+    fun processBytesInPlace(data: ByteArray, offset: Int = 0, length: Int = data.size - offset) {
+        var position = offset
+        val end = offset + length
+        while (position < end) {
+            if (keyStreamPosition == KEY_STREAM_SIZE)
+                generateKeyStream()
+            val count = minOf(end - position, KEY_STREAM_SIZE - keyStreamPosition)
+            for (i in 0 until count) {
+                data[position + i] = (data[position + i].toInt() xor keyStream[keyStreamPosition + i].toInt()).toByte()
+            }
+            position += count
+            keyStreamPosition += count
+        }
+    }
+
+    private fun generateKeyStream() {
+        keyStream.fill(0)
+        streamCipher.processBytes(keyStream, 0, KEY_STREAM_SIZE, keyStream, 0)
+        keyStreamPosition = 0
+    }
+
+    companion object {
+        // Multiple of the blocks of Salsa20 and ChaCha20
+        private const val KEY_STREAM_SIZE = 4096
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.encrypt
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Shared between a key transformation and its caller, to cancel it and to follow its progress.
+ * The native transformations read and write the state directly in a direct buffer,
+ * the cancel flag is checked between the Argon2 segments and every few thousand AES rounds.
+ */
+class TransformationToken {
+
+    // Cancel flag then progress in millionths, as native int32
+    internal val state: ByteBuffer = ByteBuffer.allocateDirect(STATE_SIZE).order(ByteOrder.nativeOrder())
+
+    val isCancelled: Boolean
+        get() = state.getInt(CANCELLED_OFFSET) != 0
+
+    /**
+     * Fraction of the transformation done, between 0 and 1
+     */
+    val progress: Float
+        get() = state.getInt(PROGRESS_OFFSET) / PROGRESS_SCALE.toFloat()
+
+    fun cancel() {
+        state.putInt(CANCELLED_OFFSET, 1)
+    }
+
+    internal fun updateProgress(done: Long, total: Long) {
+        if (total > 0)
+            state.putInt(PROGRESS_OFFSET, (done.toDouble() / total * PROGRESS_SCALE).toInt())
+    }
+
+    @Throws(TransformationCancelledException::class)
+    fun throwIfCancelled() {
+        if (isCancelled)
+            throw TransformationCancelledException()
+    }
+
+    companion object {
+        private const val CANCELLED_OFFSET = 0
+        private const val PROGRESS_OFFSET = 4
+        private const val STATE_SIZE = 8
+        private const val PROGRESS_SCALE = 1000000
+    }
+}
@@ -23,6 +23,8 @@ import android.annotation.SuppressLint
 import android.util.Log
 import com.kunzisoft.encrypt.HashManager
 import com.kunzisoft.encrypt.NativeLib
+import com.kunzisoft.encrypt.TransformationCancelledException
+import com.kunzisoft.encrypt.TransformationToken
 import java.io.IOException
 import java.security.InvalidKeyException
 import javax.crypto.Cipher
@@ -31,21 +33,30 @@ import javax.crypto.spec.SecretKeySpec
 
 object AESTransformer {
 
-    fun transformKey(seed: ByteArray?, key: ByteArray?, rounds: Long?): ByteArray? {
+    /**
+     * The rounds stop as soon as [token] is cancelled, [TransformationCancelledException] is then thrown
+     */
+    @Throws(IOException::class)
+    fun transformKey(seed: ByteArray?, key: ByteArray?, rounds: Long?,
+                     token: TransformationToken? = null): ByteArray? {
+        token?.throwIfCancelled()
         // Prefer the native final key implementation
-        return try {
+        val transformedKey = try {
             NativeLib.init()
-            NativeAESKeyTransformer.nTransformKey(seed, key, rounds!!)
+            NativeAESKeyTransformer.nTransformKey(seed, key, rounds!!, token?.state)
         } catch (exception: Exception) {
             Log.e(AESTransformer::class.java.simpleName, "Unable to perform native AES key transformation", exception)
             // Fall back on the android crypto implementation
-            transformKeyInJVM(seed, key, rounds)
+            transformKeyInJVM(seed, key, rounds, token)
         }
+        token?.throwIfCancelled()
+        return transformedKey
     }
 
     @SuppressLint("GetInstance")
     @Throws(IOException::class)
-    fun transformKeyInJVM(seed: ByteArray?, key: ByteArray?, rounds: Long?): ByteArray {
+    fun transformKeyInJVM(seed: ByteArray?, key: ByteArray?, rounds: Long?,
+                          token: TransformationToken? = null): ByteArray {
         val cipher: Cipher = try {
             Cipher.getInstance("AES/ECB/NoPadding")
         } catch (e: Exception) {
@@ -69,6 +80,10 @@ object AESTransformer {
         System.arraycopy(key, 0, newKey, 0, keyLength)
         val destKey = ByteArray(keyLength)
         for (i in 0 until rounds) {
+            if (token != null && i % ROUNDS_PER_CHECK == 0L) {
+                token.throwIfCancelled()
+                token.updateProgress(i, rounds)
+            }
             try {
                 cipher.update(newKey, 0, newKey.size, destKey, 0)
                 System.arraycopy(destKey, 0, newKey, 0, newKey.size)
@@ -77,7 +92,11 @@ object AESTransformer {
             }
         }
 
+        token?.updateProgress(rounds, rounds)
+
         // Hash the key
         return HashManager.hashSha256(newKey)
     }
+
+    private const val ROUNDS_PER_CHECK = 4096L
 }
\ No newline at end of file
@@ -19,7 +19,12 @@
  */
 package com.kunzisoft.encrypt.aes;
 
+import java.nio.ByteBuffer;
+
 public class NativeAESKeyTransformer {
 
-    public static native byte[] nTransformKey(byte[] seed, byte[] key, long rounds);
+    /**
+     * Return null if the transformation is cancelled by the direct buffer of its token
+     */
+    public static native byte[] nTransformKey(byte[] seed, byte[] key, long rounds, ByteBuffer token);
 }
@@ -1,16 +1,25 @@
 package com.kunzisoft.encrypt.argon2
 
 import com.kunzisoft.encrypt.NativeLib
+import com.kunzisoft.encrypt.TransformationCancelledException
+import com.kunzisoft.encrypt.TransformationToken
+import java.io.IOException
 
 object Argon2Transformer {
 
+    /**
+     * Memory of the transformation is wiped and released as soon as [token] is cancelled,
+     * [TransformationCancelledException] is then thrown
+     */
+    @Throws(IOException::class)
     fun transformKey(type: Argon2Type,
                      password: ByteArray,
                      salt: ByteArray,
                      parallelism: Long,
                      memory: Long,
                      iterations: Long,
-                     version: Int): ByteArray {
+                     version: Int,
+                     token: TransformationToken? = null): ByteArray {
 
         NativeLib.init()
         val argon2Type = when(type) {
@@ -19,7 +28,8 @@ object Argon2Transformer {
             Argon2Type.ARGON2_ID -> NativeArgon2KeyTransformer.CType.ARGON2_ID
         }
 
-        return NativeArgon2KeyTransformer.nTransformKey(
+        token?.throwIfCancelled()
+        val key = NativeArgon2KeyTransformer.nTransformKey(
                 argon2Type.cValue,
                 password,
                 salt,
@@ -28,6 +38,9 @@ object Argon2Transformer {
                 iterations.toInt(),
                 ByteArray(0),
                 ByteArray(0),
-                version)
+                version,
+                token?.state)
+        token?.throwIfCancelled()
+        return key ?: throw IOException("Argon2 transformation failed")
     }
 }
\ No newline at end of file
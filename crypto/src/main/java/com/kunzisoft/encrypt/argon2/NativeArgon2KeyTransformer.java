@@ -20,6 +20,7 @@
 package com.kunzisoft.encrypt.argon2;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class NativeArgon2KeyTransformer {
 
@@ -35,7 +36,11 @@ public class NativeArgon2KeyTransformer {
         }
     }
 
+    /**
+     * Return null if the transformation is cancelled by the direct buffer of its token
+     */
     public static native byte[] nTransformKey(int type, byte[] password, byte[] salt, int parallelism,
                                               int memory, int iterations, byte[] secretKey,
-                                              byte[] associatedData, int version) throws IOException;
+                                              byte[] associatedData, int version,
+                                              ByteBuffer token) throws IOException;
 }
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.encrypt.chacha
+
+import java.security.Provider
+
+class ChaCha20Provider : Provider("ChaCha20Provider", 1.0, "") {
+    init {
+        put("Cipher.ChaCha7539", NativeChaCha20CipherSpi::class.java.name)
+    }
+
+    companion object {
+        private const val serialVersionUID = 4672143187542183472L
+    }
+
+}
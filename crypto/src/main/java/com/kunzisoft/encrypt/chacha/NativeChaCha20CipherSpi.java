@@ -0,0 +1,157 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.encrypt.chacha;
+
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+import java.security.AlgorithmParameters;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.InvalidParameterSpecException;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Cipher of the native ChaCha20, encryption and decryption being the same operation
+ */
+public class NativeChaCha20CipherSpi extends CipherSpi {
+
+    private static final int IV_SIZE = 12;
+
+    private final NativeChaCha7539Engine mEngine = new NativeChaCha7539Engine();
+    private byte[] mIV;
+
+    @Override
+    protected void engineSetMode(String mode) throws NoSuchAlgorithmException {
+        if (!mode.equalsIgnoreCase("NONE")) {
+            throw new NoSuchAlgorithmException("Stream cipher without mode");
+        }
+    }
+
+    @Override
+    protected void engineSetPadding(String padding) throws NoSuchPaddingException {
+        if (!padding.equalsIgnoreCase("NoPadding")) {
+            throw new NoSuchPaddingException("Stream cipher without padding");
+        }
+    }
+
+    @Override
+    protected int engineGetBlockSize() {
+        return 0;
+    }
+
+    @Override
+    protected int engineGetOutputSize(int inputLen) {
+        return inputLen;
+    }
+
+    @Override
+    protected byte[] engineGetIV() {
+        return mIV == null ? null : mIV.clone();
+    }
+
+    @Override
+    protected AlgorithmParameters engineGetParameters() {
+        return null;
+    }
+
+    @Override
+    protected void engineInit(int opmode, Key key, SecureRandom random) throws InvalidKeyException {
+        if (opmode == Cipher.DECRYPT_MODE) {
+            throw new InvalidKeyException("IV required for decryption");
+        }
+        byte[] iv = new byte[IV_SIZE];
+        random.nextBytes(iv);
+        init(key, iv);
+    }
+
+    @Override
+    protected void engineInit(int opmode, Key key, AlgorithmParameterSpec params, SecureRandom random)
+            throws InvalidKeyException, InvalidAlgorithmParameterException {
+        if (!(params instanceof IvParameterSpec)) {
+            throw new InvalidAlgorithmParameterException("params must be an IvParameterSpec.");
+        }
+        init(key, ((IvParameterSpec) params).getIV());
+    }
+
+    @Override
+    protected void engineInit(int opmode, Key key, AlgorithmParameters params, SecureRandom random)
+            throws InvalidKeyException, InvalidAlgorithmParameterException {
+        try {
+            engineInit(opmode, key, params.getParameterSpec(AlgorithmParameterSpec.class), random);
+        } catch (InvalidParameterSpecException e) {
+            throw new InvalidAlgorithmParameterException(e);
+        }
+    }
+
+    private void init(Key key, byte[] iv) throws InvalidKeyException {
+        try {
+            mEngine.init(true, new ParametersWithIV(new KeyParameter(key.getEncoded()), iv));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidKeyException(e.getMessage(), e);
+        }
+        mIV = iv.clone();
+    }
+
+    @Override
+    protected byte[] engineUpdate(byte[] input, int inputOffset, int inputLen) {
+        byte[] output = new byte[inputLen];
+        if (inputLen > 0) {
+            mEngine.processBytes(input, inputOffset, inputLen, output, 0);
+        }
+        return output;
+    }
+
+    @Override
+    protected int engineUpdate(byte[] input, int inputOffset, int inputLen,
+                               byte[] output, int outputOffset) throws ShortBufferException {
+        if (outputOffset + inputLen > output.length) {
+            throw new ShortBufferException("Insufficient buffer.");
+        }
+        if (inputLen > 0) {
+            mEngine.processBytes(input, inputOffset, inputLen, output, outputOffset);
+        }
+        return inputLen;
+    }
+
+    @Override
+    protected byte[] engineDoFinal(byte[] input, int inputOffset, int inputLen) {
+        byte[] output = engineUpdate(input, inputOffset, inputLen);
+        mEngine.reset();
+        return output;
+    }
+
+    @Override
+    protected int engineDoFinal(byte[] input, int inputOffset, int inputLen,
+                                byte[] output, int outputOffset) throws ShortBufferException {
+        int length = engineUpdate(input, inputOffset, inputLen, output, outputOffset);
+        mEngine.reset();
+        return length;
+    }
+}
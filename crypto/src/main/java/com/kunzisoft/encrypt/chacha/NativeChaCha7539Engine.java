@@ -0,0 +1,144 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.encrypt.chacha;
+
+import com.kunzisoft.encrypt.NativeLib;
+
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.OutputLengthException;
+import org.bouncycastle.crypto.StreamCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.bouncycastle.util.Pack;
+
+import java.util.Arrays;
+
+/**
+ * ChaCha20 of RFC 7539 computed by the native library, same behavior as the ChaCha7539Engine of BouncyCastle.
+ * The state stays in Java between the calls, the native library only updates its block counter.
+ */
+public class NativeChaCha7539Engine implements StreamCipher {
+
+    private static final int STATE_WORDS = 16;
+    private static final int COUNTER_WORD = 12;
+    private static final int BLOCK_SIZE = 64;
+    private static final int KEY_SIZE = 32;
+    private static final int NONCE_SIZE = 12;
+
+    // "expand 32-byte k"
+    private static final int[] SIGMA = { 0x61707865, 0x3320646e, 0x79622d32, 0x6b206574 };
+
+    private final int[] mState = new int[STATE_WORDS];
+    // Rest of the last block when the data processed is not a multiple of the block size
+    private final byte[] mKeyStream = new byte[BLOCK_SIZE];
+    private int mKeyStreamPosition = BLOCK_SIZE;
+    private boolean mIsInit = false;
+
+    @Override
+    public void init(boolean forEncryption, CipherParameters params) throws IllegalArgumentException {
+        if (!(params instanceof ParametersWithIV)) {
+            throw new IllegalArgumentException("ChaCha7539 Init parameters must include an IV");
+        }
+        ParametersWithIV ivParams = (ParametersWithIV) params;
+        byte[] iv = ivParams.getIV();
+        if (iv == null || iv.length != NONCE_SIZE) {
+            throw new IllegalArgumentException("ChaCha7539 requires exactly " + NONCE_SIZE + " bytes of IV");
+        }
+        CipherParameters keyParam = ivParams.getParameters();
+        if (keyParam == null) {
+            if (!mIsInit) {
+                throw new IllegalStateException("ChaCha7539 KeyParameter can not be null for first initialisation");
+            }
+        } else if (keyParam instanceof KeyParameter) {
+            byte[] key = ((KeyParameter) keyParam).getKey();
+            if (key.length != KEY_SIZE) {
+                throw new IllegalArgumentException("ChaCha7539 requires 256 bit key");
+            }
+            System.arraycopy(SIGMA, 0, mState, 0, SIGMA.length);
+            Pack.littleEndianToInt(key, 0, mState, 4, KEY_SIZE / 4);
+        } else {
+            throw new IllegalArgumentException("ChaCha7539 Init parameters must contain a KeyParameter (or null for re-init)");
+        }
+        Pack.littleEndianToInt(iv, 0, mState, COUNTER_WORD + 1, NONCE_SIZE / 4);
+
+        NativeLib.INSTANCE.init();
+        mIsInit = true;
+        reset();
+    }
+
+    @Override
+    public String getAlgorithmName() {
+        return "ChaCha7539";
+    }
+
+    @Override
+    public byte returnByte(byte in) {
+        byte[] data = new byte[] { in };
+        processBytes(data, 0, 1, data, 0);
+        return data[0];
+    }
+
+    @Override
+    public int processBytes(byte[] in, int inOff, int len, byte[] out, int outOff) throws DataLengthException {
+        if (!mIsInit) {
+            throw new IllegalStateException(getAlgorithmName() + " not initialised");
+        }
+        if (inOff + len > in.length) {
+            throw new DataLengthException("input buffer too short");
+        }
+        if (outOff + len > out.length) {
+            throw new OutputLengthException("output buffer too short");
+        }
+
+        int position = 0;
+        // Rest of the previous block
+        while (mKeyStreamPosition < BLOCK_SIZE && position < len) {
+            out[outOff + position] = (byte) (in[inOff + position] ^ mKeyStream[mKeyStreamPosition++]);
+            position++;
+        }
+        // Complete blocks
+        int blocksLength = (len - position) & ~(BLOCK_SIZE - 1);
+        if (blocksLength > 0) {
+            nProcess(mState, in, inOff + position, blocksLength, out, outOff + position);
+            position += blocksLength;
+        }
+        // Start of the next block
+        if (position < len) {
+            Arrays.fill(mKeyStream, (byte) 0);
+            nProcess(mState, mKeyStream, 0, BLOCK_SIZE, mKeyStream, 0);
+            mKeyStreamPosition = 0;
+            while (position < len) {
+                out[outOff + position] = (byte) (in[inOff + position] ^ mKeyStream[mKeyStreamPosition++]);
+                position++;
+            }
+        }
+        return len;
+    }
+
+    @Override
+    public void reset() {
+        mState[COUNTER_WORD] = 0;
+        Arrays.fill(mKeyStream, (byte) 0);
+        mKeyStreamPosition = BLOCK_SIZE;
+    }
+
+    private static native void nProcess(int[] state, byte[] input, int inputOffset, int length, byte[] output, int outputOffset);
+}
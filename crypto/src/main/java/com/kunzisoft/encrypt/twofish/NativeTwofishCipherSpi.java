@@ -0,0 +1,287 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.encrypt.twofish;
+
+import com.kunzisoft.encrypt.NativeLib;
+
+import java.security.AlgorithmParameters;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.InvalidParameterSpecException;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Twofish in CBC mode computed by the native library, with PKCS7 padding or without padding.
+ * The expanded key and the chaining vector are kept in Java arrays, so there is no native memory to free.
+ */
+public class NativeTwofishCipherSpi extends CipherSpi {
+
+    private static final int BLOCK_SIZE = 16;
+
+    private boolean mEncrypting;
+    private boolean mPadding = true;
+    private int[] mContext;
+    private byte[] mInitialIV;
+    private final byte[] mIV = new byte[BLOCK_SIZE];
+    // Input not yet processed, the last block is kept by a decryption with padding
+    private final byte[] mBuffer = new byte[BLOCK_SIZE];
+    private int mBufferLength = 0;
+
+    @Override
+    protected void engineSetMode(String mode) throws NoSuchAlgorithmException {
+        if (!mode.equalsIgnoreCase("CBC")) {
+            throw new NoSuchAlgorithmException("This only supports CBC mode");
+        }
+    }
+
+    @Override
+    protected void engineSetPadding(String padding) throws NoSuchPaddingException {
+        if (padding.equalsIgnoreCase("NoPadding")) {
+            mPadding = false;
+        } else if (padding.equalsIgnoreCase("PKCS7Padding") || padding.equalsIgnoreCase("PKCS5Padding")) {
+            mPadding = true;
+        } else {
+            throw new NoSuchPaddingException("Only supports PKCS7Padding and NoPadding.");
+        }
+    }
+
+    @Override
+    protected int engineGetBlockSize() {
+        return BLOCK_SIZE;
+    }
+
+    @Override
+    protected int engineGetOutputSize(int inputLen) {
+        int length = mBufferLength + inputLen;
+        if (mEncrypting && mPadding) {
+            return length + BLOCK_SIZE - length % BLOCK_SIZE;
+        }
+        return length;
+    }
+
+    @Override
+    protected byte[] engineGetIV() {
+        return mInitialIV == null ? null : mInitialIV.clone();
+    }
+
+    @Override
+    protected AlgorithmParameters engineGetParameters() {
+        return null;
+    }
+
+    @Override
+    protected void engineInit(int opmode, Key key, SecureRandom random) throws InvalidKeyException {
+        if (opmode == Cipher.DECRYPT_MODE) {
+            throw new InvalidKeyException("IV required for decryption");
+        }
+        byte[] iv = new byte[BLOCK_SIZE];
+        random.nextBytes(iv);
+        init(opmode, key, iv);
+    }
+
+    @Override
+    protected void engineInit(int opmode, Key key, AlgorithmParameterSpec params, SecureRandom random)
+            throws InvalidKeyException, InvalidAlgorithmParameterException {
+        if (!(params instanceof IvParameterSpec)) {
+            throw new InvalidAlgorithmParameterException("params must be an IvParameterSpec.");
+        }
+        byte[] iv = ((IvParameterSpec) params).getIV();
+        if (iv.length != BLOCK_SIZE) {
+            throw new InvalidAlgorithmParameterException("IV must be " + BLOCK_SIZE + " bytes long.");
+        }
+        init(opmode, key, iv);
+    }
+
+    @Override
+    protected void engineInit(int opmode, Key key, AlgorithmParameters params, SecureRandom random)
+            throws InvalidKeyException, InvalidAlgorithmParameterException {
+        try {
+            engineInit(opmode, key, params.getParameterSpec(AlgorithmParameterSpec.class), random);
+        } catch (InvalidParameterSpecException e) {
+            throw new InvalidAlgorithmParameterException(e);
+        }
+    }
+
+    private void init(int opmode, Key key, byte[] iv) throws InvalidKeyException {
+        NativeLib.INSTANCE.init();
+        try {
+            mContext = nSetKey(key.getEncoded());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidKeyException(e.getMessage(), e);
+        }
+        mEncrypting = opmode == Cipher.ENCRYPT_MODE || opmode == Cipher.WRAP_MODE;
+        mInitialIV = iv.clone();
+        reset();
+    }
+
+    private void reset() {
+        System.arraycopy(mInitialIV, 0, mIV, 0, BLOCK_SIZE);
+        Arrays.fill(mBuffer, (byte) 0);
+        mBufferLength = 0;
+    }
+
+    private void process(byte[] input, int inputOffset, int length, byte[] output, int outputOffset) {
+        if (mEncrypting) {
+            nEncrypt(mContext, mIV, input, inputOffset, length, output, outputOffset);
+        } else {
+            nDecrypt(mContext, mIV, input, inputOffset, length, output, outputOffset);
+        }
+    }
+
+    private int update(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset)
+            throws ShortBufferException {
+        int total = mBufferLength + inputLen;
+        int keep = total % BLOCK_SIZE;
+        if (!mEncrypting && mPadding && keep == 0 && total > 0) {
+            // The padding is removed from the last block by doFinal
+            keep = BLOCK_SIZE;
+        }
+        int processLength = total - keep;
+        if (outputOffset + processLength > output.length) {
+            throw new ShortBufferException("Insufficient buffer.");
+        }
+        if (processLength > 0 && input == output && mBufferLength > 0) {
+            // The buffered block would be written over the input
+            input = Arrays.copyOfRange(input, inputOffset, inputOffset + inputLen);
+            inputOffset = 0;
+        }
+
+        int written = 0;
+        if (processLength > 0 && mBufferLength > 0) {
+            int fill = BLOCK_SIZE - mBufferLength;
+            System.arraycopy(input, inputOffset, mBuffer, mBufferLength, fill);
+            inputOffset += fill;
+            inputLen -= fill;
+            process(mBuffer, 0, BLOCK_SIZE, output, outputOffset);
+            mBufferLength = 0;
+            written = BLOCK_SIZE;
+        }
+        if (processLength > written) {
+            int length = processLength - written;
+            process(input, inputOffset, length, output, outputOffset + written);
+            inputOffset += length;
+            inputLen -= length;
+        }
+        if (inputLen > 0) {
+            System.arraycopy(input, inputOffset, mBuffer, mBufferLength, inputLen);
+            mBufferLength += inputLen;
+        }
+        return processLength;
+    }
+
+    private int doFinal(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset)
+            throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        if (outputOffset + engineGetOutputSize(inputLen) > output.length) {
+            throw new ShortBufferException("Insufficient buffer.");
+        }
+        try {
+            int length = inputLen > 0 ? update(input, inputOffset, inputLen, output, outputOffset) : 0;
+            if (!mPadding) {
+                if (mBufferLength != 0) {
+                    throw new IllegalBlockSizeException("Data not block size aligned");
+                }
+                return length;
+            }
+            if (mEncrypting) {
+                byte padValue = (byte) (BLOCK_SIZE - mBufferLength);
+                Arrays.fill(mBuffer, mBufferLength, BLOCK_SIZE, padValue);
+                process(mBuffer, 0, BLOCK_SIZE, output, outputOffset + length);
+                return length + BLOCK_SIZE;
+            }
+            if (mBufferLength != BLOCK_SIZE) {
+                throw new IllegalBlockSizeException("Last block incomplete in decryption");
+            }
+            byte[] lastBlock = new byte[BLOCK_SIZE];
+            process(mBuffer, 0, BLOCK_SIZE, lastBlock, 0);
+            int padValue = lastBlock[BLOCK_SIZE - 1] & 0xFF;
+            boolean badPadding = padValue < 1 || padValue > BLOCK_SIZE;
+            for (int i = BLOCK_SIZE - padValue; !badPadding && i < BLOCK_SIZE; i++) {
+                badPadding = (lastBlock[i] & 0xFF) != padValue;
+            }
+            if (badPadding) {
+                Arrays.fill(lastBlock, (byte) 0);
+                throw new BadPaddingException("Pad block corrupted");
+            }
+            System.arraycopy(lastBlock, 0, output, outputOffset + length, BLOCK_SIZE - padValue);
+            Arrays.fill(lastBlock, (byte) 0);
+            return length + BLOCK_SIZE - padValue;
+        } finally {
+            reset();
+        }
+    }
+
+    @Override
+    protected byte[] engineUpdate(byte[] input, int inputOffset, int inputLen) {
+        byte[] output = new byte[engineGetOutputSize(inputLen)];
+        int length;
+        try {
+            length = update(input, inputOffset, inputLen, output, 0);
+        } catch (ShortBufferException e) {
+            // This shouldn't be possible rethrow as RuntimeException
+            throw new RuntimeException("Short buffer exception shouldn't be possible from here.");
+        }
+        return length == output.length ? output : Arrays.copyOf(output, length);
+    }
+
+    @Override
+    protected int engineUpdate(byte[] input, int inputOffset, int inputLen,
+                               byte[] output, int outputOffset) throws ShortBufferException {
+        return update(input, inputOffset, inputLen, output, outputOffset);
+    }
+
+    @Override
+    protected byte[] engineDoFinal(byte[] input, int inputOffset, int inputLen)
+            throws IllegalBlockSizeException, BadPaddingException {
+        byte[] output = new byte[engineGetOutputSize(inputLen)];
+        int length;
+        try {
+            length = doFinal(input, inputOffset, inputLen, output, 0);
+        } catch (ShortBufferException e) {
+            // This shouldn't be possible rethrow as RuntimeException
+            throw new RuntimeException("Short buffer exception shouldn't be possible from here.");
+        }
+        return length == output.length ? output : Arrays.copyOf(output, length);
+    }
+
+    @Override
+    protected int engineDoFinal(byte[] input, int inputOffset, int inputLen,
+                                byte[] output, int outputOffset)
+            throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        return doFinal(input, inputOffset, inputLen, output, outputOffset);
+    }
+
+    private static native int[] nSetKey(byte[] key);
+
+    private static native void nEncrypt(int[] context, byte[] iv, byte[] input, int inputOffset, int length, byte[] output, int outputOffset);
+
+    private static native void nDecrypt(int[] context, byte[] iv, byte[] input, int inputOffset, int length, byte[] output, int outputOffset);
+}
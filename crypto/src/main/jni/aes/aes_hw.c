@@ -0,0 +1,141 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include <stdlib.h>
+#include <string.h>
+
+#include "aes_hw.h"
+
+#if defined(AES_HW_ARM)
+#include <sys/auxv.h>
+#ifndef HWCAP_AES
+#define HWCAP_AES (1 << 3)
+#endif
+#endif
+
+/*
+  Multiplication in GF(2^8) without branch nor table, only used by the key
+  expansion so its speed doesn't matter
+*/
+static uint8_t gf_mul(uint8_t a, uint8_t b) {
+  uint8_t result = 0;
+  int i;
+  for( i = 0; i < 8; i++ ) {
+    result ^= (uint8_t)(-(b & 1) & a);
+    a = (uint8_t)((a << 1) ^ (-(a >> 7) & 0x1B));
+    b >>= 1;
+  }
+  return result;
+}
+
+/* S-box computed as the affine transformation of the inverse, without table lookup */
+static uint8_t sub_byte(uint8_t x) {
+  uint8_t inverse = 1, power = x;
+  uint8_t s;
+  int i;
+  /* x^254 = x^-1, and 0 for 0 */
+  for( i = 1; i < 8; i++ ) {
+    power = gf_mul(power, power);
+    inverse = gf_mul(inverse, power);
+  }
+  s = inverse;
+  s ^= (uint8_t)((inverse << 1) | (inverse >> 7));
+  s ^= (uint8_t)((inverse << 2) | (inverse >> 6));
+  s ^= (uint8_t)((inverse << 3) | (inverse >> 5));
+  s ^= (uint8_t)((inverse << 4) | (inverse >> 4));
+  return s ^ 0x63;
+}
+
+uint32_t aes_hw_expand_key(const uint8_t *key, int key_len, uint8_t *rk) {
+  uint32_t nk, rounds, i, j;
+  uint8_t rcon = 1, t[4], tmp;
+
+  if( key_len != 16 && key_len != 24 && key_len != 32 )
+    return 0;
+  nk = key_len / 4;
+  rounds = nk + 6;
+
+  memcpy(rk, key, key_len);
+  for( i = nk; i < 4 * (rounds + 1); i++ ) {
+    memcpy(t, rk + 4 * (i - 1), 4);
+    if( i % nk == 0 ) {
+      tmp = t[0];
+      t[0] = (uint8_t)(sub_byte(t[1]) ^ rcon);
+      t[1] = sub_byte(t[2]);
+      t[2] = sub_byte(t[3]);
+      t[3] = sub_byte(tmp);
+      rcon = gf_mul(rcon, 2);
+    } else if( nk > 6 && i % nk == 4 ) {
+      for( j = 0; j < 4; j++ )
+        t[j] = sub_byte(t[j]);
+    }
+    for( j = 0; j < 4; j++ )
+      rk[4 * i + j] = rk[4 * (i - nk) + j] ^ t[j];
+  }
+  return rounds;
+}
+
+#if defined(AES_HW_X86) || defined(AES_HW_ARM)
+
+static int check_aes_hw(void) {
+#if defined(AES_HW_X86)
+  __builtin_cpu_init();
+  return __builtin_cpu_supports("aes") ? 1 : 0;
+#else
+  return (getauxval(AT_HWCAP) & HWCAP_AES) ? 1 : 0;
+#endif
+}
+
+int aes_hw_available(void) {
+  /* Same result for all the threads, no need to synchronize */
+  static int available = -1;
+  if( available < 0 )
+    available = check_aes_hw();
+  return available;
+}
+
+#else
+
+/* No implementation for this ABI, the tables are always used */
+
+int aes_hw_available(void) {
+  return 0;
+}
+
+int aes_hw_encrypt_key(const uint8_t *key, int key_len, aes_hw_ctx *ctx) {
+  return EXIT_FAILURE;
+}
+
+int aes_hw_decrypt_key(const uint8_t *key, int key_len, aes_hw_ctx *ctx) {
+  return EXIT_FAILURE;
+}
+
+void aes_hw_encrypt_rounds(uint8_t *block, uint64_t count, const aes_hw_ctx *ctx) {
+}
+
+int aes_hw_cbc_encrypt(const uint8_t *in, uint8_t *out, int len, uint8_t *iv, const aes_hw_ctx *ctx) {
+  return EXIT_FAILURE;
+}
+
+int aes_hw_cbc_decrypt(const uint8_t *in, uint8_t *out, int len, uint8_t *iv, const aes_hw_ctx *ctx) {
+  return EXIT_FAILURE;
+}
+
+#endif
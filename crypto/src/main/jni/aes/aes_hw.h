@@ -0,0 +1,57 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/*
+  AES with the instructions of the CPU (AES-NI on x86 and x86_64, Cryptography
+  Extensions on arm64), used instead of the tables of aescrypt.c when
+  aes_hw_available() returns 1. Only one implementation is compiled per ABI,
+  see CMakeLists.txt.
+*/
+
+#ifndef AES_HW_H
+#define AES_HW_H
+
+#include <stdint.h>
+
+#define AES_HW_BLOCK_SIZE 16
+#define AES_HW_MAX_ROUNDS 14
+
+typedef struct _aes_hw_ctx {
+  uint8_t rk[(AES_HW_MAX_ROUNDS + 1) * AES_HW_BLOCK_SIZE] __attribute__ ((aligned (16)));
+  uint32_t rounds;
+} aes_hw_ctx;
+
+/* 1 if the AES instructions can be used, checked once */
+int aes_hw_available(void);
+
+/* Standard key expansion of FIPS-197 in rk, returns the number of rounds or 0 for an invalid length */
+uint32_t aes_hw_expand_key(const uint8_t *key, int key_len, uint8_t *rk);
+
+/* Same return values as the functions of aes.h: EXIT_SUCCESS or EXIT_FAILURE */
+int aes_hw_encrypt_key(const uint8_t *key, int key_len, aes_hw_ctx *ctx);
+int aes_hw_decrypt_key(const uint8_t *key, int key_len, aes_hw_ctx *ctx);
+
+/* Encrypt the block in place count times, the loop of the AES-KDF */
+void aes_hw_encrypt_rounds(uint8_t *block, uint64_t count, const aes_hw_ctx *ctx);
+
+int aes_hw_cbc_encrypt(const uint8_t *in, uint8_t *out, int len, uint8_t *iv, const aes_hw_ctx *ctx);
+int aes_hw_cbc_decrypt(const uint8_t *in, uint8_t *out, int len, uint8_t *iv, const aes_hw_ctx *ctx);
+
+#endif /* AES_HW_H */
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/*
+  ARMv8 Cryptography Extensions implementation, compiled with
+  -march=armv8-a+crypto and only called when the CPU supports it
+*/
+
+#include <stdlib.h>
+#include <string.h>
+#include <arm_neon.h>
+
+#include "aes_hw.h"
+
+#define LOAD_KEYS(ctx, keys)                                                  \
+  do {                                                                        \
+    uint32_t k_;                                                              \
+    for( k_ = 0; k_ <= (ctx)->rounds; k_++ )                                  \
+      keys[k_] = vld1q_u8((ctx)->rk + k_ * AES_HW_BLOCK_SIZE);                \
+  } while( 0 )
+
+int aes_hw_encrypt_key(const uint8_t *key, int key_len, aes_hw_ctx *ctx) {
+  ctx->rounds = aes_hw_expand_key(key, key_len, ctx->rk);
+  return ctx->rounds ? EXIT_SUCCESS : EXIT_FAILURE;
+}
+
+/* Keys of the equivalent inverse cipher, in the order of use */
+int aes_hw_decrypt_key(const uint8_t *key, int key_len, aes_hw_ctx *ctx) {
+  uint8_t ek[(AES_HW_MAX_ROUNDS + 1) * AES_HW_BLOCK_SIZE] __attribute__ ((aligned (16)));
+  uint32_t rounds, i;
+
+  rounds = aes_hw_expand_key(key, key_len, ek);
+  ctx->rounds = rounds;
+  if( !rounds )
+    return EXIT_FAILURE;
+  vst1q_u8(ctx->rk, vld1q_u8(ek + rounds * AES_HW_BLOCK_SIZE));
+  for( i = 1; i < rounds; i++ )
+    vst1q_u8(ctx->rk + i * AES_HW_BLOCK_SIZE, vaesimcq_u8(vld1q_u8(ek + (rounds - i) * AES_HW_BLOCK_SIZE)));
+  vst1q_u8(ctx->rk + rounds * AES_HW_BLOCK_SIZE, vld1q_u8(ek));
+  memset(ek, 0, sizeof(ek));
+  return EXIT_SUCCESS;
+}
+
+/* AESE does AddRoundKey before SubBytes and ShiftRows, the last key is added alone */
+static inline uint8x16_t encrypt_block(uint8x16_t block, const uint8x16_t *keys, uint32_t rounds) {
+  uint32_t i;
+  for( i = 0; i < rounds - 1; i++ )
+    block = vaesmcq_u8(vaeseq_u8(block, keys[i]));
+  block = vaeseq_u8(block, keys[rounds - 1]);
+  return veorq_u8(block, keys[rounds]);
+}
+
+static inline uint8x16_t decrypt_block(uint8x16_t block, const uint8x16_t *keys, uint32_t rounds) {
+  uint32_t i;
+  for( i = 0; i < rounds - 1; i++ )
+    block = vaesimcq_u8(vaesdq_u8(block, keys[i]));
+  block = vaesdq_u8(block, keys[rounds - 1]);
+  return veorq_u8(block, keys[rounds]);
+}
+
+void aes_hw_encrypt_rounds(uint8_t *block, uint64_t count, const aes_hw_ctx *ctx) {
+  uint8x16_t keys[AES_HW_MAX_ROUNDS + 1];
+  uint8x16_t b = vld1q_u8(block);
+  uint64_t i;
+
+  LOAD_KEYS(ctx, keys);
+  if( ctx->rounds == 14 ) {
+    /* Unrolled for AES-256, the key size of the KDF, so the keys stay in registers */
+    for( i = 0; i < count; i++ ) {
+      b = vaesmcq_u8(vaeseq_u8(b, keys[0]));
+      b = vaesmcq_u8(vaeseq_u8(b, keys[1]));
+      b = vaesmcq_u8(vaeseq_u8(b, keys[2]));
+      b = vaesmcq_u8(vaeseq_u8(b, keys[3]));
+      b = vaesmcq_u8(vaeseq_u8(b, keys[4]));
+      b = vaesmcq_u8(vaeseq_u8(b, keys[5]));
+      b = vaesmcq_u8(vaeseq_u8(b, keys[6]));
+      b = vaesmcq_u8(vaeseq_u8(b, keys[7]));
+      b = vaesmcq_u8(vaeseq_u8(b, keys[8]));
+      b = vaesmcq_u8(vaeseq_u8(b, keys[9]));
+      b = vaesmcq_u8(vaeseq_u8(b, keys[10]));
+      b = vaesmcq_u8(vaeseq_u8(b, keys[11]));
+      b = vaesmcq_u8(vaeseq_u8(b, keys[12]));
+      b = vaeseq_u8(b, keys[13]);
+      b = veorq_u8(b, keys[14]);
+    }
+  } else {
+    for( i = 0; i < count; i++ )
+      b = encrypt_block(b, keys, ctx->rounds);
+  }
+  vst1q_u8(block, b);
+}
+
+int aes_hw_cbc_encrypt(const uint8_t *in, uint8_t *out, int len, uint8_t *iv, const aes_hw_ctx *ctx) {
+  uint8x16_t keys[AES_HW_MAX_ROUNDS + 1];
+  uint8x16_t chain;
+  int i;
+
+  if( len & (AES_HW_BLOCK_SIZE - 1) )
+    return EXIT_FAILURE;
+  LOAD_KEYS(ctx, keys);
+  chain = vld1q_u8(iv);
+  for( i = 0; i < len; i += AES_HW_BLOCK_SIZE ) {
+    chain = encrypt_block(veorq_u8(chain, vld1q_u8(in + i)), keys, ctx->rounds);
+    vst1q_u8(out + i, chain);
+  }
+  vst1q_u8(iv, chain);
+  return EXIT_SUCCESS;
+}
+
+int aes_hw_cbc_decrypt(const uint8_t *in, uint8_t *out, int len, uint8_t *iv, const aes_hw_ctx *ctx) {
+  uint8x16_t keys[AES_HW_MAX_ROUNDS + 1];
+  uint8x16_t chain, c0, c1, c2, c3, p0, p1, p2, p3;
+  uint32_t rounds = ctx->rounds, r;
+  int i = 0;
+
+  if( len & (AES_HW_BLOCK_SIZE - 1) )
+    return EXIT_FAILURE;
+  LOAD_KEYS(ctx, keys);
+  chain = vld1q_u8(iv);
+  /* The blocks are independent in decryption, four are interleaved to hide the latency */
+  for( ; i + 4 * AES_HW_BLOCK_SIZE <= len; i += 4 * AES_HW_BLOCK_SIZE ) {
+    c0 = vld1q_u8(in + i);
+    c1 = vld1q_u8(in + i + 16);
+    c2 = vld1q_u8(in + i + 32);
+    c3 = vld1q_u8(in + i + 48);
+    p0 = c0;
+    p1 = c1;
+    p2 = c2;
+    p3 = c3;
+    for( r = 0; r < rounds - 1; r++ ) {
+      p0 = vaesimcq_u8(vaesdq_u8(p0, keys[r]));
+      p1 = vaesimcq_u8(vaesdq_u8(p1, keys[r]));
+      p2 = vaesimcq_u8(vaesdq_u8(p2, keys[r]));
+      p3 = vaesimcq_u8(vaesdq_u8(p3, keys[r]));
+    }
+    p0 = veorq_u8(vaesdq_u8(p0, keys[rounds - 1]), keys[rounds]);
+    p1 = veorq_u8(vaesdq_u8(p1, keys[rounds - 1]), keys[rounds]);
+    p2 = veorq_u8(vaesdq_u8(p2, keys[rounds - 1]), keys[rounds]);
+    p3 = veorq_u8(vaesdq_u8(p3, keys[rounds - 1]), keys[rounds]);
+    vst1q_u8(out + i, veorq_u8(p0, chain));
+    vst1q_u8(out + i + 16, veorq_u8(p1, c0));
+    vst1q_u8(out + i + 32, veorq_u8(p2, c1));
+    vst1q_u8(out + i + 48, veorq_u8(p3, c2));
+    chain = c3;
+  }
+  for( ; i < len; i += AES_HW_BLOCK_SIZE ) {
+    c0 = vld1q_u8(in + i);
+    vst1q_u8(out + i, veorq_u8(decrypt_block(c0, keys, rounds), chain));
+    chain = c0;
+  }
+  vst1q_u8(iv, chain);
+  return EXIT_SUCCESS;
+}
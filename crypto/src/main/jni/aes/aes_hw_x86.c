@@ -0,0 +1,171 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/*
+  AES-NI implementation, compiled with -maes and only called when the CPU
+  supports it
+*/
+
+#include <stdlib.h>
+#include <string.h>
+#include <wmmintrin.h>
+
+#include "aes_hw.h"
+
+#define LOAD_KEYS(ctx, keys)                                                  \
+  do {                                                                        \
+    uint32_t k_;                                                              \
+    for( k_ = 0; k_ <= (ctx)->rounds; k_++ )                                  \
+      keys[k_] = _mm_load_si128((const __m128i *)(ctx)->rk + k_);             \
+  } while( 0 )
+
+int aes_hw_encrypt_key(const uint8_t *key, int key_len, aes_hw_ctx *ctx) {
+  ctx->rounds = aes_hw_expand_key(key, key_len, ctx->rk);
+  return ctx->rounds ? EXIT_SUCCESS : EXIT_FAILURE;
+}
+
+/* Keys of the equivalent inverse cipher, in the order of use */
+int aes_hw_decrypt_key(const uint8_t *key, int key_len, aes_hw_ctx *ctx) {
+  uint8_t ek[(AES_HW_MAX_ROUNDS + 1) * AES_HW_BLOCK_SIZE] __attribute__ ((aligned (16)));
+  __m128i *dk = (__m128i *)ctx->rk;
+  const __m128i *ekv = (const __m128i *)ek;
+  uint32_t rounds, i;
+
+  rounds = aes_hw_expand_key(key, key_len, ek);
+  ctx->rounds = rounds;
+  if( !rounds )
+    return EXIT_FAILURE;
+  _mm_store_si128(dk, _mm_load_si128(ekv + rounds));
+  for( i = 1; i < rounds; i++ )
+    _mm_store_si128(dk + i, _mm_aesimc_si128(_mm_load_si128(ekv + rounds - i)));
+  _mm_store_si128(dk + rounds, _mm_load_si128(ekv));
+  memset(ek, 0, sizeof(ek));
+  return EXIT_SUCCESS;
+}
+
+static inline __m128i encrypt_block(__m128i block, const __m128i *keys, uint32_t rounds) {
+  uint32_t i;
+  block = _mm_xor_si128(block, keys[0]);
+  for( i = 1; i < rounds; i++ )
+    block = _mm_aesenc_si128(block, keys[i]);
+  return _mm_aesenclast_si128(block, keys[rounds]);
+}
+
+static inline __m128i decrypt_block(__m128i block, const __m128i *keys, uint32_t rounds) {
+  uint32_t i;
+  block = _mm_xor_si128(block, keys[0]);
+  for( i = 1; i < rounds; i++ )
+    block = _mm_aesdec_si128(block, keys[i]);
+  return _mm_aesdeclast_si128(block, keys[rounds]);
+}
+
+void aes_hw_encrypt_rounds(uint8_t *block, uint64_t count, const aes_hw_ctx *ctx) {
+  __m128i keys[AES_HW_MAX_ROUNDS + 1];
+  __m128i b = _mm_loadu_si128((const __m128i *)block);
+  uint64_t i;
+
+  LOAD_KEYS(ctx, keys);
+  if( ctx->rounds == 14 ) {
+    /* Unrolled for AES-256, the key size of the KDF, so the keys stay in registers */
+    for( i = 0; i < count; i++ ) {
+      b = _mm_xor_si128(b, keys[0]);
+      b = _mm_aesenc_si128(b, keys[1]);
+      b = _mm_aesenc_si128(b, keys[2]);
+      b = _mm_aesenc_si128(b, keys[3]);
+      b = _mm_aesenc_si128(b, keys[4]);
+      b = _mm_aesenc_si128(b, keys[5]);
+      b = _mm_aesenc_si128(b, keys[6]);
+      b = _mm_aesenc_si128(b, keys[7]);
+      b = _mm_aesenc_si128(b, keys[8]);
+      b = _mm_aesenc_si128(b, keys[9]);
+      b = _mm_aesenc_si128(b, keys[10]);
+      b = _mm_aesenc_si128(b, keys[11]);
+      b = _mm_aesenc_si128(b, keys[12]);
+      b = _mm_aesenc_si128(b, keys[13]);
+      b = _mm_aesenclast_si128(b, keys[14]);
+    }
+  } else {
+    for( i = 0; i < count; i++ )
+      b = encrypt_block(b, keys, ctx->rounds);
+  }
+  _mm_storeu_si128((__m128i *)block, b);
+}
+
+int aes_hw_cbc_encrypt(const uint8_t *in, uint8_t *out, int len, uint8_t *iv, const aes_hw_ctx *ctx) {
+  __m128i keys[AES_HW_MAX_ROUNDS + 1];
+  __m128i chain;
+  int i;
+
+  if( len & (AES_HW_BLOCK_SIZE - 1) )
+    return EXIT_FAILURE;
+  LOAD_KEYS(ctx, keys);
+  chain = _mm_loadu_si128((const __m128i *)iv);
+  for( i = 0; i < len; i += AES_HW_BLOCK_SIZE ) {
+    chain = encrypt_block(_mm_xor_si128(chain, _mm_loadu_si128((const __m128i *)(in + i))), keys, ctx->rounds);
+    _mm_storeu_si128((__m128i *)(out + i), chain);
+  }
+  _mm_storeu_si128((__m128i *)iv, chain);
+  return EXIT_SUCCESS;
+}
+
+int aes_hw_cbc_decrypt(const uint8_t *in, uint8_t *out, int len, uint8_t *iv, const aes_hw_ctx *ctx) {
+  __m128i keys[AES_HW_MAX_ROUNDS + 1];
+  __m128i chain, c0, c1, c2, c3, p0, p1, p2, p3;
+  uint32_t rounds = ctx->rounds, r;
+  int i = 0;
+
+  if( len & (AES_HW_BLOCK_SIZE - 1) )
+    return EXIT_FAILURE;
+  LOAD_KEYS(ctx, keys);
+  chain = _mm_loadu_si128((const __m128i *)iv);
+  /* The blocks are independent in decryption, four are interleaved to hide the latency */
+  for( ; i + 4 * AES_HW_BLOCK_SIZE <= len; i += 4 * AES_HW_BLOCK_SIZE ) {
+    c0 = _mm_loadu_si128((const __m128i *)(in + i));
+    c1 = _mm_loadu_si128((const __m128i *)(in + i + 16));
+    c2 = _mm_loadu_si128((const __m128i *)(in + i + 32));
+    c3 = _mm_loadu_si128((const __m128i *)(in + i + 48));
+    p0 = _mm_xor_si128(c0, keys[0]);
+    p1 = _mm_xor_si128(c1, keys[0]);
+    p2 = _mm_xor_si128(c2, keys[0]);
+    p3 = _mm_xor_si128(c3, keys[0]);
+    for( r = 1; r < rounds; r++ ) {
+      p0 = _mm_aesdec_si128(p0, keys[r]);
+      p1 = _mm_aesdec_si128(p1, keys[r]);
+      p2 = _mm_aesdec_si128(p2, keys[r]);
+      p3 = _mm_aesdec_si128(p3, keys[r]);
+    }
+    p0 = _mm_aesdeclast_si128(p0, keys[rounds]);
+    p1 = _mm_aesdeclast_si128(p1, keys[rounds]);
+    p2 = _mm_aesdeclast_si128(p2, keys[rounds]);
+    p3 = _mm_aesdeclast_si128(p3, keys[rounds]);
+    _mm_storeu_si128((__m128i *)(out + i), _mm_xor_si128(p0, chain));
+    _mm_storeu_si128((__m128i *)(out + i + 16), _mm_xor_si128(p1, c0));
+    _mm_storeu_si128((__m128i *)(out + i + 32), _mm_xor_si128(p2, c1));
+    _mm_storeu_si128((__m128i *)(out + i + 48), _mm_xor_si128(p3, c2));
+    chain = c3;
+  }
+  for( ; i < len; i += AES_HW_BLOCK_SIZE ) {
+    c0 = _mm_loadu_si128((const __m128i *)(in + i));
+    _mm_storeu_si128((__m128i *)(out + i), _mm_xor_si128(decrypt_block(c0, keys, rounds), chain));
+    chain = c0;
+  }
+  _mm_storeu_si128((__m128i *)iv, chain);
+  return EXIT_SUCCESS;
+}
@@ -36,6 +36,7 @@
 #endif
 
 #include "aes.h"
+#include "aes_hw.h"
 #include "sha2.h"
 
 static JavaVM *cached_vm;
@@ -55,10 +56,48 @@ typedef struct _aes_state {
   uint32_t cache_len;
   uint8_t iv[16], cache[CACHE_SIZE];
   uint8_t ctx[sizeof(aes_encrypt_ctx)]; // 244
+  int hw; // use hw_ctx with the AES instructions of the CPU instead of ctx
+  aes_hw_ctx hw_ctx;
 } aes_state;
 
 #define ENC_CTX(state) (((aes_encrypt_ctx *)((state)->ctx)))
 #define DEC_CTX(state) (((aes_decrypt_ctx *)((state)->ctx)))
+
+// alignment of hw_ctx for the aligned SSE loads, malloc only gives 8 bytes on 32-bit x86
+#define STATE_ALIGN 16
+
+/* State aligned on STATE_ALIGN, the pointer returned by malloc is kept just before it */
+static aes_state *alloc_state(void) {
+  uint8_t *base;
+  uintptr_t aligned;
+
+  base = (uint8_t *)malloc(sizeof(aes_state) + sizeof(void *) + STATE_ALIGN - 1);
+  if( base == NULL )
+    return NULL;
+  aligned = ((uintptr_t)base + sizeof(void *) + STATE_ALIGN - 1) & ~(uintptr_t)(STATE_ALIGN - 1);
+  ((void **)aligned)[-1] = base;
+  return (aes_state *)aligned;
+}
+
+static void free_state(aes_state *state) {
+  if( state == NULL )
+    return;
+  // no round key left in the freed memory
+  memset(state, 0, sizeof(aes_state));
+  free(((void **)state)[-1]);
+}
+
+static int state_cbc_encrypt(aes_state *state, const uint8_t *in, uint8_t *out, int len) {
+  if( state->hw )
+    return aes_hw_cbc_encrypt(in, out, len, state->iv, &state->hw_ctx);
+  return aes_cbc_encrypt(in, out, len, state->iv, ENC_CTX(state));
+}
+
+static int state_cbc_decrypt(aes_state *state, const uint8_t *in, uint8_t *out, int len) {
+  if( state->hw )
+    return aes_hw_cbc_decrypt(in, out, len, state->iv, &state->hw_ctx);
+  return aes_cbc_decrypt(in, out, len, state->iv, DEC_CTX(state));
+}
 #define ALIGN_EXTRA 15
 #define ALIGN16(x) (void *)(((uintptr_t)(x)+ALIGN_EXTRA) & ~ 0x0F)
 
@@ -129,7 +168,7 @@ JNIEXPORT jlong JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nInit(
     return -1;
   }
 
-  state = (aes_state *)malloc(sizeof(aes_state));
+  state = alloc_state();
   if( state == NULL ) {
     (*env)->ThrowNew(env, no_mem, "Cannot allocate memory for the encryption state");
     return -1;
@@ -139,19 +178,26 @@ JNIEXPORT jlong JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nInit(
   (*env)->GetByteArrayRegion(env, key, (jint)0, key_len, (jbyte *)ckey);
   (*env)->GetByteArrayRegion(env, iv, (jint)0, iv_len, (jbyte *)state->iv);
 
+  state->hw = aes_hw_available();
   if( encrypting ) {
     state->direction = ENCRYPTION;
-    aes_encrypt_key(ckey, key_len, ENC_CTX(state));
+    if( state->hw )
+      aes_hw_encrypt_key(ckey, key_len, &state->hw_ctx);
+    else
+      aes_encrypt_key(ckey, key_len, ENC_CTX(state));
   } else {
     state->direction = DECRYPTION;
-    aes_decrypt_key(ckey, key_len, DEC_CTX(state));
+    if( state->hw )
+      aes_hw_decrypt_key(ckey, key_len, &state->hw_ctx);
+    else
+      aes_decrypt_key(ckey, key_len, DEC_CTX(state));
   }
 
   return (jlong)state;
 }
 
 JNIEXPORT void JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nCleanup(JNIEnv *env, jclass this, jlong state) {
-  free((void *)state);
+  free_state((aes_state *)state);
 }
 
 /*
@@ -225,9 +271,9 @@ JNIEXPORT jint JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nUpdate
     (*env)->GetByteArrayRegion(env, input, inputOffset, inputLen, (jbyte *)c_input);
   }
   if( c_state->direction == ENCRYPTION )
-    aes_ret = aes_cbc_encrypt(c_input, c_output, outLen, c_state->iv, ENC_CTX(c_state));
+    aes_ret = state_cbc_encrypt(c_state, c_input, c_output, outLen);
   else
-    aes_ret = aes_cbc_decrypt(c_input, c_output, outLen, c_state->iv, DEC_CTX(c_state));
+    aes_ret = state_cbc_decrypt(c_state, c_input, c_output, outLen);
   if( aes_ret != EXIT_SUCCESS ) {
     free(in);
     free(out);
@@ -303,7 +349,7 @@ JNIEXPORT jint JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nFinal(
     padValue = paddedCacheLen - c_state->cache_len;
     if(!padValue) padValue = 16;
     memset(c_state->cache + c_state->cache_len, padValue, padValue);
-    if( aes_cbc_encrypt(c_state->cache, final_output, paddedCacheLen, c_state->iv, ENC_CTX(c_state)) != EXIT_SUCCESS ) {
+    if( state_cbc_encrypt(c_state, c_state->cache, final_output, paddedCacheLen) != EXIT_SUCCESS ) {
       (*env)->ThrowNew(env, bad_arg, "Failed to encrypt the final data block(s)"); // FIXME: get a better exception class for this...
       return -1;
     }
@@ -324,7 +370,7 @@ JNIEXPORT jint JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nFinal(
       (*env)->ThrowNew(env, bad_padding, "Incomplete final block in cache for decryption state");
       return -1;
     }
-    if( aes_cbc_decrypt(c_state->cache, final_output, paddedCacheLen, c_state->iv, DEC_CTX(c_state)) != EXIT_SUCCESS ) {
+    if( state_cbc_decrypt(c_state, c_state->cache, final_output, paddedCacheLen) != EXIT_SUCCESS ) {
       (*env)->ThrowNew(env, bad_arg, "Failed to decrypt the final data block(s)"); // FIXME: get a better exception class for this...
       return -1;
     }
@@ -373,10 +419,14 @@ JNIEXPORT jint JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nGetCac
 }
 
 #define MASTER_KEY_SIZE 32
+// rounds between two checks of the cancel flag, a few milliseconds without hardware AES
+#define ROUNDS_PER_CHECK 65536
 
 typedef struct _master_key {
   uint64_t rounds;
   uint32_t done[2];
+  const volatile int32_t *cancelled; // set by the JVM to stop the rounds, may be NULL
+  volatile int32_t *progress; // rounds done in millionths, may be NULL
   pthread_mutex_t lock1, lock2; // these lock the two halves of the key material
   uint8_t c_seed[MASTER_KEY_SIZE] __attribute__ ((aligned (16)));
   uint8_t key1[MASTER_KEY_SIZE] __attribute__ ((aligned (16)));
@@ -384,11 +434,21 @@ typedef struct _master_key {
 } master_key;
 
 
+static int is_cancelled(const master_key *mk) {
+  return mk->cancelled != NULL && __atomic_load_n(mk->cancelled, __ATOMIC_RELAXED) != 0;
+}
+
+static void update_progress(const master_key *mk, uint64_t done) {
+  if( mk->progress != NULL && mk->rounds > 0 )
+    __atomic_store_n(mk->progress, (int32_t)((double)done / (double)mk->rounds * 1000000.0), __ATOMIC_RELAXED);
+}
+
 uint32_t generate_key_material(void *arg) {
   #if defined(KPD_PROFILE)
   struct timespec start, end;
   #endif
-  uint32_t i, flip = 0;
+  uint64_t i, done, count;
+  uint32_t flip = 0;
   uint8_t *key1, *key2;
   master_key *mk = (master_key *)arg;
   aes_encrypt_ctx e_ctx[1] __attribute__ ((aligned (16)));
@@ -408,15 +468,40 @@ uint32_t generate_key_material(void *arg) {
   clock_gettime(CLOCK_THREAD_CPUTIME_ID, &start);
   #endif
 
-  aes_encrypt_key256(mk->c_seed, e_ctx);
-  for (i = 0; i < mk->rounds; i++) {
-    if ( flip ) {
-      aes_encrypt(key2, key1, e_ctx);
-      flip = 0;
-    } else {
-      aes_encrypt(key1, key2, e_ctx);
-      flip = 1;
+  if( aes_hw_available() ) {
+    // same result as the loop below, in place then stored where the loop would have left it
+    aes_hw_ctx hw_ctx;
+    uint8_t block[AES_BLOCK_SIZE] __attribute__ ((aligned (16)));
+    aes_hw_encrypt_key(mk->c_seed, MASTER_KEY_SIZE, &hw_ctx);
+    memcpy(block, key1, AES_BLOCK_SIZE);
+    for (done = 0; done < mk->rounds && !is_cancelled(mk); done += count) {
+      count = mk->rounds - done < ROUNDS_PER_CHECK ? mk->rounds - done : ROUNDS_PER_CHECK;
+      aes_hw_encrypt_rounds(block, count, &hw_ctx);
+      // the two halves advance together, only the first one reports
+      if( key1 == mk->key1 )
+        update_progress(mk, done + count);
     }
+    flip = (uint32_t)(mk->rounds & 1);
+    memcpy(flip ? key2 : key1, block, AES_BLOCK_SIZE);
+    memset(block, 0, AES_BLOCK_SIZE);
+    memset(&hw_ctx, 0, sizeof(hw_ctx));
+  } else {
+    aes_encrypt_key256(mk->c_seed, e_ctx);
+    for (done = 0; done < mk->rounds && !is_cancelled(mk); done += count) {
+      count = mk->rounds - done < ROUNDS_PER_CHECK ? mk->rounds - done : ROUNDS_PER_CHECK;
+      for (i = 0; i < count; i++) {
+        if ( flip ) {
+          aes_encrypt(key2, key1, e_ctx);
+          flip = 0;
+        } else {
+          aes_encrypt(key1, key2, e_ctx);
+          flip = 1;
+        }
+      }
+      if( key1 == mk->key1 )
+        update_progress(mk, done + count);
+    }
+    memset(e_ctx, 0, sizeof(e_ctx));
   }
 
   #if defined(KPD_PROFILE)
@@ -438,7 +523,8 @@ uint32_t generate_key_material(void *arg) {
   return flip;
 }
 
-JNIEXPORT jbyteArray JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESKeyTransformer_nTransformKey(JNIEnv *env, jobject this, jbyteArray seed, jbyteArray key, jlong rounds) {
+JNIEXPORT jbyteArray JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESKeyTransformer_nTransformKey(JNIEnv *env, jobject this, jbyteArray seed, jbyteArray key, jlong rounds, jobject token) {
+  int32_t *token_state;
   master_key mk;
   uint32_t flip;
   pthread_t t1, t2;
@@ -462,6 +548,10 @@ JNIEXPORT jbyteArray JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESKeyTransfor
   }
   mk.rounds = (uint64_t)rounds;
   mk.done[0] = mk.done[1] = 0;
+  // token state shared with the JVM, the cancel flag then the progress
+  token_state = token != NULL ? (*env)->GetDirectBufferAddress(env, token) : NULL;
+  mk.cancelled = token_state;
+  mk.progress = token_state != NULL ? token_state + 1 : NULL;
   if( pthread_mutex_init(&mk.lock1, NULL) != 0 ) {
     (*env)->ThrowNew(env, bad_arg, "TransformMasterKey: failed to initialize the mutex for thread 1"); // FIXME: get a better exception class for this...
     return NULL;
@@ -500,6 +590,11 @@ JNIEXPORT jbyteArray JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESKeyTransfor
   } else {
     flip = (uint32_t)vret1;
   }
+  if( is_cancelled(&mk) ) {
+    // not an error, the caller checks the token
+    memset(&mk, 0, sizeof(mk));
+    return NULL;
+  }
 
   // step 3: final SHA256 hash
   sha256_begin(h_ctx);
@@ -519,6 +614,7 @@ JNIEXPORT jbyteArray JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESKeyTransfor
     (*env)->SetByteArrayRegion(env, result, 0, MASTER_KEY_SIZE, (jbyte *)mk.key2);
   else
     (*env)->SetByteArrayRegion(env, result, 0, MASTER_KEY_SIZE, (jbyte *)mk.key1);
+  memset(&mk, 0, sizeof(mk));
 
   return result;
 }
@@ -130,7 +130,7 @@ void throwExceptionF(JNIEnv *env, jclass exception, const char *format, ...) {
 JNIEXPORT jbyteArray
 JNICALL Java_com_kunzisoft_encrypt_argon2_NativeArgon2KeyTransformer_nTransformKey(JNIEnv *env,
    jobject this, jint type, jbyteArray password, jbyteArray salt, jint parallelism, jint memory,
-   jint iterations, jbyteArray secretKey, jbyteArray associatedData, jint version) {
+   jint iterations, jbyteArray secretKey, jbyteArray associatedData, jint version, jobject token) {
 
     argon2_context context;
     uint8_t *out;
@@ -168,11 +168,18 @@ JNICALL Java_com_kunzisoft_encrypt_argon2_NativeArgon2KeyTransformer_nTransformK
     context.free_cbk = NULL;
     context.flags = ARGON2_DEFAULT_FLAGS;
     context.version = (uint32_t) version;
+    // Token state shared with Java, the cancel flag then the progress
+    int32_t *tokenState = token != NULL ? (*env)->GetDirectBufferAddress(env, token) : NULL;
+    context.cancelled = tokenState;
+    context.progress = tokenState != NULL ? tokenState + 1 : NULL;
 
     int argonResult = argon2_ctx(&context, (argon2_type) type);
 
     jbyteArray result;
-    if (argonResult != ARGON2_OK) {
+    if (argonResult == ARGON2_CANCELLED) {
+        // Not an error, the caller checks the token
+        result = NULL;
+    } else if (argonResult != ARGON2_OK) {
         throwExceptionF(env, io, "Hash failed with code=%d", argonResult);
         result = NULL;
     } else {
@@ -151,7 +151,9 @@ typedef enum Argon2_ErrorCodes {
 
     ARGON2_DECODING_LENGTH_FAIL = -34,
 
-    ARGON2_VERIFY_MISMATCH = -35
+    ARGON2_VERIFY_MISMATCH = -35,
+
+    ARGON2_CANCELLED = -36
 } argon2_error_codes;
 
 /* Memory allocator types --- for external allocation */
@@ -212,6 +214,11 @@ typedef struct Argon2_Context {
     deallocate_fptr free_cbk;   /* pointer to memory deallocator */
 
     uint32_t flags; /* array of bool options */
+
+    /* Checked between the segments, the hash stops if it becomes non zero */
+    const volatile int32_t *cancelled;
+    /* Fraction of the segments filled, in millionths */
+    volatile int32_t *progress;
 } argon2_context;
 
 /* Argon2 primitive type */
@@ -0,0 +1,111 @@
+/*
+ * Argon2 reference source code package - reference C implementations
+ *
+ * Copyright 2015
+ * Daniel Dinu, Dmitry Khovratovich, Jean-Philippe Aumasson, and Samuel Neves
+ *
+ * You may use this work under the terms of a Creative Commons CC0 1.0 
+ * License/Waiver or the Apache Public License 2.0, at your option. The terms of
+ * these licenses can be found at:
+ *
+ * - CC0 1.0 Universal : http://creativecommons.org/publicdomain/zero/1.0
+ * - Apache 2.0        : http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * You should have received a copy of both of these licenses along with this
+ * software. If not, they may be obtained at the above URLs.
+ */
+
+#ifndef BLAKE_ROUND_MKA_NEON_H
+#define BLAKE_ROUND_MKA_NEON_H
+
+#include <arm_neon.h>
+
+#include "blake2-impl.h"
+
+/*
+ * BlaMka rounds on 64-bit words packed in NEON vectors, same layout as the
+ * SSE2 version of blamka-round-opt.h
+ */
+
+#define rotr32_neon(x)                                                         \
+    vreinterpretq_u64_u32(vrev64q_u32(vreinterpretq_u32_u64(x)))
+#define rotr_neon(x, c)                                                        \
+    vsriq_n_u64(vshlq_n_u64((x), 64 - (c)), (x), (c))
+
+static BLAKE2_INLINE uint64x2_t fBlaMka_neon(uint64x2_t x, uint64x2_t y) {
+    const uint64x2_t z = vmull_u32(vmovn_u64(x), vmovn_u64(y));
+    return vaddq_u64(vaddq_u64(x, y), vaddq_u64(z, z));
+}
+
+/* G on the two columns of (A0, B0, C0, D0) and the two of (A1, B1, C1, D1) */
+#define G_NEON(A0, B0, C0, D0, A1, B1, C1, D1)                                 \
+    do {                                                                       \
+        A0 = fBlaMka_neon(A0, B0);                                             \
+        A1 = fBlaMka_neon(A1, B1);                                             \
+        D0 = rotr32_neon(veorq_u64(D0, A0));                                   \
+        D1 = rotr32_neon(veorq_u64(D1, A1));                                   \
+        C0 = fBlaMka_neon(C0, D0);                                             \
+        C1 = fBlaMka_neon(C1, D1);                                             \
+        B0 = veorq_u64(B0, C0);                                                \
+        B1 = veorq_u64(B1, C1);                                                \
+        B0 = rotr_neon(B0, 24);                                                \
+        B1 = rotr_neon(B1, 24);                                                \
+        A0 = fBlaMka_neon(A0, B0);                                             \
+        A1 = fBlaMka_neon(A1, B1);                                             \
+        D0 = veorq_u64(D0, A0);                                                \
+        D1 = veorq_u64(D1, A1);                                                \
+        D0 = rotr_neon(D0, 16);                                                \
+        D1 = rotr_neon(D1, 16);                                                \
+        C0 = fBlaMka_neon(C0, D0);                                             \
+        C1 = fBlaMka_neon(C1, D1);                                             \
+        B0 = veorq_u64(B0, C0);                                                \
+        B1 = veorq_u64(B1, C1);                                                \
+        B0 = rotr_neon(B0, 63);                                                \
+        B1 = rotr_neon(B1, 63);                                                \
+    } while ((void)0, 0)
+
+/* (B0, B1) = (v4, v5, v6, v7) becomes (v5, v6, v7, v4),
+   (C0, C1) = (v8, v9, v10, v11) becomes (v10, v11, v8, v9) and
+   (D0, D1) = (v12, v13, v14, v15) becomes (v15, v12, v13, v14) */
+#define DIAGONALIZE_NEON(B0, C0, D0, B1, C1, D1)                               \
+    do {                                                                       \
+        uint64x2_t t0 = vextq_u64(B0, B1, 1);                                  \
+        uint64x2_t t1 = vextq_u64(B1, B0, 1);                                  \
+        B0 = t0;                                                               \
+        B1 = t1;                                                               \
+        t0 = C0;                                                               \
+        C0 = C1;                                                               \
+        C1 = t0;                                                               \
+        t0 = vextq_u64(D1, D0, 1);                                             \
+        t1 = vextq_u64(D0, D1, 1);                                             \
+        D0 = t0;                                                               \
+        D1 = t1;                                                               \
+    } while ((void)0, 0)
+
+#define UNDIAGONALIZE_NEON(B0, C0, D0, B1, C1, D1)                             \
+    do {                                                                       \
+        uint64x2_t t0 = vextq_u64(B1, B0, 1);                                  \
+        uint64x2_t t1 = vextq_u64(B0, B1, 1);                                  \
+        B0 = t0;                                                               \
+        B1 = t1;                                                               \
+        t0 = C0;                                                               \
+        C0 = C1;                                                               \
+        C1 = t0;                                                               \
+        t0 = vextq_u64(D0, D1, 1);                                             \
+        t1 = vextq_u64(D1, D0, 1);                                             \
+        D0 = t0;                                                               \
+        D1 = t1;                                                               \
+    } while ((void)0, 0)
+
+/* BLAKE2_ROUND_NOMSG(v0, ..., v15) with A0 = (v0, v1), A1 = (v2, v3),
+   B0 = (v4, v5), B1 = (v6, v7), C0 = (v8, v9), C1 = (v10, v11),
+   D0 = (v12, v13) and D1 = (v14, v15) */
+#define BLAKE2_ROUND_NEON(A0, A1, B0, B1, C0, C1, D0, D1)                      \
+    do {                                                                       \
+        G_NEON(A0, B0, C0, D0, A1, B1, C1, D1);                                \
+        DIAGONALIZE_NEON(B0, C0, D0, B1, C1, D1);                              \
+        G_NEON(A0, B0, C0, D0, A1, B1, C1, D1);                                \
+        UNDIAGONALIZE_NEON(B0, C0, D0, B1, C1, D1);                            \
+    } while ((void)0, 0)
+
+#endif /* BLAKE_ROUND_MKA_NEON_H */
@@ -0,0 +1,180 @@
+/*
+ * Argon2 reference source code package - reference C implementations
+ *
+ * Copyright 2015
+ * Daniel Dinu, Dmitry Khovratovich, Jean-Philippe Aumasson, and Samuel Neves
+ *
+ * You may use this work under the terms of a Creative Commons CC0 1.0 
+ * License/Waiver or the Apache Public License 2.0, at your option. The terms of
+ * these licenses can be found at:
+ *
+ * - CC0 1.0 Universal : http://creativecommons.org/publicdomain/zero/1.0
+ * - Apache 2.0        : http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * You should have received a copy of both of these licenses along with this
+ * software. If not, they may be obtained at the above URLs.
+ */
+
+#ifndef BLAKE_ROUND_MKA_OPT_H
+#define BLAKE_ROUND_MKA_OPT_H
+
+#include "blake2-impl.h"
+
+/*
+ * BlaMka rounds on 64-bit words packed in x86 vectors, each macro computes
+ * the same G functions as BLAKE2_ROUND_NOMSG of blamka-round-ref.h.
+ * The AVX2 part is only available in the sources compiled with -mavx2.
+ */
+
+#if defined(__AVX2__)
+
+#include <immintrin.h>
+
+#define rotr32_avx2(x) _mm256_shuffle_epi32((x), _MM_SHUFFLE(2, 3, 0, 1))
+#define rotr24_avx2(x)                                                         \
+    _mm256_shuffle_epi8((x), _mm256_setr_epi8(                                 \
+        3, 4, 5, 6, 7, 0, 1, 2, 11, 12, 13, 14, 15, 8, 9, 10,                  \
+        3, 4, 5, 6, 7, 0, 1, 2, 11, 12, 13, 14, 15, 8, 9, 10))
+#define rotr16_avx2(x)                                                         \
+    _mm256_shuffle_epi8((x), _mm256_setr_epi8(                                 \
+        2, 3, 4, 5, 6, 7, 0, 1, 10, 11, 12, 13, 14, 15, 8, 9,                  \
+        2, 3, 4, 5, 6, 7, 0, 1, 10, 11, 12, 13, 14, 15, 8, 9))
+#define rotr63_avx2(x)                                                         \
+    _mm256_xor_si256(_mm256_srli_epi64((x), 63), _mm256_add_epi64((x), (x)))
+
+static BLAKE2_INLINE __m256i fBlaMka_avx2(__m256i x, __m256i y) {
+    const __m256i z = _mm256_mul_epu32(x, y);
+    return _mm256_add_epi64(_mm256_add_epi64(x, y), _mm256_add_epi64(z, z));
+}
+
+/* G on the four columns (A[i], B[i], C[i], D[i]) of the vectors */
+#define G_AVX2(A, B, C, D)                                                     \
+    do {                                                                       \
+        A = fBlaMka_avx2(A, B);                                                \
+        D = rotr32_avx2(_mm256_xor_si256(D, A));                               \
+        C = fBlaMka_avx2(C, D);                                                \
+        B = rotr24_avx2(_mm256_xor_si256(B, C));                               \
+        A = fBlaMka_avx2(A, B);                                                \
+        D = rotr16_avx2(_mm256_xor_si256(D, A));                               \
+        C = fBlaMka_avx2(C, D);                                                \
+        B = rotr63_avx2(_mm256_xor_si256(B, C));                               \
+    } while ((void)0, 0)
+
+/* Rotate the words so the diagonals become columns */
+#define DIAGONALIZE_AVX2(B, C, D)                                              \
+    do {                                                                       \
+        B = _mm256_permute4x64_epi64(B, _MM_SHUFFLE(0, 3, 2, 1));              \
+        C = _mm256_permute4x64_epi64(C, _MM_SHUFFLE(1, 0, 3, 2));              \
+        D = _mm256_permute4x64_epi64(D, _MM_SHUFFLE(2, 1, 0, 3));              \
+    } while ((void)0, 0)
+
+#define UNDIAGONALIZE_AVX2(B, C, D)                                            \
+    do {                                                                       \
+        B = _mm256_permute4x64_epi64(B, _MM_SHUFFLE(2, 1, 0, 3));              \
+        C = _mm256_permute4x64_epi64(C, _MM_SHUFFLE(1, 0, 3, 2));              \
+        D = _mm256_permute4x64_epi64(D, _MM_SHUFFLE(0, 3, 2, 1));              \
+    } while ((void)0, 0)
+
+/* BLAKE2_ROUND_NOMSG(v0, ..., v15) with A = (v0..v3), B = (v4..v7),
+   C = (v8..v11) and D = (v12..v15) */
+#define BLAKE2_ROUND_AVX2(A, B, C, D)                                          \
+    do {                                                                       \
+        G_AVX2(A, B, C, D);                                                    \
+        DIAGONALIZE_AVX2(B, C, D);                                             \
+        G_AVX2(A, B, C, D);                                                    \
+        UNDIAGONALIZE_AVX2(B, C, D);                                           \
+    } while ((void)0, 0)
+
+#else /* SSE2, with the SSSE3 byte shuffles when available */
+
+#include <emmintrin.h>
+#if defined(__SSSE3__)
+#include <tmmintrin.h>
+#endif
+
+#if defined(__SSSE3__)
+#define rotr24_sse(x)                                                          \
+    _mm_shuffle_epi8((x), _mm_setr_epi8(3, 4, 5, 6, 7, 0, 1, 2,                \
+                                        11, 12, 13, 14, 15, 8, 9, 10))
+#define rotr16_sse(x)                                                          \
+    _mm_shuffle_epi8((x), _mm_setr_epi8(2, 3, 4, 5, 6, 7, 0, 1,                \
+                                        10, 11, 12, 13, 14, 15, 8, 9))
+#else
+#define rotr24_sse(x)                                                          \
+    _mm_xor_si128(_mm_srli_epi64((x), 24), _mm_slli_epi64((x), 40))
+#define rotr16_sse(x)                                                          \
+    _mm_xor_si128(_mm_srli_epi64((x), 16), _mm_slli_epi64((x), 48))
+#endif
+#define rotr32_sse(x) _mm_shuffle_epi32((x), _MM_SHUFFLE(2, 3, 0, 1))
+#define rotr63_sse(x)                                                          \
+    _mm_xor_si128(_mm_srli_epi64((x), 63), _mm_add_epi64((x), (x)))
+
+static BLAKE2_INLINE __m128i fBlaMka_sse(__m128i x, __m128i y) {
+    const __m128i z = _mm_mul_epu32(x, y);
+    return _mm_add_epi64(_mm_add_epi64(x, y), _mm_add_epi64(z, z));
+}
+
+/* G on the two columns of (A0, B0, C0, D0) and the two of (A1, B1, C1, D1) */
+#define G_SSE(A0, B0, C0, D0, A1, B1, C1, D1)                                  \
+    do {                                                                       \
+        A0 = fBlaMka_sse(A0, B0);                                              \
+        A1 = fBlaMka_sse(A1, B1);                                              \
+        D0 = rotr32_sse(_mm_xor_si128(D0, A0));                                \
+        D1 = rotr32_sse(_mm_xor_si128(D1, A1));                                \
+        C0 = fBlaMka_sse(C0, D0);                                              \
+        C1 = fBlaMka_sse(C1, D1);                                              \
+        B0 = rotr24_sse(_mm_xor_si128(B0, C0));                                \
+        B1 = rotr24_sse(_mm_xor_si128(B1, C1));                                \
+        A0 = fBlaMka_sse(A0, B0);                                              \
+        A1 = fBlaMka_sse(A1, B1);                                              \
+        D0 = rotr16_sse(_mm_xor_si128(D0, A0));                                \
+        D1 = rotr16_sse(_mm_xor_si128(D1, A1));                                \
+        C0 = fBlaMka_sse(C0, D0);                                              \
+        C1 = fBlaMka_sse(C1, D1);                                              \
+        B0 = rotr63_sse(_mm_xor_si128(B0, C0));                                \
+        B1 = rotr63_sse(_mm_xor_si128(B1, C1));                                \
+    } while ((void)0, 0)
+
+/* (B0, B1) = (v4, v5, v6, v7) becomes (v5, v6, v7, v4),
+   (C0, C1) = (v8, v9, v10, v11) becomes (v10, v11, v8, v9) and
+   (D0, D1) = (v12, v13, v14, v15) becomes (v15, v12, v13, v14) */
+#define DIAGONALIZE_SSE(B0, C0, D0, B1, C1, D1)                                \
+    do {                                                                       \
+        __m128i t0 = B0;                                                       \
+        __m128i t1 = D0;                                                       \
+        B0 = _mm_unpackhi_epi64(B0, _mm_unpacklo_epi64(B1, B1));               \
+        B1 = _mm_unpackhi_epi64(B1, _mm_unpacklo_epi64(t0, t0));               \
+        t0 = C0;                                                               \
+        C0 = C1;                                                               \
+        C1 = t0;                                                               \
+        D0 = _mm_unpackhi_epi64(D1, _mm_unpacklo_epi64(t1, t1));               \
+        D1 = _mm_unpackhi_epi64(t1, _mm_unpacklo_epi64(D1, D1));               \
+    } while ((void)0, 0)
+
+#define UNDIAGONALIZE_SSE(B0, C0, D0, B1, C1, D1)                              \
+    do {                                                                       \
+        __m128i t0 = B0;                                                       \
+        __m128i t1 = D0;                                                       \
+        B0 = _mm_unpackhi_epi64(B1, _mm_unpacklo_epi64(B0, B0));               \
+        B1 = _mm_unpackhi_epi64(t0, _mm_unpacklo_epi64(B1, B1));               \
+        t0 = C0;                                                               \
+        C0 = C1;                                                               \
+        C1 = t0;                                                               \
+        D0 = _mm_unpackhi_epi64(D0, _mm_unpacklo_epi64(D1, D1));               \
+        D1 = _mm_unpackhi_epi64(D1, _mm_unpacklo_epi64(t1, t1));               \
+    } while ((void)0, 0)
+
+/* BLAKE2_ROUND_NOMSG(v0, ..., v15) with A0 = (v0, v1), A1 = (v2, v3),
+   B0 = (v4, v5), B1 = (v6, v7), C0 = (v8, v9), C1 = (v10, v11),
+   D0 = (v12, v13) and D1 = (v14, v15) */
+#define BLAKE2_ROUND(A0, A1, B0, B1, C0, C1, D0, D1)                           \
+    do {                                                                       \
+        G_SSE(A0, B0, C0, D0, A1, B1, C1, D1);                                 \
+        DIAGONALIZE_SSE(B0, C0, D0, B1, C1, D1);                               \
+        G_SSE(A0, B0, C0, D0, A1, B1, C1, D1);                                 \
+        UNDIAGONALIZE_SSE(B0, C0, D0, B1, C1, D1);                             \
+    } while ((void)0, 0)
+
+#endif /* __AVX2__ */
+
+#endif /* BLAKE_ROUND_MKA_OPT_H */
@@ -258,6 +258,19 @@ static void *fill_segment_thr(void *thread_data)
     return 0;
 }
 
+static int is_cancelled(const argon2_context *context) {
+    return context != NULL && context->cancelled != NULL &&
+           __atomic_load_n(context->cancelled, __ATOMIC_RELAXED) != 0;
+}
+
+static void update_progress(argon2_context *context, uint64_t done,
+                            uint64_t total) {
+    if (context != NULL && context->progress != NULL) {
+        __atomic_store_n(context->progress, (int32_t)(done * 1000000 / total),
+                         __ATOMIC_RELAXED);
+    }
+}
+
 int fill_memory_blocks(argon2_instance_t *instance) {
     uint32_t r, s;
     argon2_thread_handle_t *thread = NULL;
@@ -286,6 +299,12 @@ int fill_memory_blocks(argon2_instance_t *instance) {
         for (s = 0; s < ARGON2_SYNC_POINTS; ++s) {
             uint32_t l;
 
+            /* 1.1 Stop between two slices if the hash is cancelled */
+            if (is_cancelled(instance->context_ptr)) {
+                rc = ARGON2_CANCELLED;
+                goto fail;
+            }
+
             /* 2. Calling threads */
             for (l = 0; l < instance->lanes; ++l) {
                 argon2_position_t position;
@@ -325,6 +344,11 @@ int fill_memory_blocks(argon2_instance_t *instance) {
                     goto fail;
                 }
             }
+
+            /* 4. Reporting the slices filled */
+            update_progress(instance->context_ptr,
+                            (uint64_t)r * ARGON2_SYNC_POINTS + s + 1,
+                            (uint64_t)instance->passes * ARGON2_SYNC_POINTS);
         }
 
 #ifdef GENKAT
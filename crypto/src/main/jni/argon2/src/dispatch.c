@@ -0,0 +1,111 @@
+/*
+ * Argon2 reference source code package - reference C implementations
+ *
+ * Copyright 2015
+ * Daniel Dinu, Dmitry Khovratovich, Jean-Philippe Aumasson, and Samuel Neves
+ *
+ * You may use this work under the terms of a Creative Commons CC0 1.0 
+ * License/Waiver or the Apache Public License 2.0, at your option. The terms of
+ * these licenses can be found at:
+ *
+ * - CC0 1.0 Universal : http://creativecommons.org/publicdomain/zero/1.0
+ * - Apache 2.0        : http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * You should have received a copy of both of these licenses along with this
+ * software. If not, they may be obtained at the above URLs.
+ */
+
+#include <pthread.h>
+
+#include "core.h"
+#include "opt.h"
+#include "ref.h"
+
+#if defined(ARGON2_NEON) && defined(__arm__) && defined(__linux__)
+#include <fcntl.h>
+#include <unistd.h>
+#include <elf.h>
+
+#ifndef AT_HWCAP
+#define AT_HWCAP 16
+#endif
+#ifndef HWCAP_NEON
+#define HWCAP_NEON (1 << 12)
+#endif
+#endif
+
+/*
+ * Selection of the fill_segment implementation, done once from the features
+ * of the CPU running the code, the reference implementation being the fallback
+ */
+
+typedef void (*fill_segment_fn)(const argon2_instance_t *instance,
+                                argon2_position_t position);
+
+static fill_segment_fn selected_fill_segment = &fill_segment_ref;
+static pthread_once_t fill_segment_once = PTHREAD_ONCE_INIT;
+
+#if defined(ARGON2_AVX2)
+static int cpu_supports_avx2(void) {
+    /* Also checks that the OS saves the AVX registers */
+    __builtin_cpu_init();
+    return __builtin_cpu_supports("avx2");
+}
+#endif
+
+#if defined(ARGON2_NEON)
+static int cpu_supports_neon(void) {
+#if defined(__aarch64__)
+    /* Mandatory in ARMv8 */
+    return 1;
+#elif defined(__arm__) && defined(__linux__)
+    /* Optional in ARMv7, read in the auxiliary vector because getauxval()
+       is only available since Android 4.3 */
+    unsigned long entry[2];
+    int neon = 0;
+    int fd = open("/proc/self/auxv", O_RDONLY);
+    if (fd < 0) {
+        return 0;
+    }
+    while (read(fd, entry, sizeof(entry)) == sizeof(entry)) {
+        if (entry[0] == AT_HWCAP) {
+            neon = (entry[1] & HWCAP_NEON) != 0;
+            break;
+        }
+        if (entry[0] == AT_NULL) {
+            break;
+        }
+    }
+    close(fd);
+    return neon;
+#else
+    return 0;
+#endif
+}
+#endif
+
+static void select_fill_segment(void) {
+#if defined(ARGON2_AVX2)
+    if (cpu_supports_avx2()) {
+        selected_fill_segment = &fill_segment_avx2;
+        return;
+    }
+#endif
+#if defined(ARGON2_SSE2)
+    /* Part of the x86 and x86_64 ABIs */
+    selected_fill_segment = &fill_segment_sse2;
+    return;
+#endif
+#if defined(ARGON2_NEON)
+    if (cpu_supports_neon()) {
+        selected_fill_segment = &fill_segment_neon;
+        return;
+    }
+#endif
+}
+
+void fill_segment(const argon2_instance_t *instance,
+                  argon2_position_t position) {
+    pthread_once(&fill_segment_once, &select_fill_segment);
+    selected_fill_segment(instance, position);
+}
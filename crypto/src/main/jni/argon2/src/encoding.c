@@ -337,6 +337,8 @@ int decode_string(argon2_context *ctx, const char *str, argon2_type type) {
     ctx->adlen = 0;
     ctx->allocate_cbk = NULL;
     ctx->free_cbk = NULL;
+    ctx->cancelled = NULL;
+    ctx->progress = NULL;
     ctx->flags = ARGON2_DEFAULT_FLAGS;
 
     /* On return, must have valid context */
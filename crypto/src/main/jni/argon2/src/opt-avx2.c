@@ -0,0 +1,102 @@
+/*
+ * Argon2 reference source code package - reference C implementations
+ *
+ * Copyright 2015
+ * Daniel Dinu, Dmitry Khovratovich, Jean-Philippe Aumasson, and Samuel Neves
+ *
+ * You may use this work under the terms of a Creative Commons CC0 1.0 
+ * License/Waiver or the Apache Public License 2.0, at your option. The terms of
+ * these licenses can be found at:
+ *
+ * - CC0 1.0 Universal : http://creativecommons.org/publicdomain/zero/1.0
+ * - Apache 2.0        : http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * You should have received a copy of both of these licenses along with this
+ * software. If not, they may be obtained at the above URLs.
+ */
+
+#include <stdint.h>
+#include <string.h>
+#include <stdlib.h>
+
+#include "argon2.h"
+#include "opt.h"
+
+#include "blake2/blake2.h"
+#include "blake2/blamka-round-opt.h"
+
+/*
+ * AVX2 implementation, compiled with -mavx2 and only called when the CPU
+ * supports it
+ */
+
+#if !defined(__AVX2__)
+#error "opt-avx2.c must be compiled with AVX2 enabled"
+#endif
+
+/*
+ * Apply the round on the rows 2 * m and 2 * m + 1 of the block. The 16 words
+ * of a row are the halves (m % 2) of state[m], state[4 + m], ... state[28 + m],
+ * gathered in four vectors per row then scattered back after the round.
+ */
+#define BLAKE2_ROUND_ROWS_AVX2(state, m)                                       \
+    do {                                                                       \
+        __m256i A0 = _mm256_permute2x128_si256(state[m], state[4 + m], 0x20);  \
+        __m256i A1 = _mm256_permute2x128_si256(state[m], state[4 + m], 0x31);  \
+        __m256i B0 = _mm256_permute2x128_si256(state[8 + m], state[12 + m], 0x20); \
+        __m256i B1 = _mm256_permute2x128_si256(state[8 + m], state[12 + m], 0x31); \
+        __m256i C0 = _mm256_permute2x128_si256(state[16 + m], state[20 + m], 0x20); \
+        __m256i C1 = _mm256_permute2x128_si256(state[16 + m], state[20 + m], 0x31); \
+        __m256i D0 = _mm256_permute2x128_si256(state[24 + m], state[28 + m], 0x20); \
+        __m256i D1 = _mm256_permute2x128_si256(state[24 + m], state[28 + m], 0x31); \
+        BLAKE2_ROUND_AVX2(A0, B0, C0, D0);                                     \
+        BLAKE2_ROUND_AVX2(A1, B1, C1, D1);                                     \
+        state[m] = _mm256_permute2x128_si256(A0, A1, 0x20);                    \
+        state[4 + m] = _mm256_permute2x128_si256(A0, A1, 0x31);                \
+        state[8 + m] = _mm256_permute2x128_si256(B0, B1, 0x20);                \
+        state[12 + m] = _mm256_permute2x128_si256(B0, B1, 0x31);               \
+        state[16 + m] = _mm256_permute2x128_si256(C0, C1, 0x20);               \
+        state[20 + m] = _mm256_permute2x128_si256(C0, C1, 0x31);               \
+        state[24 + m] = _mm256_permute2x128_si256(D0, D1, 0x20);               \
+        state[28 + m] = _mm256_permute2x128_si256(D0, D1, 0x31);               \
+    } while ((void)0, 0)
+
+static void fill_block(__m256i *state, const block *ref_block,
+                       block *next_block, int with_xor) {
+    __m256i block_XY[ARGON2_HWORDS_IN_BLOCK];
+    unsigned int i;
+
+    if (with_xor) {
+        for (i = 0; i < ARGON2_HWORDS_IN_BLOCK; i++) {
+            state[i] = _mm256_xor_si256(
+                state[i], _mm256_loadu_si256((const __m256i *)ref_block->v + i));
+            block_XY[i] = _mm256_xor_si256(
+                state[i], _mm256_loadu_si256((const __m256i *)next_block->v + i));
+        }
+    } else {
+        for (i = 0; i < ARGON2_HWORDS_IN_BLOCK; i++) {
+            block_XY[i] = state[i] = _mm256_xor_si256(
+                state[i], _mm256_loadu_si256((const __m256i *)ref_block->v + i));
+        }
+    }
+
+    /* Columns: the 16 words of each group are 4 consecutive vectors */
+    for (i = 0; i < 8; ++i) {
+        BLAKE2_ROUND_AVX2(state[4 * i + 0], state[4 * i + 1],
+            state[4 * i + 2], state[4 * i + 3]);
+    }
+
+    /* Rows: two rows at a time, one per half of the vectors */
+    for (i = 0; i < 4; ++i) {
+        BLAKE2_ROUND_ROWS_AVX2(state, i);
+    }
+
+    for (i = 0; i < ARGON2_HWORDS_IN_BLOCK; i++) {
+        state[i] = _mm256_xor_si256(state[i], block_XY[i]);
+        _mm256_storeu_si256((__m256i *)next_block->v + i, state[i]);
+    }
+}
+
+#define ARGON2_STATE_TYPE __m256i
+#define ARGON2_FILL_SEGMENT fill_segment_avx2
+#include "opt-segment.h"
@@ -19,17 +19,26 @@
 #define ARGON2_OPT_H
 
 #include "core.h"
-#include <emmintrin.h>
 
 /*
- * Function fills a new memory block and optionally XORs the old block over the new one.
- * Memory must be initialized.
- * @param state Pointer to the just produced block. Content will be updated(!)
- * @param ref_block Pointer to the reference block
- * @param next_block Pointer to the block to be XORed over. May coincide with @ref_block
- * @param with_xor Whether to XOR into the new block (1) or just overwrite (0)
- * @pre all block pointers must be valid
+ * Optimized implementations of fill_segment, each one is only compiled for
+ * the architectures supporting it (see CMakeLists.txt) and selected at runtime
+ * by fill_segment of dispatch.c. The reference implementation is in ref.c.
  */
-void fill_block(__m128i *s, const block *ref_block, block *next_block, int with_xor);
+
+#if defined(ARGON2_SSE2)
+void fill_segment_sse2(const argon2_instance_t *instance,
+                       argon2_position_t position);
+#endif
+
+#if defined(ARGON2_AVX2)
+void fill_segment_avx2(const argon2_instance_t *instance,
+                       argon2_position_t position);
+#endif
+
+#if defined(ARGON2_NEON)
+void fill_segment_neon(const argon2_instance_t *instance,
+                       argon2_position_t position);
+#endif
 
 #endif /* ARGON2_OPT_H */
@@ -32,4 +32,11 @@
 void fill_block(const block *prev_block, const block *ref_block,
                 block *next_block, int with_xor);
 
+/*
+ * Portable implementation of fill_segment, used when the CPU has no
+ * optimized implementation
+ */
+void fill_segment_ref(const argon2_instance_t *instance,
+                      argon2_position_t position);
+
 #endif /* ARGON2_REF_H */
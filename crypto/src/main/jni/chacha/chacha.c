@@ -0,0 +1,193 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include <string.h>
+#include <pthread.h>
+
+#include "chacha.h"
+
+#if defined(CHACHA_NEON) && defined(__arm__) && defined(__linux__)
+#include <fcntl.h>
+#include <unistd.h>
+#include <elf.h>
+
+#ifndef AT_HWCAP
+#define AT_HWCAP 16
+#endif
+#ifndef HWCAP_NEON
+#define HWCAP_NEON (1 << 12)
+#endif
+#endif
+
+#define ROL32(x, n) (((x) << (n)) | ((x) >> (32 - (n))))
+
+#define LOAD32_LE(p) ((uint32_t)(p)[0] | ((uint32_t)(p)[1] << 8) | ((uint32_t)(p)[2] << 16) | ((uint32_t)(p)[3] << 24))
+
+#define QUARTER_ROUND(a, b, c, d) do { \
+    a += b; d ^= a; d = ROL32(d, 16); \
+    c += d; b ^= c; b = ROL32(b, 12); \
+    a += b; d ^= a; d = ROL32(d, 8); \
+    c += d; b ^= c; b = ROL32(b, 7); \
+  } while(0)
+
+void chacha20_init(uint32_t *state, const uint8_t *key, const uint8_t *nonce, uint32_t counter) {
+  int i;
+  /* "expand 32-byte k" */
+  state[0] = 0x61707865;
+  state[1] = 0x3320646e;
+  state[2] = 0x79622d32;
+  state[3] = 0x6b206574;
+  for( i = 0; i < 8; i++ )
+    state[4 + i] = LOAD32_LE(key + 4 * i);
+  state[CHACHA_COUNTER_WORD] = counter;
+  for( i = 0; i < 3; i++ )
+    state[13 + i] = LOAD32_LE(nonce + 4 * i);
+}
+
+void chacha20_blocks_ref(const uint32_t *state, const uint8_t *in, uint8_t *out, size_t blocks) {
+  uint32_t x[CHACHA_STATE_WORDS];
+  uint32_t counter = state[CHACHA_COUNTER_WORD];
+  size_t block;
+  int i;
+
+  for( block = 0; block < blocks; block++ ) {
+    memcpy(x, state, sizeof(x));
+    x[CHACHA_COUNTER_WORD] = counter;
+    for( i = 0; i < 10; i++ ) {
+      QUARTER_ROUND(x[0], x[4], x[8], x[12]);
+      QUARTER_ROUND(x[1], x[5], x[9], x[13]);
+      QUARTER_ROUND(x[2], x[6], x[10], x[14]);
+      QUARTER_ROUND(x[3], x[7], x[11], x[15]);
+      QUARTER_ROUND(x[0], x[5], x[10], x[15]);
+      QUARTER_ROUND(x[1], x[6], x[11], x[12]);
+      QUARTER_ROUND(x[2], x[7], x[8], x[13]);
+      QUARTER_ROUND(x[3], x[4], x[9], x[14]);
+    }
+    for( i = 0; i < CHACHA_STATE_WORDS; i++ ) {
+      uint32_t word = x[i] + (i == CHACHA_COUNTER_WORD ? counter : state[i]);
+      out[4 * i] = in[4 * i] ^ (uint8_t)word;
+      out[4 * i + 1] = in[4 * i + 1] ^ (uint8_t)(word >> 8);
+      out[4 * i + 2] = in[4 * i + 2] ^ (uint8_t)(word >> 16);
+      out[4 * i + 3] = in[4 * i + 3] ^ (uint8_t)(word >> 24);
+    }
+    in += CHACHA_BLOCK_SIZE;
+    out += CHACHA_BLOCK_SIZE;
+    counter++;
+  }
+  memset(x, 0, sizeof(x));
+}
+
+/*
+ * Selection of the vector implementation, done once from the features of the
+ * CPU running the code, the reference implementation being the fallback
+ */
+
+typedef void (*chacha20_blocks_fn)(const uint32_t *state, const uint8_t *in, uint8_t *out, size_t blocks);
+
+static chacha20_blocks_fn selected_blocks = NULL;
+static size_t selected_lanes = 1;
+static pthread_once_t selection_once = PTHREAD_ONCE_INIT;
+
+#if defined(CHACHA_NEON)
+static int cpu_supports_neon(void) {
+#if defined(__aarch64__)
+  /* Mandatory in ARMv8 */
+  return 1;
+#elif defined(__arm__) && defined(__linux__)
+  /* Optional in ARMv7, read in the auxiliary vector because getauxval()
+     is only available since Android 4.3 */
+  unsigned long entry[2];
+  int neon = 0;
+  int fd = open("/proc/self/auxv", O_RDONLY);
+  if( fd < 0 )
+    return 0;
+  while( read(fd, entry, sizeof(entry)) == sizeof(entry) ) {
+    if( entry[0] == AT_HWCAP ) {
+      neon = (entry[1] & HWCAP_NEON) != 0;
+      break;
+    }
+    if( entry[0] == AT_NULL )
+      break;
+  }
+  close(fd);
+  return neon;
+#else
+  return 0;
+#endif
+}
+#endif
+
+static void select_blocks(void) {
+#if defined(CHACHA_AVX2)
+  /* Also checks that the OS saves the AVX registers */
+  __builtin_cpu_init();
+  if( __builtin_cpu_supports("avx2") ) {
+    selected_blocks = &chacha20_blocks_avx2;
+    selected_lanes = 8;
+    return;
+  }
+#endif
+#if defined(CHACHA_SSSE3)
+  /* Part of the x86 and x86_64 ABIs */
+  selected_blocks = &chacha20_blocks_ssse3;
+  selected_lanes = 4;
+  return;
+#endif
+#if defined(CHACHA_NEON)
+  if( cpu_supports_neon() ) {
+    selected_blocks = &chacha20_blocks_neon;
+    selected_lanes = 4;
+    return;
+  }
+#endif
+}
+
+void chacha20_xor(uint32_t *state, const uint8_t *in, uint8_t *out, size_t len) {
+  uint8_t last_block[CHACHA_BLOCK_SIZE];
+  size_t blocks, i;
+
+  pthread_once(&selection_once, &select_blocks);
+
+  blocks = len / CHACHA_BLOCK_SIZE;
+  if( selected_blocks != NULL && blocks >= selected_lanes ) {
+    size_t vector_blocks = blocks - blocks % selected_lanes;
+    selected_blocks(state, in, out, vector_blocks);
+    state[CHACHA_COUNTER_WORD] += (uint32_t)vector_blocks;
+    in += vector_blocks * CHACHA_BLOCK_SIZE;
+    out += vector_blocks * CHACHA_BLOCK_SIZE;
+    blocks -= vector_blocks;
+    len -= vector_blocks * CHACHA_BLOCK_SIZE;
+  }
+  if( blocks > 0 ) {
+    chacha20_blocks_ref(state, in, out, blocks);
+    state[CHACHA_COUNTER_WORD] += (uint32_t)blocks;
+    in += blocks * CHACHA_BLOCK_SIZE;
+    out += blocks * CHACHA_BLOCK_SIZE;
+    len -= blocks * CHACHA_BLOCK_SIZE;
+  }
+  if( len > 0 ) {
+    memcpy(last_block, in, len);
+    chacha20_blocks_ref(state, last_block, last_block, 1);
+    state[CHACHA_COUNTER_WORD]++;
+    for( i = 0; i < len; i++ )
+      out[i] = last_block[i];
+    memset(last_block, 0, sizeof(last_block));
+  }
+}
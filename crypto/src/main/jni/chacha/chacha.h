@@ -0,0 +1,61 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/*
+  ChaCha20 of RFC 7539, for the content of the databases and the inner
+  random stream of the protected values. Several blocks are computed at once
+  with the vector instructions of the CPU when chacha20_xor finds them, see
+  CMakeLists.txt for the implementations compiled in each ABI.
+*/
+
+#ifndef CHACHA_H
+#define CHACHA_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+#define CHACHA_BLOCK_SIZE 64
+#define CHACHA_STATE_WORDS 16
+#define CHACHA_COUNTER_WORD 12
+
+/* Build the initial state with a key of 32 bytes and a nonce of 12 bytes */
+void chacha20_init(uint32_t *state, const uint8_t *key, const uint8_t *nonce, uint32_t counter);
+
+/*
+  XOR len bytes of in with the keystream starting at the block of the counter
+  of state, which is incremented by the number of blocks used, the last one
+  being partially used if len is not a multiple of the block size.
+  in and out may be the same.
+*/
+void chacha20_xor(uint32_t *state, const uint8_t *in, uint8_t *out, size_t len);
+
+/* Implementations of blocks multiple of their number of lanes, the counter of state is not updated */
+void chacha20_blocks_ref(const uint32_t *state, const uint8_t *in, uint8_t *out, size_t blocks);
+#if defined(CHACHA_SSSE3)
+void chacha20_blocks_ssse3(const uint32_t *state, const uint8_t *in, uint8_t *out, size_t blocks);
+#endif
+#if defined(CHACHA_AVX2)
+void chacha20_blocks_avx2(const uint32_t *state, const uint8_t *in, uint8_t *out, size_t blocks);
+#endif
+#if defined(CHACHA_NEON)
+void chacha20_blocks_neon(const uint32_t *state, const uint8_t *in, uint8_t *out, size_t blocks);
+#endif
+
+#endif /* CHACHA_H */
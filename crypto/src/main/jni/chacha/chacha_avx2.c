@@ -0,0 +1,106 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/*
+  Eight blocks at once with AVX2, each vector holding the same word of the
+  eight blocks, transposed back before the XOR with the input
+*/
+
+#include <immintrin.h>
+
+#include "chacha.h"
+
+#define ROTATE(x, n) _mm256_or_si256(_mm256_slli_epi32((x), (n)), _mm256_srli_epi32((x), 32 - (n)))
+
+#define QUARTER_ROUND(a, b, c, d) do { \
+    a = _mm256_add_epi32(a, b); d = _mm256_shuffle_epi8(_mm256_xor_si256(d, a), rot16); \
+    c = _mm256_add_epi32(c, d); b = _mm256_xor_si256(b, c); b = ROTATE(b, 12); \
+    a = _mm256_add_epi32(a, b); d = _mm256_shuffle_epi8(_mm256_xor_si256(d, a), rot8); \
+    c = _mm256_add_epi32(c, d); b = _mm256_xor_si256(b, c); b = ROTATE(b, 7); \
+  } while(0)
+
+/*
+  Transpose words w to w + 3 in each 128-bit lane: y[w + b] holds these words
+  of the block b in its low lane and of the block b + 4 in its high lane
+*/
+#define TRANSPOSE(w) do { \
+    __m256i t0 = _mm256_unpacklo_epi32(x[w], x[w + 1]); \
+    __m256i t1 = _mm256_unpacklo_epi32(x[w + 2], x[w + 3]); \
+    __m256i t2 = _mm256_unpackhi_epi32(x[w], x[w + 1]); \
+    __m256i t3 = _mm256_unpackhi_epi32(x[w + 2], x[w + 3]); \
+    y[w] = _mm256_unpacklo_epi64(t0, t1); \
+    y[w + 1] = _mm256_unpackhi_epi64(t0, t1); \
+    y[w + 2] = _mm256_unpacklo_epi64(t2, t3); \
+    y[w + 3] = _mm256_unpackhi_epi64(t2, t3); \
+  } while(0)
+
+#define STORE_XOR(offset, v) _mm256_storeu_si256((__m256i *)(out + (offset)), \
+    _mm256_xor_si256((v), _mm256_loadu_si256((const __m256i *)(in + (offset)))))
+
+void chacha20_blocks_avx2(const uint32_t *state, const uint8_t *in, uint8_t *out, size_t blocks) {
+  const __m256i rot16 = _mm256_set_epi8(13, 12, 15, 14, 9, 8, 11, 10, 5, 4, 7, 6, 1, 0, 3, 2,
+                                        13, 12, 15, 14, 9, 8, 11, 10, 5, 4, 7, 6, 1, 0, 3, 2);
+  const __m256i rot8 = _mm256_set_epi8(14, 13, 12, 15, 10, 9, 8, 11, 6, 5, 4, 7, 2, 1, 0, 3,
+                                       14, 13, 12, 15, 10, 9, 8, 11, 6, 5, 4, 7, 2, 1, 0, 3);
+  __m256i x[CHACHA_STATE_WORDS], y[CHACHA_STATE_WORDS], initial[CHACHA_STATE_WORDS];
+  uint32_t counter = state[CHACHA_COUNTER_WORD];
+  size_t block;
+  int i, b;
+
+  for( i = 0; i < CHACHA_STATE_WORDS; i++ )
+    initial[i] = _mm256_set1_epi32((int)state[i]);
+
+  for( block = 0; block < blocks; block += 8 ) {
+    initial[CHACHA_COUNTER_WORD] = _mm256_add_epi32(_mm256_set1_epi32((int)counter),
+                                                    _mm256_set_epi32(7, 6, 5, 4, 3, 2, 1, 0));
+    for( i = 0; i < CHACHA_STATE_WORDS; i++ )
+      x[i] = initial[i];
+    for( i = 0; i < 10; i++ ) {
+      QUARTER_ROUND(x[0], x[4], x[8], x[12]);
+      QUARTER_ROUND(x[1], x[5], x[9], x[13]);
+      QUARTER_ROUND(x[2], x[6], x[10], x[14]);
+      QUARTER_ROUND(x[3], x[7], x[11], x[15]);
+      QUARTER_ROUND(x[0], x[5], x[10], x[15]);
+      QUARTER_ROUND(x[1], x[6], x[11], x[12]);
+      QUARTER_ROUND(x[2], x[7], x[8], x[13]);
+      QUARTER_ROUND(x[3], x[4], x[9], x[14]);
+    }
+    for( i = 0; i < CHACHA_STATE_WORDS; i++ )
+      x[i] = _mm256_add_epi32(x[i], initial[i]);
+    TRANSPOSE(0);
+    TRANSPOSE(4);
+    TRANSPOSE(8);
+    TRANSPOSE(12);
+    for( b = 0; b < 4; b++ ) {
+      STORE_XOR(b * CHACHA_BLOCK_SIZE, _mm256_permute2x128_si256(y[b], y[4 + b], 0x20));
+      STORE_XOR(b * CHACHA_BLOCK_SIZE + 32, _mm256_permute2x128_si256(y[8 + b], y[12 + b], 0x20));
+      STORE_XOR((b + 4) * CHACHA_BLOCK_SIZE, _mm256_permute2x128_si256(y[b], y[4 + b], 0x31));
+      STORE_XOR((b + 4) * CHACHA_BLOCK_SIZE + 32, _mm256_permute2x128_si256(y[8 + b], y[12 + b], 0x31));
+    }
+    in += 8 * CHACHA_BLOCK_SIZE;
+    out += 8 * CHACHA_BLOCK_SIZE;
+    counter += 8;
+  }
+  for( i = 0; i < CHACHA_STATE_WORDS; i++ ) {
+    x[i] = _mm256_setzero_si256();
+    y[i] = _mm256_setzero_si256();
+    initial[i] = _mm256_setzero_si256();
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include <string.h>
+#include <jni.h>
+
+#include "chacha.h"
+
+static void throw_illegal_argument(JNIEnv *env, const char *message) {
+  jclass cls = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
+  if( cls != NULL )
+    (*env)->ThrowNew(env, cls, message);
+}
+
+/*
+  XOR length bytes of input with the keystream of state, the counter of state
+  is updated, the arrays are accessed without copy
+*/
+JNIEXPORT void JNICALL Java_com_kunzisoft_encrypt_chacha_NativeChaCha7539Engine_nProcess(JNIEnv *env, jclass this,
+    jintArray state, jbyteArray input, jint inputOffset, jint length, jbyteArray output, jint outputOffset) {
+  uint32_t c_state[CHACHA_STATE_WORDS];
+  uint8_t *c_input, *c_output;
+  int same_array;
+
+  if( state == NULL || input == NULL || output == NULL
+      || (*env)->GetArrayLength(env, state) != CHACHA_STATE_WORDS ) {
+    throw_illegal_argument(env, "nProcess: invalid state or buffer");
+    return;
+  }
+  if( length <= 0 )
+    return;
+  if( inputOffset < 0 || outputOffset < 0
+      || inputOffset > (*env)->GetArrayLength(env, input) - length
+      || outputOffset > (*env)->GetArrayLength(env, output) - length ) {
+    throw_illegal_argument(env, "nProcess: buffer too small");
+    return;
+  }
+
+  (*env)->GetIntArrayRegion(env, state, 0, CHACHA_STATE_WORDS, (jint *)c_state);
+
+  same_array = (*env)->IsSameObject(env, input, output);
+  c_input = (*env)->GetPrimitiveArrayCritical(env, input, NULL);
+  if( c_input == NULL )
+    return;
+  if( same_array ) {
+    c_output = c_input;
+  } else {
+    c_output = (*env)->GetPrimitiveArrayCritical(env, output, NULL);
+    if( c_output == NULL ) {
+      (*env)->ReleasePrimitiveArrayCritical(env, input, c_input, JNI_ABORT);
+      return;
+    }
+  }
+
+  chacha20_xor(c_state, c_input + inputOffset, c_output + outputOffset, (size_t)length);
+
+  if( !same_array )
+    (*env)->ReleasePrimitiveArrayCritical(env, output, c_output, 0);
+  (*env)->ReleasePrimitiveArrayCritical(env, input, c_input, same_array ? 0 : JNI_ABORT);
+
+  (*env)->SetIntArrayRegion(env, state, CHACHA_COUNTER_WORD, 1, (jint *)(c_state + CHACHA_COUNTER_WORD));
+  memset(c_state, 0, sizeof(c_state));
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/*
+  Four blocks at once with NEON, each vector holding the same word of the
+  four blocks, transposed back before the XOR with the input
+*/
+
+#include <arm_neon.h>
+
+#include "chacha.h"
+
+#define ROTATE(x, n) vsriq_n_u32(vshlq_n_u32((x), (n)), (x), 32 - (n))
+#define ROTATE16(x) vreinterpretq_u32_u16(vrev32q_u16(vreinterpretq_u16_u32(x)))
+
+#define QUARTER_ROUND(a, b, c, d) do { \
+    a = vaddq_u32(a, b); d = veorq_u32(d, a); d = ROTATE16(d); \
+    c = vaddq_u32(c, d); b = veorq_u32(b, c); b = ROTATE(b, 12); \
+    a = vaddq_u32(a, b); d = veorq_u32(d, a); d = ROTATE(d, 8); \
+    c = vaddq_u32(c, d); b = veorq_u32(b, c); b = ROTATE(b, 7); \
+  } while(0)
+
+#define STORE_XOR(block, w, v) vst1q_u8(out + (block) * CHACHA_BLOCK_SIZE + 4 * (w), \
+    veorq_u8(vreinterpretq_u8_u32(v), vld1q_u8(in + (block) * CHACHA_BLOCK_SIZE + 4 * (w))))
+
+/* Words w to w + 3 of the four blocks, XORed with in and stored in out */
+#define TRANSPOSE_XOR(w) do { \
+    uint32x4x2_t t01 = vtrnq_u32(x[w], x[w + 1]); \
+    uint32x4x2_t t23 = vtrnq_u32(x[w + 2], x[w + 3]); \
+    STORE_XOR(0, w, vcombine_u32(vget_low_u32(t01.val[0]), vget_low_u32(t23.val[0]))); \
+    STORE_XOR(1, w, vcombine_u32(vget_low_u32(t01.val[1]), vget_low_u32(t23.val[1]))); \
+    STORE_XOR(2, w, vcombine_u32(vget_high_u32(t01.val[0]), vget_high_u32(t23.val[0]))); \
+    STORE_XOR(3, w, vcombine_u32(vget_high_u32(t01.val[1]), vget_high_u32(t23.val[1]))); \
+  } while(0)
+
+void chacha20_blocks_neon(const uint32_t *state, const uint8_t *in, uint8_t *out, size_t blocks) {
+  static const uint32_t lanes[4] = { 0, 1, 2, 3 };
+  uint32x4_t x[CHACHA_STATE_WORDS], initial[CHACHA_STATE_WORDS];
+  uint32_t counter = state[CHACHA_COUNTER_WORD];
+  size_t block;
+  int i;
+
+  for( i = 0; i < CHACHA_STATE_WORDS; i++ )
+    initial[i] = vdupq_n_u32(state[i]);
+
+  for( block = 0; block < blocks; block += 4 ) {
+    initial[CHACHA_COUNTER_WORD] = vaddq_u32(vdupq_n_u32(counter), vld1q_u32(lanes));
+    for( i = 0; i < CHACHA_STATE_WORDS; i++ )
+      x[i] = initial[i];
+    for( i = 0; i < 10; i++ ) {
+      QUARTER_ROUND(x[0], x[4], x[8], x[12]);
+      QUARTER_ROUND(x[1], x[5], x[9], x[13]);
+      QUARTER_ROUND(x[2], x[6], x[10], x[14]);
+      QUARTER_ROUND(x[3], x[7], x[11], x[15]);
+      QUARTER_ROUND(x[0], x[5], x[10], x[15]);
+      QUARTER_ROUND(x[1], x[6], x[11], x[12]);
+      QUARTER_ROUND(x[2], x[7], x[8], x[13]);
+      QUARTER_ROUND(x[3], x[4], x[9], x[14]);
+    }
+    for( i = 0; i < CHACHA_STATE_WORDS; i++ )
+      x[i] = vaddq_u32(x[i], initial[i]);
+    TRANSPOSE_XOR(0);
+    TRANSPOSE_XOR(4);
+    TRANSPOSE_XOR(8);
+    TRANSPOSE_XOR(12);
+    in += 4 * CHACHA_BLOCK_SIZE;
+    out += 4 * CHACHA_BLOCK_SIZE;
+    counter += 4;
+  }
+  for( i = 0; i < CHACHA_STATE_WORDS; i++ ) {
+    x[i] = vdupq_n_u32(0);
+    initial[i] = vdupq_n_u32(0);
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/*
+  Four blocks at once with SSSE3, each vector holding the same word of the
+  four blocks, transposed back before the XOR with the input
+*/
+
+#include <tmmintrin.h>
+
+#include "chacha.h"
+
+#define ROTATE(x, n) _mm_or_si128(_mm_slli_epi32((x), (n)), _mm_srli_epi32((x), 32 - (n)))
+
+#define QUARTER_ROUND(a, b, c, d) do { \
+    a = _mm_add_epi32(a, b); d = _mm_shuffle_epi8(_mm_xor_si128(d, a), rot16); \
+    c = _mm_add_epi32(c, d); b = _mm_xor_si128(b, c); b = ROTATE(b, 12); \
+    a = _mm_add_epi32(a, b); d = _mm_shuffle_epi8(_mm_xor_si128(d, a), rot8); \
+    c = _mm_add_epi32(c, d); b = _mm_xor_si128(b, c); b = ROTATE(b, 7); \
+  } while(0)
+
+/* Words w to w + 3 of the four blocks, XORed with in and stored in out */
+#define TRANSPOSE_XOR(w) do { \
+    __m128i t0 = _mm_unpacklo_epi32(x[w], x[w + 1]); \
+    __m128i t1 = _mm_unpacklo_epi32(x[w + 2], x[w + 3]); \
+    __m128i t2 = _mm_unpackhi_epi32(x[w], x[w + 1]); \
+    __m128i t3 = _mm_unpackhi_epi32(x[w + 2], x[w + 3]); \
+    STORE_XOR(0, w, _mm_unpacklo_epi64(t0, t1)); \
+    STORE_XOR(1, w, _mm_unpackhi_epi64(t0, t1)); \
+    STORE_XOR(2, w, _mm_unpacklo_epi64(t2, t3)); \
+    STORE_XOR(3, w, _mm_unpackhi_epi64(t2, t3)); \
+  } while(0)
+
+#define STORE_XOR(block, w, v) _mm_storeu_si128((__m128i *)(out + (block) * CHACHA_BLOCK_SIZE + 4 * (w)), \
+    _mm_xor_si128((v), _mm_loadu_si128((const __m128i *)(in + (block) * CHACHA_BLOCK_SIZE + 4 * (w)))))
+
+void chacha20_blocks_ssse3(const uint32_t *state, const uint8_t *in, uint8_t *out, size_t blocks) {
+  const __m128i rot16 = _mm_set_epi8(13, 12, 15, 14, 9, 8, 11, 10, 5, 4, 7, 6, 1, 0, 3, 2);
+  const __m128i rot8 = _mm_set_epi8(14, 13, 12, 15, 10, 9, 8, 11, 6, 5, 4, 7, 2, 1, 0, 3);
+  __m128i x[CHACHA_STATE_WORDS], initial[CHACHA_STATE_WORDS];
+  uint32_t counter = state[CHACHA_COUNTER_WORD];
+  size_t block;
+  int i;
+
+  for( i = 0; i < CHACHA_STATE_WORDS; i++ )
+    initial[i] = _mm_set1_epi32((int)state[i]);
+
+  for( block = 0; block < blocks; block += 4 ) {
+    initial[CHACHA_COUNTER_WORD] = _mm_add_epi32(_mm_set1_epi32((int)counter), _mm_set_epi32(3, 2, 1, 0));
+    for( i = 0; i < CHACHA_STATE_WORDS; i++ )
+      x[i] = initial[i];
+    for( i = 0; i < 10; i++ ) {
+      QUARTER_ROUND(x[0], x[4], x[8], x[12]);
+      QUARTER_ROUND(x[1], x[5], x[9], x[13]);
+      QUARTER_ROUND(x[2], x[6], x[10], x[14]);
+      QUARTER_ROUND(x[3], x[7], x[11], x[15]);
+      QUARTER_ROUND(x[0], x[5], x[10], x[15]);
+      QUARTER_ROUND(x[1], x[6], x[11], x[12]);
+      QUARTER_ROUND(x[2], x[7], x[8], x[13]);
+      QUARTER_ROUND(x[3], x[4], x[9], x[14]);
+    }
+    for( i = 0; i < CHACHA_STATE_WORDS; i++ )
+      x[i] = _mm_add_epi32(x[i], initial[i]);
+    TRANSPOSE_XOR(0);
+    TRANSPOSE_XOR(4);
+    TRANSPOSE_XOR(8);
+    TRANSPOSE_XOR(12);
+    in += 4 * CHACHA_BLOCK_SIZE;
+    out += 4 * CHACHA_BLOCK_SIZE;
+    counter += 4;
+  }
+  for( i = 0; i < CHACHA_STATE_WORDS; i++ ) {
+    x[i] = _mm_setzero_si128();
+    initial[i] = _mm_setzero_si128();
+  }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include <stdlib.h>
+#include <string.h>
+
+#include "twofish.h"
+
+/* Permutations q0 and q1 of the specification */
+static const uint8_t Q[2][256] = {
+ {
+  0xA9, 0x67, 0xB3, 0xE8, 0x04, 0xFD, 0xA3, 0x76, 0x9A, 0x92, 0x80, 0x78, 0xE4, 0xDD, 0xD1, 0x38,
+  0x0D, 0xC6, 0x35, 0x98, 0x18, 0xF7, 0xEC, 0x6C, 0x43, 0x75, 0x37, 0x26, 0xFA, 0x13, 0x94, 0x48,
+  0xF2, 0xD0, 0x8B, 0x30, 0x84, 0x54, 0xDF, 0x23, 0x19, 0x5B, 0x3D, 0x59, 0xF3, 0xAE, 0xA2, 0x82,
+  0x63, 0x01, 0x83, 0x2E, 0xD9, 0x51, 0x9B, 0x7C, 0xA6, 0xEB, 0xA5, 0xBE, 0x16, 0x0C, 0xE3, 0x61,
+  0xC0, 0x8C, 0x3A, 0xF5, 0x73, 0x2C, 0x25, 0x0B, 0xBB, 0x4E, 0x89, 0x6B, 0x53, 0x6A, 0xB4, 0xF1,
+  0xE1, 0xE6, 0xBD, 0x45, 0xE2, 0xF4, 0xB6, 0x66, 0xCC, 0x95, 0x03, 0x56, 0xD4, 0x1C, 0x1E, 0xD7,
+  0xFB, 0xC3, 0x8E, 0xB5, 0xE9, 0xCF, 0xBF, 0xBA, 0xEA, 0x77, 0x39, 0xAF, 0x33, 0xC9, 0x62, 0x71,
+  0x81, 0x79, 0x09, 0xAD, 0x24, 0xCD, 0xF9, 0xD8, 0xE5, 0xC5, 0xB9, 0x4D, 0x44, 0x08, 0x86, 0xE7,
+  0xA1, 0x1D, 0xAA, 0xED, 0x06, 0x70, 0xB2, 0xD2, 0x41, 0x7B, 0xA0, 0x11, 0x31, 0xC2, 0x27, 0x90,
+  0x20, 0xF6, 0x60, 0xFF, 0x96, 0x5C, 0xB1, 0xAB, 0x9E, 0x9C, 0x52, 0x1B, 0x5F, 0x93, 0x0A, 0xEF,
+  0x91, 0x85, 0x49, 0xEE, 0x2D, 0x4F, 0x8F, 0x3B, 0x47, 0x87, 0x6D, 0x46, 0xD6, 0x3E, 0x69, 0x64,
+  0x2A, 0xCE, 0xCB, 0x2F, 0xFC, 0x97, 0x05, 0x7A, 0xAC, 0x7F, 0xD5, 0x1A, 0x4B, 0x0E, 0xA7, 0x5A,
+  0x28, 0x14, 0x3F, 0x29, 0x88, 0x3C, 0x4C, 0x02, 0xB8, 0xDA, 0xB0, 0x17, 0x55, 0x1F, 0x8A, 0x7D,
+  0x57, 0xC7, 0x8D, 0x74, 0xB7, 0xC4, 0x9F, 0x72, 0x7E, 0x15, 0x22, 0x12, 0x58, 0x07, 0x99, 0x34,
+  0x6E, 0x50, 0xDE, 0x68, 0x65, 0xBC, 0xDB, 0xF8, 0xC8, 0xA8, 0x2B, 0x40, 0xDC, 0xFE, 0x32, 0xA4,
+  0xCA, 0x10, 0x21, 0xF0, 0xD3, 0x5D, 0x0F, 0x00, 0x6F, 0x9D, 0x36, 0x42, 0x4A, 0x5E, 0xC1, 0xE0
+ }, {
+  0x75, 0xF3, 0xC6, 0xF4, 0xDB, 0x7B, 0xFB, 0xC8, 0x4A, 0xD3, 0xE6, 0x6B, 0x45, 0x7D, 0xE8, 0x4B,
+  0xD6, 0x32, 0xD8, 0xFD, 0x37, 0x71, 0xF1, 0xE1, 0x30, 0x0F, 0xF8, 0x1B, 0x87, 0xFA, 0x06, 0x3F,
+  0x5E, 0xBA, 0xAE, 0x5B, 0x8A, 0x00, 0xBC, 0x9D, 0x6D, 0xC1, 0xB1, 0x0E, 0x80, 0x5D, 0xD2, 0xD5,
+  0xA0, 0x84, 0x07, 0x14, 0xB5, 0x90, 0x2C, 0xA3, 0xB2, 0x73, 0x4C, 0x54, 0x92, 0x74, 0x36, 0x51,
+  0x38, 0xB0, 0xBD, 0x5A, 0xFC, 0x60, 0x62, 0x96, 0x6C, 0x42, 0xF7, 0x10, 0x7C, 0x28, 0x27, 0x8C,
+  0x13, 0x95, 0x9C, 0xC7, 0x24, 0x46, 0x3B, 0x70, 0xCA, 0xE3, 0x85, 0xCB, 0x11, 0xD0, 0x93, 0xB8,
+  0xA6, 0x83, 0x20, 0xFF, 0x9F, 0x77, 0xC3, 0xCC, 0x03, 0x6F, 0x08, 0xBF, 0x40, 0xE7, 0x2B, 0xE2,
+  0x79, 0x0C, 0xAA, 0x82, 0x41, 0x3A, 0xEA, 0xB9, 0xE4, 0x9A, 0xA4, 0x97, 0x7E, 0xDA, 0x7A, 0x17,
+  0x66, 0x94, 0xA1, 0x1D, 0x3D, 0xF0, 0xDE, 0xB3, 0x0B, 0x72, 0xA7, 0x1C, 0xEF, 0xD1, 0x53, 0x3E,
+  0x8F, 0x33, 0x26, 0x5F, 0xEC, 0x76, 0x2A, 0x49, 0x81, 0x88, 0xEE, 0x21, 0xC4, 0x1A, 0xEB, 0xD9,
+  0xC5, 0x39, 0x99, 0xCD, 0xAD, 0x31, 0x8B, 0x01, 0x18, 0x23, 0xDD, 0x1F, 0x4E, 0x2D, 0xF9, 0x48,
+  0x4F, 0xF2, 0x65, 0x8E, 0x78, 0x5C, 0x58, 0x19, 0x8D, 0xE5, 0x98, 0x57, 0x67, 0x7F, 0x05, 0x64,
+  0xAF, 0x63, 0xB6, 0xFE, 0xF5, 0xB7, 0x3C, 0xA5, 0xCE, 0xE9, 0x68, 0x44, 0xE0, 0x4D, 0x43, 0x69,
+  0x29, 0x2E, 0xAC, 0x15, 0x59, 0xA8, 0x0A, 0x9E, 0x6E, 0x47, 0xDF, 0x34, 0x35, 0x6A, 0xCF, 0xDC,
+  0x22, 0xC9, 0xC0, 0x9B, 0x89, 0xD4, 0xED, 0xAB, 0x12, 0xA2, 0x0D, 0x52, 0xBB, 0x02, 0x2F, 0xA9,
+  0xD7, 0x61, 0x1E, 0xB4, 0x50, 0x04, 0xF6, 0xC2, 0x16, 0x25, 0x86, 0x56, 0x55, 0x09, 0xBE, 0x91
+ }
+};
+
+#define Q0 0
+#define Q1 1
+
+#define ROL32(x, n) (((x) << (n)) | ((x) >> (32 - (n))))
+#define ROR32(x, n) (((x) >> (n)) | ((x) << (32 - (n))))
+
+#define LOAD32_LE(p) ((uint32_t)(p)[0] | ((uint32_t)(p)[1] << 8) | ((uint32_t)(p)[2] << 16) | ((uint32_t)(p)[3] << 24))
+#define STORE32_LE(p, v) do { \
+    (p)[0] = (uint8_t)(v); (p)[1] = (uint8_t)((v) >> 8); \
+    (p)[2] = (uint8_t)((v) >> 16); (p)[3] = (uint8_t)((v) >> 24); \
+  } while(0)
+
+/* Multiplication in GF(2^8) modulo the polynomial given with its x^8 term */
+static uint8_t gf_mul(uint8_t a, uint8_t b, uint32_t polynomial) {
+  uint32_t x = a, result = 0;
+  while( b ) {
+    if( b & 1 )
+      result ^= x;
+    x <<= 1;
+    if( x & 0x100 )
+      x ^= polynomial;
+    b >>= 1;
+  }
+  return (uint8_t)result;
+}
+
+#define MDS_POLYNOMIAL 0x169
+#define RS_POLYNOMIAL 0x14D
+
+/* Column i of the MDS matrix multiplied by the byte y */
+static uint32_t mds_column(int i, uint8_t y) {
+  static const uint8_t MDS[4][4] = {
+    { 0x01, 0xEF, 0x5B, 0x5B },
+    { 0x5B, 0xEF, 0xEF, 0x01 },
+    { 0xEF, 0x5B, 0x01, 0xEF },
+    { 0xEF, 0x01, 0xEF, 0x5B }
+  };
+  uint32_t result = 0;
+  int row;
+  for( row = 0; row < 4; row++ )
+    result |= (uint32_t)gf_mul(MDS[row][i], y, MDS_POLYNOMIAL) << (8 * row);
+  return result;
+}
+
+/* Byte i of the S-boxes of the function h, l holds the k words of the key vector */
+static uint8_t h_byte(int i, uint8_t y, const uint32_t *l, int k) {
+  /* Permutations applied to each byte, from the last word of the key vector to the first */
+  static const uint8_t QORD[4][5] = {
+    { Q1, Q1, Q0, Q0, Q1 },
+    { Q0, Q1, Q1, Q0, Q0 },
+    { Q0, Q0, Q0, Q1, Q1 },
+    { Q1, Q0, Q1, Q1, Q0 }
+  };
+  int j;
+  /* With less than 4 words, the first permutations are skipped */
+  for( j = 4 - k; j < 4; j++ ) {
+    y = Q[QORD[i][j]][y] ^ (uint8_t)(l[3 - j] >> (8 * i));
+  }
+  return Q[QORD[i][4]][y];
+}
+
+static uint32_t h(uint32_t x, const uint32_t *l, int k) {
+  uint32_t result = 0;
+  int i;
+  for( i = 0; i < 4; i++ )
+    result ^= mds_column(i, h_byte(i, (uint8_t)(x >> (8 * i)), l, k));
+  return result;
+}
+
+/* Product of the RS matrix with 8 bytes of the key */
+static uint32_t rs_multiply(const uint8_t *m) {
+  static const uint8_t RS[4][8] = {
+    { 0x01, 0xA4, 0x55, 0x87, 0x5A, 0x58, 0xDB, 0x9E },
+    { 0xA4, 0x56, 0x82, 0xF3, 0x1E, 0xC6, 0x68, 0xE5 },
+    { 0x02, 0xA1, 0xFC, 0xC1, 0x47, 0xAE, 0x3D, 0x19 },
+    { 0xA4, 0x55, 0x87, 0x5A, 0x58, 0xDB, 0x9E, 0x03 }
+  };
+  uint32_t result = 0;
+  int row, column;
+  for( row = 0; row < 4; row++ ) {
+    uint8_t value = 0;
+    for( column = 0; column < 8; column++ )
+      value ^= gf_mul(RS[row][column], m[column], RS_POLYNOMIAL);
+    result |= (uint32_t)value << (8 * row);
+  }
+  return result;
+}
+
+int twofish_set_key(const uint8_t *key, int key_len, twofish_ctx *ctx) {
+  uint32_t me[4], mo[4], s[4];
+  uint32_t a, b;
+  int k, i;
+
+  if( key_len != 16 && key_len != 24 && key_len != 32 )
+    return EXIT_FAILURE;
+  k = key_len / 8;
+
+  for( i = 0; i < k; i++ ) {
+    me[i] = LOAD32_LE(key + 8 * i);
+    mo[i] = LOAD32_LE(key + 8 * i + 4);
+    /* S vector in reverse order */
+    s[k - 1 - i] = rs_multiply(key + 8 * i);
+  }
+
+  for( i = 0; i < TWOFISH_SUBKEYS / 2; i++ ) {
+    a = h((uint32_t)(2 * i) * 0x01010101u, me, k);
+    b = h((uint32_t)(2 * i + 1) * 0x01010101u, mo, k);
+    b = ROL32(b, 8);
+    ctx->k[2 * i] = a + b;
+    b = a + 2 * b;
+    ctx->k[2 * i + 1] = ROL32(b, 9);
+  }
+
+  for( i = 0; i < 256; i++ ) {
+    ctx->s[0][i] = mds_column(0, h_byte(0, (uint8_t)i, s, k));
+    ctx->s[1][i] = mds_column(1, h_byte(1, (uint8_t)i, s, k));
+    ctx->s[2][i] = mds_column(2, h_byte(2, (uint8_t)i, s, k));
+    ctx->s[3][i] = mds_column(3, h_byte(3, (uint8_t)i, s, k));
+  }
+
+  memset(me, 0, sizeof(me));
+  memset(mo, 0, sizeof(mo));
+  memset(s, 0, sizeof(s));
+  return EXIT_SUCCESS;
+}
+
+#define G0(ctx, x) ((ctx)->s[0][(x) & 0xFF] ^ (ctx)->s[1][((x) >> 8) & 0xFF] \
+    ^ (ctx)->s[2][((x) >> 16) & 0xFF] ^ (ctx)->s[3][(x) >> 24])
+/* g(ROL(x, 8)) */
+#define G1(ctx, x) ((ctx)->s[0][(x) >> 24] ^ (ctx)->s[1][(x) & 0xFF] \
+    ^ (ctx)->s[2][((x) >> 8) & 0xFF] ^ (ctx)->s[3][((x) >> 16) & 0xFF])
+
+/* Two rounds, the words swapped by the second one stay in place */
+#define ENCRYPT_CYCLE(ctx, r) do { \
+    t0 = G0(ctx, x0); t1 = G1(ctx, x1); \
+    x2 ^= t0 + t1 + (ctx)->k[2 * (r) + 8]; x2 = ROR32(x2, 1); \
+    x3 = ROL32(x3, 1); x3 ^= t0 + 2 * t1 + (ctx)->k[2 * (r) + 9]; \
+    t0 = G0(ctx, x2); t1 = G1(ctx, x3); \
+    x0 ^= t0 + t1 + (ctx)->k[2 * (r) + 10]; x0 = ROR32(x0, 1); \
+    x1 = ROL32(x1, 1); x1 ^= t0 + 2 * t1 + (ctx)->k[2 * (r) + 11]; \
+  } while(0)
+
+#define DECRYPT_CYCLE(ctx, r) do { \
+    t0 = G0(ctx, x2); t1 = G1(ctx, x3); \
+    x0 = ROL32(x0, 1); x0 ^= t0 + t1 + (ctx)->k[2 * (r) + 10]; \
+    x1 ^= t0 + 2 * t1 + (ctx)->k[2 * (r) + 11]; x1 = ROR32(x1, 1); \
+    t0 = G0(ctx, x0); t1 = G1(ctx, x1); \
+    x2 = ROL32(x2, 1); x2 ^= t0 + t1 + (ctx)->k[2 * (r) + 8]; \
+    x3 ^= t0 + 2 * t1 + (ctx)->k[2 * (r) + 9]; x3 = ROR32(x3, 1); \
+  } while(0)
+
+void twofish_encrypt_block(const uint8_t *in, uint8_t *out, const twofish_ctx *ctx) {
+  uint32_t x0, x1, x2, x3, t0, t1;
+
+  x0 = LOAD32_LE(in) ^ ctx->k[0];
+  x1 = LOAD32_LE(in + 4) ^ ctx->k[1];
+  x2 = LOAD32_LE(in + 8) ^ ctx->k[2];
+  x3 = LOAD32_LE(in + 12) ^ ctx->k[3];
+
+  ENCRYPT_CYCLE(ctx, 0);
+  ENCRYPT_CYCLE(ctx, 2);
+  ENCRYPT_CYCLE(ctx, 4);
+  ENCRYPT_CYCLE(ctx, 6);
+  ENCRYPT_CYCLE(ctx, 8);
+  ENCRYPT_CYCLE(ctx, 10);
+  ENCRYPT_CYCLE(ctx, 12);
+  ENCRYPT_CYCLE(ctx, 14);
+
+  /* Undo the last swap */
+  x2 ^= ctx->k[4];
+  x3 ^= ctx->k[5];
+  x0 ^= ctx->k[6];
+  x1 ^= ctx->k[7];
+  STORE32_LE(out, x2);
+  STORE32_LE(out + 4, x3);
+  STORE32_LE(out + 8, x0);
+  STORE32_LE(out + 12, x1);
+}
+
+void twofish_decrypt_block(const uint8_t *in, uint8_t *out, const twofish_ctx *ctx) {
+  uint32_t x0, x1, x2, x3, t0, t1;
+
+  x2 = LOAD32_LE(in) ^ ctx->k[4];
+  x3 = LOAD32_LE(in + 4) ^ ctx->k[5];
+  x0 = LOAD32_LE(in + 8) ^ ctx->k[6];
+  x1 = LOAD32_LE(in + 12) ^ ctx->k[7];
+
+  DECRYPT_CYCLE(ctx, 14);
+  DECRYPT_CYCLE(ctx, 12);
+  DECRYPT_CYCLE(ctx, 10);
+  DECRYPT_CYCLE(ctx, 8);
+  DECRYPT_CYCLE(ctx, 6);
+  DECRYPT_CYCLE(ctx, 4);
+  DECRYPT_CYCLE(ctx, 2);
+  DECRYPT_CYCLE(ctx, 0);
+
+  x0 ^= ctx->k[0];
+  x1 ^= ctx->k[1];
+  x2 ^= ctx->k[2];
+  x3 ^= ctx->k[3];
+  STORE32_LE(out, x0);
+  STORE32_LE(out + 4, x1);
+  STORE32_LE(out + 8, x2);
+  STORE32_LE(out + 12, x3);
+}
+
+int twofish_cbc_encrypt(const uint8_t *in, uint8_t *out, int len, uint8_t *iv, const twofish_ctx *ctx) {
+  uint8_t block[TWOFISH_BLOCK_SIZE];
+  int i;
+
+  if( len & (TWOFISH_BLOCK_SIZE - 1) )
+    return EXIT_FAILURE;
+  while( len > 0 ) {
+    for( i = 0; i < TWOFISH_BLOCK_SIZE; i++ )
+      block[i] = in[i] ^ iv[i];
+    twofish_encrypt_block(block, iv, ctx);
+    memcpy(out, iv, TWOFISH_BLOCK_SIZE);
+    in += TWOFISH_BLOCK_SIZE;
+    out += TWOFISH_BLOCK_SIZE;
+    len -= TWOFISH_BLOCK_SIZE;
+  }
+  memset(block, 0, sizeof(block));
+  return EXIT_SUCCESS;
+}
+
+int twofish_cbc_decrypt(const uint8_t *in, uint8_t *out, int len, uint8_t *iv, const twofish_ctx *ctx) {
+  uint8_t block[TWOFISH_BLOCK_SIZE], next_iv[TWOFISH_BLOCK_SIZE];
+  int i;
+
+  if( len & (TWOFISH_BLOCK_SIZE - 1) )
+    return EXIT_FAILURE;
+  while( len > 0 ) {
+    memcpy(next_iv, in, TWOFISH_BLOCK_SIZE);
+    twofish_decrypt_block(in, block, ctx);
+    for( i = 0; i < TWOFISH_BLOCK_SIZE; i++ )
+      out[i] = block[i] ^ iv[i];
+    memcpy(iv, next_iv, TWOFISH_BLOCK_SIZE);
+    in += TWOFISH_BLOCK_SIZE;
+    out += TWOFISH_BLOCK_SIZE;
+    len -= TWOFISH_BLOCK_SIZE;
+  }
+  memset(block, 0, sizeof(block));
+  return EXIT_SUCCESS;
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/*
+  Twofish block cipher (Schneier et al., 1998) in CBC mode for the content of
+  the databases, with the key-dependent S-boxes merged with the MDS matrix in
+  four tables computed by twofish_set_key.
+*/
+
+#ifndef TWOFISH_H
+#define TWOFISH_H
+
+#include <stdint.h>
+
+#define TWOFISH_BLOCK_SIZE 16
+#define TWOFISH_SUBKEYS 40
+
+typedef struct _twofish_ctx {
+  uint32_t k[TWOFISH_SUBKEYS];
+  uint32_t s[4][256];
+} twofish_ctx;
+
+/* Returns EXIT_SUCCESS, or EXIT_FAILURE if key_len is not 16, 24 or 32 */
+int twofish_set_key(const uint8_t *key, int key_len, twofish_ctx *ctx);
+
+void twofish_encrypt_block(const uint8_t *in, uint8_t *out, const twofish_ctx *ctx);
+void twofish_decrypt_block(const uint8_t *in, uint8_t *out, const twofish_ctx *ctx);
+
+/* len must be a multiple of the block size, iv is updated for the next call, in and out may be the same */
+int twofish_cbc_encrypt(const uint8_t *in, uint8_t *out, int len, uint8_t *iv, const twofish_ctx *ctx);
+int twofish_cbc_decrypt(const uint8_t *in, uint8_t *out, int len, uint8_t *iv, const twofish_ctx *ctx);
+
+#endif /* TWOFISH_H */
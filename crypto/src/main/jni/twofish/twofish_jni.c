@@ -0,0 +1,122 @@
+/*
+ * Copyright 2021 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include <jni.h>
+
+#include "twofish.h"
+
+/* Subkeys then S-boxes, the layout of twofish_ctx */
+#define CONTEXT_WORDS ((jint)(sizeof(twofish_ctx) / sizeof(uint32_t)))
+
+static void throw_illegal_argument(JNIEnv *env, const char *message) {
+  jclass cls = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
+  if( cls != NULL )
+    (*env)->ThrowNew(env, cls, message);
+}
+
+/*
+  The expanded key is kept in a Java array by the caller, so nothing has to be
+  freed when the cipher is no longer used
+*/
+JNIEXPORT jintArray JNICALL Java_com_kunzisoft_encrypt_twofish_NativeTwofishCipherSpi_nSetKey(JNIEnv *env, jclass this,
+    jbyteArray key) {
+  uint8_t c_key[32];
+  twofish_ctx ctx;
+  jintArray result;
+  jint key_len;
+
+  if( key == NULL ) {
+    throw_illegal_argument(env, "nSetKey: no key");
+    return NULL;
+  }
+  key_len = (*env)->GetArrayLength(env, key);
+  if( key_len != 16 && key_len != 24 && key_len != 32 ) {
+    throw_illegal_argument(env, "nSetKey: invalid length of key");
+    return NULL;
+  }
+  (*env)->GetByteArrayRegion(env, key, 0, key_len, (jbyte *)c_key);
+  twofish_set_key(c_key, key_len, &ctx);
+
+  result = (*env)->NewIntArray(env, CONTEXT_WORDS);
+  if( result != NULL )
+    (*env)->SetIntArrayRegion(env, result, 0, CONTEXT_WORDS, (jint *)&ctx);
+
+  memset(c_key, 0, sizeof(c_key));
+  memset(&ctx, 0, sizeof(ctx));
+  return result;
+}
+
+static void cbc(JNIEnv *env, int encrypting, jintArray context, jbyteArray iv,
+    jbyteArray input, jint inputOffset, jint length, jbyteArray output, jint outputOffset) {
+  twofish_ctx ctx;
+  uint8_t c_iv[TWOFISH_BLOCK_SIZE];
+  uint8_t *c_input, *c_output;
+  int same_array;
+
+  if( context == NULL || iv == NULL || input == NULL || output == NULL
+      || (*env)->GetArrayLength(env, context) != CONTEXT_WORDS
+      || (*env)->GetArrayLength(env, iv) != TWOFISH_BLOCK_SIZE ) {
+    throw_illegal_argument(env, "Twofish: invalid context or buffer");
+    return;
+  }
+  if( length <= 0 )
+    return;
+  if( (length & (TWOFISH_BLOCK_SIZE - 1)) != 0 || inputOffset < 0 || outputOffset < 0
+      || inputOffset > (*env)->GetArrayLength(env, input) - length
+      || outputOffset > (*env)->GetArrayLength(env, output) - length ) {
+    throw_illegal_argument(env, "Twofish: invalid length");
+    return;
+  }
+
+  (*env)->GetIntArrayRegion(env, context, 0, CONTEXT_WORDS, (jint *)&ctx);
+  (*env)->GetByteArrayRegion(env, iv, 0, TWOFISH_BLOCK_SIZE, (jbyte *)c_iv);
+
+  same_array = (*env)->IsSameObject(env, input, output);
+  c_input = (*env)->GetPrimitiveArrayCritical(env, input, NULL);
+  if( c_input != NULL ) {
+    c_output = same_array ? c_input : (*env)->GetPrimitiveArrayCritical(env, output, NULL);
+    if( c_output != NULL ) {
+      if( encrypting )
+        twofish_cbc_encrypt(c_input + inputOffset, c_output + outputOffset, length, c_iv, &ctx);
+      else
+        twofish_cbc_decrypt(c_input + inputOffset, c_output + outputOffset, length, c_iv, &ctx);
+      if( !same_array )
+        (*env)->ReleasePrimitiveArrayCritical(env, output, c_output, 0);
+    }
+    (*env)->ReleasePrimitiveArrayCritical(env, input, c_input, same_array ? 0 : JNI_ABORT);
+    /* Next vector of the chain */
+    (*env)->SetByteArrayRegion(env, iv, 0, TWOFISH_BLOCK_SIZE, (jbyte *)c_iv);
+  }
+
+  memset(&ctx, 0, sizeof(ctx));
+  memset(c_iv, 0, sizeof(c_iv));
+}
+
+JNIEXPORT void JNICALL Java_com_kunzisoft_encrypt_twofish_NativeTwofishCipherSpi_nEncrypt(JNIEnv *env, jclass this,
+    jintArray context, jbyteArray iv, jbyteArray input, jint inputOffset, jint length, jbyteArray output, jint outputOffset) {
+  cbc(env, 1, context, iv, input, inputOffset, length, output, outputOffset);
+}
+
+JNIEXPORT void JNICALL Java_com_kunzisoft_encrypt_twofish_NativeTwofishCipherSpi_nDecrypt(JNIEnv *env, jclass this,
+    jintArray context, jbyteArray iv, jbyteArray input, jint inputOffset, jint length, jbyteArray output, jint outputOffset) {
+  cbc(env, 0, context, iv, input, inputOffset, length, output, outputOffset);
+}